@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.bcodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.turn.ttorrent.benchmarks.BenchmarkData;
+
+
+/**
+ * Decodes real-size torrent meta-info and tracker announce responses.
+ *
+ * <p>
+ * Compares the stream {@link BDecoder}, the buffer {@link BDecoder} (backed
+ * by the lazy decoder, then materialized) and the {@link BLazyDecoder} alone,
+ * looking up the values a client actually reads.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BDecoderBenchmark {
+
+	@Param({"64", "4096"})
+	public int pieces;
+
+	@Param({"1", "500"})
+	public int files;
+
+	private byte[] metainfo;
+	private byte[] announce;
+
+	@Setup
+	public void setUp() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		BEncoder.bencode(BenchmarkData.metainfo(this.files, this.pieces), baos);
+		this.metainfo = baos.toByteArray();
+		this.announce = BenchmarkData.announceResponse(50);
+	}
+
+	@Benchmark
+	public BEValue streamDecoder() throws IOException {
+		return BDecoder.bdecode(new ByteArrayInputStream(this.metainfo));
+	}
+
+	@Benchmark
+	public BEValue bufferDecoder() throws IOException {
+		return BDecoder.bdecode(ByteBuffer.wrap(this.metainfo));
+	}
+
+	@Benchmark
+	public ByteBuffer lazyDecoder() throws IOException {
+		BEView info = BLazyDecoder.bdecode(ByteBuffer.wrap(this.metainfo))
+			.get("info");
+		info.get("piece length").getInt();
+		return info.get("pieces").getBuffer();
+	}
+
+	@Benchmark
+	public BEValue streamDecoderAnnounce() throws IOException {
+		return BDecoder.bdecode(new ByteArrayInputStream(this.announce));
+	}
+
+	@Benchmark
+	public BEValue bufferDecoderAnnounce() throws IOException {
+		return BDecoder.bdecode(ByteBuffer.wrap(this.announce));
+	}
+}
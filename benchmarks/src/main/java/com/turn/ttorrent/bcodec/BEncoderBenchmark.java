@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.bcodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.turn.ttorrent.benchmarks.BenchmarkData;
+
+
+/**
+ * Compares the stream-based {@link BEncoder} to the {@link BBufferEncoder}.
+ *
+ * <p>
+ * The encoded values are a real-size, multi-file meta-info dictionary with a
+ * given number of pieces, and a compact tracker announce response.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BEncoderBenchmark {
+
+	@Param({"64", "4096"})
+	public int pieces;
+
+	private BEValue metainfo;
+	private BEValue sortedMetainfo;
+	private BEValue announce;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.metainfo = BenchmarkData.metainfo(32, this.pieces);
+		this.sortedMetainfo = new BEValue(
+			new TreeMap<String, BEValue>(this.metainfo.getMap()));
+		this.announce = BDecoder.bdecode(ByteBuffer.wrap(
+			BenchmarkData.announceResponse(50)));
+		this.direct = ByteBuffer.allocateDirect(
+			BBufferEncoder.encodedSize(this.metainfo));
+	}
+
+	@Benchmark
+	public byte[] streamEncoder() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		BEncoder.bencode(this.metainfo, baos);
+		return baos.toByteArray();
+	}
+
+	@Benchmark
+	public ByteBuffer bufferEncoder() {
+		return BBufferEncoder.bencode(this.metainfo);
+	}
+
+	@Benchmark
+	public ByteBuffer bufferEncoderPreSorted() {
+		return BBufferEncoder.bencode(this.sortedMetainfo);
+	}
+
+	@Benchmark
+	public ByteBuffer bufferEncoderReused() {
+		this.direct.clear();
+		BBufferEncoder.bencode(this.metainfo, this.direct);
+		this.direct.flip();
+		return this.direct;
+	}
+
+	@Benchmark
+	public int encodedSize() {
+		return BBufferEncoder.encodedSize(this.metainfo);
+	}
+
+	@Benchmark
+	public byte[] streamEncoderAnnounce() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		BEncoder.bencode(this.announce, baos);
+		return baos.toByteArray();
+	}
+
+	@Benchmark
+	public ByteBuffer bufferEncoderAnnounce() {
+		return BBufferEncoder.bencode(this.announce);
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.client.SharedTorrent;
+import com.turn.ttorrent.common.Peer;
+import com.turn.ttorrent.common.Torrent;
+import com.turn.ttorrent.common.protocol.http.HTTPAnnounceResponseMessage;
+
+
+/**
+ * Data sets shared by the benchmarks.
+ *
+ * <p>
+ * All data is generated from a fixed seed, so that runs are comparable.
+ * </p>
+ */
+public final class BenchmarkData {
+
+	/** The piece length used by {@link Torrent#create}. */
+	public static final int PIECE_LENGTH = 512 * 1024;
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * Build a multi-file meta-info dictionary, the way a real-size torrent
+	 * file would decode.
+	 *
+	 * @param files The number of files in the torrent.
+	 * @param pieces The number of pieces of the torrent.
+	 */
+	public static BEValue metainfo(int files, int pieces) {
+		Random random = new Random(42);
+
+		try {
+			List<BEValue> fileList = new ArrayList<BEValue>();
+			for (int i=0; i < files; i++) {
+				List<BEValue> path = new ArrayList<BEValue>();
+				path.add(new BEValue("directory-" + (i % 16)));
+				path.add(new BEValue("file-" + i + ".bin"));
+
+				Map<String, BEValue> file = new HashMap<String, BEValue>();
+				file.put("length", new BEValue(
+					(long)pieces * PIECE_LENGTH / files));
+				file.put("path", new BEValue(path));
+				fileList.add(new BEValue(file));
+			}
+
+			byte[] hashes = new byte[pieces * Torrent.PIECE_HASH_SIZE];
+			random.nextBytes(hashes);
+
+			Map<String, BEValue> info = new HashMap<String, BEValue>();
+			info.put("name", new BEValue("benchmark"));
+			info.put("piece length", new BEValue(PIECE_LENGTH));
+			info.put("pieces", new BEValue(hashes));
+			info.put("files", new BEValue(fileList));
+
+			Map<String, BEValue> torrent = new HashMap<String, BEValue>();
+			torrent.put("announce",
+				new BEValue("http://localhost:6969/announce"));
+			torrent.put("created by", new BEValue("ttorrent"));
+			torrent.put("creation date", new BEValue(1330000000L));
+			torrent.put("info", new BEValue(info));
+			return new BEValue(torrent);
+		} catch (IOException ioe) {
+			throw new IllegalStateException(ioe);
+		}
+	}
+
+	/**
+	 * Build a compact HTTP tracker announce response.
+	 *
+	 * @param peers The number of peers in the response.
+	 * @return The B-encoded response.
+	 */
+	public static byte[] announceResponse(int peers) {
+		Random random = new Random(42);
+
+		List<Peer> list = new ArrayList<Peer>();
+		for (int i=0; i < peers; i++) {
+			list.add(new Peer("10." + random.nextInt(256) + "." +
+				random.nextInt(256) + "." + random.nextInt(256),
+				6881 + random.nextInt(100)));
+		}
+
+		try {
+			HTTPAnnounceResponseMessage response =
+				HTTPAnnounceResponseMessage.craft(1800, 900, null,
+					peers / 2, peers - peers / 2, list);
+			byte[] data = new byte[response.getData().remaining()];
+			response.getData().duplicate().get(data);
+			return data;
+		} catch (IOException ioe) {
+			throw new IllegalStateException(ioe);
+		}
+	}
+
+	/**
+	 * Create a seeded, initialized single-file shared torrent.
+	 *
+	 * <p>
+	 * The torrent's data file is created sparse and its pieces hashes are
+	 * random: as a seeder, the torrent never validates them, so no data is
+	 * actually written or hashed.
+	 * </p>
+	 *
+	 * @param directory The directory to create the torrent's data file in.
+	 * @param pieces The number of pieces of the torrent.
+	 */
+	public static SharedTorrent sharedTorrent(File directory, int pieces)
+		throws IOException, NoSuchAlgorithmException, InterruptedException {
+		File data = new File(directory, "benchmark.bin");
+		RandomAccessFile raf = new RandomAccessFile(data, "rw");
+		try {
+			raf.setLength((long)pieces * PIECE_LENGTH);
+		} finally {
+			raf.close();
+		}
+
+		byte[] hashes = new byte[pieces * Torrent.PIECE_HASH_SIZE];
+		new Random(42).nextBytes(hashes);
+
+		try {
+			Torrent torrent = Torrent.create(data,
+				new URI("http://localhost:6969/announce"), "ttorrent",
+				false, hashes);
+			SharedTorrent shared = new SharedTorrent(torrent, directory,
+				false, true);
+			shared.init();
+			return shared;
+		} catch (URISyntaxException use) {
+			throw new IllegalStateException(use);
+		}
+	}
+
+	/**
+	 * Create a temporary directory.
+	 */
+	public static File createTempDirectory() throws IOException {
+		File directory = File.createTempFile("ttorrent-benchmark", "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Could not create temporary directory " +
+				directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * Recursively delete a directory.
+	 */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
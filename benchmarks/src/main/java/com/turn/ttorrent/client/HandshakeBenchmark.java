@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Parses and crafts peer protocol handshakes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+
+	private byte[] infoHash;
+	private byte[] peerId;
+	private byte[] handshake;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		this.infoHash = new byte[20];
+		random.nextBytes(this.infoHash);
+		this.peerId = new byte[20];
+		random.nextBytes(this.peerId);
+		this.handshake = Handshake.craft(this.infoHash, this.peerId)
+			.getBytes();
+	}
+
+	@Benchmark
+	public Handshake parse()
+		throws ParseException, UnsupportedEncodingException {
+		return Handshake.parse(ByteBuffer.wrap(this.handshake));
+	}
+
+	@Benchmark
+	public Handshake craft() {
+		return Handshake.craft(this.infoHash, this.peerId);
+	}
+}
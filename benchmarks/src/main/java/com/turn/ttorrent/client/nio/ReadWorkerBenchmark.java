@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Reassembles length-prefixed frames out of socket reads.
+ *
+ * <p>
+ * A stream of frames of the given size is cut into reads of the size of the
+ * communication manager's staging buffer, and fed to a {@link ReadWorker}
+ * (without its thread) for a single channel. Each invocation feeds the
+ * whole stream, and ends on a frame boundary.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadWorkerBenchmark {
+
+	private static final int FRAMES = 64;
+	private static final int READ_SIZE = 8192;
+
+	/** Frame payload sizes: a request message, and a piece message. */
+	@Param({"17", "16397"})
+	public int frameSize;
+
+	private ReadWorker worker;
+	private SelectionKey key;
+	private List<byte[]> reads;
+
+	@Setup
+	public void setUp() {
+		TwoByteMessageLength messageLength = new TwoByteMessageLength();
+		Random random = new Random(42);
+
+		ByteBuffer stream = ByteBuffer.allocate(FRAMES *
+			(messageLength.byteLength() + this.frameSize));
+		byte[] payload = new byte[this.frameSize];
+		for (int i=0; i < FRAMES; i++) {
+			random.nextBytes(payload);
+			stream.put(messageLength.lengthToBytes(this.frameSize));
+			stream.put(payload);
+		}
+		stream.flip();
+
+		this.reads = new ArrayList<byte[]>();
+		while (stream.hasRemaining()) {
+			byte[] read = new byte[Math.min(READ_SIZE, stream.remaining())];
+			stream.get(read);
+			this.reads.add(read);
+		}
+
+		this.worker = new ReadWorker(false);
+		this.key = new BenchmarkSelectionKey();
+	}
+
+	@Benchmark
+	public int reassemble() {
+		int frames = 0;
+		for (byte[] read : this.reads) {
+			frames += this.worker.reassemble(this.key, read).size();
+		}
+		return frames;
+	}
+
+	/**
+	 * A selection key not bound to any channel, only used to identify the
+	 * reassembled stream.
+	 */
+	private static class BenchmarkSelectionKey extends SelectionKey {
+
+		@Override
+		public SelectableChannel channel() {
+			return null;
+		}
+
+		@Override
+		public Selector selector() {
+			return null;
+		}
+
+		@Override
+		public boolean isValid() {
+			return true;
+		}
+
+		@Override
+		public void cancel() {
+		}
+
+		@Override
+		public int interestOps() {
+			return OP_READ;
+		}
+
+		@Override
+		public SelectionKey interestOps(int ops) {
+			return this;
+		}
+
+		@Override
+		public int readyOps() {
+			return OP_READ;
+		}
+	}
+}
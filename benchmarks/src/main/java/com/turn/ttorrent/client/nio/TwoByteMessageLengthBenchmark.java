@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.nio;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Encodes and decodes the two-byte length prefix of framed messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TwoByteMessageLengthBenchmark {
+
+	private final TwoByteMessageLength messageLength =
+		new TwoByteMessageLength();
+
+	private final byte[] prefix = new byte[] { 0x40, 0x0d };
+
+	private long length = 16397;
+
+	@Benchmark
+	public byte[] lengthToBytes() {
+		return this.messageLength.lengthToBytes(this.length);
+	}
+
+	@Benchmark
+	public long bytesToLength() {
+		return this.messageLength.bytesToLength(this.prefix);
+	}
+
+	@Benchmark
+	public long roundTrip() {
+		return this.messageLength.bytesToLength(
+			this.messageLength.lengthToBytes(this.length));
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.storage;
+
+import com.turn.ttorrent.benchmarks.BenchmarkData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Reads and writes 16 kB blocks at random offsets of a multi-file storage.
+ *
+ * <p>
+ * Files are 1 to 8 kB long, so most blocks span several files. Each file of
+ * the storage stays open for the whole run: the 50,000 files case needs the
+ * open files limit raised accordingly.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileCollectionStorageBenchmark {
+
+	private static final int BLOCK_SIZE = 16 * 1024;
+	private static final int OFFSETS = 1024;
+
+	@Param({"100", "50000"})
+	public int files;
+
+	private File directory;
+	private FileCollectionStorage storage;
+	private long[] offsets;
+	private ByteBuffer block;
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		Random random = new Random(42);
+		this.directory = BenchmarkData.createTempDirectory();
+
+		List<FileStorage> list = new ArrayList<FileStorage>(this.files);
+		long offset = 0;
+		for (int i=0; i < this.files; i++) {
+			long size = 1024 + random.nextInt(7 * 1024);
+			list.add(new FileStorage(new File(this.directory,
+				"file-" + i + ".bin"), offset, size));
+			offset += size;
+		}
+		this.storage = new FileCollectionStorage(list, offset);
+
+		this.offsets = new long[OFFSETS];
+		for (int i=0; i < OFFSETS; i++) {
+			this.offsets[i] = (long)(random.nextDouble() *
+				(offset - BLOCK_SIZE));
+		}
+
+		byte[] data = new byte[BLOCK_SIZE];
+		random.nextBytes(data);
+		this.block = ByteBuffer.wrap(data);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.storage.close();
+		BenchmarkData.delete(this.directory);
+	}
+
+	@Benchmark
+	public int read() throws IOException {
+		this.block.clear();
+		return this.storage.read(this.block, this.nextOffset());
+	}
+
+	@Benchmark
+	public int write() throws IOException {
+		this.block.clear();
+		return this.storage.write(this.block, this.nextOffset());
+	}
+
+	private long nextOffset() {
+		this.next = (this.next + 1) % OFFSETS;
+		return this.offsets[this.next];
+	}
+}
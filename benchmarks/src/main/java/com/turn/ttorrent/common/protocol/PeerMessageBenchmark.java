@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common.protocol;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.turn.ttorrent.benchmarks.BenchmarkData;
+import com.turn.ttorrent.client.SharedTorrent;
+
+
+/**
+ * Parses, decodes and crafts peer protocol messages of every type.
+ *
+ * <p>
+ * Messages are validated against a seeded torrent of 2048 pieces; bitfields
+ * cover all of them, and piece messages carry a default-size block. Decoding
+ * goes through a {@link PeerMessageDecoder} and a handler summing up the
+ * message fields, to compare with parsing into message objects.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerMessageBenchmark {
+
+	private static final int PIECES = 2048;
+
+	@Param({"KEEP_ALIVE", "CHOKE", "UNCHOKE", "INTERESTED", "NOT_INTERESTED",
+		"HAVE", "BITFIELD", "REQUEST", "PIECE", "CANCEL", "SERVER"})
+	public PeerMessage.Type type;
+
+	private File directory;
+	private SharedTorrent torrent;
+	private BitSet bitfield;
+	private ByteBuffer block;
+	private ByteBuffer message;
+	private PeerMessageDecoder decoder;
+	private SummingHandler handler;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.directory = BenchmarkData.createTempDirectory();
+		this.torrent = BenchmarkData.sharedTorrent(this.directory, PIECES);
+
+		this.bitfield = new BitSet(PIECES);
+		this.bitfield.set(0, PIECES);
+		this.block = ByteBuffer.allocate(
+			PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE);
+
+		this.message = this.craft().getData();
+
+		this.handler = new SummingHandler();
+		this.decoder = new PeerMessageDecoder(this.torrent, this.handler);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.torrent.close();
+		BenchmarkData.delete(this.directory);
+	}
+
+	@Benchmark
+	public PeerMessage parse() throws ParseException {
+		return PeerMessage.parse(this.message, this.torrent);
+	}
+
+	@Benchmark
+	public long decode() throws ParseException {
+		this.decoder.decode(this.message);
+		return this.handler.sum;
+	}
+
+	@Benchmark
+	public PeerMessage craft() {
+		switch (this.type) {
+			case KEEP_ALIVE:
+				return PeerMessage.KeepAliveMessage.craft();
+			case CHOKE:
+				return PeerMessage.ChokeMessage.craft();
+			case UNCHOKE:
+				return PeerMessage.UnchokeMessage.craft();
+			case INTERESTED:
+				return PeerMessage.InterestedMessage.craft();
+			case NOT_INTERESTED:
+				return PeerMessage.NotInterestedMessage.craft();
+			case HAVE:
+				return PeerMessage.HaveMessage.craft(PIECES - 1);
+			case BITFIELD:
+				return PeerMessage.BitfieldMessage.craft(this.bitfield);
+			case REQUEST:
+				return PeerMessage.RequestMessage.craft(PIECES - 1, 0,
+					PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE);
+			case PIECE:
+				this.block.rewind();
+				return PeerMessage.PieceMessage.craft(PIECES - 1, 0,
+					this.block);
+			case CANCEL:
+				return PeerMessage.CancelMessage.craft();
+			case SERVER:
+				return PeerMessage.ServerMessage.craft(100);
+			default:
+				throw new IllegalStateException("Unknown message type!");
+		}
+	}
+
+	/**
+	 * A handler consuming the message fields, so that decoding can't be
+	 * optimized away.
+	 */
+	private static class SummingHandler implements PeerMessageHandler {
+
+		private long sum = 0;
+
+		public void onKeepAlive() {
+			this.sum++;
+		}
+
+		public void onChoke() {
+			this.sum++;
+		}
+
+		public void onUnchoke() {
+			this.sum++;
+		}
+
+		public void onInterested() {
+			this.sum++;
+		}
+
+		public void onNotInterested() {
+			this.sum++;
+		}
+
+		public void onHave(int piece) {
+			this.sum += piece;
+		}
+
+		public void onCancel() {
+			this.sum++;
+		}
+
+		public void onServer(int completion) {
+			this.sum += completion;
+		}
+
+		public void onBitfield(ByteBuffer bitfield) {
+			this.sum += bitfield.remaining();
+		}
+
+		public void onRequest(int piece, int offset, int length) {
+			this.sum += piece + offset + length;
+		}
+
+		public void onPiece(int piece, int offset, ByteBuffer block) {
+			this.sum += piece + offset + block.remaining();
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.bcodec;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+
+/**
+ * B-encoding encoder writing directly into {@link ByteBuffer}s.
+ *
+ * <p>
+ * Contrary to {@link BEncoder}, this encoder writes numbers and lengths as
+ * ASCII digits straight into the target buffer, without going through
+ * intermediate strings, and writes ASCII dictionary keys without encoding
+ * them first. The encoded size of a value can be computed up front with
+ * {@link #encodedSize(Object)}, so values can be encoded into an exactly
+ * sized buffer, or into a reusable (possibly direct) buffer known to be large
+ * enough.
+ * </p>
+ *
+ * <p>
+ * Dictionary keys must be written in sorted order. Maps implementing
+ * {@link SortedMap} with their natural ordering are written as they are
+ * iterated; the keys of other maps are sorted first.
+ * </p>
+ *
+ * <p>
+ * Values can be {@link BEValue}s, byte arrays, strings (encoded as UTF-8),
+ * numbers, lists and maps of such values.
+ * </p>
+ */
+public class BBufferEncoder {
+
+	/**
+	 * Encode a value into a new, exactly sized, heap buffer.
+	 *
+	 * @param o The value to encode.
+	 * @return The buffer holding the encoded value, ready to be read.
+	 */
+	public static ByteBuffer bencode(Object o) {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize(o));
+		bencode(o, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encode a value at the current position of the given buffer.
+	 *
+	 * @param o The value to encode.
+	 * @param out The buffer to write to.
+	 * @throws BufferOverflowException If the buffer does not have enough
+	 * space left for the encoded value.
+	 * @throws IllegalArgumentException If the value can't be B-encoded.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void bencode(Object o, ByteBuffer out) {
+		if (o instanceof BEValue) {
+			o = ((BEValue)o).getValue();
+		}
+
+		if (o instanceof byte[]) {
+			byte[] bytes = (byte[])o;
+			writeDigits(bytes.length, out);
+			out.put((byte)':');
+			out.put(bytes);
+		} else if (o instanceof String) {
+			writeString((String)o, out);
+		} else if (o instanceof Number) {
+			out.put((byte)'i');
+			if (o instanceof BigInteger) {
+				writeAscii(o.toString(), out);
+			} else {
+				writeDigits(((Number)o).longValue(), out);
+			}
+			out.put((byte)'e');
+		} else if (o instanceof List) {
+			out.put((byte)'l');
+			for (Object value : (List<Object>)o) {
+				bencode(value, out);
+			}
+			out.put((byte)'e');
+		} else if (o instanceof Map) {
+			Map<String, Object> map = (Map<String, Object>)o;
+			out.put((byte)'d');
+			for (String key : sortedKeys(map)) {
+				writeString(key, out);
+				bencode(map.get(key), out);
+			}
+			out.put((byte)'e');
+		} else {
+			throw new IllegalArgumentException("Cannot bencode: " +
+				(o == null ? null : o.getClass()));
+		}
+	}
+
+	/**
+	 * Compute the size of the B-encoded form of a value, in bytes.
+	 *
+	 * @param o The value to encode.
+	 * @throws IllegalArgumentException If the value can't be B-encoded.
+	 */
+	@SuppressWarnings("unchecked")
+	public static int encodedSize(Object o) {
+		if (o instanceof BEValue) {
+			o = ((BEValue)o).getValue();
+		}
+
+		if (o instanceof byte[]) {
+			int length = ((byte[])o).length;
+			return digits(length) + 1 + length;
+		} else if (o instanceof String) {
+			int length = utf8Length((String)o);
+			return digits(length) + 1 + length;
+		} else if (o instanceof Number) {
+			if (o instanceof BigInteger) {
+				return o.toString().length() + 2;
+			}
+			return digits(((Number)o).longValue()) + 2;
+		} else if (o instanceof List) {
+			int size = 2;
+			for (Object value : (List<Object>)o) {
+				size += encodedSize(value);
+			}
+			return size;
+		} else if (o instanceof Map) {
+			int size = 2;
+			for (Map.Entry<String, Object> entry :
+					((Map<String, Object>)o).entrySet()) {
+				size += encodedSize(entry.getKey());
+				size += encodedSize(entry.getValue());
+			}
+			return size;
+		}
+
+		throw new IllegalArgumentException("Cannot bencode: " +
+			(o == null ? null : o.getClass()));
+	}
+
+	/**
+	 * Returns the keys of a map in B-encoding order.
+	 */
+	private static Iterable<String> sortedKeys(Map<String, Object> map) {
+		if (map instanceof SortedMap &&
+				((SortedMap<String, Object>)map).comparator() == null) {
+			return map.keySet();
+		}
+
+		String[] keys = map.keySet().toArray(new String[map.size()]);
+		Arrays.sort(keys);
+		return Arrays.asList(keys);
+	}
+
+	private static void writeString(String s, ByteBuffer out) {
+		if (!isAscii(s)) {
+			try {
+				bencode(s.getBytes("UTF-8"), out);
+			} catch (UnsupportedEncodingException uee) {
+				throw new InternalError(uee.toString());
+			}
+			return;
+		}
+
+		writeDigits(s.length(), out);
+		out.put((byte)':');
+		writeAscii(s, out);
+	}
+
+	private static void writeAscii(String s, ByteBuffer out) {
+		if (out.remaining() < s.length()) {
+			throw new BufferOverflowException();
+		}
+
+		for (int i=0; i < s.length(); i++) {
+			out.put((byte)s.charAt(i));
+		}
+	}
+
+	/**
+	 * Write the decimal representation of a number, most significant digit
+	 * first.
+	 */
+	private static void writeDigits(long value, ByteBuffer out) {
+		if (value < 0) {
+			if (value == Long.MIN_VALUE) {
+				writeAscii(Long.toString(value), out);
+				return;
+			}
+			out.put((byte)'-');
+			value = -value;
+		}
+
+		int length = digits(value);
+		if (out.remaining() < length) {
+			throw new BufferOverflowException();
+		}
+
+		int end = out.position() + length;
+		for (int i = end - 1; i >= out.position(); i--) {
+			out.put(i, (byte)('0' + value % 10));
+			value /= 10;
+		}
+		out.position(end);
+	}
+
+	/**
+	 * Returns the number of characters of the decimal representation of a
+	 * number, sign included.
+	 */
+	private static int digits(long value) {
+		if (value < 0) {
+			return value == Long.MIN_VALUE
+				? Long.toString(value).length()
+				: 1 + digits(-value);
+		}
+
+		int digits = 1;
+		while (value >= 10) {
+			value /= 10;
+			digits++;
+		}
+		return digits;
+	}
+
+	private static boolean isAscii(String s) {
+		for (int i=0; i < s.length(); i++) {
+			if (s.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i=0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() &&
+					Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+}
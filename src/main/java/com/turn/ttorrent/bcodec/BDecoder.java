@@ -15,7 +15,6 @@
  */
 package com.turn.ttorrent.bcodec;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.EOFException;
@@ -26,8 +25,6 @@ import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.apache.commons.io.input.AutoCloseInputStream;
-
 
 /**
  * B-encoding decoder.
@@ -92,15 +89,20 @@ public class BDecoder {
 	 * Decode a B-encoded byte buffer.
 	 *
 	 * <p>
-	 * Automatically instantiates a new BDecoder for the provided buffer and
-	 * decodes its root member.
+	 * The buffer is decoded from its beginning, regardless of its current
+	 * position. It is scanned by a {@link BLazyDecoder} instead of being read
+	 * byte by byte through an input stream, and the result converted to
+	 * {@link BEValue}s.
 	 * </p>
 	 *
 	 * @param data The {@link ByteBuffer} to read from.
 	 */
 	public static BEValue bdecode(ByteBuffer data) throws IOException {
-		return BDecoder.bdecode(new AutoCloseInputStream(
-			new ByteArrayInputStream(data.array())));
+		ByteBuffer buffer = data.duplicate();
+		buffer.rewind();
+
+		BEView view = BLazyDecoder.bdecode(buffer);
+		return view != null ? view.toBEValue() : null;
 	}
 
 	/**
@@ -0,0 +1,367 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.bcodec;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A lazy view over a B-encoded value decoded by {@link BLazyDecoder}.
+ *
+ * <p>
+ * A view does not hold any decoded data, only a reference to the decoder's
+ * index and to the original buffer. Byte strings are read from the buffer
+ * when asked for, and can be obtained as read-only slices of it without any
+ * copy. Dictionary entries are looked up by walking the dictionary's keys in
+ * the buffer, without building a map.
+ * </p>
+ *
+ * <p>
+ * {@link #toBEValue()} converts a view, and all its children, into the
+ * {@link BEValue} representation {@link BDecoder} produces, for code that
+ * still expects it.
+ * </p>
+ */
+public class BEView {
+
+	private final BLazyDecoder decoder;
+	private final int node;
+
+	BEView(BLazyDecoder decoder, int node) {
+		this.decoder = decoder;
+		this.node = node;
+	}
+
+	public boolean isBytes() {
+		return this.decoder.type(this.node) == BLazyDecoder.BYTES;
+	}
+
+	public boolean isNumber() {
+		return this.decoder.type(this.node) == BLazyDecoder.NUMBER;
+	}
+
+	public boolean isList() {
+		return this.decoder.type(this.node) == BLazyDecoder.LIST;
+	}
+
+	public boolean isMap() {
+		return this.decoder.type(this.node) == BLazyDecoder.MAP;
+	}
+
+	/**
+	 * Returns the offset of this value's B-encoded form in the buffer.
+	 */
+	public int getRawOffset() {
+		return this.decoder.start(this.node);
+	}
+
+	/**
+	 * Returns the length of this value's B-encoded form.
+	 */
+	public int getRawLength() {
+		return this.decoder.end(this.node) - this.decoder.start(this.node);
+	}
+
+	/**
+	 * Returns a read-only slice of the buffer over this value's B-encoded form.
+	 *
+	 * <p>
+	 * This is the exact encoded form found in the decoded data, which may not
+	 * be canonical; hashing it is the only reliable way to compute the hash
+	 * of a value as it was encoded by its producer.
+	 * </p>
+	 */
+	public ByteBuffer getRaw() {
+		return this.slice(this.decoder.start(this.node),
+			this.decoder.end(this.node));
+	}
+
+	/**
+	 * Returns this byte string as a read-only slice of the buffer, without
+	 * copying it.
+	 *
+	 * @throws InvalidBEncodingException If the value is not a byte string.
+	 */
+	public ByteBuffer getBuffer() throws InvalidBEncodingException {
+		this.expect(BLazyDecoder.BYTES);
+		return this.slice(this.decoder.payload(this.node),
+			this.decoder.end(this.node));
+	}
+
+	/**
+	 * Returns the length of this byte string.
+	 *
+	 * @throws InvalidBEncodingException If the value is not a byte string.
+	 */
+	public int getBytesLength() throws InvalidBEncodingException {
+		this.expect(BLazyDecoder.BYTES);
+		return this.decoder.end(this.node) - this.decoder.payload(this.node);
+	}
+
+	/**
+	 * Returns a copy of this byte string.
+	 *
+	 * @throws InvalidBEncodingException If the value is not a byte string.
+	 */
+	public byte[] getBytes() throws InvalidBEncodingException {
+		byte[] bytes = new byte[this.getBytesLength()];
+		this.getBuffer().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Returns this byte string as a String, interpreted as UTF-8.
+	 *
+	 * @throws InvalidBEncodingException If the value is not a byte string.
+	 */
+	public String getString() throws InvalidBEncodingException {
+		return this.getString("UTF-8");
+	}
+
+	/**
+	 * Returns this byte string as a String, interpreted with the specified
+	 * encoding.
+	 *
+	 * @throws InvalidBEncodingException If the value is not a byte string.
+	 */
+	public String getString(String encoding) throws InvalidBEncodingException {
+		try {
+			return new String(this.getBytes(), encoding);
+		} catch (UnsupportedEncodingException uee) {
+			throw new InternalError(uee.toString());
+		}
+	}
+
+	/**
+	 * Returns this number as a long.
+	 *
+	 * <p>
+	 * Numbers are parsed straight from the buffer's digits; numbers that
+	 * don't fit in a long are truncated like {@link Number#longValue()} does.
+	 * </p>
+	 *
+	 * @throws InvalidBEncodingException If the value is not a number.
+	 */
+	public long getLong() throws InvalidBEncodingException {
+		this.expect(BLazyDecoder.NUMBER);
+
+		int start = this.decoder.start(this.node) + 1;
+		int end = this.decoder.end(this.node) - 1;
+		if (end - start > 18) {
+			return this.getNumber().longValue();
+		}
+
+		ByteBuffer data = this.decoder.data();
+		boolean negative = data.get(start) == '-';
+		long value = 0;
+		for (int i = negative ? start + 1 : start; i < end; i++) {
+			value = value * 10 + (data.get(i) - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Returns this number as an int.
+	 *
+	 * @throws InvalidBEncodingException If the value is not a number.
+	 */
+	public int getInt() throws InvalidBEncodingException {
+		return (int)this.getLong();
+	}
+
+	/**
+	 * Returns this number as a Number.
+	 *
+	 * @throws InvalidBEncodingException If the value is not a number.
+	 */
+	public Number getNumber() throws InvalidBEncodingException {
+		this.expect(BLazyDecoder.NUMBER);
+
+		int start = this.decoder.start(this.node) + 1;
+		int end = this.decoder.end(this.node) - 1;
+		if (end - start <= 18) {
+			return Long.valueOf(this.getLong());
+		}
+
+		ByteBuffer data = this.decoder.data();
+		char[] digits = new char[end - start];
+		for (int i=0; i < digits.length; i++) {
+			digits[i] = (char)data.get(start + i);
+		}
+		return new BigInteger(new String(digits));
+	}
+
+	/**
+	 * Returns the number of elements of this list, or of entries of this
+	 * dictionary.
+	 *
+	 * @throws InvalidBEncodingException If the value is neither a list nor a
+	 * dictionary.
+	 */
+	public int size() throws InvalidBEncodingException {
+		byte type = this.decoder.type(this.node);
+		if (type != BLazyDecoder.LIST && type != BLazyDecoder.MAP) {
+			throw new InvalidBEncodingException("Expected list or map!");
+		}
+
+		int size = 0;
+		for (int child = this.node + 1; child < this.decoder.next(this.node);
+				child = this.decoder.next(child)) {
+			size++;
+		}
+		return type == BLazyDecoder.MAP ? size / 2 : size;
+	}
+
+	/**
+	 * Returns the elements of this list.
+	 *
+	 * @throws InvalidBEncodingException If the value is not a list.
+	 */
+	public List<BEView> getList() throws InvalidBEncodingException {
+		this.expect(BLazyDecoder.LIST);
+
+		List<BEView> list = new ArrayList<BEView>();
+		for (int child = this.node + 1; child < this.decoder.next(this.node);
+				child = this.decoder.next(child)) {
+			list.add(new BEView(this.decoder, child));
+		}
+		return list;
+	}
+
+	/**
+	 * Look up an entry of this dictionary.
+	 *
+	 * <p>
+	 * The dictionary's keys are compared to the given key in the buffer,
+	 * without decoding them.
+	 * </p>
+	 *
+	 * @param key The key of the entry.
+	 * @return The entry's value, or <em>null</em> if this dictionary has no
+	 * such entry.
+	 * @throws InvalidBEncodingException If the value is not a dictionary.
+	 */
+	public BEView get(String key) throws InvalidBEncodingException {
+		this.expect(BLazyDecoder.MAP);
+
+		byte[] wanted;
+		try {
+			wanted = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			throw new InternalError(uee.toString());
+		}
+
+		ByteBuffer data = this.decoder.data();
+		int child = this.node + 1;
+		while (child < this.decoder.next(this.node)) {
+			int value = this.decoder.next(child);
+			int payload = this.decoder.payload(child);
+			if (this.decoder.end(child) - payload == wanted.length) {
+				int i = 0;
+				while (i < wanted.length && data.get(payload + i) == wanted[i]) {
+					i++;
+				}
+				if (i == wanted.length) {
+					return new BEView(this.decoder, value);
+				}
+			}
+			child = this.decoder.next(value);
+		}
+		return null;
+	}
+
+	/**
+	 * Tells whether this dictionary has an entry for the given key.
+	 *
+	 * @throws InvalidBEncodingException If the value is not a dictionary.
+	 */
+	public boolean containsKey(String key) throws InvalidBEncodingException {
+		return this.get(key) != null;
+	}
+
+	/**
+	 * Returns the entries of this dictionary, in the order they appear in the
+	 * buffer.
+	 *
+	 * <p>
+	 * Only the keys are decoded, the values are returned as views.
+	 * </p>
+	 *
+	 * @throws InvalidBEncodingException If the value is not a dictionary.
+	 */
+	public Map<String, BEView> getMap() throws InvalidBEncodingException {
+		this.expect(BLazyDecoder.MAP);
+
+		Map<String, BEView> map = new LinkedHashMap<String, BEView>();
+		int child = this.node + 1;
+		while (child < this.decoder.next(this.node)) {
+			int value = this.decoder.next(child);
+			map.put(new BEView(this.decoder, child).getString(),
+				new BEView(this.decoder, value));
+			child = this.decoder.next(value);
+		}
+		return map;
+	}
+
+	/**
+	 * Convert this view, and all its children, into a {@link BEValue}.
+	 */
+	public BEValue toBEValue() throws InvalidBEncodingException {
+		switch (this.decoder.type(this.node)) {
+			case BLazyDecoder.BYTES:
+				return new BEValue(this.getBytes());
+			case BLazyDecoder.NUMBER:
+				return new BEValue(this.getNumber());
+			case BLazyDecoder.LIST:
+				List<BEValue> list = new ArrayList<BEValue>();
+				for (BEView element : this.getList()) {
+					list.add(element.toBEValue());
+				}
+				return new BEValue(list);
+			case BLazyDecoder.MAP:
+				Map<String, BEValue> map = new HashMap<String, BEValue>();
+				for (Map.Entry<String, BEView> entry :
+						this.getMap().entrySet()) {
+					map.put(entry.getKey(), entry.getValue().toBEValue());
+				}
+				return new BEValue(map);
+			default:
+				throw new IllegalStateException("Invalid B-encoded value type!");
+		}
+	}
+
+	private void expect(byte type) throws InvalidBEncodingException {
+		if (this.decoder.type(this.node) != type) {
+			throw new InvalidBEncodingException("Expected " +
+				(char)type + " value, got " +
+				(char)this.decoder.type(this.node) + "!");
+		}
+	}
+
+	private ByteBuffer slice(int start, int end) {
+		ByteBuffer slice = this.decoder.data().duplicate();
+		slice.limit(end);
+		slice.position(start);
+		return slice.slice();
+	}
+}
@@ -15,7 +15,6 @@
  */
 package com.turn.ttorrent.bcodec;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -112,11 +111,18 @@ public class BEncoder {
 		out.write('e');
 	}
 
+	/**
+	 * B-encode a map into a new byte buffer.
+	 *
+	 * <p>
+	 * The map is encoded by a {@link BBufferEncoder} into a buffer of exactly
+	 * the encoded size, without going through an intermediate output stream.
+	 * </p>
+	 *
+	 * @param m The map to encode.
+	 */
 	public static ByteBuffer bencode(Map<String, BEValue> m)
 		throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		BEncoder.bencode(m, baos);
-		baos.close();
-		return ByteBuffer.wrap(baos.toByteArray());
+		return BBufferEncoder.bencode(m);
 	}
 }
@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.bcodec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Index-based, lazy B-encoding decoder.
+ *
+ * <p>
+ * Contrary to {@link BDecoder}, which materializes every byte string as a
+ * new byte array and every dictionary as a map, this decoder scans the
+ * B-encoded buffer once and only records the position of each value in an
+ * index. The decoded values are then exposed as {@link BEView}s over the
+ * original buffer: byte strings are slices of the buffer, dictionary lookups
+ * walk the index without building any map, and nothing is copied until
+ * explicitly asked for.
+ * </p>
+ *
+ * <p>
+ * The index is made of a few parallel integer arrays, with one entry per
+ * value in the order the values appear in the buffer. Each entry records the
+ * value's type, the range of its encoded form, the start of its payload for
+ * byte strings, and the index of the entry following it (and all its
+ * children, for lists and dictionaries), which allows to skip over whole
+ * sub-trees when walking a list or a dictionary.
+ * </p>
+ *
+ * <p>
+ * The scan is iterative, so deeply nested input can't overflow the stack,
+ * and validates the whole structure: once decoded, views never fail on
+ * malformed input.
+ * </p>
+ *
+ * @see BEView
+ */
+public class BLazyDecoder {
+
+	static final byte BYTES = 's';
+	static final byte NUMBER = 'i';
+	static final byte LIST = 'l';
+	static final byte MAP = 'd';
+
+	private final ByteBuffer data;
+
+	// The index, one entry per value.
+	private byte[] types;
+	private int[] starts;
+	private int[] ends;
+	private int[] payloads;
+	private int[] nexts;
+	private int count;
+
+	private BLazyDecoder(ByteBuffer data, int capacity) {
+		this.data = data;
+		this.types = new byte[capacity];
+		this.starts = new int[capacity];
+		this.ends = new int[capacity];
+		this.payloads = new int[capacity];
+		this.nexts = new int[capacity];
+		this.count = 0;
+	}
+
+	/**
+	 * Decode the B-encoded value starting at the current position of the
+	 * given buffer.
+	 *
+	 * <p>
+	 * The buffer's position and limit are not modified. The returned view, and
+	 * all the views obtained from it, read from the buffer, whose content must
+	 * thus not change while they are in use. Trailing data after the value is
+	 * ignored; see {@link BEView#getRawLength()} for the length of the value.
+	 * </p>
+	 *
+	 * @param data The buffer to decode.
+	 * @return A view over the decoded value, or <em>null</em> if the buffer
+	 * has no remaining data.
+	 * @throws InvalidBEncodingException If the buffer does not start with a
+	 * valid B-encoded value.
+	 */
+	public static BEView bdecode(ByteBuffer data)
+		throws InvalidBEncodingException {
+		if (!data.hasRemaining()) {
+			return null;
+		}
+
+		ByteBuffer buffer = data.asReadOnlyBuffer();
+		BLazyDecoder decoder = new BLazyDecoder(buffer,
+			Math.max(16, Math.min(1024, buffer.remaining() / 8)));
+		decoder.scan(buffer.position(), buffer.limit());
+		return new BEView(decoder, 0);
+	}
+
+	/**
+	 * Scan the value starting at the given offset, and index it.
+	 */
+	private void scan(int offset, int limit) throws InvalidBEncodingException {
+		// Containers being scanned, and the number of values read in each.
+		int[] stack = new int[16];
+		int[] values = new int[16];
+		int depth = 0;
+		int pos = offset;
+
+		do {
+			int c = this.byteAt(pos, limit);
+
+			if (c == 'e' && depth > 0) {
+				int container = stack[--depth];
+				if (this.types[container] == MAP && values[depth] % 2 != 0) {
+					throw new InvalidBEncodingException(
+						"Dictionary key without value at " + pos);
+				}
+				this.ends[container] = ++pos;
+				this.nexts[container] = this.count;
+				continue;
+			}
+
+			if (depth > 0) {
+				if (this.types[stack[depth-1]] == MAP &&
+					values[depth-1] % 2 == 0 && (c < '0' || c > '9')) {
+					throw new InvalidBEncodingException(
+						"Dictionary key expected at " + pos);
+				}
+				values[depth-1]++;
+			}
+
+			int node = this.add(pos);
+
+			if (c >= '0' && c <= '9') {
+				long length = 0;
+				while (c >= '0' && c <= '9') {
+					length = length * 10 + (c - '0');
+					if (length > limit) {
+						throw new InvalidBEncodingException(
+							"String length exceeds data at " + pos);
+					}
+					c = this.byteAt(++pos, limit);
+				}
+				if (c != ':') {
+					throw new InvalidBEncodingException("Colon expected, " +
+						"not '" + (char)c + "'");
+				}
+				pos++;
+				if (length > limit - pos) {
+					throw new InvalidBEncodingException(
+						"Unexpected end of B-encoded data");
+				}
+				this.types[node] = BYTES;
+				this.payloads[node] = pos;
+				pos += (int)length;
+			} else if (c == 'i') {
+				pos = this.scanNumber(pos + 1, limit);
+				this.types[node] = NUMBER;
+			} else if (c == 'l' || c == 'd') {
+				this.types[node] = (byte)c;
+				if (depth == stack.length) {
+					stack = Arrays.copyOf(stack, depth * 2);
+					values = Arrays.copyOf(values, depth * 2);
+				}
+				stack[depth] = node;
+				values[depth] = 0;
+				depth++;
+				pos++;
+				continue;
+			} else {
+				throw new InvalidBEncodingException(
+					"Unknown indicator '" + c + "'");
+			}
+
+			this.ends[node] = pos;
+			this.nexts[node] = this.count;
+		} while (depth > 0);
+	}
+
+	/**
+	 * Validate the digits of a number up to its closing 'e'.
+	 *
+	 * @param pos The offset of the first digit.
+	 * @return The offset following the closing 'e'.
+	 */
+	private int scanNumber(int pos, int limit)
+		throws InvalidBEncodingException {
+		int c = this.byteAt(pos, limit);
+		if (c == '-') {
+			c = this.byteAt(++pos, limit);
+			if (c == '0') {
+				throw new InvalidBEncodingException(
+					"Negative zero not allowed");
+			}
+		}
+
+		if (c == '0') {
+			c = this.byteAt(++pos, limit);
+			if (c != 'e') {
+				throw new InvalidBEncodingException("'e' expected after " +
+					"zero, not '" + (char)c + "'");
+			}
+			return pos + 1;
+		}
+
+		if (c < '1' || c > '9') {
+			throw new InvalidBEncodingException("Invalid Integer start '" +
+				(char)c + "'");
+		}
+
+		while (c >= '0' && c <= '9') {
+			c = this.byteAt(++pos, limit);
+		}
+
+		if (c != 'e') {
+			throw new InvalidBEncodingException(
+				"Integer should end with 'e'");
+		}
+		return pos + 1;
+	}
+
+	private int byteAt(int pos, int limit) throws InvalidBEncodingException {
+		if (pos >= limit) {
+			throw new InvalidBEncodingException(
+				"Unexpected end of B-encoded data");
+		}
+		return this.data.get(pos) & 0xFF;
+	}
+
+	private int add(int start) {
+		if (this.count == this.types.length) {
+			int capacity = this.count * 2;
+			this.types = Arrays.copyOf(this.types, capacity);
+			this.starts = Arrays.copyOf(this.starts, capacity);
+			this.ends = Arrays.copyOf(this.ends, capacity);
+			this.payloads = Arrays.copyOf(this.payloads, capacity);
+			this.nexts = Arrays.copyOf(this.nexts, capacity);
+		}
+
+		this.starts[this.count] = start;
+		return this.count++;
+	}
+
+	/*
+	 * Index accessors, for BEView.
+	 */
+
+	ByteBuffer data() {
+		return this.data;
+	}
+
+	byte type(int node) {
+		return this.types[node];
+	}
+
+	int start(int node) {
+		return this.starts[node];
+	}
+
+	int end(int node) {
+		return this.ends[node];
+	}
+
+	int payload(int node) {
+		return this.payloads[node];
+	}
+
+	int next(int node) {
+		return this.nexts[node];
+	}
+}
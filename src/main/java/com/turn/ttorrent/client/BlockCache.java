@@ -0,0 +1,265 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Bounded cache of piece blocks served to peers.
+ *
+ * <p>
+ * When many peers request the same pieces, as with a flash crowd on new
+ * content, the blocks read from the storage for one peer are kept in memory
+ * to serve the others. Blocks are keyed by torrent, piece, offset and
+ * length, so a single cache can be shared by all the torrents of a client.
+ * </p>
+ *
+ * <p>
+ * Cached blocks are held off-heap, in direct buffers, and handed out as
+ * read-only views: a block is never modified once cached, and a block
+ * evicted while still being sent stays valid until it is garbage collected.
+ * When the total size of the cached blocks goes over the cache capacity, the
+ * least recently used blocks are evicted.
+ * </p>
+ */
+public class BlockCache {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(BlockCache.class);
+
+	/** Default cache capacity, in bytes. */
+	public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+	private final long capacity;
+	private final LinkedHashMap<Key, ByteBuffer> blocks;
+	private long size;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Create a new block cache.
+	 *
+	 * @param capacity The maximum total size of the cached blocks, in bytes.
+	 */
+	public BlockCache(long capacity) {
+		this.capacity = capacity;
+		this.blocks = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+		this.size = 0;
+	}
+
+	/**
+	 * Read a block of a valid piece, from the cache if possible.
+	 *
+	 * @param torrent The torrent the piece belongs to.
+	 * @param piece The piece to read from.
+	 * @param offset Offset inside the piece where to start reading.
+	 * @param length Number of bytes to read from the piece.
+	 * @return A read-only buffer containing the block data.
+	 * @throws IllegalStateException If the piece is not valid.
+	 * @throws IOException If the block is not cached and can't be read from
+	 * the storage.
+	 * @see Piece#read
+	 */
+	public ByteBuffer read(SharedTorrent torrent, Piece piece, int offset,
+		int length) throws IOException {
+		Key key = new Key(torrent, piece.getIndex(), offset, length);
+
+		synchronized (this) {
+			ByteBuffer block = this.blocks.get(key);
+			if (block != null) {
+				this.hits++;
+				return block.duplicate();
+			}
+			this.misses++;
+		}
+
+		// Read outside of the lock; concurrent misses on the same block just
+		// read it twice.
+		ByteBuffer data = piece.read(offset, length);
+		if (data.remaining() > this.capacity) {
+			return data;
+		}
+
+		ByteBuffer block = ByteBuffer.allocateDirect(data.remaining());
+		block.put(data);
+		block.flip();
+		block = block.asReadOnlyBuffer();
+
+		synchronized (this) {
+			ByteBuffer previous = this.blocks.put(key, block);
+			if (previous != null) {
+				this.size -= previous.capacity();
+			}
+			this.size += block.capacity();
+			this.evict();
+		}
+
+		return block.duplicate();
+	}
+
+	/**
+	 * Returns a block of a piece if it is cached, without reading it from
+	 * the storage otherwise.
+	 *
+	 * @param torrent The torrent the piece belongs to.
+	 * @param piece The piece the block belongs to.
+	 * @param offset Offset of the block inside the piece.
+	 * @param length Length of the block, in bytes.
+	 * @return A read-only buffer containing the block data, or <em>null</em>
+	 * if the block is not cached.
+	 */
+	public synchronized ByteBuffer get(SharedTorrent torrent, Piece piece,
+		int offset, int length) {
+		ByteBuffer block = this.blocks.get(
+			new Key(torrent, piece.getIndex(), offset, length));
+		if (block == null) {
+			return null;
+		}
+
+		this.hits++;
+		return block.duplicate();
+	}
+
+	/**
+	 * Drop all the cached blocks of a torrent.
+	 *
+	 * @param torrent The torrent whose blocks to drop.
+	 */
+	public synchronized void invalidate(SharedTorrent torrent) {
+		int dropped = 0;
+		Iterator<Map.Entry<Key, ByteBuffer>> it =
+			this.blocks.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, ByteBuffer> entry = it.next();
+			if (entry.getKey().torrent == torrent) {
+				this.size -= entry.getValue().capacity();
+				it.remove();
+				dropped++;
+			}
+		}
+
+		logger.debug("Dropped {} cached block(s) of {}.", dropped, torrent);
+	}
+
+	/**
+	 * Evict the least recently used blocks until the cache fits its
+	 * capacity.
+	 */
+	private void evict() {
+		Iterator<ByteBuffer> it = this.blocks.values().iterator();
+		while (this.size > this.capacity && it.hasNext()) {
+			this.size -= it.next().capacity();
+			it.remove();
+			this.evictions++;
+		}
+	}
+
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Returns the total size of the cached blocks, in bytes.
+	 */
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	public synchronized int getBlockCount() {
+		return this.blocks.size();
+	}
+
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	public synchronized long getEvictions() {
+		return this.evictions;
+	}
+
+	/**
+	 * Returns the ratio of reads served from the cache, between 0 and 1.
+	 */
+	public synchronized float getHitRate() {
+		long reads = this.hits + this.misses;
+		return reads > 0 ? (float)this.hits / reads : 0;
+	}
+
+	public synchronized String toString() {
+		return String.format("%d block(s), %d/%d kB, %d hit(s), " +
+			"%d miss(es), %.1f%% hit rate, %d eviction(s)",
+			this.blocks.size(),
+			this.size / 1024,
+			this.capacity / 1024,
+			this.hits,
+			this.misses,
+			this.getHitRate() * 100,
+			this.evictions);
+	}
+
+	/**
+	 * Cache key of a block.
+	 */
+	private static class Key {
+
+		private final SharedTorrent torrent;
+		private final int piece;
+		private final int offset;
+		private final int length;
+
+		Key(SharedTorrent torrent, int piece, int offset, int length) {
+			this.torrent = torrent;
+			this.piece = piece;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key)o;
+			return this.torrent == other.torrent &&
+				this.piece == other.piece &&
+				this.offset == other.offset &&
+				this.length == other.length;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = System.identityHashCode(this.torrent);
+			hash = 31 * hash + this.piece;
+			hash = 31 * hash + this.offset;
+			return 31 * hash + this.length;
+		}
+	}
+}
@@ -29,6 +29,8 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnsupportedAddressTypeException;
+import java.text.ParseException;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Comparator;
 import java.util.Enumeration;
@@ -53,9 +55,12 @@ import org.slf4j.LoggerFactory;
 import com.turn.ttorrent.client.announce.Announce;
 import com.turn.ttorrent.client.announce.AnnounceException;
 import com.turn.ttorrent.client.announce.AnnounceResponseListener;
+import com.turn.ttorrent.client.nio.PeerCommunicationManager;
+import com.turn.ttorrent.client.nio.TorrentPeerWrapper;
 import com.turn.ttorrent.client.peer.PeerActivityListener;
 import com.turn.ttorrent.client.peer.SharingPeer;
 import com.turn.ttorrent.common.Peer;
+import com.turn.ttorrent.common.PeerKey;
 import com.turn.ttorrent.common.Torrent;
 import com.turn.ttorrent.common.protocol.PeerMessage;
 import com.turn.ttorrent.common.protocol.TrackerMessage;
@@ -123,10 +128,16 @@ public class Client extends Observable implements Runnable,
 	private boolean stop;
 	private long seed;
 
-	private ConnectionHandler service;
+	private byte[] id;
+	private PeerCommunicationManager service;
+	private DiskIOExecutor diskIO;
 	private Announce announce;
-	private ConcurrentMap<String, SharingPeer> peers;
-	private ConcurrentMap<String, SharingPeer> connected;
+	private ConcurrentMap<PeerKey, SharingPeer> peers;
+	private ConcurrentMap<PeerKey, SharingPeer> connected;
+
+	// Connections to peers, along with the peer on the other end once the
+	// handshake has been made.
+	private ConcurrentMap<SocketChannel, TorrentPeerWrapper> channels;
 
 	private Random random;
 
@@ -143,17 +154,24 @@ public class Client extends Observable implements Runnable,
 
 		String id = Client.BITTORRENT_ID_PREFIX + UUID.randomUUID()
 			.toString().split("-")[4];
+		this.id = id.getBytes(Torrent.BYTE_ENCODING);
 
-		// Initialize the incoming connection handler and register ourselves to
-		// it.
-		this.service = new ConnectionHandler(this.torrent, id, address);
+		// Initialize the peer communication manager and register ourselves to
+		// it. All peer connections are served by its single, non-blocking,
+		// selector thread, speaking the standard BitTorrent wire format.
+		this.service = new PeerCommunicationManager(address,
+			PeerCommunicationManager.Framing.BITTORRENT);
 		this.service.register(this);
 
+		// Storage operations are carried out by the disk I/O threads, away
+		// from the threads handling the peers' messages.
+		this.diskIO = new DiskIOExecutor();
+		this.torrent.setDiskIO(this.diskIO);
+
 		this.self = new Peer(
-			this.service.getSocketAddress()
-				.getAddress().getHostAddress(),
-			(short)this.service.getSocketAddress().getPort(),
-			ByteBuffer.wrap(id.getBytes(Torrent.BYTE_ENCODING)));
+			this.service.getAddress().getAddress().getHostAddress(),
+			(short)this.service.getAddress().getPort(),
+			ByteBuffer.wrap(this.id));
 
 		// Initialize the announce request thread, and register ourselves to it
 		// as well.
@@ -169,8 +187,10 @@ public class Client extends Observable implements Runnable,
 				this.self.getPort()
 			});
 
-		this.peers = new ConcurrentHashMap<String, SharingPeer>();
-		this.connected = new ConcurrentHashMap<String, SharingPeer>();
+		this.peers = new ConcurrentHashMap<PeerKey, SharingPeer>();
+		this.connected = new ConcurrentHashMap<PeerKey, SharingPeer>();
+		this.channels =
+			new ConcurrentHashMap<SocketChannel, TorrentPeerWrapper>();
 		this.random = new Random(System.currentTimeMillis());
 	}
 
@@ -373,9 +393,7 @@ public class Client extends Observable implements Runnable,
 			}
 		}
 
-		logger.debug("Stopping BitTorrent client connection service " +
-				"and announce threads...");
-		this.service.stop();
+		logger.debug("Stopping BitTorrent client announce thread...");
 		this.announce.stop();
 
 		// Close all peer connections
@@ -383,6 +401,8 @@ public class Client extends Observable implements Runnable,
 		for (SharingPeer peer : this.connected.values()) {
 			peer.unbind(true);
 		}
+		this.service.close();
+		this.diskIO.stop();
 
 		this.finish();
 	}
@@ -471,22 +491,22 @@ public class Client extends Observable implements Runnable,
 		synchronized (this.peers) {
 			logger.trace("Searching for {}...", search);
 			if (search.hasPeerId()) {
-				peer = this.peers.get(search.getHexPeerId());
+				peer = this.peers.get(search.getIdKey());
 				if (peer != null) {
 					logger.trace("Found peer (by peer ID): {}.", peer);
-					this.peers.put(peer.getHostIdentifier(), peer);
-					this.peers.put(search.getHostIdentifier(), peer);
+					this.peers.put(peer.getAddressKey(), peer);
+					this.peers.put(search.getAddressKey(), peer);
 					return peer;
 				}
 			}
 
-			peer = this.peers.get(search.getHostIdentifier());
+			peer = this.peers.get(search.getAddressKey());
 			if (peer != null) {
 				if (search.hasPeerId()) {
 					logger.trace("Recording peer ID {} for {}.",
-						search.getHexPeerId(), peer);
+						search.getIdKey(), peer);
 					peer.setPeerId(search.getPeerId());
-					this.peers.put(search.getHexPeerId(), peer);
+					this.peers.put(search.getIdKey(), peer);
 				}
 
 				logger.debug("Found peer (by host ID): {}.", peer);
@@ -497,9 +517,9 @@ public class Client extends Observable implements Runnable,
 				search.getPeerId(), this.torrent);
 			logger.trace("Created new peer: {}.", peer);
 
-			this.peers.put(peer.getHostIdentifier(), peer);
+			this.peers.put(peer.getAddressKey(), peer);
 			if (peer.hasPeerId()) {
-				this.peers.put(peer.getHexPeerId(), peer);
+				this.peers.put(peer.getIdKey(), peer);
 			}
 
 			return peer;
@@ -676,28 +696,109 @@ public class Client extends Observable implements Runnable,
 
 	/** CommunicationListener handler(s). ********************************/
 
+	/**
+	 * Handle a newly established outbound connection.
+	 *
+	 * <p>
+	 * Our handshake is sent right away; the peer is bound to the connection
+	 * once its own handshake comes back.
+	 * </p>
+	 *
+	 * @param sc The connected socket channel.
+	 * @param hexInfoHash The info hash of the torrent the connection was made
+	 * for.
+	 */
+	@Override
+	public void handleNewConnection(SocketChannel sc, String hexInfoHash) {
+		this.channels.put(sc, new TorrentPeerWrapper(hexInfoHash));
+		this.service.send(sc, Handshake.craft(this.torrent.getInfoHash(),
+			this.id).getBytes());
+	}
+
+	/**
+	 * Handle the messages received on a connection.
+	 *
+	 * <p>
+	 * The first message of a connection must be the peer's handshake. Once
+	 * it's validated, all further messages are decoded straight into the
+	 * bound peer.
+	 * </p>
+	 */
+	@Override
+	public void handleNewData(SocketChannel sc, List<ByteBuffer> data) {
+		for (ByteBuffer message : data) {
+			TorrentPeerWrapper tpw = this.channels.get(sc);
+
+			if (tpw == null || tpw.peer == null) {
+				this.handleHandshake(sc, message, tpw != null);
+				continue;
+			}
+
+			try {
+				tpw.decoder.decode(message);
+			} catch (ParseException pe) {
+				logger.warn("Invalid message from {}: {}",
+					tpw.peer, pe.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Validate a peer's handshake and bind the peer to its connection.
+	 *
+	 * @param sc The connection the handshake was received on.
+	 * @param data The handshake message.
+	 * @param outbound Whether we initiated the connection, in which case our
+	 * handshake was already sent.
+	 */
+	private void handleHandshake(SocketChannel sc, ByteBuffer data,
+		boolean outbound) {
+		try {
+			Handshake hs = Handshake.parse(data);
+			if (!Arrays.equals(hs.getInfoHash(), this.torrent.getInfoHash())) {
+				throw new ParseException("Handshake for unknown torrent " +
+					Torrent.byteArrayToHexString(hs.getInfoHash()) +
+					" from " + PeerCommunicationManager.socketRepr(
+						sc.socket()) + ".", 0);
+			}
+
+			if (!outbound) {
+				this.service.send(sc, Handshake.craft(
+					this.torrent.getInfoHash(), this.id).getBytes());
+			}
+
+			this.handleNewPeerConnection(sc, hs.getPeerId());
+		} catch (ParseException pe) {
+			logger.info("Invalid handshake from {}: {}",
+				PeerCommunicationManager.socketRepr(sc.socket()),
+				pe.getMessage());
+			this.close(sc);
+		} catch (IOException ioe) {
+			logger.warn("An error occured while reading an incoming " +
+					"handshake: {}", ioe.getMessage());
+			this.close(sc);
+		}
+	}
+
 	/**
 	 * Handle a new peer connection.
 	 *
 	 * <p>
 	 * This handler is called once the connection has been successfully
-	 * established and the handshake exchange made. This generally simply means
-	 * binding the peer to the socket, which will put in place the communication
-	 * thread and logic with this peer.
+	 * established and the handshake exchange made. This binds the peer to the
+	 * connection, from which its messages will now be decoded, and sends it
+	 * our bit field.
 	 * </p>
 	 *
-	 * @param s The connected socket to the remote peer. Note that if the peer
-	 * somehow rejected our handshake reply, this socket might very soon get
-	 * closed, but this is handled down the road.
+	 * @param sc The connected socket channel to the remote peer.
 	 * @param peerId The byte-encoded peerId extracted from the peer's
 	 * handshake, after validation.
 	 * @see com.turn.ttorrent.client.peer.SharingPeer
 	 */
-	@Override
-	public void handleNewPeerConnection(Socket s, byte[] peerId, String torrentIdentifier) {
+	private void handleNewPeerConnection(SocketChannel sc, byte[] peerId) {
 		Peer search = new Peer(
-			s.getInetAddress().getHostAddress(),
-			s.getPort(),
+			sc.socket().getInetAddress().getHostAddress(),
+			sc.socket().getPort(),
 			(peerId != null
 				? ByteBuffer.wrap(peerId)
 				: (ByteBuffer)null));
@@ -705,34 +806,63 @@ public class Client extends Observable implements Runnable,
 		logger.info("Handling new peer connection with {}...", search);
 		SharingPeer peer = this.getOrCreatePeer(search);
 
-		try {
-			synchronized (peer) {
-				if (peer.isConnected()) {
-					logger.info("Already connected with {}, closing link.",
-						peer);
-					s.close();
-					return;
-				}
-
-				peer.register(this);
-				peer.bind(s);
+		synchronized (peer) {
+			if (peer.isConnected()) {
+				logger.info("Already connected with {}, closing link.",
+					peer);
+				this.close(sc);
+				return;
 			}
 
-			this.connected.put(peer.getHexPeerId(), peer);
-			peer.register(this.torrent);
-			logger.debug("New peer connection with {} [{}/{}].",
-				new Object[] {
-					peer,
-					this.connected.size(),
-					this.peers.size()
-				});
-		} catch (Exception e) {
-			this.connected.remove(peer.getHexPeerId());
-			logger.warn("Could not handle new peer connection " +
-					"with {}: {}", peer, e.getMessage());
+			peer.register(this);
+			peer.setSocketChannel(sc);
+			peer.setBound(true);
+			peer.resetRates();
+		}
+
+		this.channels.put(sc, new TorrentPeerWrapper(peer,
+			this.torrent.getHexInfoHash()));
+		this.connected.put(peer.getKey(), peer);
+		peer.register(this.torrent);
+		logger.debug("New peer connection with {} [{}/{}].",
+			new Object[] {
+				peer,
+				this.connected.size(),
+				this.peers.size()
+			});
+
+		// If we have pieces, start by sending a BITFIELD message to the peer.
+		BitSet pieces = this.torrent.getCompletedPieces();
+		if (pieces.cardinality() > 0) {
+			peer.send(PeerMessage.BitfieldMessage.craft(pieces));
 		}
 	}
 
+	@Override
+	public void handleNewPeerConnection(Socket s, byte[] peerId,
+		String torrentIdentifier) { /* Do nothing */ }
+
+	/**
+	 * Handle a closed or failing connection.
+	 *
+	 * <p>
+	 * The peer bound to the connection, if any, is considered disconnected.
+	 * </p>
+	 */
+	@Override
+	public void handleBadSocket(SocketChannel sc) {
+		TorrentPeerWrapper tpw = this.channels.remove(sc);
+		if (tpw != null && tpw.peer != null) {
+			this.torrent.handlePeerDisconnected(tpw.peer);
+			this.handlePeerDisconnected(tpw.peer);
+		}
+	}
+
+	private void close(SocketChannel sc) {
+		this.channels.remove(sc);
+		this.service.disconnect(sc);
+	}
+
 	/**
 	 * Handle a failed peer connection.
 	 *
@@ -747,9 +877,9 @@ public class Client extends Observable implements Runnable,
 	@Override
 	public void handleFailedConnection(SharingPeer peer, Throwable cause) {
 		logger.info("Could not connect to {}: {}.", peer, cause.getMessage());
-		this.peers.remove(peer.getHostIdentifier());
+		this.peers.remove(peer.getAddressKey());
 		if (peer.hasPeerId()) {
-			this.peers.remove(peer.getHexPeerId());
+			this.peers.remove(peer.getIdKey());
 		}
 	}
 
@@ -774,8 +904,12 @@ public class Client extends Observable implements Runnable,
 			Piece piece) { /* Do nothing */ }
 	
 	@Override
-	public void sendPeerMessage(SharingPeer peer, 
-			PeerMessage message) { /* Do nothing */ }
+	public void sendPeerMessage(SharingPeer peer, PeerMessage message) {
+		SocketChannel sc = peer.getSocketChannel();
+		if (sc != null && sc.isOpen()) {
+			this.service.send(sc, message);
+		}
+	}
 
 	/**
 	 * Piece download completion handler.
@@ -846,9 +980,7 @@ public class Client extends Observable implements Runnable,
 
 	@Override
 	public void handlePeerDisconnected(SharingPeer peer) {
-		if (this.connected.remove(peer.hasPeerId()
-					? peer.getHexPeerId()
-					: peer.getHostIdentifier()) != null) {
+		if (this.connected.remove(peer.getKey()) != null) {
 			logger.debug("Peer {} disconnected, [{}/{}].",
 				new Object[] {
 					peer,
@@ -857,6 +989,11 @@ public class Client extends Observable implements Runnable,
 				});
 		}
 
+		peer.setBound(false);
+		SocketChannel sc = peer.getSocketChannel();
+		if (sc != null) {
+			this.close(sc);
+		}
 		peer.reset();
 	}
 
@@ -900,7 +1037,10 @@ public class Client extends Observable implements Runnable,
 
 		if (this.seed == 0) {
 			logger.info("No seeding requested, stopping client...");
-			this.stop();
+			// Don't wait for the client thread: we may be called from a
+			// piece completion handler holding the torrent's lock, which the
+			// client thread needs to close the torrent.
+			this.stop(false);
 			return;
 		}
 
@@ -1062,16 +1202,4 @@ public class Client extends Observable implements Runnable,
 			System.exit(2);
 		}
 	}
-
-	@Override
-	public void handleNewConnection(SocketChannel s, String hexInfoHash) { /* Do nothing */}
-
-	@Override
-	public void handleNewData(SocketChannel s, List<ByteBuffer> data) { /* Do nothing */ }
-
-	@Override
-	public void handleBadSocket(SocketChannel s) {
-		// TODO Auto-generated method stub
-		
-	}
 }
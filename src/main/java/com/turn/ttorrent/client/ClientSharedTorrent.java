@@ -24,7 +24,9 @@ import org.slf4j.LoggerFactory;
 
 import com.turn.ttorrent.client.Client.ClientState;
 import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.client.storage.StoragePolicy;
 import com.turn.ttorrent.common.Peer;
+import com.turn.ttorrent.common.PeerKey;
 import com.turn.ttorrent.common.Torrent;
 
 public class ClientSharedTorrent extends SharedTorrent {
@@ -32,8 +34,8 @@ public class ClientSharedTorrent extends SharedTorrent {
 	private static final Logger logger =
 			LoggerFactory.getLogger(ClientSharedTorrent.class);
 	
-	private ConcurrentMap<String, SharingPeer> peers;
-	private ConcurrentMap<String, SharingPeer> connected;
+	private ConcurrentMap<PeerKey, SharingPeer> peers;
+	private ConcurrentMap<PeerKey, SharingPeer> connected;
 	private ClientState state;
 	private Random random;
 	private long seed;
@@ -48,17 +50,26 @@ public class ClientSharedTorrent extends SharedTorrent {
 	
 	public ClientSharedTorrent(Torrent torrent, File destDir, boolean multiThreadHash, boolean seeder)
 			throws FileNotFoundException, IOException, NoSuchAlgorithmException {
-		super(torrent, destDir, multiThreadHash, seeder);
-		this.peers = new ConcurrentHashMap<String, SharingPeer>();
-		this.connected = new ConcurrentHashMap<String, SharingPeer>();
-		this.random = new Random(System.currentTimeMillis());
+		this(torrent.getEncoded(), destDir, multiThreadHash, seeder);
+	}
+	
+	public ClientSharedTorrent(Torrent torrent, File destDir, boolean multiThreadHash, boolean seeder,
+			StoragePolicy policy)
+			throws FileNotFoundException, IOException, NoSuchAlgorithmException {
+		this(torrent.getEncoded(), destDir, multiThreadHash, seeder, policy);
 	}
 	
 	public ClientSharedTorrent(byte[] torrent, File destDir, boolean multiThreadHash, boolean seeder)
 			throws FileNotFoundException, IOException, NoSuchAlgorithmException {
-		super(torrent, destDir, multiThreadHash, seeder);
-		this.peers = new ConcurrentHashMap<String, SharingPeer>();
-		this.connected = new ConcurrentHashMap<String, SharingPeer>();
+		this(torrent, destDir, multiThreadHash, seeder, new StoragePolicy());
+	}
+	
+	public ClientSharedTorrent(byte[] torrent, File destDir, boolean multiThreadHash, boolean seeder,
+			StoragePolicy policy)
+			throws FileNotFoundException, IOException, NoSuchAlgorithmException {
+		super(torrent, destDir, multiThreadHash, seeder, policy);
+		this.peers = new ConcurrentHashMap<PeerKey, SharingPeer>();
+		this.connected = new ConcurrentHashMap<PeerKey, SharingPeer>();
 		this.random = new Random(System.currentTimeMillis());
 	}
 	
@@ -263,7 +274,7 @@ public class ClientSharedTorrent extends SharedTorrent {
 			if (System.currentTimeMillis() - pieceTime.getValue().time >= PIECE_TIMEOUT_MILLIS) {
 				// This piece hasn't finished in the alotted time, release it from the requests - we'll try again later
 				logger.info("Piece {} timed out - releasing from requests", pieceTime.getKey());
-				this.requestedPieces.set(pieceTime.getKey(), false);
+				this.setRequested(pieceTime.getKey(), false);
 				pieceTime.getValue().peer.clearRequests();
 				entries.remove();
 				
@@ -278,7 +289,7 @@ public class ClientSharedTorrent extends SharedTorrent {
 	}
 	
 	public synchronized void releasePiece(Piece piece) {
-		this.requestedPieces.set(piece.getIndex(), false);
+		this.setRequested(piece.getIndex(), false);
 		this.requestedPiecesTime.remove(piece.getIndex());
 	}
 	
@@ -340,46 +351,57 @@ public class ClientSharedTorrent extends SharedTorrent {
 		return rates;
 	}
 	
+	/**
+	 * Retrieve a peer, registering it if it's not known yet.
+	 *
+	 * <p>
+	 * Peers are registered under the binary key of their address, and under
+	 * the binary key of their ID once it is known. The look-up is lock-free,
+	 * so the peers returned by a tracker can be matched in a single pass,
+	 * concurrently with incoming connections.
+	 * </p>
+	 *
+	 * @param search The peer to look for.
+	 * @return The matching registered peer.
+	 */
 	public SharingPeer getOrCreatePeer(Peer search) {
+		PeerKey id = search.getIdKey();
 		SharingPeer peer;
 
-		synchronized (this.peers) {
-			if (search.hasPeerId()) {
-				peer = this.peers.get(search.getHexPeerId());
-				if (peer != null) {
-					this.peers.put(peer.getHostIdentifier(), peer);
-					this.peers.put(search.getHostIdentifier(), peer);
-					return peer;
-				}
-			}
-
-			peer = this.peers.get(search.getHostIdentifier());
+		if (id != null) {
+			peer = this.peers.get(id);
 			if (peer != null) {
-				if (search.hasPeerId()) {
-					peer.setPeerId(search.getPeerId());
-					this.peers.put(search.getHexPeerId(), peer);
-				}
-
+				this.peers.put(search.getAddressKey(), peer);
 				return peer;
 			}
+		}
 
-			peer = new SharingPeer(search.getIp(), search.getPort(),
-				search.getPeerId(), this);
-
-			this.peers.put(peer.getHostIdentifier(), peer);
-			if (peer.hasPeerId()) {
-				this.peers.put(peer.getHexPeerId(), peer);
+		peer = this.peers.get(search.getAddressKey());
+		if (peer == null) {
+			SharingPeer created = new SharingPeer(search.getIp(),
+				search.getPort(), search.getPeerId(), this);
+			peer = this.peers.putIfAbsent(search.getAddressKey(), created);
+			if (peer == null) {
+				if (id != null) {
+					this.peers.putIfAbsent(id, created);
+				}
+				return created;
 			}
+		}
 
-			return peer;
+		if (id != null && !id.equals(peer.getIdKey())) {
+			peer.setPeerId(search.getPeerId());
+			this.peers.put(id, peer);
 		}
+
+		return peer;
 	}
 	
-	public ConcurrentMap<String, SharingPeer> getConnected() {
+	public ConcurrentMap<PeerKey, SharingPeer> getConnected() {
 		return this.connected;
 	}
 	
-	public ConcurrentMap<String, SharingPeer> getPeers() {
+	public ConcurrentMap<PeerKey, SharingPeer> getPeers() {
 		return this.peers;
 	}
 	
@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.nio.PeerCommunicationManager;
+import com.turn.ttorrent.client.peer.SharingPeer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Peer connection limits and eviction policy of a multi-torrent client.
+ *
+ * <p>
+ * The global connection ceiling is enforced by the
+ * {@link PeerCommunicationManager}, which refuses inbound connections and
+ * holds back outbound ones past its maximum. This class adds a per-torrent
+ * limit on the number of connected peers, and decides which peers to
+ * disconnect when a torrent or the client is over its limit, or when a
+ * connection has become useless.
+ * </p>
+ *
+ * <p>
+ * Peers are ranked by a score favoring the peers we exchange data with, and
+ * the peers we want pieces from or that want pieces from us, discounted by
+ * the time elapsed since the last block exchanged with them. Peers that
+ * connected less than <code>MIN_IDLE_FOR_EVICTION</code> milliseconds ago,
+ * or exchanged a block since, are never evicted, giving new connections a
+ * chance to get going.
+ * </p>
+ */
+public class ConnectionManager {
+
+	/** Default maximum number of connected peers per torrent. */
+	public static final int DEFAULT_MAX_PEERS_PER_TORRENT = 50;
+
+	/** Minimum idle time, in milliseconds, before a peer can be evicted. */
+	public static final long MIN_IDLE_FOR_EVICTION = 60 * 1000;
+
+	/**
+	 * Fraction of the communication manager's connection limit above which
+	 * the lowest scoring peers of all torrents get evicted, to keep room for
+	 * new connections.
+	 */
+	private static final float HIGH_WATERMARK = 0.9f;
+
+	/** Score bonus, in bytes per second, of a peer we or it is interested in. */
+	private static final float INTEREST_BONUS = 1024;
+
+	private final PeerCommunicationManager service;
+	private volatile int maxPeersPerTorrent;
+
+	/**
+	 * Create a new connection manager.
+	 *
+	 * @param service The communication manager enforcing the global
+	 * connection limit.
+	 */
+	public ConnectionManager(PeerCommunicationManager service) {
+		this.service = service;
+		this.maxPeersPerTorrent = DEFAULT_MAX_PEERS_PER_TORRENT;
+	}
+
+	public int getMaxPeersPerTorrent() {
+		return this.maxPeersPerTorrent;
+	}
+
+	/**
+	 * Set the maximum number of connected peers per torrent.
+	 */
+	public void setMaxPeersPerTorrent(int maxPeersPerTorrent) {
+		if (maxPeersPerTorrent < 1) {
+			throw new IllegalArgumentException(
+				"At least one peer per torrent must be allowed!");
+		}
+		this.maxPeersPerTorrent = maxPeersPerTorrent;
+	}
+
+	/**
+	 * Tells whether a torrent can take one more connected peer.
+	 */
+	public boolean hasRoom(ClientSharedTorrent torrent) {
+		return torrent.getConnected().size() < this.maxPeersPerTorrent;
+	}
+
+	/**
+	 * Pick the peer of a full torrent to disconnect in favor of a new one.
+	 *
+	 * @param torrent The torrent a new peer connected for.
+	 * @param now The current time, in milliseconds.
+	 * @return The lowest scoring peer eligible for eviction, or <em>null</em>
+	 * if all the torrent's peers are too recent or too active to be evicted,
+	 * in which case the new peer should be turned down.
+	 */
+	public SharingPeer victim(ClientSharedTorrent torrent, long now) {
+		List<SharingPeer> candidates = this.candidates(
+			torrent.getConnected().values(), now);
+		if (candidates.isEmpty()) {
+			return null;
+		}
+
+		return Collections.min(candidates,
+			new ScoreComparator(candidates, now));
+	}
+
+	/**
+	 * Select the peers to disconnect from.
+	 *
+	 * <p>
+	 * Among the peers eligible for eviction, the following are selected, in
+	 * order:
+	 * <ul>
+	 *   <li>peers of a completed torrent that are seeders as well;</li>
+	 *   <li>peers we are not interested in, and that are not interested in
+	 *   us;</li>
+	 *   <li>the lowest scoring peers of the torrents above their peer
+	 *   limit;</li>
+	 *   <li>the lowest scoring peers of all torrents while the open
+	 *   connections are above the high watermark of the global limit.</li>
+	 * </ul>
+	 * </p>
+	 *
+	 * @param torrents The torrents of the client.
+	 * @param now The current time, in milliseconds.
+	 */
+	public List<SharingPeer> evictions(Collection<ClientSharedTorrent> torrents,
+			long now) {
+		Set<SharingPeer> evicted = new HashSet<SharingPeer>();
+		List<SharingPeer> remaining = new ArrayList<SharingPeer>();
+
+		for (ClientSharedTorrent torrent : torrents) {
+			List<SharingPeer> candidates = this.candidates(
+				torrent.getConnected().values(), now);
+			Collections.sort(candidates,
+				new ScoreComparator(candidates, now));
+
+			int connected = torrent.getConnected().size();
+			boolean complete = torrent.isComplete();
+			for (SharingPeer peer : candidates) {
+				if ((complete && peer.isSeed()) ||
+						(!peer.isInteresting() && !peer.isInterested()) ||
+						connected > this.maxPeersPerTorrent) {
+					evicted.add(peer);
+					connected--;
+				} else {
+					remaining.add(peer);
+				}
+			}
+		}
+
+		int open = this.service.getMetrics().getOpen() - evicted.size();
+		int watermark = (int)(this.service.getMaxConnections() * HIGH_WATERMARK);
+		if (open > watermark) {
+			Collections.sort(remaining, new ScoreComparator(remaining, now));
+			for (int i=0; i < remaining.size() && open > watermark; i++) {
+				evicted.add(remaining.get(i));
+				open--;
+			}
+		}
+
+		return new ArrayList<SharingPeer>(evicted);
+	}
+
+	/**
+	 * Returns the connected peers idle for long enough to be evicted.
+	 */
+	private List<SharingPeer> candidates(Collection<SharingPeer> peers,
+			long now) {
+		List<SharingPeer> candidates = new ArrayList<SharingPeer>();
+		for (SharingPeer peer : peers) {
+			if (peer.isConnected() &&
+					now - peer.getLastActivity() >= MIN_IDLE_FOR_EVICTION) {
+				candidates.add(peer);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Compute the score of a peer; the higher, the more worth keeping.
+	 *
+	 * @param peer The peer to score.
+	 * @param now The current time, in milliseconds.
+	 */
+	public static float score(SharingPeer peer, long now) {
+		float score = (peer.getDLRate().get() + peer.getULRate().get()) * 1000;
+		if (peer.isInteresting()) {
+			score += INTEREST_BONUS;
+		}
+		if (peer.isInterested()) {
+			score += INTEREST_BONUS;
+		}
+
+		long idle = Math.max(0, now - peer.getLastActivity());
+		return score / (1 + idle / (60 * 1000f));
+	}
+
+	/**
+	 * Compute the census of the connected peers of the given torrents.
+	 */
+	public static Census census(Collection<ClientSharedTorrent> torrents,
+			long now) {
+		Census census = new Census();
+		for (ClientSharedTorrent torrent : torrents) {
+			for (SharingPeer peer : torrent.getConnected().values()) {
+				census.add(peer, now);
+			}
+		}
+		return census;
+	}
+
+	/**
+	 * Orders peers by increasing score, computed once per peer at a given
+	 * time.
+	 *
+	 * <p>
+	 * Scores depend on rates and states other threads update while peers
+	 * are being sorted; they are taken up front so that the order stays
+	 * consistent throughout the sort.
+	 * </p>
+	 */
+	private static class ScoreComparator implements Comparator<SharingPeer> {
+
+		private final Map<SharingPeer, Float> scores;
+
+		/**
+		 * Create a comparator of the given peers, scored at the given time.
+		 */
+		ScoreComparator(Collection<SharingPeer> peers, long now) {
+			this.scores = new IdentityHashMap<SharingPeer, Float>();
+			for (SharingPeer peer : peers) {
+				this.scores.put(peer, score(peer, now));
+			}
+		}
+
+		@Override
+		public int compare(SharingPeer a, SharingPeer b) {
+			return Float.compare(this.scores.get(a), this.scores.get(b));
+		}
+	}
+
+	/**
+	 * Count of the connected peers per state.
+	 */
+	public static class Census {
+
+		private int connected;
+		private int interested;
+		private int interesting;
+		private int choked;
+		private int choking;
+		private int seeds;
+		private int idle;
+
+		private void add(SharingPeer peer, long now) {
+			this.connected++;
+			if (peer.isInterested()) {
+				this.interested++;
+			}
+			if (peer.isInteresting()) {
+				this.interesting++;
+			}
+			if (peer.isChoked()) {
+				this.choked++;
+			}
+			if (peer.isChoking()) {
+				this.choking++;
+			}
+			if (peer.isSeed()) {
+				this.seeds++;
+			}
+			if (now - peer.getLastActivity() >= MIN_IDLE_FOR_EVICTION) {
+				this.idle++;
+			}
+		}
+
+		public int getConnected() {
+			return this.connected;
+		}
+
+		/** Returns the number of peers interested in our pieces. */
+		public int getInterested() {
+			return this.interested;
+		}
+
+		/** Returns the number of peers we are interested in. */
+		public int getInteresting() {
+			return this.interesting;
+		}
+
+		/** Returns the number of peers choking us. */
+		public int getChoked() {
+			return this.choked;
+		}
+
+		/** Returns the number of peers we are choking. */
+		public int getChoking() {
+			return this.choking;
+		}
+
+		public int getSeeds() {
+			return this.seeds;
+		}
+
+		/** Returns the number of peers eligible for eviction. */
+		public int getIdle() {
+			return this.idle;
+		}
+
+		public String toString() {
+			return new StringBuilder("connected=").append(this.connected)
+				.append(" interested=").append(this.interested)
+				.append(" interesting=").append(this.interesting)
+				.append(" choked=").append(this.choked)
+				.append(" choking=").append(this.choking)
+				.append(" seeds=").append(this.seeds)
+				.append(" idle=").append(this.idle)
+				.toString();
+		}
+	}
+}
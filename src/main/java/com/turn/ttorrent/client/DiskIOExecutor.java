@@ -0,0 +1,384 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Executor of the torrent storage operations, away from the network threads.
+ *
+ * <p>
+ * Storage reads and writes requested while handling peer messages are
+ * queued here instead of being carried out by the thread that received the
+ * message, so that a slow disk doesn't hold back the processing of the
+ * other peers' messages.
+ * </p>
+ *
+ * <p>
+ * Requests are queued per device, each device having its own thread.
+ * There is no portable way to find out which device a file lives on, so the
+ * directory a torrent is stored in stands in for its device: torrents
+ * stored in the same directory share a queue. Each time a device's thread
+ * wakes up, it takes all the requests queued so far as a batch, and carries
+ * them out in one sweep over the storage: grouped by torrent, and by
+ * increasing offset within a torrent. Requests at the same offset keep
+ * their submission order.
+ * </p>
+ *
+ * <p>
+ * Once carried out, a request's completion (or failure) callback is called
+ * from the device's thread. When a device's queue is full, requests are
+ * carried out in the submitting thread instead: this bounds the memory held
+ * by queued writes, and slows down the submitting thread until the device
+ * catches up, without ever making it wait for the device's thread, which
+ * may itself be waiting on a lock held by the submitter.
+ * </p>
+ */
+public class DiskIOExecutor {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(DiskIOExecutor.class);
+
+	/** Default maximum number of queued requests per device. */
+	public static final int DEFAULT_MAX_QUEUE_DEPTH = 256;
+
+	private static final Comparator<Request> ELEVATOR =
+		new Comparator<Request>() {
+			@Override
+			public int compare(Request a, Request b) {
+				int ta = System.identityHashCode(a.torrent);
+				int tb = System.identityHashCode(b.torrent);
+				if (ta != tb) {
+					return ta < tb ? -1 : 1;
+				}
+				return a.offset < b.offset ? -1 : (a.offset > b.offset ? 1 : 0);
+			}
+		};
+
+	private final int maxQueueDepth;
+	private final Map<String, Device> devices;
+	private volatile boolean stop;
+
+	private final AtomicInteger queued = new AtomicInteger(0);
+	private final AtomicLong submitted = new AtomicLong(0);
+	private final AtomicLong completed = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong inline = new AtomicLong(0);
+	private final AtomicLong batches = new AtomicLong(0);
+	private final AtomicLong latency = new AtomicLong(0);
+
+	public DiskIOExecutor() {
+		this(DEFAULT_MAX_QUEUE_DEPTH);
+	}
+
+	/**
+	 * Create a new disk I/O executor.
+	 *
+	 * @param maxQueueDepth The maximum number of queued requests per device.
+	 */
+	public DiskIOExecutor(int maxQueueDepth) {
+		if (maxQueueDepth < 1) {
+			throw new IllegalArgumentException("Invalid queue depth!");
+		}
+
+		this.maxQueueDepth = maxQueueDepth;
+		this.devices = new HashMap<String, Device>();
+		this.stop = false;
+	}
+
+	/**
+	 * Queue a request for execution by a device's thread.
+	 *
+	 * <p>
+	 * Once the executor is stopped, or if the device's queue is full,
+	 * requests are carried out right away, in the calling thread.
+	 * </p>
+	 *
+	 * @param device The device the request's data lives on.
+	 * @param request The request to carry out.
+	 */
+	public void submit(String device, Request request) {
+		this.submitted.incrementAndGet();
+
+		Device target;
+		synchronized (this.devices) {
+			target = this.stop ? null : this.devices.get(device);
+			if (target == null && !this.stop) {
+				target = new Device(device);
+				this.devices.put(device, target);
+				target.start();
+			}
+		}
+
+		if (target == null || !target.offer(request)) {
+			this.inline.incrementAndGet();
+			this.execute(request);
+		}
+	}
+
+	/**
+	 * Stop this executor.
+	 *
+	 * <p>
+	 * The requests already queued are still carried out: this method waits
+	 * for the devices' threads to be done with them.
+	 * </p>
+	 */
+	public void stop() {
+		List<Device> stopped;
+		synchronized (this.devices) {
+			this.stop = true;
+			stopped = new ArrayList<Device>(this.devices.values());
+			this.devices.clear();
+		}
+
+		for (Device device : stopped) {
+			device.shutdown();
+		}
+
+		for (Device device : stopped) {
+			try {
+				device.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void execute(Request request) {
+		try {
+			request.run();
+		} catch (RuntimeException re) {
+			logger.error("Unexpected error carrying out disk request {}!",
+				request, re);
+		}
+
+		if (request.error == null) {
+			this.completed.incrementAndGet();
+		} else {
+			this.failed.incrementAndGet();
+		}
+
+		this.latency.addAndGet(System.nanoTime() - request.submitted);
+	}
+
+	/** Returns the number of requests currently queued, on all devices. */
+	public int getQueueDepth() {
+		return this.queued.get();
+	}
+
+	public long getSubmitted() {
+		return this.submitted.get();
+	}
+
+	public long getCompleted() {
+		return this.completed.get();
+	}
+
+	public long getFailed() {
+		return this.failed.get();
+	}
+
+	/**
+	 * Returns the number of requests carried out by the submitting thread,
+	 * their device's queue being full.
+	 */
+	public long getInline() {
+		return this.inline.get();
+	}
+
+	/** Returns the average number of requests carried out per sweep. */
+	public float getAverageBatchSize() {
+		long batches = this.batches.get();
+		return batches > 0
+			? (float)(this.completed.get() + this.failed.get()) / batches
+			: 0;
+	}
+
+	/**
+	 * Returns the average time, in milliseconds, between the submission of
+	 * a request and the end of its execution.
+	 */
+	public float getAverageLatency() {
+		long done = this.completed.get() + this.failed.get();
+		return done > 0 ? this.latency.get() / 1e6f / done : 0;
+	}
+
+	public String toString() {
+		return String.format("%d queued, %d completed, %d failed, " +
+			"%d inline, %.1f request(s)/batch, %.1f ms avg latency",
+			this.getQueueDepth(),
+			this.getCompleted(),
+			this.getFailed(),
+			this.getInline(),
+			this.getAverageBatchSize(),
+			this.getAverageLatency());
+	}
+
+	/**
+	 * A storage operation of a torrent.
+	 *
+	 * <p>
+	 * Subclasses carry out the operation in {@link #execute}, and report
+	 * back by overriding {@link #onCompletion} and {@link #onFailure}.
+	 * </p>
+	 */
+	public static abstract class Request {
+
+		private final SharedTorrent torrent;
+		private final long offset;
+		private long submitted;
+		private IOException error;
+
+		/**
+		 * @param torrent The torrent whose storage is accessed.
+		 * @param offset The offset of the operation in the torrent's storage,
+		 * used to order requests.
+		 */
+		protected Request(SharedTorrent torrent, long offset) {
+			this.torrent = torrent;
+			this.offset = offset;
+			this.submitted = System.nanoTime();
+		}
+
+		/**
+		 * Carry out the storage operation.
+		 */
+		protected abstract void execute() throws IOException;
+
+		/**
+		 * Called once the operation has been carried out successfully.
+		 */
+		protected void onCompletion() {
+		}
+
+		/**
+		 * Called when the operation failed.
+		 */
+		protected void onFailure(IOException ioe) {
+			logger.warn("Disk request {} failed: {}", this, ioe.getMessage());
+		}
+
+		/**
+		 * Carry out the storage operation and report back, in the calling
+		 * thread.
+		 */
+		void run() {
+			try {
+				this.execute();
+			} catch (IOException ioe) {
+				this.error = ioe;
+				this.onFailure(ioe);
+				return;
+			}
+
+			this.onCompletion();
+		}
+
+		public String toString() {
+			return this.getClass().getSimpleName() + "@" + this.offset +
+				" (" + this.torrent + ")";
+		}
+	}
+
+	/**
+	 * Request queue of a device, and the thread emptying it.
+	 */
+	private class Device extends Thread {
+
+		private final List<Request> queue;
+		private boolean stopping;
+
+		Device(String name) {
+			super("bt-disk(" + name + ")");
+			this.setDaemon(true);
+			this.queue = new LinkedList<Request>();
+			this.stopping = false;
+		}
+
+		/**
+		 * Queue a request, if there is room for it.
+		 *
+		 * @return Whether the request was queued, false if the queue is full
+		 * or this device is shutting down.
+		 */
+		synchronized boolean offer(Request request) {
+			if (this.stopping || this.queue.size() >= maxQueueDepth) {
+				return false;
+			}
+
+			request.submitted = System.nanoTime();
+			this.queue.add(request);
+			queued.incrementAndGet();
+			this.notify();
+			return true;
+		}
+
+		synchronized void shutdown() {
+			this.stopping = true;
+			this.notifyAll();
+		}
+
+		@Override
+		public void run() {
+			List<Request> batch = new ArrayList<Request>();
+
+			while (true) {
+				synchronized (this) {
+					while (this.queue.isEmpty() && !this.stopping) {
+						try {
+							this.wait();
+						} catch (InterruptedException ie) {
+							// Ignore
+						}
+					}
+
+					if (this.queue.isEmpty()) {
+						break;
+					}
+
+					batch.addAll(this.queue);
+					this.queue.clear();
+					queued.addAndGet(-batch.size());
+				}
+
+				Collections.sort(batch, ELEVATOR);
+				for (Request request : batch) {
+					execute(request);
+				}
+
+				batches.incrementAndGet();
+				batch.clear();
+			}
+
+			logger.debug("Disk I/O thread {} exited.", this.getName());
+		}
+	}
+}
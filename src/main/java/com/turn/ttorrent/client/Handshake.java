@@ -62,15 +62,15 @@ public class Handshake {
 
 	public static Handshake parse(ByteBuffer buffer)
 		throws ParseException, UnsupportedEncodingException {
-		int pstrlen = buffer.getInt();
-		if (pstrlen < 0 ||
-				buffer.remaining() != BASE_HANDSHAKE_LENGTH) {
+		int pstrlen = buffer.get() & 0xFF;
+		if (pstrlen != BITTORRENT_PROTOCOL_IDENTIFIER.length() ||
+				buffer.remaining() != BASE_HANDSHAKE_LENGTH - 1) {
 			throw new ParseException("Incorrect handshake message length " +
 				   "(pstrlen=" + pstrlen + ") !", 0);
 		}
 
 		// Check the protocol identification string
-		byte[] pstr = new byte[BITTORRENT_PROTOCOL_IDENTIFIER.length()];
+		byte[] pstr = new byte[pstrlen];
 		buffer.get(pstr);
 
 		if (!Handshake.BITTORRENT_PROTOCOL_IDENTIFIER.equals(
@@ -100,13 +100,13 @@ public class Handshake {
 			byte[] clientPeerId) {
 		try {
 			ByteBuffer buffer = ByteBuffer.allocate(
-					Handshake.BASE_HANDSHAKE_LENGTH + 4);
+					Handshake.BASE_HANDSHAKE_LENGTH);
 
 			byte[] reserved = new byte[8];
 			ByteBuffer infoHash = ByteBuffer.wrap(torrentInfoHash);
 			ByteBuffer peerId = ByteBuffer.wrap(clientPeerId);
 
-			buffer.putInt(Handshake.BASE_HANDSHAKE_LENGTH);
+			buffer.put((byte)Handshake.BITTORRENT_PROTOCOL_IDENTIFIER.length());
 			buffer.put(Handshake.BITTORRENT_PROTOCOL_IDENTIFIER.getBytes(Torrent.BYTE_ENCODING));
 			buffer.put(reserved);
 			buffer.put(infoHash);
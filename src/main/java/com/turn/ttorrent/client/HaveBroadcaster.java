@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.nio.PeerCommunicationManager;
+import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.common.protocol.PeerMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Batched broadcast of HAVE messages to the connected peers of a torrent.
+ *
+ * <p>
+ * Completed pieces are not announced right away: they are accumulated per
+ * torrent, and flushed together after a short delay, so that a burst of piece
+ * completions results in a single batch of messages queued to each peer with
+ * a single wake up of the communication manager, instead of one per piece and
+ * per peer.
+ * </p>
+ *
+ * <p>
+ * Each HAVE message of a batch is encoded only once; the same read-only
+ * buffers are queued to all the peers of the torrent.
+ * </p>
+ */
+public class HaveBroadcaster implements Runnable {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(HaveBroadcaster.class);
+
+	/** Delay, in milliseconds, during which completed pieces are coalesced. */
+	private static final long FLUSH_DELAY = 100;
+
+	private final PeerCommunicationManager service;
+	private final boolean server;
+	private final ScheduledExecutorService executor;
+
+	private final Map<ClientSharedTorrent, BitSet> pending;
+	private boolean scheduled;
+
+	/**
+	 * Create a new HAVE broadcaster.
+	 *
+	 * @param service The communication manager to queue messages to.
+	 * @param server Whether our client is a server, in which case a server
+	 * completion message follows each batch of HAVE messages.
+	 */
+	public HaveBroadcaster(PeerCommunicationManager service, boolean server) {
+		this.service = service;
+		this.server = server;
+		this.executor = Executors.newSingleThreadScheduledExecutor(
+			new BroadcasterThreadFactory());
+		this.pending = new HashMap<ClientSharedTorrent, BitSet>();
+		this.scheduled = false;
+	}
+
+	/**
+	 * Schedule the announce of a completed piece to the torrent's peers.
+	 *
+	 * @param torrent The torrent the piece belongs to.
+	 * @param piece The index of the completed piece.
+	 */
+	public void have(ClientSharedTorrent torrent, int piece) {
+		synchronized (this.pending) {
+			BitSet pieces = this.pending.get(torrent);
+			if (pieces == null) {
+				pieces = new BitSet();
+				this.pending.put(torrent, pieces);
+			}
+			pieces.set(piece);
+
+			if (!this.scheduled && !this.executor.isShutdown()) {
+				this.executor.schedule(this, FLUSH_DELAY,
+					TimeUnit.MILLISECONDS);
+				this.scheduled = true;
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		this.flush();
+	}
+
+	/**
+	 * Send the pending HAVE messages to the connected peers of their torrent.
+	 */
+	public void flush() {
+		Map<ClientSharedTorrent, BitSet> batch;
+		synchronized (this.pending) {
+			batch = new HashMap<ClientSharedTorrent, BitSet>(this.pending);
+			this.pending.clear();
+			this.scheduled = false;
+		}
+
+		for (Map.Entry<ClientSharedTorrent, BitSet> entry : batch.entrySet()) {
+			ClientSharedTorrent torrent = entry.getKey();
+			BitSet pieces = entry.getValue();
+
+			List<ByteBuffer> messages = new ArrayList<ByteBuffer>(
+				pieces.cardinality() + 1);
+			for (int i = pieces.nextSetBit(0); i >= 0;
+					i = pieces.nextSetBit(i+1)) {
+				messages.add(PeerMessage.HaveMessage.craft(i).getData()
+					.asReadOnlyBuffer());
+			}
+
+			// If this is the server, send a server completion message as well
+			if (this.server) {
+				messages.add(PeerMessage.ServerMessage
+					.craft((int) torrent.getCompletion()).getData()
+					.asReadOnlyBuffer());
+			}
+
+			for (SharingPeer remote : torrent.getConnected().values()) {
+				SocketChannel channel = remote.getSocketChannel();
+				if (channel != null) {
+					this.service.send(channel, messages);
+				}
+			}
+
+			logger.trace("Sent {} HAVE message(s) to {} peer(s) of {}.",
+				new Object[] {
+					pieces.cardinality(),
+					torrent.getConnected().size(),
+					torrent
+				});
+		}
+	}
+
+	/**
+	 * Stop the broadcaster, sending any pending message first.
+	 */
+	public void stop() {
+		synchronized (this.pending) {
+			this.executor.shutdownNow();
+		}
+		this.flush();
+	}
+
+	/**
+	 * Thread factory naming the broadcaster thread, and making it a daemon
+	 * thread so it never holds the JVM.
+	 */
+	private static class BroadcasterThreadFactory implements ThreadFactory {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setName("bt-have-broadcaster");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -11,7 +11,6 @@ import java.nio.channels.SocketChannel;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -64,19 +63,21 @@ public class MultiTorrentClient implements
 	private static final int VOLUNTARY_OUTBOUND_CONNECTIONS = 20;
 	
 	protected PeerCommunicationManager service;
+	protected HaveBroadcaster broadcaster;
+	protected ConnectionManager connections;
+	protected BlockCache cache;
+	protected DiskIOExecutor diskIO;
 	protected MultiTorrentAnnounce announce;
 	protected Peer self;
 	private String id;
 	protected boolean stop = false;
 	protected boolean server;
 	
-	// The purpose of this map is to quickly look up a peer by its socket in the event that the PeerCommunication Manager
-	// finds a bad socket channel
-	protected HashMap<SocketChannel, SharingPeer> socketChannelMap = new HashMap<SocketChannel, SharingPeer>();
-	
-	// Map of socket channels to torrents and peers. This allows us to quickly determine what peers we are talking to
-	// when a connection is being created and managed.
-	private Map<SocketChannel, TorrentPeerWrapper> torrentPeerAssociations = new HashMap<SocketChannel, TorrentPeerWrapper>();
+	// Registry of the connections of all torrents, mapping each socket channel to its torrent, and to the peer on the
+	// other end once the handshake is done. This allows us to quickly determine what peer we are talking to when a
+	// connection is being created and managed, or when the PeerCommunicationManager finds a bad socket channel.
+	private ConcurrentMap<SocketChannel, TorrentPeerWrapper> channels =
+		new ConcurrentHashMap<SocketChannel, TorrentPeerWrapper>();
 	
 	Thread thread;
 	
@@ -115,6 +116,10 @@ public class MultiTorrentClient implements
 			ByteBuffer.wrap(id.getBytes(Torrent.BYTE_ENCODING)), server);
 		
 		this.server = server;
+		this.broadcaster = new HaveBroadcaster(this.service, this.server);
+		this.connections = new ConnectionManager(this.service);
+		this.cache = new BlockCache(BlockCache.DEFAULT_CAPACITY);
+		this.diskIO = new DiskIOExecutor();
 		
 		// Initialize the announce request thread, and register ourselves to it
 		// as well.
@@ -137,6 +142,8 @@ public class MultiTorrentClient implements
 			alreadyShared = true;
 		}
 		this.torrents.put(torrent.getHexInfoHash(), torrent);
+		torrent.setBlockCache(this.cache);
+		torrent.setDiskIO(this.diskIO);
 		// Only add this if it's not already shared, or this is the server (where we remove tracked torrents that aren't actively being shared)
 		if (!alreadyShared || this.server) {
 			this.announce.addTorrent(torrent);
@@ -165,7 +172,7 @@ public class MultiTorrentClient implements
 		try {
 			byte[] handshakeData = Handshake.craft(this.torrents.get(hexInfoHash).getInfoHash(),
 						this.id.getBytes(Torrent.BYTE_ENCODING)).getBytes();
-			this.torrentPeerAssociations.put(socketChannel, new TorrentPeerWrapper(hexInfoHash));
+			this.channels.put(socketChannel, new TorrentPeerWrapper(hexInfoHash));
 			this.service.send(socketChannel, handshakeData);
 		} catch (UnsupportedEncodingException e) {
 			logger.error("There was a problem creating the handshake", e);
@@ -185,11 +192,11 @@ public class MultiTorrentClient implements
 	 * @param socketChannel
 	 */
 	private void handleMessage(ByteBuffer data, SocketChannel socketChannel) {
+		TorrentPeerWrapper tpw = this.channels.get(socketChannel);
 		
-		int pstrlen = data.getInt();
-		TorrentPeerWrapper tpw = this.torrentPeerAssociations.get(socketChannel);
-		
-		if (pstrlen >= 0 && data.remaining() == Handshake.BASE_HANDSHAKE_LENGTH) {
+		if (tpw == null || tpw.peer == null) {
+			// The first message on a channel with no bound peer yet is
+			// always the handshake.
 			try {
 				logger.trace("Got a handshake on channel {}", socketChannel);
 				Handshake hs = this.validateHandshake(socketChannel, data.array(), null);
@@ -201,34 +208,25 @@ public class MultiTorrentClient implements
 					this.service.send(socketChannel, handshakeData);
 					this.handleNewPeerConnection(socketChannel, hs.getPeerId(), Torrent.byteArrayToHexString(hs.getInfoHash()));
 				} else {
-					logger.trace("It was a return handshake from peer. We're good with this peer.", tpw.peer);
+					logger.trace("It was a return handshake from peer. We're good with this peer.");
 					this.handleNewPeerConnection(socketChannel, hs.getPeerId(), Torrent.byteArrayToHexString(hs.getInfoHash()));
 				}
 			} catch (IOException e) {
 				logger.error("There was a problem validating the handshake.", e);
 			} catch (ParseException e) {
-				logger.error("There was a problem validating the handshake.", e);
-			}
-		} else {
-			if (tpw == null) {
-				// We got a message on a socket channel with no torrent or peer associated with it
-				// We have to ignore it as we have no idea what to do with it
-				return;
-			}
-			if (tpw.peer != null) {
-
-				SharingPeer peer = tpw.peer;
-				try {
-					PeerMessage msg;
-					msg = PeerMessage.parse(data, this.torrents.get(tpw.torrentInfoHash));
-					peer.handleMessage(msg);
-				} catch (ParseException e) {
-					logger.error("There was a problem parsing the PeerMessage", e);
-				}
-				
-			} else {
-				logger.error("Can't find an associated peer.");
+				logger.warn("Invalid handshake from {}, closing link: {}",
+					PeerCommunicationManager.socketRepr(socketChannel.socket()),
+					e.getMessage());
+				this.channels.remove(socketChannel);
+				this.service.disconnect(socketChannel);
 			}
+			return;
+		}
+		
+		try {
+			tpw.decoder.decode(data);
+		} catch (ParseException e) {
+			logger.error("There was a problem parsing the PeerMessage", e);
 		}
 	}
 	
@@ -282,24 +280,47 @@ public class MultiTorrentClient implements
 			return;
 		}
 		
- 		Peer search = new Peer(
+		Peer search = new Peer(
 			sc.socket().getInetAddress().getHostAddress(),
 			sc.socket().getPort(),
 			(peerId != null
 				? ByteBuffer.wrap(peerId)
 				: (ByteBuffer)null));
-	
+
 		SharingPeer peer = torrent.getOrCreatePeer(search);
+		if (peer.isConnected()) {
+			logger.debug("Already connected with {}, closing link.", peer);
+			this.service.disconnect(sc);
+			this.service.getMetrics().refused();
+			return;
+		}
+
+		// Make room for the new peer, or turn it down if the torrent is full
+		// of peers we'd rather keep.
+		if (!this.connections.hasRoom(torrent)) {
+			SharingPeer victim = this.connections.victim(torrent,
+				System.currentTimeMillis());
+			if (victim == null) {
+				logger.debug("Torrent {} has too many peers, dropping new " +
+					"connection from {}.", torrent.getHexInfoHash(), sc);
+				this.service.disconnect(sc);
+				this.service.getMetrics().refused();
+				return;
+			}
+
+			logger.debug("Evicting {} to make room for a new peer.", victim);
+			this.disconnect(victim);
+		}
+
 		peer.setSocketChannel(sc);
 		
 		// Attach the SharingPeer to the selection key
-		this.torrentPeerAssociations.put(sc, new TorrentPeerWrapper(peer, hexInfoHash));
+		this.channels.put(sc, new TorrentPeerWrapper(peer, hexInfoHash));
 		
 		logger.trace("Registering new peer {} with id " + peerId + " for torrent {}", peer, torrent.getHexInfoHash());
 		peer.setBound(true);
 		peer.resetRates();
-		torrent.getConnected().put(peer.getHexPeerId(), peer);
-		socketChannelMap.put(sc, peer);
+		torrent.getConnected().put(peer.getKey(), peer);
 		peer.register(torrent);
 		peer.register(this);
 	
@@ -307,13 +328,32 @@ public class MultiTorrentClient implements
 		BitSet pieces = this.torrents.get(hexInfoHash).getCompletedPieces();
 		if (pieces.cardinality() > 0) {
 			logger.trace("We have pieces, so send a BITFIELD message to peer {}", peer);
-			this.service.send(sc, PeerMessage.BitfieldMessage.craft(pieces).getData().array());
+			this.service.send(sc, PeerMessage.BitfieldMessage.craft(pieces).getData());
 			if (this.server) {
-				this.service.send(sc, PeerMessage.ServerMessage.craft((int) torrent.getCompletion()).getData().array());
+				this.service.send(sc, PeerMessage.ServerMessage.craft((int) torrent.getCompletion()).getData());
 			}
 		}
 	}
 
+	/**
+	 * Close the connection to a peer, on our own initiative.
+	 */
+	private void disconnect(SharingPeer peer) {
+		ClientSharedTorrent torrent = this.torrents.get(peer.getTorrentHexInfoHash());
+		SocketChannel sc = peer.getSocketChannel();
+		
+		if (torrent != null) {
+			torrent.handlePeerDisconnected(peer);
+		}
+		this.handlePeerDisconnected(peer);
+		peer.setBound(false);
+		
+		if (sc != null) {
+			this.service.disconnect(sc);
+		}
+		this.service.getMetrics().evicted();
+	}
+
 	@Override
 	public void handleFailedConnection(SharingPeer peer, Throwable cause) {
 		ClientSharedTorrent torrent = this.torrents.get(peer.getTorrentHexInfoHash());
@@ -324,9 +364,9 @@ public class MultiTorrentClient implements
 		}
 		
 		logger.trace("Could not connect to {}: {}.", peer, cause.getMessage());
-		torrent.getPeers().remove(peer.getHostIdentifier());
+		torrent.getPeers().remove(peer.getAddressKey());
 		if (peer.hasPeerId()) {
-			torrent.getPeers().remove(peer.getHexPeerId());
+			torrent.getPeers().remove(peer.getIdKey());
 		}
 	}
 
@@ -357,14 +397,7 @@ public class MultiTorrentClient implements
 					});
 
 				// Send a HAVE message to all connected peers
-				PeerMessage have = PeerMessage.HaveMessage.craft(piece.getIndex());
-				for (SharingPeer remote : torrent.getConnected().values()) {
-					remote.send(have);
-					// If this is the server, send a server completion message as well
-					if (this.server) {
-						remote.send(PeerMessage.ServerMessage.craft((int) torrent.getCompletion()));
-					}
-				}
+				this.broadcaster.have(torrent, piece.getIndex());
 
 				// Force notify after each piece is completed to propagate download
 				// completion information (or new seeding state)
@@ -401,9 +434,7 @@ public class MultiTorrentClient implements
 			return;
 		}
 		
-		if (torrent.getConnected().remove(peer.hasPeerId()
-					? peer.getHexPeerId()
-					: peer.getHostIdentifier()) != null) {
+		if (torrent.getConnected().remove(peer.getKey()) != null) {
 			logger.trace("Peer {} disconnected, [{}/{}].",
 				new Object[] {
 					peer,
@@ -416,8 +447,10 @@ public class MultiTorrentClient implements
 			torrent.releasePiece(peer.getRequestedPiece());
 		}
 		
-		socketChannelMap.remove(peer.getSocketChannel());
-		torrentPeerAssociations.remove(peer.getSocketChannel());
+		SocketChannel sc = peer.getSocketChannel();
+		if (sc != null) {
+			this.channels.remove(sc);
+		}
 	
 		peer.reset();
 	}
@@ -456,28 +489,26 @@ public class MultiTorrentClient implements
 			return;
 		}
 
+		// The communication manager ignores connection requests to peers it is
+		// already connecting to, so there's no need to lock each peer here.
+		boolean seeding = torrent.isComplete();
 		for (Peer peer : peers) {
 			SharingPeer match = torrent.getOrCreatePeer(peer);
 
-			synchronized (match) {
-				// Attempt to connect to the peer if and only if:
-				//   - We're not already connected to it;
-				//   - We're not a seeder (we leave the responsibility
-				//	   of connecting to peers that need to download
-				//     something), or we are a seeder but we're still
-				//     willing to initiate some out bound connections.
-				if (match.isConnected() ||
-					(torrent.isComplete() && torrent.getConnected().size() >=
-						MultiTorrentClient.VOLUNTARY_OUTBOUND_CONNECTIONS)) {
-					continue;
-				}
+			// Attempt to connect to the peer if and only if:
+			//   - We're not already connected to it;
+			//   - We're not a seeder (we leave the responsibility
+			//	   of connecting to peers that need to download
+			//     something), or we are a seeder but we're still
+			//     willing to initiate some out bound connections.
+			if (match.isConnected() ||
+				(seeding && torrent.getConnected().size() >=
+					MultiTorrentClient.VOLUNTARY_OUTBOUND_CONNECTIONS)) {
+				continue;
+			}
 
-				try {
-					logger.trace("Connecting to new peer {}", match.getPeerId());
-					SocketChannel sc = this.service.connect(match.getAddress(), match.getPort(), torrent.getInfoHash());
-				} catch (IOException e) {
-					logger.error("There was a problem connecting to the peer", e);
-				}
+			if (this.service.connect(match)) {
+				logger.trace("Connecting to new peer {}", match);
 			}
 		}
 	}
@@ -518,6 +549,17 @@ public class MultiTorrentClient implements
 				}
 			}
 			
+			// Scores are based on the peer rates, so evict before they get
+			// reset.
+			if (rateComputationIterations == 1) {
+				try {
+					this.evictPeers();
+				} catch (Exception e) {
+					logger.error("An exception occurred while evicting " +
+							"peers!", e);
+				}
+			}
+			
 			try {
 				Thread.sleep(MultiTorrentClient.UNCHOKING_FREQUENCY*1000);
 			} catch (InterruptedException ie) {
@@ -525,6 +567,9 @@ public class MultiTorrentClient implements
 			}
 		}
 		
+		// Send out the last pending HAVE messages
+		this.broadcaster.stop();
+		
 		// Close all peer connections
 		logger.info("Closing all remaining peer connections...");
 		for (Map.Entry<String, ClientSharedTorrent> entry : this.torrents.entrySet()) {
@@ -532,6 +577,33 @@ public class MultiTorrentClient implements
 				peer.unbind(true);
 			}
 		}
+		
+		// Carry out the storage operations still queued
+		this.diskIO.stop();
+	}
+	
+	/**
+	 * Disconnect from the peers selected for eviction by the connection
+	 * manager.
+	 */
+	private void evictPeers() {
+		long now = System.currentTimeMillis();
+		for (SharingPeer peer : this.connections.evictions(
+				this.torrents.values(), now)) {
+			logger.debug("Evicting peer {}.", peer);
+			this.disconnect(peer);
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Peers: {}; connections: {}; block cache: {}; " +
+				"disk I/O: {}.",
+				new Object[] {
+					ConnectionManager.census(this.torrents.values(), now),
+					this.service.getMetrics(),
+					this.cache,
+					this.diskIO
+				});
+		}
 	}
 	
 	public void stop() {
@@ -579,16 +651,16 @@ public class MultiTorrentClient implements
 	@Override
 	public void sendPeerMessage(SharingPeer peer, PeerMessage message) {
 		logger.trace("Sending a {} message to peer {} regarding torrent " + peer.getTorrent().toString(), message.getType(), peer);
-		this.service.send(peer.getSocketChannel(), message.getData().array());
+		this.service.send(peer.getSocketChannel(), message);
 	}
 	
 	@Override
 	public void handleBadSocket(SocketChannel socketChannel) {
 		logger.warn("Socket Channel " + socketChannel + " is bad. Remove the associated peer.");
-		SharingPeer badPeer = socketChannelMap.get(socketChannel);
-		if (badPeer != null) {
-			logger.warn("Disconnecting peer {}", badPeer);
-			handlePeerDisconnected(badPeer);
+		TorrentPeerWrapper tpw = this.channels.remove(socketChannel);
+		if (tpw != null && tpw.peer != null) {
+			logger.warn("Disconnecting peer {}", tpw.peer);
+			handlePeerDisconnected(tpw.peer);
 		}
 	}
 
@@ -21,6 +21,7 @@ import com.turn.ttorrent.client.storage.TorrentByteStorage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.concurrent.Callable;
@@ -106,6 +107,14 @@ public class Piece implements Comparable<Piece> {
 		return this.index;
 	}
 
+	/**
+	 * Returns the offset, in bytes, of this piece in the torrent's byte
+	 * storage.
+	 */
+	public long getOffset() {
+		return this.offset;
+	}
+
 	/**
 	 * Returns the size, in bytes, of this piece.
 	 *
@@ -183,13 +192,13 @@ public class Piece implements Comparable<Piece> {
 	 * @param offset Offset inside this piece where to start reading.
 	 * @param length Number of bytes to read from the piece.
 	 * @return A byte buffer containing the piece data.
-	 * @throws IllegalArgumentException If <em>offset + length</em> goes over
-	 * the piece boundary.
+	 * @throws IllegalArgumentException If the offset is negative, or
+	 * <em>offset + length</em> goes over the piece boundary.
 	 * @throws IOException If the read can't be completed (I/O error, or EOF
 	 * reached, which can happen if the piece is not complete).
 	 */
 	private ByteBuffer _read(long offset, long length) throws IOException {
-		if (offset + length > this.length) {
+		if (offset < 0 || length < 0 || offset + length > this.length) {
 			throw new IllegalArgumentException("Piece#" + this.index +
 				" overrun (" + offset + " + " + length + " > " +
 				this.length + ") !");
@@ -217,8 +226,8 @@ public class Piece implements Comparable<Piece> {
 	 * @param offset Offset inside this piece where to start reading.
 	 * @param length Number of bytes to read from the piece.
 	 * @return A byte buffer containing the piece data.
-	 * @throws IllegalArgumentException If <em>offset + length</em> goes over
-	 * the piece boundary.
+	 * @throws IllegalArgumentException If the offset is negative, or
+	 * <em>offset + length</em> goes over the piece boundary.
 	 * @throws IllegalStateException If the piece is not valid when attempting
 	 * to read it.
 	 * @throws IOException If the read can't be completed (I/O error, or EOF
@@ -234,6 +243,79 @@ public class Piece implements Comparable<Piece> {
 		return this._read(offset, length);
 	}
 
+	/**
+	 * Read piece data from the underlying byte storage into a given buffer.
+	 *
+	 * <p>
+	 * Like {@link #read(long, int)}, this only succeeds if the piece is
+	 * valid, but the data is read into a buffer provided, and possibly
+	 * reused, by the caller.
+	 * </p>
+	 *
+	 * @param buffer The buffer to read into. Its remaining space controls
+	 * how many bytes are read from the piece.
+	 * @param offset Offset inside this piece where to start reading.
+	 * @return The number of bytes read.
+	 * @throws IllegalArgumentException If the offset is negative, or the
+	 * read goes over the piece boundary.
+	 * @throws IllegalStateException If the piece is not valid when attempting
+	 * to read it.
+	 * @throws IOException If the read can't be completed.
+	 */
+	public int read(ByteBuffer buffer, long offset)
+		throws IllegalArgumentException, IllegalStateException, IOException {
+		if (!this.valid) {
+			throw new IllegalStateException("Attempting to read an " +
+					"known-to-be invalid piece!");
+		}
+
+		if (offset < 0 || offset + buffer.remaining() > this.length) {
+			throw new IllegalArgumentException("Piece#" + this.index +
+				" overrun (" + offset + " + " + buffer.remaining() + " > " +
+				this.length + ") !");
+		}
+
+		return this.bucket.read(buffer, this.offset + offset);
+	}
+
+	/**
+	 * Transfer piece data from the underlying byte storage directly to a
+	 * channel.
+	 *
+	 * <p>
+	 * Like {@link #read(long, int)}, this only succeeds if the piece is
+	 * valid. The data is not copied into a buffer: see
+	 * {@link TorrentByteStorage#transferTo}.
+	 * </p>
+	 *
+	 * @param offset Offset inside this piece where to start transferring.
+	 * @param length The number of bytes to transfer.
+	 * @param target The channel to write the bytes to.
+	 * @return The number of bytes transferred, possibly less than requested
+	 * if the target channel can't take more for now.
+	 * @throws IllegalArgumentException If the offset is negative, or the
+	 * transfer goes over the piece boundary.
+	 * @throws IllegalStateException If the piece is not valid when attempting
+	 * to transfer it.
+	 * @throws IOException If the transfer can't be completed.
+	 */
+	public long transferTo(long offset, long length,
+		WritableByteChannel target)
+		throws IllegalArgumentException, IllegalStateException, IOException {
+		if (!this.valid) {
+			throw new IllegalStateException("Attempting to transfer an " +
+					"known-to-be invalid piece!");
+		}
+
+		if (offset < 0 || length < 0 || offset + length > this.length) {
+			throw new IllegalArgumentException("Piece#" + this.index +
+				" overrun (" + offset + " + " + length + " > " +
+				this.length + ") !");
+		}
+
+		return this.bucket.transferTo(this.offset + offset, length, target);
+	}
+
 	/**
 	 * Record the given block at the given offset in this piece.
 	 *
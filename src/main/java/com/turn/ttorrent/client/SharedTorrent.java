@@ -19,16 +19,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
@@ -46,7 +52,11 @@ import com.turn.ttorrent.client.peer.PeerActivityListener;
 import com.turn.ttorrent.client.peer.SharingPeer;
 import com.turn.ttorrent.client.storage.FileCollectionStorage;
 import com.turn.ttorrent.client.storage.FileStorage;
+import com.turn.ttorrent.client.storage.MemoryStorage;
+import com.turn.ttorrent.client.storage.StoragePolicy;
+import com.turn.ttorrent.client.storage.TieredStorage;
 import com.turn.ttorrent.client.storage.TorrentByteStorage;
+import com.turn.ttorrent.common.ConcurrentBitSet;
 import com.turn.ttorrent.common.Torrent;
 import com.turn.ttorrent.common.protocol.PeerMessage;
 
@@ -76,6 +86,17 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	private static final int RAREST_PIECE_JITTER = 42;
 	protected static final long PIECE_TIMEOUT_MILLIS = 1000 * 60 * 3;
 
+	/**
+	 * Download priority of a file or piece.
+	 */
+	public enum Priority {
+		/** Not downloaded, unless it shares a piece with a wanted file. */
+		SKIP,
+		LOW,
+		NORMAL,
+		HIGH;
+	}
+
 	private Random random;
 	private boolean stop;
 
@@ -83,6 +104,9 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	private long downloaded;
 	private long left;
 
+	/** Bytes of the skipped pieces not completed, included in left. */
+	private long skippedLeft;
+
 	private final TorrentByteStorage bucket;
 
 	private final int pieceLength;
@@ -93,9 +117,24 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	private SortedSet<Piece> rarest;
 	private BitSet completedPieces;
 	protected BitSet requestedPieces;
+	private boolean sequential;
+	private final Map<Integer, Long> deadlines;
+	private final Priority[] filePriorities;
+	private Priority[] piecePriorities;
+	private BitSet skippedPieces;
+
+	/** Pieces neither completed, requested nor skipped. */
+	private ConcurrentBitSet wanted;
+
+	/** Connected peers that advertised pieces to us. */
+	private final Set<SharingPeer> sources;
+	private boolean closed;
 	protected Map<Integer, PeerAndMillis> requestedPiecesTime = new ConcurrentHashMap<Integer, PeerAndMillis>();
 	
 	private boolean multiThreadHash;
+	private volatile BlockCache cache;
+	private final String location;
+	private volatile DiskIOExecutor diskIO;
 	
 	protected class PeerAndMillis {
 		public SharingPeer peer;
@@ -151,6 +190,27 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 		this(torrent.getEncoded(), destDir, multiThreadHash, seeder);
 	}
 
+	/**
+	 * Create a new shared torrent from a base Torrent object.
+	 *
+	 * @param torrent The Torrent object.
+	 * @param destDir The destination directory or location of the torrent
+	 * files.
+	 * @param seeder Whether we're a seeder for this torrent or not (disables
+	 * validation).
+	 * @param policy The storage backend, allocation and durability policy
+	 * of the torrent's data.
+	 * @throws FileNotFoundException If the torrent file location or
+	 * destination directory does not exist and can't be created.
+	 * @throws IOException If the torrent file cannot be read or decoded.
+	 * @throws NoSuchAlgorithmException
+	 */
+	public SharedTorrent(Torrent torrent, File destDir, boolean multiThreadHash,
+		boolean seeder, StoragePolicy policy)
+		throws FileNotFoundException, IOException, NoSuchAlgorithmException {
+		this(torrent.getEncoded(), destDir, multiThreadHash, seeder, policy);
+	}
+
 	/**
 	 * Create a new shared torrent from meta-info binary data.
 	 *
@@ -181,6 +241,26 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	 * invalid.
 	 */
 	public SharedTorrent(byte[] torrent, File parent, boolean multiThreadHash, boolean seeder)
+		throws FileNotFoundException, IOException, NoSuchAlgorithmException {
+		this(torrent, parent, multiThreadHash, seeder, new StoragePolicy());
+	}
+
+	/**
+	 * Create a new shared torrent from meta-info binary data.
+	 *
+	 * @param torrent The meta-info byte data.
+	 * @param parent The parent directory or location the torrent files.
+	 * @param seeder Whether we're a seeder for this torrent or not (disables
+	 * validation).
+	 * @param policy The storage backend, allocation and durability policy
+	 * of the torrent's data.
+	 * @throws FileNotFoundException If the torrent file location or
+	 * destination directory does not exist and can't be created.
+	 * @throws IOException If the torrent file cannot be read or decoded.
+	 * @throws NoSuchAlgorithmException
+	 */
+	public SharedTorrent(byte[] torrent, File parent, boolean multiThreadHash,
+		boolean seeder, StoragePolicy policy)
 		throws FileNotFoundException, IOException, NoSuchAlgorithmException {
 		super(torrent, parent, seeder, null);
 		
@@ -191,11 +271,12 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 		}
 
 		String parentPath = parent.getCanonicalPath();
+		this.location = parentPath;
 
 		try {
-			this.pieceLength = this.decoded_info.get("piece length").getInt();
-			this.piecesHashes = ByteBuffer.wrap(this.decoded_info.get("pieces")
-					.getBytes());
+			this.pieceLength = this.info.get("piece length").getInt();
+			// A read-only slice of the meta-info data; no copy is made.
+			this.piecesHashes = this.info.get("pieces").getBuffer();
 
 			if (this.piecesHashes.capacity() / Torrent.PIECE_HASH_SIZE *
 					(long)this.pieceLength < this.getSize()) {
@@ -207,21 +288,30 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 					"Error reading torrent meta-info fields!");
 		}
 
-		List<FileStorage> files = new LinkedList<FileStorage>();
-		long offset = 0L;
-		for (Torrent.TorrentFile file : this.files) {
-			File actual = new File(parent, file.file.getPath());
+		if (policy.getBackend() == StoragePolicy.Backend.MEMORY) {
+			this.bucket = new MemoryStorage(this.getSize());
+		} else {
+			List<FileStorage> files = new LinkedList<FileStorage>();
+			long offset = 0L;
+			for (Torrent.TorrentFile file : this.files) {
+				File actual = new File(parent, file.file.getPath());
+
+				if (!actual.getCanonicalPath().startsWith(parentPath)) {
+					throw new SecurityException("Torrent file path attempted " +
+						"to break directory jail!");
+				}
 
-			if (!actual.getCanonicalPath().startsWith(parentPath)) {
-				throw new SecurityException("Torrent file path attempted " +
-					"to break directory jail!");
+				files.add(new FileStorage(actual, offset, file.size, policy));
+				offset += file.size;
 			}
 
-			actual.getParentFile().mkdirs();
-			files.add(new FileStorage(actual, offset, file.size));
-			offset += file.size;
+			TorrentByteStorage storage = new FileCollectionStorage(files,
+				this.getSize(), policy);
+			this.bucket = policy.getBackend() == StoragePolicy.Backend.TIERED
+				? new TieredStorage(storage, this.pieceLength,
+					policy.getMemoryBudget())
+				: storage;
 		}
-		this.bucket = new FileCollectionStorage(files, this.getSize());
 
 		this.random = new Random(System.currentTimeMillis());
 		this.stop = false;
@@ -229,12 +319,23 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 		this.uploaded = 0;
 		this.downloaded = 0;
 		this.left = this.getSize();
+		this.skippedLeft = 0;
 
 		this.initialized = false;
 		this.pieces = new Piece[0];
 		this.rarest = Collections.synchronizedSortedSet(new TreeSet<Piece>());
 		this.completedPieces = new BitSet();
 		this.requestedPieces = new BitSet();
+		this.sequential = false;
+		this.deadlines = new HashMap<Integer, Long>();
+		this.closed = false;
+
+		this.filePriorities = new Priority[this.files.size()];
+		Arrays.fill(this.filePriorities, Priority.NORMAL);
+		this.piecePriorities = new Priority[0];
+		this.skippedPieces = new BitSet();
+		this.wanted = new ConcurrentBitSet(0);
+		this.sources = new HashSet<SharingPeer>();
 	}
 
 	/**
@@ -276,9 +377,14 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 
 	/**
 	 * Get the number of bytes left to download for this torrent.
+	 *
+	 * <p>
+	 * Skipped pieces are not counted: once all the wanted pieces are
+	 * downloaded, nothing is left.
+	 * </p>
 	 */
 	public long getLeft() {
-		return this.left;
+		return this.left - this.skippedLeft;
 	}
 
 	/**
@@ -329,7 +435,13 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 				this.completedPieces.cardinality(),
 				this.pieces.length
 			});
+
+		this.wanted = new ConcurrentBitSet(this.pieces.length);
+		this.piecePriorities = new Priority[this.pieces.length];
+		this.updatePiecePriorities(0, this.pieces.length - 1);
+
 		this.initialized = true;
+		this.notifyAll();
 	}
 	
 	private void hashMultiThread() throws InterruptedException, IOException {
@@ -434,6 +546,14 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	}
 
 	public synchronized void close() {
+		this.closed = true;
+		this.notifyAll();
+
+		BlockCache cache = this.cache;
+		if (cache != null) {
+			cache.invalidate(this);
+		}
+
 		try {
 			this.bucket.close();
 		} catch (IOException ioe) {
@@ -442,6 +562,100 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 		}
 	}
 
+	/**
+	 * Set the cache the blocks served to peers are read through.
+	 *
+	 * @param cache The block cache, possibly shared with other torrents, or
+	 * <em>null</em> to read blocks straight from the storage.
+	 */
+	public void setBlockCache(BlockCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Set the executor this torrent's storage operations are queued to.
+	 *
+	 * @param diskIO The disk I/O executor, possibly shared with other
+	 * torrents, or <em>null</em> to carry out storage operations in the
+	 * thread requesting them.
+	 */
+	public void setDiskIO(DiskIOExecutor diskIO) {
+		this.diskIO = diskIO;
+	}
+
+	/**
+	 * Carry out a storage operation of this torrent.
+	 *
+	 * <p>
+	 * The request is queued to the disk I/O executor for the directory this
+	 * torrent is stored in, if one has been set; otherwise it is carried out
+	 * right away, and its callbacks called, before this method returns.
+	 * </p>
+	 *
+	 * @param request The storage operation to carry out.
+	 */
+	public void submit(DiskIOExecutor.Request request) {
+		DiskIOExecutor diskIO = this.diskIO;
+		if (diskIO == null) {
+			request.run();
+			return;
+		}
+
+		diskIO.submit(this.location, request);
+	}
+
+	/**
+	 * Read a block of a valid piece, to be sent to a peer.
+	 *
+	 * @param piece The piece to read from.
+	 * @param offset Offset inside the piece where to start reading.
+	 * @param length Number of bytes to read from the piece.
+	 * @return A buffer containing the block data, possibly read-only.
+	 * @see Piece#read
+	 */
+	public ByteBuffer readBlock(Piece piece, int offset, int length)
+		throws IOException {
+		BlockCache cache = this.cache;
+		if (cache == null) {
+			return piece.read(offset, length);
+		}
+
+		return cache.read(this, piece, offset, length);
+	}
+
+	/**
+	 * Returns a block of a valid piece from the block cache, if it is there.
+	 *
+	 * @param piece The piece the block belongs to.
+	 * @param offset Offset of the block inside the piece.
+	 * @param length Length of the block, in bytes.
+	 * @return A read-only buffer containing the block data, or <em>null</em>
+	 * if this torrent has no block cache or the block is not cached.
+	 */
+	public ByteBuffer getCachedBlock(Piece piece, int offset, int length) {
+		BlockCache cache = this.cache;
+		return cache != null
+			? cache.get(this, piece, offset, length)
+			: null;
+	}
+
+	/**
+	 * Tells whether this torrent's storage operations are queued to a disk
+	 * I/O executor.
+	 */
+	public boolean hasDiskIO() {
+		return this.diskIO != null;
+	}
+
+	/**
+	 * Tells whether this torrent's data is stored straight in its files,
+	 * with no in-memory tier, so that it can be transferred from them
+	 * without copy.
+	 */
+	public boolean isFileBacked() {
+		return this.bucket instanceof FileCollectionStorage;
+	}
+
 	/**
 	 * Retrieve a piece object by index.
 	 *
@@ -524,10 +738,20 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	/**
 	 * Tells whether this torrent has been fully downloaded, or is fully
 	 * available locally.
+	 *
+	 * <p>
+	 * Skipped pieces don't count: a torrent is complete once it has all
+	 * the pieces it wants.
+	 * </p>
 	 */
 	public synchronized boolean isComplete() {
-		return this.pieces.length > 0 &&
-			this.completedPieces.cardinality() == this.pieces.length;
+		if (this.pieces.length == 0) {
+			return false;
+		}
+
+		BitSet done = (BitSet)this.skippedPieces.clone();
+		done.or(this.completedPieces);
+		return done.cardinality() == this.pieces.length;
 	}
 
 	/**
@@ -584,7 +808,382 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 		// A completed piece means that's that much data left to download for
 		// this torrent.
 		this.left -= piece.size();
+		if (this.skippedPieces.get(piece.getIndex())) {
+			this.skippedLeft -= piece.size();
+		}
 		this.completedPieces.set(piece.getIndex());
+		this.updateWanted(piece.getIndex());
+		this.deadlines.remove(piece.getIndex());
+		this.notifyAll();
+	}
+
+	/** Streaming download support. *****************************************/
+
+	/**
+	 * Tells whether pieces are downloaded in order.
+	 */
+	public synchronized boolean isSequential() {
+		return this.sequential;
+	}
+
+	/**
+	 * Set the download mode of this torrent.
+	 *
+	 * <p>
+	 * By default, the piece requested from a peer is picked at random among
+	 * the rarest pieces it has, which is best for the swarm but means the
+	 * beginning of a file is usually among the last parts to be complete. In
+	 * sequential mode, the first piece we don't have is requested instead,
+	 * so the data can be consumed while it is being downloaded.
+	 * </p>
+	 *
+	 * <p>
+	 * In both modes, pieces with a deadline are requested first; see
+	 * {@link #setDeadline}.
+	 * </p>
+	 */
+	public synchronized void setSequential(boolean sequential) {
+		this.sequential = sequential;
+	}
+
+	/**
+	 * Set the deadline of a piece.
+	 *
+	 * <p>
+	 * Pieces with a deadline are requested before any other, the one with
+	 * the earliest deadline first. The deadline only affects the choice of
+	 * the next piece requested from a peer: the pieces already being
+	 * downloaded are not canceled. It is cleared once the piece is complete.
+	 * </p>
+	 *
+	 * @param index The index of the piece.
+	 * @param deadline When the piece is needed, in milliseconds since the
+	 * epoch.
+	 */
+	public synchronized void setDeadline(int index, long deadline) {
+		if (!this.completedPieces.get(index)) {
+			this.deadlines.put(index, deadline);
+		}
+	}
+
+	/**
+	 * Clear the deadline of a piece, if any.
+	 *
+	 * @param index The index of the piece.
+	 */
+	public synchronized void clearDeadline(int index) {
+		this.deadlines.remove(index);
+	}
+
+	/**
+	 * Wait for a piece to be downloaded and validated.
+	 *
+	 * <p>
+	 * A skipped piece is never requested, so rather than waiting for it
+	 * forever, this fails as soon as the piece is, or becomes, skipped. Give
+	 * the piece, or one of its files, another priority to download it.
+	 * </p>
+	 *
+	 * @param index The index of the piece.
+	 * @return Whether the piece is complete, false if this torrent was
+	 * closed first.
+	 * @throws IOException If the piece is skipped.
+	 * @throws InterruptedException If the calling thread is interrupted
+	 * while waiting.
+	 */
+	public synchronized boolean waitForPiece(int index)
+		throws IOException, InterruptedException {
+		while (!this.closed &&
+			!(this.initialized && this.completedPieces.get(index))) {
+			if (this.initialized && this.skippedPieces.get(index)) {
+				throw new IOException("Piece #" + index + " is skipped!");
+			}
+			this.wait();
+		}
+
+		return this.initialized && this.completedPieces.get(index);
+	}
+
+	/**
+	 * Returns the nominal length of this torrent's pieces, in bytes.
+	 */
+	public int getPieceLength() {
+		return this.pieceLength;
+	}
+
+	/**
+	 * Open a channel reading a file of this torrent while it is downloaded.
+	 *
+	 * <p>
+	 * The pieces of a skipped file are not downloaded, so such a file can't
+	 * be read: give it another priority first. If the pieces the channel
+	 * reads are skipped afterwards, its reads fail; see
+	 * {@link #waitForPiece}.
+	 * </p>
+	 *
+	 * @param filename The path of the file, as returned by
+	 * {@link #getFilenames}.
+	 * @throws FileNotFoundException If the torrent has no such file.
+	 * @throws IOException If the file is skipped.
+	 * @see TorrentFileChannel
+	 */
+	public TorrentFileChannel openChannel(String filename)
+		throws IOException {
+		int index = this.getFileIndex(filename);
+		synchronized (this) {
+			if (this.filePriorities[index] == Priority.SKIP) {
+				throw new IOException("File " + filename + " is skipped!");
+			}
+		}
+		return new TorrentFileChannel(this, this.getFileOffset(index),
+			this.files.get(index).size);
+	}
+
+	/**
+	 * Open a stream reading a file of this torrent while it is downloaded.
+	 *
+	 * @param filename The path of the file, as returned by
+	 * {@link #getFilenames}.
+	 * @throws FileNotFoundException If the torrent has no such file.
+	 * @throws IOException If the file is skipped.
+	 * @see #openChannel
+	 */
+	public InputStream openStream(String filename)
+		throws IOException {
+		return Channels.newInputStream(this.openChannel(filename));
+	}
+
+	/** Download priorities. ************************************************/
+
+	/**
+	 * Returns the download priority of a file of this torrent.
+	 *
+	 * @param filename The path of the file, as returned by
+	 * {@link #getFilenames}.
+	 * @throws FileNotFoundException If the torrent has no such file.
+	 */
+	public synchronized Priority getFilePriority(String filename)
+		throws FileNotFoundException {
+		return this.filePriorities[this.getFileIndex(filename)];
+	}
+
+	/**
+	 * Set the download priority of a file of this torrent.
+	 *
+	 * <p>
+	 * The priority of a piece is the highest priority of the files it
+	 * holds data of. Pieces of a higher priority are requested first, and
+	 * skipped pieces are not requested at all. A file is created on disk
+	 * when its first piece is written, so a skipped file doesn't take any
+	 * space, unless it shares a piece with a file that is wanted.
+	 * </p>
+	 *
+	 * <p>
+	 * Priorities can change during the download: the connected peers are
+	 * told whether we're still interested in them. They are still best set
+	 * before the download starts, since a torrent with all its wanted pieces
+	 * is complete, and only keeps downloading if it keeps seeding.
+	 * </p>
+	 *
+	 * @param filename The path of the file, as returned by
+	 * {@link #getFilenames}.
+	 * @param priority The priority of the file.
+	 * @throws FileNotFoundException If the torrent has no such file.
+	 */
+	public void setFilePriority(String filename, Priority priority)
+		throws FileNotFoundException {
+		List<SharingPeer> peers;
+
+		synchronized (this) {
+			int index = this.getFileIndex(filename);
+			this.filePriorities[index] = priority;
+
+			long size = this.files.get(index).size;
+			if (!this.isInitialized() || size == 0) {
+				return;
+			}
+
+			long offset = this.getFileOffset(index);
+			this.updatePiecePriorities(
+				(int)(offset / this.pieceLength),
+				(int)((offset + size - 1) / this.pieceLength));
+			peers = new ArrayList<SharingPeer>(this.sources);
+		}
+
+		this.updateInterest(peers);
+	}
+
+	/**
+	 * Returns the download priority of a piece.
+	 *
+	 * @param index The index of the piece.
+	 */
+	public synchronized Priority getPiecePriority(int index) {
+		if (!this.isInitialized()) {
+			throw new IllegalStateException("Torrent not yet initialized!");
+		}
+
+		return this.piecePriorities[index];
+	}
+
+	/**
+	 * Set the download priority of a piece.
+	 *
+	 * <p>
+	 * This overrides the priority the piece got from its files, until the
+	 * priority of one of them is changed.
+	 * </p>
+	 *
+	 * @param index The index of the piece.
+	 * @param priority The priority of the piece.
+	 */
+	public void setPiecePriority(int index, Priority priority) {
+		List<SharingPeer> peers;
+
+		synchronized (this) {
+			if (!this.isInitialized()) {
+				throw new IllegalStateException("Torrent not yet initialized!");
+			}
+
+			this.piecePriorities[index] = priority;
+			this.setSkipped(index, priority == Priority.SKIP);
+			this.updateWanted(index);
+			peers = new ArrayList<SharingPeer>(this.sources);
+		}
+
+		this.updateInterest(peers);
+	}
+
+	/**
+	 * Mark a piece as requested from a peer, or not anymore.
+	 */
+	protected synchronized void setRequested(int index, boolean requested) {
+		this.requestedPieces.set(index, requested);
+		this.updateWanted(index);
+	}
+
+	/**
+	 * Update whether a piece is wanted after its state changed.
+	 */
+	private void updateWanted(int index) {
+		if (index < this.wanted.size()) {
+			this.wanted.set(index, !this.completedPieces.get(index) &&
+				!this.requestedPieces.get(index) &&
+				!this.skippedPieces.get(index));
+		}
+	}
+
+	/**
+	 * Tell the given peers whether we're interested in them, after the
+	 * pieces we want changed.
+	 *
+	 * <p>
+	 * A peer that already unchoked us is asked for a piece right away, as
+	 * no unchoke will come to trigger it. We stay interested in a peer we're
+	 * downloading a piece from, so that it doesn't choke us before the piece
+	 * is complete.
+	 * </p>
+	 *
+	 * <p>
+	 * Like the peer's own message handlers, this locks the peer before the
+	 * torrent, and must not be called with the torrent locked.
+	 * </p>
+	 */
+	private void updateInterest(List<SharingPeer> peers) {
+		for (SharingPeer peer : peers) {
+			synchronized (peer) {
+				if (!peer.isConnected()) {
+					continue;
+				}
+
+				if (peer.getAvailability().intersects(this.wanted)) {
+					peer.interesting();
+					if (!peer.isChoked() && !peer.isDownloading()) {
+						this.handlePeerReady(peer);
+					}
+				} else if (!peer.isDownloading()) {
+					peer.notInteresting();
+				}
+			}
+		}
+	}
+
+	private int getFileIndex(String filename) throws FileNotFoundException {
+		int index = 0;
+		for (Torrent.TorrentFile file : this.files) {
+			if (file.file.getPath().equals(filename)) {
+				return index;
+			}
+			index++;
+		}
+
+		throw new FileNotFoundException("No file " + filename + " in " +
+			this.getName() + "!");
+	}
+
+	/**
+	 * Returns the offset of a file in this torrent's storage.
+	 */
+	private long getFileOffset(int index) {
+		long offset = 0L;
+		for (int i=0; i < index; i++) {
+			offset += this.files.get(i).size;
+		}
+		return offset;
+	}
+
+	/**
+	 * Recompute the priority of a range of pieces from the priorities of
+	 * the files they hold data of.
+	 *
+	 * @param first The index of the first piece of the range.
+	 * @param last The index of the last piece of the range, inclusive.
+	 */
+	private void updatePiecePriorities(int first, int last) {
+		Arrays.fill(this.piecePriorities, first, last + 1, Priority.SKIP);
+
+		long offset = 0L;
+		int index = 0;
+		for (Torrent.TorrentFile file : this.files) {
+			Priority priority = this.filePriorities[index++];
+			long start = offset;
+			offset += file.size;
+
+			if (file.size == 0) {
+				continue;
+			}
+
+			int from = Math.max(first, (int)(start / this.pieceLength));
+			int to = Math.min(last, (int)((offset - 1) / this.pieceLength));
+			for (int i = from; i <= to; i++) {
+				if (priority.compareTo(this.piecePriorities[i]) > 0) {
+					this.piecePriorities[i] = priority;
+				}
+			}
+		}
+
+		for (int i = first; i <= last; i++) {
+			this.setSkipped(i, this.piecePriorities[i] == Priority.SKIP);
+			this.updateWanted(i);
+		}
+	}
+
+	/**
+	 * Mark a piece as skipped, or not anymore, keeping count of the bytes
+	 * left to download of skipped pieces.
+	 */
+	private void setSkipped(int index, boolean skipped) {
+		if (this.skippedPieces.get(index) != skipped &&
+			!this.completedPieces.get(index)) {
+			long size = this.pieces[index].size();
+			this.skippedLeft += skipped ? size : -size;
+		}
+		this.skippedPieces.set(index, skipped);
+
+		// Wake up the readers waiting for a piece that won't come.
+		if (skipped) {
+			this.notifyAll();
+		}
 	}
 
 	/** PeerActivityListener handler(s). *************************************/
@@ -605,7 +1204,7 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 		Piece piece = peer.getRequestedPiece();
 
 		if (piece != null) {
-			this.requestedPieces.set(piece.getIndex(), false);
+			this.setRequested(piece.getIndex(), false);
 		}
 
 		logger.trace("Peer {} choked, we now have {} outstanding " +
@@ -629,34 +1228,104 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	 */
 	@Override
 	public synchronized void handlePeerReady(SharingPeer peer) {
-		ArrayList<Piece> choice = new ArrayList<Piece>(
-				SharedTorrent.RAREST_PIECE_JITTER);
+		ConcurrentBitSet available = peer.getAvailability();
+
+		if (logger.isTraceEnabled()) {
+			logger.trace("Peer {} is ready and has {} interesting piece(s).",
+				peer, available.intersectionCardinality(this.wanted));
+			logger.trace("Peer has {} piece(s), we have {} piece(s) and {} " +
+				"outstanding request(s): {}.",
+				new Object[] {
+					available.cardinality(),
+					this.completedPieces.cardinality(),
+					this.requestedPieces.cardinality(),
+					this.requestedPieces
+				});
+		}
 
-		BitSet interesting = peer.getAvailablePieces();
-		interesting.andNot(this.completedPieces);
-		interesting.andNot(this.requestedPieces);
+		// Bail out immediately if the peer has no interesting pieces
+		if (!available.intersects(this.wanted)) {
+			logger.trace("Peer has no interesting pieces");
+			return;
+		}
 
-		logger.trace("Peer {} is ready and has {} interesting piece(s).",
-			peer, interesting.cardinality());
-		logger.trace("Peer has {} piece(s), we have {} piece(s) and {} " +
-			"outstanding request(s): {}.",
+		Piece chosen = this.selectPiece(available);
+		this.setRequested(chosen.getIndex(), true);
+		this.requestedPiecesTime.put(chosen.getIndex(), new PeerAndMillis(peer, System.currentTimeMillis()));
+		logger.trace("Requesting {} from {}, we now have {} " +
+				" outstanding request(s): {}.",
 			new Object[] {
-				peer.getAvailablePieces().cardinality(),
-				this.completedPieces.cardinality(),
+				chosen,
+				peer,
 				this.requestedPieces.cardinality(),
 				this.requestedPieces
 			});
+		peer.downloadPiece(chosen);
+	}
 
-		// Bail out immediately if the peer has no interesting pieces
-		if (interesting.cardinality() == 0) {
-			logger.trace("Peer has no interesting pieces");
-			return;
+	/**
+	 * Select the next piece to request among the pieces of a peer that we
+	 * want.
+	 *
+	 * <p>
+	 * The piece with the earliest deadline comes first. Without deadlines,
+	 * among the pieces of the highest priority, the first piece is picked in
+	 * sequential mode, and one of the RAREST_PIECE_JITTER rarest pieces
+	 * otherwise.
+	 * </p>
+	 *
+	 * <p>
+	 * The peer's pieces are matched against the pieces we want without
+	 * copying either set.
+	 * </p>
+	 *
+	 * @param available The pieces available from the peer, at least one of
+	 * which we want.
+	 */
+	private Piece selectPiece(ConcurrentBitSet available) {
+		int urgent = -1;
+		long earliest = Long.MAX_VALUE;
+		for (Map.Entry<Integer, Long> deadline : this.deadlines.entrySet()) {
+			int index = deadline.getKey();
+			long when = deadline.getValue();
+			if (this.isInteresting(available, index) && (when < earliest ||
+					(when == earliest && index < urgent))) {
+				urgent = index;
+				earliest = when;
+			}
+		}
+
+		if (urgent >= 0) {
+			return this.pieces[urgent];
 		}
 
+		// Only consider the pieces of the highest priority available.
+		Priority highest = Priority.SKIP;
+		for (int i = available.nextSetBit(0, this.wanted);
+				i >= 0 && highest != Priority.HIGH;
+				i = available.nextSetBit(i+1, this.wanted)) {
+			if (this.piecePriorities[i].compareTo(highest) > 0) {
+				highest = this.piecePriorities[i];
+			}
+		}
+
+		if (this.sequential) {
+			for (int i = available.nextSetBit(0, this.wanted); i >= 0;
+					i = available.nextSetBit(i+1, this.wanted)) {
+				if (this.piecePriorities[i] == highest) {
+					return this.pieces[i];
+				}
+			}
+		}
+
+		ArrayList<Piece> choice = new ArrayList<Piece>(
+				SharedTorrent.RAREST_PIECE_JITTER);
+
 		// Extract the RAREST_PIECE_JITTER rarest pieces from the interesting
 		// pieces of this peer.
 		for (Piece piece : this.rarest) {
-			if (interesting.get(piece.getIndex())) {
+			if (this.isInteresting(available, piece.getIndex()) &&
+					this.piecePriorities[piece.getIndex()] == highest) {
 				choice.add(piece);
 				if (choice.size() == RAREST_PIECE_JITTER) {
 					break;
@@ -664,20 +1333,13 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 			}
 		}
 
-		Piece chosen = choice.get(this.random.nextInt(
+		return choice.get(this.random.nextInt(
 					Math.min(choice.size(),
 						SharedTorrent.RAREST_PIECE_JITTER)));
-		this.requestedPieces.set(chosen.getIndex());
-		this.requestedPiecesTime.put(chosen.getIndex(), new PeerAndMillis(peer, System.currentTimeMillis()));
-		logger.trace("Requesting {} from {}, we now have {} " +
-				" outstanding request(s): {}.",
-			new Object[] {
-				chosen,
-				peer,
-				this.requestedPieces.cardinality(),
-				this.requestedPieces
-			});
-		peer.downloadPiece(chosen);
+	}
+
+	private boolean isInteresting(ConcurrentBitSet available, int index) {
+		return available.get(index) && this.wanted.get(index);
 	}
 
 	/**
@@ -696,23 +1358,25 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 			Piece piece) {
 		// If we don't have this piece, tell the peer we're interested in
 		// getting it from him.
-		if (!this.completedPieces.get(piece.getIndex()) &&
-			!this.requestedPieces.get(piece.getIndex())) {
+		if (this.wanted.get(piece.getIndex())) {
 			peer.interesting();
 		}
 
+		this.sources.add(peer);
 		piece.seenAt(peer);
 		this.rarest.remove(piece);
 		this.rarest.add(piece);
 
-		logger.trace("Peer {} contributes {} piece(s) [{}/{}/{}].",
-			new Object[] {
-				peer,
-				peer.getAvailablePieces().cardinality(),
-				this.completedPieces.cardinality(),
-				this.getAvailablePieces().cardinality(),
-				this.pieces.length
-			});
+		if (logger.isTraceEnabled()) {
+			logger.trace("Peer {} contributes {} piece(s) [{}/{}/{}].",
+				new Object[] {
+					peer,
+					peer.getAvailability().cardinality(),
+					this.completedPieces.cardinality(),
+					this.getAvailablePieces().cardinality(),
+					this.pieces.length
+				});
+		}
 
 		if (!peer.isChoked() &&
 			peer.isInteresting() &&
@@ -738,17 +1402,14 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	public synchronized void handleBitfieldAvailability(SharingPeer peer,
 			BitSet availablePieces) {
 		// Determine if the peer is interesting for us or not, and notify it.
-		BitSet interesting = (BitSet)availablePieces.clone();
-		interesting.andNot(this.completedPieces);
-		interesting.andNot(this.requestedPieces);
-
-		if (interesting.cardinality() == 0) {
+		if (!peer.getAvailability().intersects(this.wanted)) {
 			peer.notInteresting();
 		} else {
 			peer.interesting();
 		}
 
 		// Record the peer has all the pieces it told us it had.
+		this.sources.add(peer);
 		for (int i = availablePieces.nextSetBit(0); i >= 0;
 				i = availablePieces.nextSetBit(i+1)) {
 			this.pieces[i].seenAt(peer);
@@ -756,14 +1417,16 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 			this.rarest.add(this.pieces[i]);
 		}
 
-		logger.trace("Peer {} contributes {} piece(s) [{}/{}/{}].",
-			new Object[] {
-				peer,
-				availablePieces.cardinality(),
-				this.completedPieces.cardinality(),
-				this.getAvailablePieces().cardinality(),
-				this.pieces.length
-			});
+		if (logger.isTraceEnabled()) {
+			logger.trace("Peer {} contributes {} piece(s) [{}/{}/{}].",
+				new Object[] {
+					peer,
+					availablePieces.cardinality(),
+					this.completedPieces.cardinality(),
+					this.getAvailablePieces().cardinality(),
+					this.pieces.length
+				});
+		}
 	}
 
 	/**
@@ -802,7 +1465,7 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 		// Regardless of validity, record the number of bytes downloaded and
 		// mark the piece as not requseted anymore
 		this.downloaded += piece.size();
-		this.requestedPieces.set(piece.getIndex(), false);
+		this.setRequested(piece.getIndex(), false);
 		this.requestedPiecesTime.remove(piece.getIndex());
 
 		if (piece.isValid()) {
@@ -833,7 +1496,8 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	 */
 	@Override
 	public synchronized void handlePeerDisconnected(SharingPeer peer) {
-		BitSet availablePieces = peer.getAvailablePieces();
+		ConcurrentBitSet availablePieces = peer.getAvailability();
+		this.sources.remove(peer);
 
 		for (int i = availablePieces.nextSetBit(0); i >= 0;
 				i = availablePieces.nextSetBit(i+1)) {
@@ -844,17 +1508,19 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 
 		Piece requested = peer.getRequestedPiece();
 		if (requested != null) {
-			this.requestedPieces.set(requested.getIndex(), false);
+			this.setRequested(requested.getIndex(), false);
 		}
 
-		logger.trace("Peer {} went away with {} piece(s) [{}/{}/{}].",
-			new Object[] {
-				peer,
-				availablePieces.cardinality(),
-				this.completedPieces.cardinality(),
-				this.getAvailablePieces().cardinality(),
-				this.pieces.length
-			});
+		if (logger.isTraceEnabled()) {
+			logger.trace("Peer {} went away with {} piece(s) [{}/{}/{}].",
+				new Object[] {
+					peer,
+					availablePieces.cardinality(),
+					this.completedPieces.cardinality(),
+					this.getAvailablePieces().cardinality(),
+					this.pieces.length
+				});
+		}
 		logger.trace("We now have {} piece(s) and {} outstanding request(s): {}",
 			new Object[] {
 				this.completedPieces.cardinality(),
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * Channel reading a file of a torrent while it is being downloaded.
+ *
+ * <p>
+ * Reads block until the piece holding the data at the current position has
+ * been downloaded and validated, and return what that piece has of the
+ * requested data. To get the data in order, the channel sets a deadline on
+ * the piece it waits for and on the next few pieces of the file, so that
+ * they are requested before any other; see
+ * {@link SharedTorrent#setDeadline}. Combined with the torrent's sequential
+ * mode, the rest of the file follows.
+ * </p>
+ *
+ * <p>
+ * Skipped pieces are never downloaded: a read of one fails with an
+ * {@link java.io.IOException} instead of blocking, and can be retried once
+ * the piece has another priority.
+ * </p>
+ *
+ * <p>
+ * Like most channels, this one is not meant to be read from by several
+ * threads at once.
+ * </p>
+ */
+public class TorrentFileChannel implements ReadableByteChannel {
+
+	/** Default number of pieces prioritized ahead of the current one. */
+	public static final int DEFAULT_READ_AHEAD = 4;
+
+	private final SharedTorrent torrent;
+	private final long start;
+	private final long end;
+	private long position;
+	private int readAhead;
+	private int prioritized;
+	private boolean open;
+
+	/**
+	 * Create a channel over a byte range of a torrent.
+	 *
+	 * @param torrent The torrent to read from.
+	 * @param offset The offset of the file in the torrent.
+	 * @param size The size of the file, in bytes.
+	 */
+	TorrentFileChannel(SharedTorrent torrent, long offset, long size) {
+		this.torrent = torrent;
+		this.start = offset;
+		this.end = offset + size;
+		this.position = offset;
+		this.readAhead = DEFAULT_READ_AHEAD;
+		this.prioritized = -1;
+		this.open = true;
+	}
+
+	/**
+	 * Set the number of pieces given a deadline ahead of the one being read.
+	 */
+	public void setReadAhead(int readAhead) {
+		if (readAhead < 0) {
+			throw new IllegalArgumentException("Invalid read-ahead!");
+		}
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * Returns the size of the file, in bytes.
+	 */
+	public long size() {
+		return this.end - this.start;
+	}
+
+	/**
+	 * Returns the current position in the file.
+	 */
+	public long position() {
+		return this.position - this.start;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!this.open) {
+			throw new ClosedChannelException();
+		}
+
+		if (this.position >= this.end) {
+			return -1;
+		}
+
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+
+		int index = (int)(this.position / this.torrent.getPieceLength());
+		this.prioritize(index);
+
+		try {
+			if (!this.torrent.waitForPiece(index)) {
+				this.close();
+				throw new ClosedChannelException();
+			}
+		} catch (InterruptedException ie) {
+			this.close();
+			Thread.currentThread().interrupt();
+			throw new ClosedByInterruptException();
+		}
+
+		Piece piece = this.torrent.getPiece(index);
+		long available = Math.min(piece.getOffset() + piece.size(), this.end) -
+			this.position;
+		int length = (int)Math.min(dst.remaining(), available);
+
+		ByteBuffer view = dst.duplicate();
+		view.limit(view.position() + length);
+		int bytes = piece.read(view, this.position - piece.getOffset());
+
+		dst.position(dst.position() + bytes);
+		this.position += bytes;
+		return bytes;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	/**
+	 * Close this channel, and clear the deadlines it set on the pieces
+	 * still missing.
+	 */
+	@Override
+	public void close() {
+		if (!this.open) {
+			return;
+		}
+
+		this.open = false;
+		if (this.prioritized >= 0) {
+			for (int i = this.prioritized; i <= this.last(this.prioritized); i++) {
+				this.torrent.clearDeadline(i);
+			}
+		}
+	}
+
+	/**
+	 * Set deadlines on the given piece and the read-ahead pieces after it,
+	 * in file order, when the channel moves to a new piece.
+	 */
+	private void prioritize(int index) {
+		if (index == this.prioritized) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		for (int i = index; i <= this.last(index); i++) {
+			this.torrent.setDeadline(i, now + i - index);
+		}
+		this.prioritized = index;
+	}
+
+	/**
+	 * Returns the index of the last piece prioritized from the given one.
+	 */
+	private int last(int index) {
+		int last = (int)((this.end - 1) / this.torrent.getPieceLength());
+		return Math.min(index + this.readAhead, last);
+	}
+}
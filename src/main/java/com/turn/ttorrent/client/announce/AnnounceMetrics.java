@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.announce;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and error counters of a tracker client.
+ *
+ * <p>
+ * All counters are updated lock-free by the threads performing the announce
+ * requests and can be read at any time, for instance to be exported to a
+ * monitoring system.
+ * </p>
+ */
+public class AnnounceMetrics {
+
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong failures = new AtomicLong(0);
+	private final AtomicLong totalLatency = new AtomicLong(0);
+	private final AtomicLong maxLatency = new AtomicLong(0);
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+
+	/**
+	 * Record the start of an announce request.
+	 *
+	 * @return The start time of the request, to be given back to
+	 * {@link #completed}.
+	 */
+	public long started() {
+		this.inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the completion of an announce request.
+	 *
+	 * @param start The start time returned by {@link #started}.
+	 * @param success Whether the request succeeded.
+	 */
+	public void completed(long start, boolean success) {
+		long latency = (System.nanoTime() - start) / 1000000;
+
+		this.inFlight.decrementAndGet();
+		this.requests.incrementAndGet();
+		if (!success) {
+			this.failures.incrementAndGet();
+		}
+
+		this.totalLatency.addAndGet(latency);
+		long max = this.maxLatency.get();
+		while (latency > max && !this.maxLatency.compareAndSet(max, latency)) {
+			max = this.maxLatency.get();
+		}
+	}
+
+	/**
+	 * Returns the number of completed announce requests.
+	 */
+	public long getRequests() {
+		return this.requests.get();
+	}
+
+	/**
+	 * Returns the number of failed announce requests.
+	 */
+	public long getFailures() {
+		return this.failures.get();
+	}
+
+	/**
+	 * Returns the number of announce requests currently in flight.
+	 */
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	/**
+	 * Returns the average latency of announce requests, in milliseconds.
+	 */
+	public long getAverageLatency() {
+		long requests = this.requests.get();
+		return requests > 0 ? this.totalLatency.get() / requests : 0;
+	}
+
+	/**
+	 * Returns the highest observed announce request latency, in milliseconds.
+	 */
+	public long getMaxLatency() {
+		return this.maxLatency.get();
+	}
+
+	public String toString() {
+		return new StringBuilder("announces=").append(this.getRequests())
+			.append(" failures=").append(this.getFailures())
+			.append(" inFlight=").append(this.getInFlight())
+			.append(" avgLatency=").append(this.getAverageLatency())
+			.append("ms maxLatency=").append(this.getMaxLatency())
+			.append("ms").toString();
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.announce;
+
+import java.util.Random;
+
+import com.turn.ttorrent.client.ClientSharedTorrent;
+import com.turn.ttorrent.common.protocol.TrackerMessage.AnnounceRequestMessage;
+
+/**
+ * Announce schedule of a single torrent.
+ *
+ * <p>
+ * Each torrent announced by a {@link MultiTorrentTrackerClient} keeps its own
+ * schedule, honoring the interval returned by the tracker in the torrent's
+ * latest announce response. A random jitter is applied to every deadline so
+ * that torrents added at the same time don't keep announcing in lockstep.
+ * </p>
+ *
+ * <p>
+ * A torrent is <em>claimed</em> by the announce engine when its deadline is
+ * reached, and stays in flight until the announce succeeds or fails; it can't
+ * be claimed again in the meantime.
+ * </p>
+ */
+public class AnnounceSchedule {
+
+	/** Maximum jitter applied to announce deadlines, as a ratio of the interval. */
+	private static final double JITTER_RATIO = 0.1;
+
+	/** Delay before retrying a failed announce, in seconds. */
+	private static final int MIN_RETRY_INTERVAL_SECONDS = 5;
+
+	private static final Random random = new Random();
+
+	private final ClientSharedTorrent torrent;
+
+	private AnnounceRequestMessage.RequestEvent event;
+	private int interval;
+	private int failures;
+	private long nextAnnounce;
+	private boolean inFlight;
+
+	/**
+	 * Create the schedule of a newly announced torrent.
+	 *
+	 * <p>
+	 * The torrent is due immediately, with a 'started' event.
+	 * </p>
+	 *
+	 * @param torrent The torrent to announce.
+	 * @param interval The initial announce interval, in seconds, used until
+	 * the tracker answers.
+	 */
+	public AnnounceSchedule(ClientSharedTorrent torrent, int interval) {
+		this.torrent = torrent;
+		this.event = AnnounceRequestMessage.RequestEvent.STARTED;
+		this.interval = interval;
+		this.failures = 0;
+		this.nextAnnounce = 0;
+		this.inFlight = false;
+	}
+
+	public ClientSharedTorrent getTorrent() {
+		return this.torrent;
+	}
+
+	/**
+	 * Returns the event to send with the next announce of this torrent.
+	 */
+	public synchronized AnnounceRequestMessage.RequestEvent getEvent() {
+		return this.event;
+	}
+
+	/**
+	 * Returns the current announce interval of this torrent, in seconds.
+	 */
+	public synchronized int getInterval() {
+		return this.interval;
+	}
+
+	/**
+	 * Returns the time of the next announce of this torrent, in milliseconds.
+	 */
+	public synchronized long getNextAnnounce() {
+		return this.nextAnnounce;
+	}
+
+	/**
+	 * Claim this torrent for announcing if its deadline is reached.
+	 *
+	 * @param now The current time, in milliseconds.
+	 * @return Whether the torrent was claimed and must be announced by the
+	 * caller.
+	 */
+	public synchronized boolean claim(long now) {
+		if (this.inFlight || now < this.nextAnnounce) {
+			return false;
+		}
+
+		this.inFlight = true;
+		return true;
+	}
+
+	/**
+	 * Record a successful announce and schedule the next one.
+	 *
+	 * @param interval The announce interval requested by the tracker, in
+	 * seconds. Ignored if not positive.
+	 * @param now The current time, in milliseconds.
+	 */
+	public synchronized void succeeded(int interval, long now) {
+		if (interval > 0) {
+			this.interval = interval;
+		}
+
+		this.event = AnnounceRequestMessage.RequestEvent.NONE;
+		this.failures = 0;
+		this.nextAnnounce = now + jitter(this.interval);
+		this.inFlight = false;
+	}
+
+	/**
+	 * Record a failed announce and schedule a retry.
+	 *
+	 * <p>
+	 * Retries back off exponentially from a few seconds up to the announce
+	 * interval. The pending event is kept so that, for instance, a failed
+	 * 'started' announce is retried as such.
+	 * </p>
+	 *
+	 * @param now The current time, in milliseconds.
+	 */
+	public synchronized void failed(long now) {
+		int retry = MIN_RETRY_INTERVAL_SECONDS << Math.min(this.failures, 10);
+		this.failures++;
+		this.nextAnnounce = now + jitter(Math.min(retry,
+			Math.max(this.interval, MIN_RETRY_INTERVAL_SECONDS)));
+		this.inFlight = false;
+	}
+
+	/**
+	 * Returns the given interval, in milliseconds, with a random jitter.
+	 */
+	private static long jitter(int interval) {
+		long ms = interval * 1000L;
+		double jitter;
+		synchronized (random) {
+			jitter = (random.nextDouble() * 2 - 1) * JITTER_RATIO;
+		}
+		return (long)(ms * (1 + jitter));
+	}
+}
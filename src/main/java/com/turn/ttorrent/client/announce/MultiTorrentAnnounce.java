@@ -18,6 +18,8 @@ package com.turn.ttorrent.client.announce;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.net.UnknownServiceException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,16 +50,27 @@ public class MultiTorrentAnnounce implements Runnable {
 		LoggerFactory.getLogger(MultiTorrentAnnounce.class);
 
 	private final Peer peer;
+	private final boolean server;
 
 	/** Announce thread and control. */
 	private Thread thread;
 	private boolean stop;
 	private boolean forceStop;
 
-	/** Announce interval. */
+	/** Frequency at which due torrents are announced, in milliseconds. */
+	private static final long ANNOUNCE_TICK_MS = 1000;
+
+	/** Latest announce interval requested by the tracker. */
 	private int interval;
 
-	private MultiTorrentTrackerClient trackerClient;
+	/**
+	 * Tracker client, created for the tracker of the first torrent added to
+	 * the announce loop.
+	 */
+	private volatile MultiTorrentTrackerClient trackerClient;
+
+	/** Listeners registered before the tracker client was created. */
+	private final List<AnnounceResponseListener> listeners;
 
 	/**
 	 * Initialize the base announce class members for the announcer.
@@ -70,8 +83,10 @@ public class MultiTorrentAnnounce implements Runnable {
 	 */
 	public MultiTorrentAnnounce(Peer peer, boolean server) throws UnknownHostException, UnknownServiceException {
 		this.peer = peer;
+		this.server = server;
 		this.thread = null;
-		this.trackerClient = this.createTrackerClient(peer, server);
+		this.trackerClient = null;
+		this.listeners = new ArrayList<AnnounceResponseListener>();
 	}
 	
 	/**
@@ -81,15 +96,21 @@ public class MultiTorrentAnnounce implements Runnable {
 	 * @throws UnknownServiceException 
 	 * @throws UnknownHostException 
 	 */
-	public void addTorrent(ClientSharedTorrent torrent) throws UnknownHostException, UnknownServiceException {
+	public synchronized void addTorrent(ClientSharedTorrent torrent) throws UnknownHostException, UnknownServiceException {
 		
 		/*
 		 * Because we're not using them currently and for ease of use, I dropped the multi-tracker support.
 		 * Having to maintain them with the latest torrent list would've been a pain. Might add it back in.
 		 */
-		if (this.trackerClient.getTrackerURI() == null) {
+		if (this.trackerClient == null) {
 			URI tracker = torrent.getAnnounceList().get(0).get(0);
-			this.trackerClient.setTrackerURI(tracker);
+			MultiTorrentTrackerClient client =
+				this.createTrackerClient(this.peer, this.server, tracker);
+			client.setTrackerURI(tracker);
+			for (AnnounceResponseListener listener : this.listeners) {
+				client.register(listener);
+			}
+			this.trackerClient = client;
 		}
 		
 		this.trackerClient.addTorrent(torrent);
@@ -103,8 +124,11 @@ public class MultiTorrentAnnounce implements Runnable {
 	 *
 	 * @param listener The listener to register on this announcer events.
 	 */
-	public void register(AnnounceResponseListener listener) {
-		this.trackerClient.register(listener);
+	public synchronized void register(AnnounceResponseListener listener) {
+		this.listeners.add(listener);
+		if (this.trackerClient != null) {
+			this.trackerClient.register(listener);
+		}
 	}
 
 	/**
@@ -114,6 +138,11 @@ public class MultiTorrentAnnounce implements Runnable {
 		this.stop = false;
 		this.forceStop = false;
 
+		// The tracker client was closed if we were stopped before.
+		if (this.trackerClient != null) {
+			this.trackerClient.start();
+		}
+
 		if (this.thread == null || !this.thread.isAlive()) {
 			this.thread = new Thread(this);
 			this.thread.setName("bt-announce(" +
@@ -124,6 +153,12 @@ public class MultiTorrentAnnounce implements Runnable {
 
 	/**
 	 * Set the announce interval.
+	 *
+	 * <p>
+	 * Each torrent is announced following the interval returned in its own
+	 * announce responses; this only records the latest interval requested by
+	 * the tracker, and stops the announce thread if it is not positive.
+	 * </p>
 	 */
 	public void setInterval(int interval) {
 		if (interval <= 0) {
@@ -154,10 +189,6 @@ public class MultiTorrentAnnounce implements Runnable {
 		if (this.thread != null && this.thread.isAlive()) {
 			this.thread.interrupt();
 
-			if (this.trackerClient != null) {
-				this.trackerClient.close();
-			}
-
 			try {
 				this.thread.join();
 			} catch (InterruptedException ie) {
@@ -165,6 +196,12 @@ public class MultiTorrentAnnounce implements Runnable {
 			}
 		}
 
+		// Close the tracker client once the final 'stopped' announce, if any,
+		// went out.
+		if (this.trackerClient != null) {
+			this.trackerClient.close();
+		}
+
 		this.thread = null;
 	}
 
@@ -172,10 +209,12 @@ public class MultiTorrentAnnounce implements Runnable {
 	 * Main announce loop.
 	 *
 	 * <p>
-	 * The announce thread starts by making the initial 'started' announce
-	 * request to register on the tracker and get the announce interval value.
-	 * Subsequent announce requests are ordinary, event-less, periodic requests
-	 * for peers.
+	 * Every ANNOUNCE_TICK_MS, the announce thread hands the torrents whose
+	 * announce deadline is reached over to the tracker client, which announces
+	 * them asynchronously. Each torrent starts with an initial 'started'
+	 * announce request to register on the tracker and get its announce
+	 * interval value; subsequent announce requests are ordinary, event-less,
+	 * periodic requests for peers following that interval.
 	 * </p>
 	 *
 	 * <p>
@@ -187,24 +226,14 @@ public class MultiTorrentAnnounce implements Runnable {
 	public void run() {
 		logger.info("Starting announce loop...");
 
-		// Set an initial announce interval to 5 seconds. This will be updated
-		// in real-time by the tracker's responses to our announce requests.
-		this.interval = 5;
-
-		AnnounceRequestMessage.RequestEvent event =
-			AnnounceRequestMessage.RequestEvent.STARTED;
-
 		while (!this.stop) {
 			try {
-				try {
-					this.trackerClient.announce(event, false);
-					event = AnnounceRequestMessage.RequestEvent.NONE;
-				} catch (AnnounceException ae) {
-					logger.warn(ae.getMessage());
+				if (this.trackerClient != null) {
+					this.trackerClient.announceDue();
 				}
-	
+
 				try {
-					Thread.sleep(this.interval * 1000);
+					Thread.sleep(ANNOUNCE_TICK_MS);
 				} catch (InterruptedException ie) {
 					// Ignore
 				}
@@ -213,12 +242,19 @@ public class MultiTorrentAnnounce implements Runnable {
 			}
 		}
 
-		logger.info("Exited announce loop.");
+		if (this.trackerClient == null) {
+			logger.info("Exited announce loop.");
+			return;
+		}
+
+		logger.info("Exited announce loop ({}).",
+			this.trackerClient.getMetrics());
 
 		if (!this.forceStop) {
 			// Send the final 'stopped' event to the tracker after a little
 			// while.
-			event = AnnounceRequestMessage.RequestEvent.STOPPED;
+			AnnounceRequestMessage.RequestEvent event =
+				AnnounceRequestMessage.RequestEvent.STOPPED;
 			try {
 				Thread.sleep(500);
 			} catch (InterruptedException ie) {
@@ -234,22 +270,25 @@ public class MultiTorrentAnnounce implements Runnable {
 	}
 
 	/**
-	 * Create a {@link TrackerClient} annoucing to the given tracker address.
+	 * Create a {@link MultiTorrentTrackerClient} annoucing to the given
+	 * tracker address.
 	 *
-	 * @param torrent The torrent the tracker client will be announcing for.
 	 * @param peer The peer the tracker client will announce on behalf of.
+	 * @param server Whether we announce on behalf of the server.
 	 * @param tracker The tracker address as a {@link URI}.
 	 * @throws UnknownHostException If the tracker address is invalid.
 	 * @throws UnknownServiceException If the tracker protocol is not supported.
 	 */
-	private MultiTorrentTrackerClient createTrackerClient(Peer peer, boolean server) throws UnknownHostException, UnknownServiceException {
-		String scheme = "http";
+	private MultiTorrentTrackerClient createTrackerClient(Peer peer,
+		boolean server, URI tracker)
+		throws UnknownHostException, UnknownServiceException {
+		String scheme = tracker.getScheme();
 
 		if ("http".equals(scheme) || "https".equals(scheme)) {
 			return new MultiTorrentHTTPTrackerClient(peer, server);
-		}/* else if ("udp".equals(scheme)) {
-			return new UDPTrackerClient(torrent, peer, tracker);
-		}*/
+		} else if ("udp".equals(scheme)) {
+			return new MultiTorrentUDPTrackerClient(peer, server);
+		}
 
 		throw new UnknownServiceException(
 			"Unsupported announce scheme: " + scheme + "!");
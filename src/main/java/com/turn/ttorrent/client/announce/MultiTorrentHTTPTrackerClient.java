@@ -17,6 +17,7 @@ package com.turn.ttorrent.client.announce;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
@@ -24,9 +25,18 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.io.input.AutoCloseInputStream;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,23 +44,59 @@ import org.slf4j.LoggerFactory;
 import com.turn.ttorrent.client.ClientSharedTorrent;
 import com.turn.ttorrent.common.Peer;
 import com.turn.ttorrent.common.protocol.TrackerMessage.AnnounceRequestMessage;
+import com.turn.ttorrent.common.protocol.TrackerMessage.AnnounceResponseMessage;
+import com.turn.ttorrent.common.protocol.TrackerMessage.ErrorMessage;
 import com.turn.ttorrent.common.protocol.TrackerMessage.MessageValidationException;
 import com.turn.ttorrent.common.protocol.http.HTTPAnnounceRequestMessage;
+import com.turn.ttorrent.common.protocol.http.HTTPAnnounceResponseMessage;
+import com.turn.ttorrent.common.protocol.http.HTTPBatchAnnounceRequestMessage;
+import com.turn.ttorrent.common.protocol.http.HTTPBatchAnnounceResponseMessage;
 import com.turn.ttorrent.common.protocol.http.HTTPTrackerMessage;
 
 /**
- * Announcer for HTTP trackers.
+ * Multi-torrent announcer for HTTP trackers.
  *
- * @author mpetazzoni
- * @see <a href="http://wiki.theory.org/BitTorrentSpecification#Tracker_Request_Parameters">BitTorrent tracker request specification</a>
+ * <p>
+ * Announce requests are performed concurrently by a bounded pool of
+ * announce threads, each torrent following its own {@link AnnounceSchedule}.
+ * The pool size bounds the number of simultaneous connections to the
+ * tracker. Responses are always read to the end and their streams closed so
+ * that the underlying connections go back to the JVM's HTTP keep-alive cache
+ * (whose per-host size is controlled by the <em>http.maxConnections</em>
+ * system property) and are reused by subsequent announces.
+ * </p>
+ *
+ * <p>
+ * When the tracker supports it, the announces of all the torrents due at the
+ * same time are sent as a single batched announce request, carrying up to
+ * {@link #MAX_BATCH_SIZE} torrents (see
+ * {@link HTTPBatchAnnounceRequestMessage}). If the tracker does not serve
+ * batched announces, the client falls back to one announce per torrent for
+ * the rest of its life.
+ * </p>
  */
 public class MultiTorrentHTTPTrackerClient extends MultiTorrentTrackerClient {
 	
-	protected boolean server;
+	/** Maximum number of concurrent announce requests. */
+	public static final int MAX_CONCURRENT_ANNOUNCES = 8;
+
+	/** Maximum number of torrents announced in a single batched request. */
+	public static final int MAX_BATCH_SIZE = 256;
+
+	/** Tracker connection timeout, in milliseconds. */
+	private static final int CONNECT_TIMEOUT_MS = 10000;
+
+	/** Tracker response timeout, in milliseconds. */
+	private static final int READ_TIMEOUT_MS = 30000;
 
 	protected static final Logger logger =
 		LoggerFactory.getLogger(MultiTorrentHTTPTrackerClient.class);
 
+	private volatile ExecutorService executor;
+
+	/** Whether the tracker is still believed to serve batched announces. */
+	private volatile boolean batchSupported;
+
 	/**
 	 * Create a new HTTP announcer for the given torrent.
 	 *
@@ -58,17 +104,20 @@ public class MultiTorrentHTTPTrackerClient extends MultiTorrentTrackerClient {
 	 * @param peer Our own peer specification.
 	 */
 	protected MultiTorrentHTTPTrackerClient(Peer peer, boolean server) {
-		super(peer);
-		this.server = server;
+		super(peer, server);
+		this.executor = this.createExecutor();
+		this.batchSupported = true;
 	}
 
 	/**
-	 * Build, send and process a tracker announce request.
+	 * Build, send and process a tracker announce request for all torrents.
 	 *
 	 * <p>
-	 * This function first builds an announce request for the specified event
-	 * with all the required parameters. Then, the request is made to the
-	 * tracker and the response analyzed.
+	 * The announces of all torrents are sent in batches, or concurrently one
+	 * by one if the tracker does not support batched announces, and this
+	 * method returns once they all completed. This is used for event announces
+	 * ('completed', 'stopped') that must be sent outside of the regular
+	 * schedule.
 	 * </p>
 	 *
 	 * <p>
@@ -79,43 +128,325 @@ public class MultiTorrentHTTPTrackerClient extends MultiTorrentTrackerClient {
 	 * @param event The announce event type (can be AnnounceEvent.NONE for
 	 * periodic updates).
 	 * @param inhibitEvents Prevent event listeners from being notified.
+	 * @throws AnnounceException If at least one of the announces failed.
+	 */
+	@Override
+	public void announce(final AnnounceRequestMessage.RequestEvent event,
+		final boolean inhibitEvents) throws AnnounceException {
+		if (this.batchSupported) {
+			List<ClientSharedTorrent> torrents =
+				new ArrayList<ClientSharedTorrent>(this.torrents.values());
+			List<AnnounceRequestMessage.RequestEvent> events =
+				new ArrayList<AnnounceRequestMessage.RequestEvent>();
+			for (int i=0; i < torrents.size(); i++) {
+				events.add(event);
+			}
+
+			if (this.announceBatches(torrents, events, inhibitEvents) != null) {
+				return;
+			}
+		}
+
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+		try {
+			for (final ClientSharedTorrent torrent : this.torrents.values()) {
+				results.add(this.executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws AnnounceException {
+						return announce(torrent, event, inhibitEvents);
+					}
+				}));
+			}
+		} catch (RejectedExecutionException ree) {
+			throw new AnnounceException("Announce engine is shut down!", ree);
+		}
+
+		AnnounceException failure = null;
+		for (Future<Integer> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException ee) {
+				if (failure == null) {
+					failure = ee.getCause() instanceof AnnounceException
+						? (AnnounceException)ee.getCause()
+						: new AnnounceException(ee.getCause().getMessage(),
+							ee.getCause());
+				}
+			} catch (InterruptedException ie) {
+				throw new AnnounceException("Interrupted while announcing!", ie);
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Dispatch the announces of all due torrents to the announce threads.
+	 *
+	 * <p>
+	 * This method does not wait for the announces to complete. Each announce
+	 * reschedules its torrent according to the interval returned by the
+	 * tracker, or to a backed-off retry delay in case of failure.
+	 * </p>
 	 */
 	@Override
-	public void announce(AnnounceRequestMessage.RequestEvent event,
+	public void announceDue() {
+		List<AnnounceSchedule> due =
+			this.claimDueTorrents(System.currentTimeMillis());
+		if (due.isEmpty()) {
+			return;
+		}
+
+		if (this.batchSupported) {
+			for (int i=0; i < due.size(); i += MAX_BATCH_SIZE) {
+				final List<AnnounceSchedule> batch = new ArrayList<AnnounceSchedule>(
+					due.subList(i, Math.min(i + MAX_BATCH_SIZE, due.size())));
+				try {
+					this.executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							announceBatch(batch);
+						}
+					});
+				} catch (RejectedExecutionException ree) {
+					for (AnnounceSchedule schedule : batch) {
+						schedule.failed(System.currentTimeMillis());
+					}
+				}
+			}
+			return;
+		}
+
+		this.dispatch(due);
+	}
+
+	/**
+	 * Dispatch the individual announces of the given claimed torrents to the
+	 * announce threads.
+	 */
+	private void dispatch(List<AnnounceSchedule> schedules) {
+		for (final AnnounceSchedule schedule : schedules) {
+			try {
+				this.executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						announce(schedule);
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				schedule.failed(System.currentTimeMillis());
+			}
+		}
+	}
+
+	/**
+	 * Announce a batch of claimed torrents and report the outcome of each
+	 * announce to its schedule.
+	 *
+	 * <p>
+	 * If the tracker turns out not to support batched announces, the torrents
+	 * are dispatched for individual announces instead.
+	 * </p>
+	 */
+	private void announceBatch(List<AnnounceSchedule> batch) {
+		List<ClientSharedTorrent> torrents =
+			new ArrayList<ClientSharedTorrent>(batch.size());
+		List<AnnounceRequestMessage.RequestEvent> events =
+			new ArrayList<AnnounceRequestMessage.RequestEvent>(batch.size());
+		for (AnnounceSchedule schedule : batch) {
+			torrents.add(schedule.getTorrent());
+			events.add(schedule.getEvent());
+		}
+
+		Map<String, Integer> intervals;
+		try {
+			intervals = this.announceBatches(torrents, events, false);
+		} catch (AnnounceException ae) {
+			logger.warn("Batched announce of {} torrent(s) failed: {}",
+				batch.size(), ae.getMessage());
+			for (AnnounceSchedule schedule : batch) {
+				schedule.failed(System.currentTimeMillis());
+			}
+			return;
+		} catch (RuntimeException re) {
+			logger.error("Batched announce of {} torrent(s) failed!",
+				batch.size(), re);
+			for (AnnounceSchedule schedule : batch) {
+				schedule.failed(System.currentTimeMillis());
+			}
+			return;
+		}
+
+		if (intervals == null) {
+			this.dispatch(batch);
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		for (AnnounceSchedule schedule : batch) {
+			Integer interval = intervals.get(
+				schedule.getTorrent().getHexInfoHash());
+			if (interval != null) {
+				schedule.succeeded(interval, now);
+			} else {
+				schedule.failed(now);
+			}
+		}
+	}
+
+	/**
+	 * Announce the given torrents in batches of at most
+	 * {@link #MAX_BATCH_SIZE} torrents.
+	 *
+	 * @param torrents The torrents to announce.
+	 * @param events The announce event of each torrent.
+	 * @param inhibitEvents Prevent event listeners from being notified.
+	 * @return The announce interval returned by the tracker for each
+	 * successfully announced torrent, keyed by hexadecimal info hash, or
+	 * <em>null</em> if the tracker does not support batched announces.
+	 * @throws AnnounceException If a batched announce request failed as a
+	 * whole.
+	 */
+	private Map<String, Integer> announceBatches(
+		List<ClientSharedTorrent> torrents,
+		List<AnnounceRequestMessage.RequestEvent> events,
 		boolean inhibitEvents) throws AnnounceException {
+		Map<String, Integer> intervals = new HashMap<String, Integer>();
 
-		URLConnection conn = null;
+		for (int i=0; i < torrents.size(); i += MAX_BATCH_SIZE) {
+			int end = Math.min(i + MAX_BATCH_SIZE, torrents.size());
+			if (!this.announceBatch(torrents.subList(i, end),
+					events.subList(i, end), inhibitEvents, intervals)) {
+				return null;
+			}
+		}
+
+		return intervals;
+	}
+
+	/**
+	 * Build, send and process a single batched announce request.
+	 *
+	 * <p>
+	 * Each successful entry of the batched response is handled exactly like
+	 * the response to an individual announce. Announces refused by the
+	 * tracker are logged and left out of the returned intervals.
+	 * </p>
+	 *
+	 * @param torrents The torrents to announce.
+	 * @param events The announce event of each torrent.
+	 * @param inhibitEvents Prevent event listeners from being notified.
+	 * @param intervals The map to record the announce interval of each
+	 * successfully announced torrent in.
+	 * @return <em>false</em> if the tracker does not support batched
+	 * announces.
+	 */
+	private boolean announceBatch(List<ClientSharedTorrent> torrents,
+		List<AnnounceRequestMessage.RequestEvent> events,
+		boolean inhibitEvents, Map<String, Integer> intervals)
+		throws AnnounceException {
+		if (torrents.isEmpty()) {
+			return true;
+		}
+
+		long start = this.metrics.started();
+		boolean success = false;
+
+		HttpURLConnection conn = null;
 
 		try {
+			URL target = HTTPBatchAnnounceRequestMessage.buildBatchAnnounceURL(
+				this.tracker.toURL());
+			if (target == null) {
+				this.disableBatching("no batched announce URL");
+				return false;
+			}
+
+			Map<String, ClientSharedTorrent> announced =
+				new HashMap<String, ClientSharedTorrent>();
 			List<HTTPAnnounceRequestMessage> requests =
-				this.buildAnnounceRequests(event);
+				new ArrayList<HTTPAnnounceRequestMessage>(torrents.size());
+			for (int i=0; i < torrents.size(); i++) {
+				HTTPAnnounceRequestMessage request = this.buildAnnounceRequest(
+					torrents.get(i), events.get(i));
+				requests.add(request);
+				announced.put(request.getHexInfoHash(), torrents.get(i));
+			}
 
-			// Send announce request (HTTP GET)
-			for (HTTPAnnounceRequestMessage request : requests) {
-				URL target = request.buildAnnounceURL(this.tracker.toURL());
-				conn = target.openConnection();
-	
-				InputStream is = new AutoCloseInputStream(conn.getInputStream());
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			HTTPBatchAnnounceRequestMessage batch =
+				HTTPBatchAnnounceRequestMessage.craft(requests);
+
+			// Send the batched announce request (HTTP POST)
+			conn = (HttpURLConnection)target.openConnection();
+			conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+			conn.setReadTimeout(READ_TIMEOUT_MS);
+			conn.setRequestMethod("POST");
+			conn.setRequestProperty("Content-Type",
+				"application/octet-stream");
+			conn.setDoOutput(true);
+
+			ByteBuffer data = batch.getData();
+			conn.setFixedLengthStreamingMode(data.remaining());
+			OutputStream os = conn.getOutputStream();
+			try {
+				os.write(data.array(), data.arrayOffset() + data.position(),
+					data.remaining());
+			} finally {
+				os.close();
+			}
+
+			if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND ||
+				conn.getResponseCode() == HttpURLConnection.HTTP_BAD_METHOD) {
+				this.disableBatching("tracker answered " +
+					conn.getResponseCode());
+				return false;
+			}
+
+			InputStream is = conn.getInputStream();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try {
 				baos.write(is);
-	
-				// Parse and handle the response
-				HTTPTrackerMessage message =
-					HTTPTrackerMessage.parse(ByteBuffer.wrap(baos.toByteArray()));
-				this.handleTrackerAnnounceResponse(message, inhibitEvents, request.getHexInfoHash());
-				
-				if (this.server) {
-					// This is the server - we don't want to make it keep announcing if it doesn't need to
-					ClientSharedTorrent torrent = request.getTorrent();
-					if (torrent.getAnnounces() == 0) {
-						// This torrent has been announced as much as it needs to - remove it
-						this.torrents.remove(request.getTorrent().getId());
-					} else {
-						// Decrease the announce count 
-						this.torrents.get(request.getTorrent().getId()).setAnnounces(torrent.getAnnounces() - 1);
-					}
+			} finally {
+				is.close();
+			}
+
+			// Parse and handle the response
+			HTTPTrackerMessage message =
+				HTTPTrackerMessage.parse(ByteBuffer.wrap(baos.toByteArray()));
+			if (message instanceof ErrorMessage) {
+				throw new AnnounceException(
+					((ErrorMessage)message).getReason());
+			} else if (!(message instanceof HTTPBatchAnnounceResponseMessage)) {
+				throw new AnnounceException("Unexpected tracker message type " +
+					message.getType().name() + "!");
+			}
+
+			HTTPBatchAnnounceResponseMessage response =
+				(HTTPBatchAnnounceResponseMessage)message;
+			for (HTTPAnnounceResponseMessage entry : response.getResponses()) {
+				ClientSharedTorrent torrent =
+					announced.get(entry.getHexInfoHash());
+				if (torrent == null) {
+					continue;
 				}
+
+				this.handleTrackerAnnounceResponse(entry, inhibitEvents,
+					entry.getHexInfoHash());
+				this.announced(torrent);
+				intervals.put(entry.getHexInfoHash(), entry.getInterval());
 			}
+
+			for (Map.Entry<String, String> failure :
+					response.getFailures().entrySet()) {
+				logger.warn("Announce of {} refused by tracker: {}",
+					announced.get(failure.getKey()), failure.getValue());
+			}
+
+			success = true;
+			return true;
 		} catch (MalformedURLException mue) {
 			throw new AnnounceException("Invalid announce URL (" +
 				mue.getMessage() + ")", mue);
@@ -125,22 +456,150 @@ public class MultiTorrentHTTPTrackerClient extends MultiTorrentTrackerClient {
 		} catch (IOException ioe) {
 			throw new AnnounceException(ioe.getMessage(), ioe);
 		} finally {
-			if (conn != null && conn instanceof HttpURLConnection) {
-				InputStream err = ((HttpURLConnection) conn).getErrorStream();
-				if (err != null) {
-					try {
-						err.close();
-					} catch (IOException ioe) {
-						logger.warn("Problem ensuring error stream closed!", ioe);
-					}
+			this.metrics.completed(start, success);
+			this.drainErrorStream(conn);
+		}
+	}
+
+	/**
+	 * Stop sending batched announces to the tracker.
+	 */
+	private void disableBatching(String reason) {
+		if (this.batchSupported) {
+			logger.info("Tracker {} does not support batched announces ({}), " +
+				"announcing torrents individually.", this.tracker, reason);
+			this.batchSupported = false;
+		}
+	}
+
+	/**
+	 * Announce a claimed torrent and report the outcome to its schedule.
+	 */
+	private void announce(AnnounceSchedule schedule) {
+		try {
+			int interval = this.announce(schedule.getTorrent(),
+				schedule.getEvent(), false);
+			schedule.succeeded(interval, System.currentTimeMillis());
+		} catch (AnnounceException ae) {
+			logger.warn("Announce of {} failed: {}",
+				schedule.getTorrent(), ae.getMessage());
+			schedule.failed(System.currentTimeMillis());
+		} catch (RuntimeException re) {
+			logger.error("Announce of {} failed!", schedule.getTorrent(), re);
+			schedule.failed(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Build, send and process the announce request of a single torrent.
+	 *
+	 * @param torrent The torrent to announce.
+	 * @param event The announce event type.
+	 * @param inhibitEvents Prevent event listeners from being notified.
+	 * @return The announce interval returned by the tracker, in seconds.
+	 */
+	private int announce(ClientSharedTorrent torrent,
+		AnnounceRequestMessage.RequestEvent event, boolean inhibitEvents)
+		throws AnnounceException {
+		long start = this.metrics.started();
+		boolean success = false;
+
+		URLConnection conn = null;
+
+		try {
+			HTTPAnnounceRequestMessage request =
+				this.buildAnnounceRequest(torrent, event);
+
+			// Send announce request (HTTP GET)
+			URL target = request.buildAnnounceURL(this.tracker.toURL());
+			conn = target.openConnection();
+			conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+			conn.setReadTimeout(READ_TIMEOUT_MS);
+
+			InputStream is = conn.getInputStream();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try {
+				baos.write(is);
+			} finally {
+				is.close();
+			}
+
+			// Parse and handle the response
+			HTTPTrackerMessage message =
+				HTTPTrackerMessage.parse(ByteBuffer.wrap(baos.toByteArray()));
+			this.handleTrackerAnnounceResponse(message, inhibitEvents,
+				request.getHexInfoHash());
+			this.announced(torrent);
+
+			success = true;
+			return ((AnnounceResponseMessage)message).getInterval();
+		} catch (MalformedURLException mue) {
+			throw new AnnounceException("Invalid announce URL (" +
+				mue.getMessage() + ")", mue);
+		} catch (MessageValidationException mve) {
+			throw new AnnounceException("Tracker message violates expected " +
+				"protocol (" + mve.getMessage() + ")", mve);
+		} catch (IOException ioe) {
+			throw new AnnounceException(ioe.getMessage(), ioe);
+		} finally {
+			this.metrics.completed(start, success);
+			this.drainErrorStream(conn);
+		}
+	}
+
+	/**
+	 * Drain and close the error stream of a tracker connection, if any, so the
+	 * connection can be kept alive.
+	 */
+	private void drainErrorStream(URLConnection conn) {
+		if (conn != null && conn instanceof HttpURLConnection) {
+			InputStream err = ((HttpURLConnection) conn).getErrorStream();
+			if (err != null) {
+				try {
+					new ByteArrayOutputStream().write(err);
+					err.close();
+				} catch (IOException ioe) {
+					logger.warn("Problem ensuring error stream closed!", ioe);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Replace the announce threads if the engine was closed.
+	 */
+	@Override
+	protected synchronized void start() {
+		if (this.executor.isShutdown()) {
+			this.executor = this.createExecutor();
+		}
+	}
+
+	/**
+	 * Close the announce engine.
+	 *
+	 * <p>
+	 * Announces already dispatched are allowed to complete, but no new
+	 * announce can be made afterwards, until the engine is started again.
+	 * </p>
+	 */
+	@Override
+	protected synchronized void close() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Create the pool of announce threads.
+	 */
+	private ExecutorService createExecutor() {
+		return Executors.newFixedThreadPool(MAX_CONCURRENT_ANNOUNCES,
+			new AnnounceThreadFactory(this.peer.getShortHexPeerId()));
+	}
+
 	/**
 	 * Build the announce request tracker message.
 	 *
+	 * @param torrent The torrent to announce.
 	 * @param event The announce event (can be <tt>NONE</tt> or <em>null</em>)
 	 * @return Returns an instance of a {@link HTTPAnnounceRequestMessage}
 	 * that can be used to generate the fully qualified announce URL, with
@@ -150,36 +609,43 @@ public class MultiTorrentHTTPTrackerClient extends MultiTorrentTrackerClient {
 	 * @throws MessageValidationException
 	 * 
 	 */
-	private synchronized List<HTTPAnnounceRequestMessage> buildAnnounceRequests(
-		AnnounceRequestMessage.RequestEvent event)
+	private HTTPAnnounceRequestMessage buildAnnounceRequest(
+		ClientSharedTorrent torrent, AnnounceRequestMessage.RequestEvent event)
 		throws UnsupportedEncodingException, IOException,
 			MessageValidationException {
-		// Build announce request messages
-		List<HTTPAnnounceRequestMessage> messages = new ArrayList<HTTPAnnounceRequestMessage>();
-		for (ClientSharedTorrent torrent : this.torrents.values()) {
-			messages.add(
-					HTTPAnnounceRequestMessage.craft(
-					torrent,
-					torrent.getInfoHash(),
-					this.peer.getPeerId().array(),
-					this.peer.getPort(),
-					torrent.getUploaded(),
-					torrent.getDownloaded(),
-					torrent.getLeft(),
-					true, false, event,
-					this.peer.getIp(),
-					AnnounceRequestMessage.DEFAULT_NUM_WANT)
-					);
-		}
-		
-		return messages;
-	}
-
-	public boolean isServer() {
-		return server;
-	}
-
-	public void setServer(boolean server) {
-		this.server = server;
+		return HTTPAnnounceRequestMessage.craft(
+			torrent,
+			torrent.getInfoHash(),
+			this.peer.getPeerId().array(),
+			this.peer.getPort(),
+			torrent.getUploaded(),
+			torrent.getDownloaded(),
+			torrent.getLeft(),
+			true, false, event,
+			this.peer.getIp(),
+			AnnounceRequestMessage.DEFAULT_NUM_WANT);
+	}
+
+	/**
+	 * Thread factory naming announce threads after our peer ID, and making
+	 * them daemon threads so a pending announce never holds the JVM.
+	 */
+	private static class AnnounceThreadFactory implements ThreadFactory {
+
+		private final String peerId;
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		AnnounceThreadFactory(String peerId) {
+			this.peerId = peerId;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setName("bt-announce(" + this.peerId + ")-" +
+				this.count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
 	}
 }
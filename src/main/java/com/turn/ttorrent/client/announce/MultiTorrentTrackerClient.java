@@ -16,11 +16,12 @@
 package com.turn.ttorrent.client.announce;
 
 import java.net.URI;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.turn.ttorrent.client.ClientSharedTorrent;
 import com.turn.ttorrent.common.Peer;
@@ -34,14 +35,26 @@ public abstract class MultiTorrentTrackerClient {
 	/** The set of listeners to announce request answers. */
 	private final Set<AnnounceResponseListener> listeners;
 
+	/** Initial announce interval of new torrents, in seconds. */
+	protected static final int DEFAULT_ANNOUNCE_INTERVAL_SECONDS = 5;
+
 	protected final Map<String, ClientSharedTorrent> torrents;
+
+	/** Announce schedule of each torrent, keyed like {@link #torrents}. */
+	protected final Map<String, AnnounceSchedule> schedules;
+
+	protected final AnnounceMetrics metrics;
 	protected final Peer peer;
 	protected URI tracker;
+	protected boolean server;
 
-	public MultiTorrentTrackerClient(Peer peer) {
+	public MultiTorrentTrackerClient(Peer peer, boolean server) {
 		this.listeners = new HashSet<AnnounceResponseListener>();
 		this.peer = peer;
-		this.torrents = new HashMap<String, ClientSharedTorrent>();
+		this.server = server;
+		this.torrents = new ConcurrentHashMap<String, ClientSharedTorrent>();
+		this.schedules = new ConcurrentHashMap<String, AnnounceSchedule>();
+		this.metrics = new AnnounceMetrics();
 	}
 
 	/**
@@ -85,6 +98,53 @@ public abstract class MultiTorrentTrackerClient {
 	public abstract void announce(AnnounceRequestMessage.RequestEvent event,
 		boolean inhibitEvent) throws AnnounceException;
 
+	/**
+	 * Announce all the torrents whose announce deadline is reached.
+	 *
+	 * <p>
+	 * This is called periodically by the announce thread. Implementations
+	 * should not block until the announces complete, and must report the
+	 * outcome of each announce to the torrent's {@link AnnounceSchedule}.
+	 * </p>
+	 */
+	public abstract void announceDue();
+
+	/**
+	 * Returns the latency and error counters of this tracker client.
+	 */
+	public AnnounceMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Claim all the torrents whose announce deadline is reached.
+	 *
+	 * @param now The current time, in milliseconds.
+	 * @return The schedules of the claimed torrents. The caller is responsible
+	 * for reporting the outcome of their announce.
+	 */
+	protected List<AnnounceSchedule> claimDueTorrents(long now) {
+		List<AnnounceSchedule> due = new ArrayList<AnnounceSchedule>();
+		for (AnnounceSchedule schedule : this.schedules.values()) {
+			if (schedule.claim(now)) {
+				due.add(schedule);
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Get the announce engine ready to announce again.
+	 *
+	 * <p>
+	 * This method is called by {@link MultiTorrentAnnounce#start()}, so that
+	 * an announcer stopped, and closed, can be started again.
+	 * </p>
+	 */
+	protected void start() {
+		// Do nothing by default, but can be overloaded.
+	}
+
 	/**
 	 * Close any opened announce connection.
 	 *
@@ -99,6 +159,45 @@ public abstract class MultiTorrentTrackerClient {
 	
 	protected synchronized void addTorrent(ClientSharedTorrent torrent) {
 		this.torrents.put(torrent.getId(), torrent);
+		this.schedules.put(torrent.getId(), new AnnounceSchedule(torrent,
+			DEFAULT_ANNOUNCE_INTERVAL_SECONDS));
+	}
+
+	/**
+	 * Stop announcing the given torrent.
+	 */
+	protected synchronized void removeTorrent(ClientSharedTorrent torrent) {
+		this.torrents.remove(torrent.getId());
+		this.schedules.remove(torrent.getId());
+	}
+
+	/**
+	 * Account for a successful announce of the given torrent.
+	 *
+	 * <p>
+	 * The server only announces each torrent a limited number of times, after
+	 * which the torrent is removed from the announce loop.
+	 * </p>
+	 */
+	protected void announced(ClientSharedTorrent torrent) {
+		if (this.server) {
+			// This is the server - we don't want to make it keep announcing if it doesn't need to
+			if (torrent.getAnnounces() == 0) {
+				// This torrent has been announced as much as it needs to - remove it
+				this.removeTorrent(torrent);
+			} else {
+				// Decrease the announce count 
+				torrent.setAnnounces(torrent.getAnnounces() - 1);
+			}
+		}
+	}
+
+	public boolean isServer() {
+		return server;
+	}
+
+	public void setServer(boolean server) {
+		this.server = server;
 	}
 
 	/**
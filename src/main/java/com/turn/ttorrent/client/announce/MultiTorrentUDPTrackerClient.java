@@ -0,0 +1,764 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.announce;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.turn.ttorrent.client.ClientSharedTorrent;
+import com.turn.ttorrent.common.Peer;
+import com.turn.ttorrent.common.protocol.TrackerMessage;
+import com.turn.ttorrent.common.protocol.TrackerMessage.*;
+import com.turn.ttorrent.common.protocol.udp.*;
+
+/**
+ * Multi-torrent announcer for UDP trackers.
+ *
+ * <p>
+ * All the announces of all torrents go through a single non-blocking
+ * {@link DatagramChannel}, served by one I/O thread. Each announce is a
+ * transaction identified by its transaction ID, so any number of announces
+ * can be in flight at the same time and responses are matched to their
+ * announce regardless of the order in which they arrive.
+ * </p>
+ *
+ * <p>
+ * The connection ID obtained from the tracker is shared by all announces
+ * while it is valid. When it expires, a single connect request is made on
+ * behalf of all the announces waiting for a new connection ID.
+ * </p>
+ *
+ * <p>
+ * Lost requests are retransmitted following the 15*2^n seconds scheme of the
+ * protocol, but only up to {@link #UDP_MAX_TRIES} times: a torrent whose
+ * announce failed is anyway retried later by its {@link AnnounceSchedule}.
+ * </p>
+ *
+ * @see <a href="http://www.bittorrent.org/beps/bep_0015.html">BitTorrent UDP-tracker protocol specification</a>
+ */
+public class MultiTorrentUDPTrackerClient extends MultiTorrentTrackerClient
+	implements Runnable {
+
+	protected static final Logger logger =
+		LoggerFactory.getLogger(MultiTorrentUDPTrackerClient.class);
+
+	/**
+	 * Back-off timeout uses 15 * 2 ^ n formula.
+	 */
+	private static final int UDP_BASE_TIMEOUT_SECONDS = 15;
+
+	/**
+	 * Maximum number of transmissions of a request.
+	 */
+	private static final int UDP_MAX_TRIES = 3;
+
+	/**
+	 * For STOPPED announce event, we don't want to be bothered with waiting
+	 * that long. We'll try once and bail-out early.
+	 */
+	private static final int UDP_MAX_TRIES_ON_STOPPED = 1;
+
+	/**
+	 * Maximum UDP packet size expected, in bytes.
+	 *
+	 * The biggest packet in the exchange is the announce response, which in 20
+	 * bytes + 6 bytes per peer. Common numWant is 50, so 20 + 6 * 50 = 320.
+	 * With headroom, we'll ask for 512 bytes.
+	 */
+	private static final int UDP_PACKET_LENGTH = 512;
+
+	/**
+	 * Validity of a connection ID, in milliseconds. The protocol allows one
+	 * minute; we stop using it a bit earlier to account for the round trip.
+	 */
+	private static final long CONNECTION_ID_VALIDITY_MS = 50 * 1000;
+
+	/** Maximum time the I/O thread blocks without checking for timeouts. */
+	private static final long SELECT_TIMEOUT_MS = 1000;
+
+	private final Random random;
+
+	/** Transactions submitted by other threads, started by the I/O thread. */
+	private final Queue<Transaction> submitted;
+
+	/*
+	 * The following fields are only accessed by the I/O thread.
+	 */
+	private final Map<Integer, Transaction> pending;
+	private final List<Transaction> awaitingConnection;
+	private Transaction connecting;
+	private long connectionId;
+	private long connectionExpiration;
+
+	private InetSocketAddress address;
+	private DatagramChannel channel;
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean stop;
+
+	/**
+	 * Create a new UDP announcer.
+	 *
+	 * @param peer Our own peer specification.
+	 * @param server Whether we're announcing on behalf of the server.
+	 */
+	protected MultiTorrentUDPTrackerClient(Peer peer, boolean server)
+		throws UnknownHostException {
+		super(peer, server);
+
+		/**
+		 * The UDP announce request protocol only supports IPv4
+		 *
+		 * @see http://bittorrent.org/beps/bep_0015.html#ipv6
+		 */
+		if (! (InetAddress.getByName(peer.getIp()) instanceof Inet4Address)) {
+			throw new UnsupportedAddressTypeException();
+		}
+
+		this.random = new Random();
+		this.submitted = new ConcurrentLinkedQueue<Transaction>();
+		this.pending = new HashMap<Integer, Transaction>();
+		this.awaitingConnection = new ArrayList<Transaction>();
+		this.connecting = null;
+		this.connectionExpiration = 0;
+		this.stop = false;
+	}
+
+	/**
+	 * Build, send and process a tracker announce request for all torrents.
+	 *
+	 * <p>
+	 * The announces of all torrents are sent at once, and this method returns
+	 * once they all completed or timed out.
+	 * </p>
+	 *
+	 * @param event The announce event type (can be AnnounceEvent.NONE for
+	 * periodic updates).
+	 * @param inhibitEvents Prevent event listeners from being notified.
+	 * @throws AnnounceException If at least one of the announces failed.
+	 */
+	@Override
+	public void announce(AnnounceRequestMessage.RequestEvent event,
+		boolean inhibitEvents) throws AnnounceException {
+		List<ClientSharedTorrent> torrents =
+			new ArrayList<ClientSharedTorrent>(this.torrents.values());
+		CountDownLatch done = new CountDownLatch(torrents.size());
+
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		for (ClientSharedTorrent torrent : torrents) {
+			transactions.add(new Transaction(torrent, event, inhibitEvents,
+				null, done));
+		}
+
+		if (transactions.isEmpty()) {
+			return;
+		}
+		this.submit(transactions);
+
+		try {
+			// Wait for the full retransmission sequence of a connect and an
+			// announce request, plus some slack.
+			if (!done.await(2 * this.getMaxTimeout(event) + SELECT_TIMEOUT_MS,
+					TimeUnit.MILLISECONDS)) {
+				throw new AnnounceException("Timeout while announcing" +
+					this.formatAnnounceEvent(event) + " to tracker!");
+			}
+		} catch (InterruptedException ie) {
+			throw new AnnounceException("Interrupted while announcing!", ie);
+		}
+
+		for (Transaction transaction : transactions) {
+			if (transaction.failure != null) {
+				throw transaction.failure;
+			}
+		}
+	}
+
+	/**
+	 * Send the announces of all due torrents.
+	 *
+	 * <p>
+	 * This method does not wait for the announces to complete. Each announce
+	 * reschedules its torrent according to the interval returned by the
+	 * tracker, or to a backed-off retry delay in case of failure.
+	 * </p>
+	 */
+	@Override
+	public void announceDue() {
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		for (AnnounceSchedule schedule :
+				this.claimDueTorrents(System.currentTimeMillis())) {
+			transactions.add(new Transaction(schedule.getTorrent(),
+				schedule.getEvent(), false, schedule, null));
+		}
+
+		if (!transactions.isEmpty()) {
+			this.submit(transactions);
+		}
+	}
+
+	/**
+	 * Allow announces again after the engine was closed; the next submitted
+	 * announce opens a new channel.
+	 */
+	@Override
+	protected synchronized void start() {
+		this.stop = false;
+	}
+
+	/**
+	 * Close the announce engine.
+	 *
+	 * <p>
+	 * Announces still in flight are failed, and no new announce can be made
+	 * until the engine is started again.
+	 * </p>
+	 */
+	@Override
+	protected void close() {
+		Thread thread;
+		synchronized (this) {
+			this.stop = true;
+			if (this.selector != null) {
+				this.selector.wakeup();
+			}
+			thread = this.thread;
+		}
+
+		// The I/O thread shuts the channel down on its way out, which needs
+		// the lock; don't hold it while waiting.
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException ie) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * Hand the given transactions over to the I/O thread, starting it if
+	 * needed.
+	 *
+	 * <p>
+	 * Submitting is serialized with the shutdown of the I/O thread, so that
+	 * transactions are either picked up by a running thread, failed by its
+	 * shutdown, or start a new one.
+	 * </p>
+	 */
+	private synchronized void submit(List<Transaction> transactions) {
+		try {
+			this.open();
+		} catch (IOException ioe) {
+			AnnounceException failure = new AnnounceException(
+				"Could not open UDP announce channel: " + ioe.getMessage(),
+				ioe);
+			for (Transaction transaction : transactions) {
+				this.complete(transaction, failure, 0);
+			}
+			return;
+		}
+
+		this.submitted.addAll(transactions);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Open the announce channel and start the I/O thread, if not done yet or
+	 * if the previous one shut down.
+	 */
+	private synchronized void open() throws IOException {
+		if (this.stop) {
+			throw new IOException("Announce engine is shut down!");
+		}
+
+		if (this.thread != null) {
+			return;
+		}
+
+		this.address = new InetSocketAddress(this.tracker.getHost(),
+			this.tracker.getPort());
+		if (this.address.isUnresolved()) {
+			throw new UnknownHostException(this.tracker.getHost());
+		}
+
+		DatagramChannel channel = DatagramChannel.open();
+		Selector selector = null;
+		try {
+			channel.configureBlocking(false);
+			channel.connect(this.address);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException ioe) {
+			if (selector != null) {
+				selector.close();
+			}
+			channel.close();
+			throw ioe;
+		}
+
+		this.channel = channel;
+		this.selector = selector;
+
+		// Connection IDs are bound to our address and port: a new channel
+		// needs a new one.
+		this.connectionExpiration = 0;
+
+		this.thread = new Thread(this);
+		this.thread.setName("bt-announce-udp(" +
+			this.peer.getShortHexPeerId() + ")");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Main I/O loop.
+	 *
+	 * <p>
+	 * Reads all the available responses, starts newly submitted announces and
+	 * retransmits or fails the requests that timed out. Errors tied to a
+	 * single packet or announce don't stop the loop; if the channel itself
+	 * fails, the thread shuts down and the next submitted announce starts a
+	 * new one.
+	 * </p>
+	 */
+	@Override
+	public void run() {
+		ByteBuffer packet = ByteBuffer.allocate(UDP_PACKET_LENGTH);
+
+		try {
+			while (!this.stop) {
+				this.selector.select(SELECT_TIMEOUT_MS);
+				this.selector.selectedKeys().clear();
+
+				this.receive(packet);
+
+				Transaction transaction;
+				while ((transaction = this.submitted.poll()) != null) {
+					try {
+						this.start(transaction);
+					} catch (RuntimeException re) {
+						logger.error("Could not start announce of {}!",
+							transaction.torrent, re);
+						this.pending.remove(transaction.transactionId);
+						this.awaitingConnection.remove(transaction);
+						this.complete(transaction, new AnnounceException(
+							"Could not start announce: " + re.getMessage(),
+							re), 0);
+					}
+				}
+
+				this.checkTimeouts(System.currentTimeMillis());
+			}
+		} catch (IOException ioe) {
+			logger.error("UDP announce channel failed: {}", ioe.getMessage());
+		} catch (RuntimeException re) {
+			logger.error("UDP announce loop failed!", re);
+		} finally {
+			this.shutdown();
+		}
+	}
+
+	/**
+	 * Read and handle all the available response packets.
+	 */
+	private void receive(ByteBuffer packet) throws IOException {
+		while (true) {
+			packet.clear();
+			try {
+				if (this.channel.receive(packet) == null) {
+					return;
+				}
+			} catch (PortUnreachableException pue) {
+				// ICMP error for one of our requests: the tracker is not
+				// listening (yet). The requests in flight will time out and be
+				// retransmitted.
+				logger.debug("UDP tracker {} unreachable.", this.address);
+				return;
+			}
+
+			packet.flip();
+			try {
+				this.handle(packet);
+			} catch (RuntimeException re) {
+				logger.error("Error while handling UDP tracker response!", re);
+			}
+		}
+	}
+
+	/**
+	 * Close the announce channel and fail all the outstanding announces,
+	 * including those submitted but not started yet.
+	 *
+	 * <p>
+	 * The engine is left ready to be opened again by the next submitted
+	 * announce, unless it was closed.
+	 * </p>
+	 */
+	private void shutdown() {
+		AnnounceException failure =
+			new AnnounceException("UDP announce channel closed!");
+
+		List<Transaction> outstanding =
+			new ArrayList<Transaction>(this.pending.values());
+		outstanding.addAll(this.awaitingConnection);
+		this.pending.clear();
+		this.awaitingConnection.clear();
+		this.connecting = null;
+
+		synchronized (this) {
+			try {
+				this.selector.close();
+				this.channel.close();
+			} catch (IOException ioe) {
+				logger.warn("Error while closing UDP announce channel: {}",
+					ioe.getMessage());
+			}
+
+			this.selector = null;
+			this.channel = null;
+			this.thread = null;
+
+			Transaction transaction;
+			while ((transaction = this.submitted.poll()) != null) {
+				outstanding.add(transaction);
+			}
+		}
+
+		for (Transaction t : outstanding) {
+			if (t.torrent != null) {
+				this.complete(t, failure, 0);
+			}
+		}
+	}
+
+	/**
+	 * Start a newly submitted announce, first obtaining a connection ID if
+	 * the current one expired.
+	 */
+	private void start(Transaction transaction) throws IOException {
+		logger.debug("Announcing{} {} to tracker...",
+			this.formatAnnounceEvent(transaction.event), transaction.torrent);
+
+		if (System.currentTimeMillis() < this.connectionExpiration) {
+			this.sendAnnounce(transaction);
+			return;
+		}
+
+		this.awaitingConnection.add(transaction);
+		if (this.connecting == null) {
+			this.connecting = new Transaction(null, null, false, null, null);
+			this.sendConnect();
+		}
+	}
+
+	private void sendConnect() throws IOException {
+		this.send(this.connecting,
+			UDPConnectRequestMessage.craft(this.connecting.transactionId)
+				.getData());
+	}
+
+	private void sendAnnounce(Transaction transaction) throws IOException {
+		ClientSharedTorrent torrent = transaction.torrent;
+		this.send(transaction, UDPAnnounceRequestMessage.craft(
+			this.connectionId,
+			transaction.transactionId,
+			torrent.getInfoHash(),
+			this.peer.getPeerId().array(),
+			torrent.getDownloaded(),
+			torrent.getUploaded(),
+			torrent.getLeft(),
+			transaction.event,
+			this.peer.getAddress(),
+			0,
+			TrackerMessage.AnnounceRequestMessage.DEFAULT_NUM_WANT,
+			this.peer.getPort()).getData());
+	}
+
+	/**
+	 * Send a request for the given transaction.
+	 *
+	 * <p>
+	 * Each transmission uses a new transaction ID and pushes the transaction's
+	 * deadline further following the back-off scheme. A packet that can't be
+	 * sent right away is simply considered lost.
+	 * </p>
+	 */
+	private void send(Transaction transaction, ByteBuffer data)
+		throws IOException {
+		long timeout = UDP_BASE_TIMEOUT_SECONDS * 1000L *
+			(1 << transaction.attempts);
+		transaction.attempts++;
+		transaction.deadline = System.currentTimeMillis() + timeout;
+		this.pending.put(transaction.transactionId, transaction);
+
+		try {
+			if (this.channel.write(data) == 0) {
+				logger.debug("UDP announce channel busy, packet dropped.");
+			}
+		} catch (PortUnreachableException pue) {
+			logger.debug("UDP tracker {} unreachable, packet dropped.",
+				this.address);
+		}
+	}
+
+	/**
+	 * Handle a response packet from the tracker.
+	 */
+	private void handle(ByteBuffer packet) throws IOException {
+		UDPTrackerMessage.UDPTrackerResponseMessage message;
+		try {
+			message = UDPTrackerMessage.UDPTrackerResponseMessage.parse(packet);
+		} catch (MessageValidationException mve) {
+			logger.debug("Ignoring invalid UDP tracker response: {}",
+				mve.getMessage());
+			return;
+		}
+
+		Transaction transaction =
+			this.pending.remove(message.getTransactionId());
+		if (transaction == null) {
+			// Late response to a retransmitted or failed request.
+			return;
+		}
+
+		if (transaction == this.connecting) {
+			this.handleConnectResponse(message);
+			return;
+		}
+
+		if (message instanceof ErrorMessage) {
+			this.complete(transaction, new AnnounceException(
+				((ErrorMessage)message).getReason()), 0);
+			return;
+		}
+
+		if (! (message instanceof AnnounceResponseMessage)) {
+			this.complete(transaction, new AnnounceException(
+				"Unexpected tracker message type " +
+				message.getType().name() + "!"), 0);
+			return;
+		}
+
+		try {
+			this.handleTrackerAnnounceResponse(message,
+				transaction.inhibitEvents,
+				transaction.torrent.getHexInfoHash());
+			this.announced(transaction.torrent);
+			this.complete(transaction, null,
+				((AnnounceResponseMessage)message).getInterval());
+		} catch (AnnounceException ae) {
+			this.complete(transaction, ae, 0);
+		} catch (RuntimeException re) {
+			logger.error("Error while handling announce response of {}!",
+				transaction.torrent, re);
+			this.complete(transaction, new AnnounceException(
+				"Error while handling announce response: " + re.getMessage(),
+				re), 0);
+		}
+	}
+
+	/**
+	 * Record the new connection ID and send the announces that were waiting
+	 * for it.
+	 */
+	private void handleConnectResponse(TrackerMessage message)
+		throws IOException {
+		this.connecting = null;
+
+		if (! (message instanceof UDPConnectResponseMessage)) {
+			String reason = message instanceof ErrorMessage
+				? ((ErrorMessage)message).getReason()
+				: "Unexpected tracker message type " +
+					message.getType().name() + "!";
+			this.failAwaitingConnection(new AnnounceException(reason));
+			return;
+		}
+
+		this.connectionId =
+			((UDPConnectResponseMessage)message).getConnectionId();
+		this.connectionExpiration =
+			System.currentTimeMillis() + CONNECTION_ID_VALIDITY_MS;
+
+		List<Transaction> ready =
+			new ArrayList<Transaction>(this.awaitingConnection);
+		this.awaitingConnection.clear();
+		for (Transaction transaction : ready) {
+			this.sendAnnounce(transaction);
+		}
+	}
+
+	/**
+	 * Retransmit or fail the requests whose deadline passed.
+	 */
+	private void checkTimeouts(long now) throws IOException {
+		List<Transaction> expired = new ArrayList<Transaction>();
+		for (Transaction transaction : this.pending.values()) {
+			if (transaction.deadline <= now) {
+				expired.add(transaction);
+			}
+		}
+
+		for (Transaction transaction : expired) {
+			this.pending.remove(transaction.transactionId);
+
+			if (transaction == this.connecting) {
+				if (transaction.attempts >= UDP_MAX_TRIES) {
+					this.connecting = null;
+					this.failAwaitingConnection(new AnnounceException(
+						"Timeout while connecting to tracker!"));
+				} else {
+					transaction.transactionId = this.random.nextInt();
+					this.sendConnect();
+				}
+				continue;
+			}
+
+			if (transaction.attempts >= this.getMaxTries(transaction.event)) {
+				this.complete(transaction, new AnnounceException(
+					"Timeout while announcing" +
+					this.formatAnnounceEvent(transaction.event) +
+					" to tracker!"), 0);
+				continue;
+			}
+
+			transaction.transactionId = this.random.nextInt();
+			if (now < this.connectionExpiration) {
+				this.sendAnnounce(transaction);
+			} else {
+				// The connection ID expired in the meantime, go through a new
+				// connect exchange before retransmitting.
+				this.awaitingConnection.add(transaction);
+				if (this.connecting == null) {
+					this.connecting = new Transaction(null, null, false, null,
+						null);
+					this.sendConnect();
+				}
+			}
+		}
+	}
+
+	private void failAwaitingConnection(AnnounceException failure) {
+		List<Transaction> failed =
+			new ArrayList<Transaction>(this.awaitingConnection);
+		this.awaitingConnection.clear();
+		for (Transaction transaction : failed) {
+			this.complete(transaction, failure, 0);
+		}
+	}
+
+	/**
+	 * Report the outcome of an announce to its schedule and waiting caller,
+	 * if any.
+	 *
+	 * @param transaction The completed announce.
+	 * @param failure The reason of the failure, or <em>null</em> if the
+	 * announce succeeded.
+	 * @param interval The announce interval returned by the tracker.
+	 */
+	private void complete(Transaction transaction, AnnounceException failure,
+		int interval) {
+		this.metrics.completed(transaction.start, failure == null);
+
+		if (failure != null) {
+			logger.warn("Announce of {} failed: {}", transaction.torrent,
+				failure.getMessage());
+		}
+
+		if (transaction.schedule != null) {
+			if (failure == null) {
+				transaction.schedule.succeeded(interval,
+					System.currentTimeMillis());
+			} else {
+				transaction.schedule.failed(System.currentTimeMillis());
+			}
+		}
+
+		transaction.failure = failure;
+		if (transaction.done != null) {
+			transaction.done.countDown();
+		}
+	}
+
+	private int getMaxTries(AnnounceRequestMessage.RequestEvent event) {
+		return AnnounceRequestMessage.RequestEvent.STOPPED.equals(event)
+			? UDP_MAX_TRIES_ON_STOPPED
+			: UDP_MAX_TRIES;
+	}
+
+	/**
+	 * Returns the time it takes for a request to go through all its
+	 * retransmissions, in milliseconds.
+	 */
+	private long getMaxTimeout(AnnounceRequestMessage.RequestEvent event) {
+		return UDP_BASE_TIMEOUT_SECONDS * 1000L *
+			((1 << this.getMaxTries(event)) - 1);
+	}
+
+	/**
+	 * An announce, or connect, exchange with the tracker.
+	 */
+	private class Transaction {
+
+		private final ClientSharedTorrent torrent;
+		private final AnnounceRequestMessage.RequestEvent event;
+		private final boolean inhibitEvents;
+		private final AnnounceSchedule schedule;
+		private final CountDownLatch done;
+		private final long start;
+
+		private int transactionId;
+		private int attempts;
+		private long deadline;
+		private volatile AnnounceException failure;
+
+		Transaction(ClientSharedTorrent torrent,
+			AnnounceRequestMessage.RequestEvent event, boolean inhibitEvents,
+			AnnounceSchedule schedule, CountDownLatch done) {
+			this.torrent = torrent;
+			this.event = event;
+			this.inhibitEvents = inhibitEvents;
+			this.schedule = schedule;
+			this.done = done;
+			// Connect exchanges are not announces, keep them out of the
+			// announce metrics.
+			this.start = torrent != null ? metrics.started() : 0;
+			this.transactionId = random.nextInt();
+			this.attempts = 0;
+		}
+	}
+}
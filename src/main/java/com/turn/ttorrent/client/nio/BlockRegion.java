@@ -0,0 +1,72 @@
+package com.turn.ttorrent.client.nio;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+import com.turn.ttorrent.client.Piece;
+
+/**
+ * A block of a piece, to be sent straight from the torrent storage.
+ *
+ * <p>
+ * The block is transferred to the socket channel with
+ * {@link Piece#transferTo}, without being read into a buffer first. Since
+ * the socket channel is non-blocking, a block may take several transfers to
+ * be sent: the region keeps track of the progress made.
+ * </p>
+ */
+public class BlockRegion {
+
+	private final Piece piece;
+	private final long end;
+	private long position;
+
+	/**
+	 * Create a region covering a block of a valid piece.
+	 *
+	 * @param piece The piece the block belongs to.
+	 * @param offset Offset of the block inside the piece.
+	 * @param length Length of the block, in bytes.
+	 */
+	public BlockRegion(Piece piece, int offset, int length) {
+		this.piece = piece;
+		this.position = offset;
+		this.end = (long)offset + length;
+	}
+
+	/**
+	 * Returns the number of bytes left to transfer.
+	 */
+	public long remaining() {
+		return this.end - this.position;
+	}
+
+	public boolean hasRemaining() {
+		return this.position < this.end;
+	}
+
+	/**
+	 * Transfer as much of the remaining bytes as the target takes.
+	 *
+	 * @param target The channel to write the block to.
+	 * @return The number of bytes transferred.
+	 * @throws IOException If the block can't be read from the storage, is
+	 * out of its piece's bounds, or can't be written to the target channel.
+	 */
+	long transferTo(WritableByteChannel target) throws IOException {
+		long bytes;
+		try {
+			bytes = this.piece.transferTo(this.position, this.remaining(),
+				target);
+		} catch (IllegalStateException ise) {
+			throw new IOException("Block of piece #" + this.piece.getIndex() +
+				" no longer available!", ise);
+		} catch (IllegalArgumentException iae) {
+			throw new IOException("Invalid block of piece #" +
+				this.piece.getIndex() + "!", iae);
+		}
+
+		this.position += bytes;
+		return bytes;
+	}
+}
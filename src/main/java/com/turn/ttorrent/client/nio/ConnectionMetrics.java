@@ -0,0 +1,134 @@
+package com.turn.ttorrent.client.nio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection counters of a {@link PeerCommunicationManager}.
+ *
+ * <p>
+ * Counters are updated lock-free, mostly by the selector thread, and can be
+ * read at any time, for instance to be exported to a monitoring system.
+ * </p>
+ */
+public class ConnectionMetrics {
+
+	private final AtomicLong accepted = new AtomicLong(0);
+	private final AtomicLong refused = new AtomicLong(0);
+	private final AtomicLong connected = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong closed = new AtomicLong(0);
+	private final AtomicLong evicted = new AtomicLong(0);
+	private final AtomicInteger open = new AtomicInteger(0);
+	private final AtomicInteger connecting = new AtomicInteger(0);
+
+	void accepted() {
+		this.accepted.incrementAndGet();
+	}
+
+	/**
+	 * Record a connection turned down by the client.
+	 */
+	public void refused() {
+		this.refused.incrementAndGet();
+	}
+
+	void connected() {
+		this.connected.incrementAndGet();
+	}
+
+	void failed() {
+		this.failed.incrementAndGet();
+	}
+
+	void closed() {
+		this.closed.incrementAndGet();
+	}
+
+	/**
+	 * Record the eviction of a peer connection by the client.
+	 */
+	public void evicted() {
+		this.evicted.incrementAndGet();
+	}
+
+	void setOpen(int open, int connecting) {
+		this.open.set(open);
+		this.connecting.set(connecting);
+	}
+
+	/**
+	 * Returns the number of accepted inbound connections.
+	 */
+	public long getAccepted() {
+		return this.accepted.get();
+	}
+
+	/**
+	 * Returns the number of inbound connections refused because the
+	 * connection limit was reached, plus the connections turned down by the
+	 * client: duplicates of an existing peer connection, or new peers of a
+	 * torrent full of peers worth keeping.
+	 */
+	public long getRefused() {
+		return this.refused.get();
+	}
+
+	/**
+	 * Returns the number of established outbound connections.
+	 */
+	public long getConnected() {
+		return this.connected.get();
+	}
+
+	/**
+	 * Returns the number of failed, or timed out, outbound connections.
+	 */
+	public long getFailed() {
+		return this.failed.get();
+	}
+
+	/**
+	 * Returns the number of connections closed by the remote peer or after
+	 * an I/O error.
+	 */
+	public long getClosed() {
+		return this.closed.get();
+	}
+
+	/**
+	 * Returns the number of connections closed to make room for, or get rid
+	 * of, peers.
+	 */
+	public long getEvicted() {
+		return this.evicted.get();
+	}
+
+	/**
+	 * Returns the number of open connections, as of the last selection,
+	 * including the outbound connections being established.
+	 */
+	public int getOpen() {
+		return this.open.get();
+	}
+
+	/**
+	 * Returns the number of outbound connections being established, as of the
+	 * last selection.
+	 */
+	public int getConnecting() {
+		return this.connecting.get();
+	}
+
+	public String toString() {
+		return new StringBuilder("open=").append(this.getOpen())
+			.append(" connecting=").append(this.getConnecting())
+			.append(" accepted=").append(this.getAccepted())
+			.append(" refused=").append(this.getRefused())
+			.append(" connected=").append(this.getConnected())
+			.append(" failed=").append(this.getFailed())
+			.append(" closed=").append(this.getClosed())
+			.append(" evicted=").append(this.getEvicted())
+			.toString();
+	}
+}
@@ -0,0 +1,277 @@
+package com.turn.ttorrent.client.nio;
+
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.common.PeerKey;
+
+
+/**
+ * Book-keeping of the outbound connection attempts of a
+ * {@link PeerCommunicationManager}.
+ *
+ * <p>
+ * Connections are attempted asynchronously by the communication manager's
+ * selector thread. This class bounds the number of attempts in flight at any
+ * time, queueing the others, and gives each attempt a deadline after which it
+ * is considered failed.
+ * </p>
+ *
+ * <p>
+ * Hosts whose connection attempts fail are backed off exponentially: after
+ * <em>n</em> consecutive failures, no new attempt is accepted for
+ * <code>BASE_BACKOFF * 2^(n-1)</code> milliseconds, up to
+ * <code>MAX_BACKOFF</code>. After <code>BLACKLIST_FAILURES</code>
+ * consecutive failures, the host is blacklisted for
+ * <code>BLACKLIST_DURATION</code> milliseconds. A successful connection
+ * clears the host's record.
+ * </p>
+ *
+ * <p>
+ * Records are forgotten once stale, so that hosts never tried again don't
+ * pile up: a blacklisting ends with its duration, and a streak of failures
+ * is over when the host wasn't retried within <code>MAX_BACKOFF</code>
+ * milliseconds of being allowed again.
+ * </p>
+ */
+class OutboundConnector {
+
+	/** Default maximum number of connection attempts in flight. */
+	static final int DEFAULT_MAX_PENDING = 32;
+
+	/** Default connection attempt timeout, in milliseconds. */
+	static final long DEFAULT_TIMEOUT = 10 * 1000;
+
+	private static final long BASE_BACKOFF = 5 * 1000;
+	private static final long MAX_BACKOFF = 5 * 60 * 1000;
+	private static final int BLACKLIST_FAILURES = 8;
+	private static final long BLACKLIST_DURATION = 60 * 60 * 1000;
+
+	private int maxPending;
+	private long timeout;
+	private long nextPrune;
+
+	private final LinkedList<Attempt> waiting;
+	private final Set<Attempt> pending;
+	private final Set<SharingPeer> attempted;
+	private final Map<PeerKey, Failures> failures;
+
+	OutboundConnector() {
+		this.maxPending = DEFAULT_MAX_PENDING;
+		this.timeout = DEFAULT_TIMEOUT;
+		this.waiting = new LinkedList<Attempt>();
+		this.pending = new HashSet<Attempt>();
+		this.attempted = new HashSet<SharingPeer>();
+		this.failures = new HashMap<PeerKey, Failures>();
+		this.nextPrune = 0;
+	}
+
+	synchronized void setMaxPending(int maxPending) {
+		if (maxPending < 1) {
+			throw new IllegalArgumentException(
+				"At least one connection attempt must be allowed!");
+		}
+		this.maxPending = maxPending;
+	}
+
+	synchronized void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Queue a connection attempt to a peer.
+	 *
+	 * @param peer The peer to connect to.
+	 * @param now The current time, in milliseconds.
+	 * @return <em>true</em> if the attempt was queued, <em>false</em> if the
+	 * peer's host is backed off or blacklisted, or if an attempt to this peer
+	 * is already queued or in flight.
+	 */
+	synchronized boolean offer(SharingPeer peer, long now) {
+		PeerKey host = peer.getAddressKey();
+		Failures record = this.failures.get(host);
+		if (record != null) {
+			if (now < record.retryAt) {
+				return false;
+			}
+
+			// Blacklisting expired, or failures long ago, start afresh.
+			if (record.isStale(now)) {
+				this.failures.remove(host);
+			}
+		}
+
+		// Peers are unique per torrent and host in the torrents' registries.
+		if (!this.attempted.add(peer)) {
+			return false;
+		}
+
+		this.waiting.add(new Attempt(peer, host));
+		return true;
+	}
+
+	/**
+	 * Take the next queued attempt, if the number of attempts in flight
+	 * allows for one more.
+	 *
+	 * <p>
+	 * The returned attempt counts as in flight until it either completes or
+	 * fails.
+	 * </p>
+	 *
+	 * @param now The current time, in milliseconds.
+	 * @return The attempt to start, or <em>null</em>.
+	 */
+	synchronized Attempt poll(long now) {
+		if (this.waiting.isEmpty() || this.pending.size() >= this.maxPending) {
+			return null;
+		}
+
+		Attempt attempt = this.waiting.removeFirst();
+		attempt.deadline = now + this.timeout;
+		this.pending.add(attempt);
+		return attempt;
+	}
+
+	/**
+	 * Record the successful completion of an attempt.
+	 */
+	synchronized void succeeded(Attempt attempt) {
+		this.done(attempt);
+		this.failures.remove(attempt.host);
+	}
+
+	/**
+	 * Record the failure of an attempt, and back off its host.
+	 *
+	 * @param now The current time, in milliseconds.
+	 */
+	synchronized void failed(Attempt attempt, long now) {
+		this.done(attempt);
+
+		Failures record = this.failures.get(attempt.host);
+		if (record == null) {
+			record = new Failures();
+			this.failures.put(attempt.host, record);
+		}
+
+		record.count++;
+		record.retryAt = now + (record.count >= BLACKLIST_FAILURES
+			? BLACKLIST_DURATION
+			: Math.min(MAX_BACKOFF, BASE_BACKOFF << (record.count - 1)));
+	}
+
+	/**
+	 * Returns the number of attempts in flight.
+	 */
+	synchronized int inFlight() {
+		return this.pending.size();
+	}
+
+	/**
+	 * Returns the attempts in flight past their deadline.
+	 *
+	 * <p>
+	 * This is called on every pass of the selector loop, and also takes the
+	 * occasion to forget the stale failure records.
+	 * </p>
+	 *
+	 * @param now The current time, in milliseconds.
+	 */
+	synchronized List<Attempt> expired(long now) {
+		if (now >= this.nextPrune) {
+			this.prune(now);
+			this.nextPrune = now + BASE_BACKOFF;
+		}
+
+		List<Attempt> expired = new ArrayList<Attempt>();
+		for (Attempt attempt : this.pending) {
+			if (attempt.deadline <= now) {
+				expired.add(attempt);
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Returns the earliest deadline of the attempts in flight, or
+	 * <em>0</em> if there are none.
+	 */
+	synchronized long nextDeadline() {
+		long next = 0;
+		for (Attempt attempt : this.pending) {
+			if (next == 0 || attempt.deadline < next) {
+				next = attempt.deadline;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Tells whether a host is currently blacklisted.
+	 *
+	 * @param host The address key of the host.
+	 * @param now The current time, in milliseconds.
+	 */
+	synchronized boolean isBlacklisted(PeerKey host, long now) {
+		Failures record = this.failures.get(host);
+		return record != null && record.count >= BLACKLIST_FAILURES &&
+			now < record.retryAt;
+	}
+
+	/**
+	 * Forget the failure records that went stale.
+	 */
+	private void prune(long now) {
+		Iterator<Failures> it = this.failures.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isStale(now)) {
+				it.remove();
+			}
+		}
+	}
+
+	private void done(Attempt attempt) {
+		this.pending.remove(attempt);
+		this.attempted.remove(attempt.peer);
+	}
+
+	/**
+	 * An outbound connection attempt.
+	 */
+	static class Attempt {
+
+		final SharingPeer peer;
+		final PeerKey host;
+		SocketChannel channel;
+		long deadline;
+
+		private Attempt(SharingPeer peer, PeerKey host) {
+			this.peer = peer;
+			this.host = host;
+			this.channel = null;
+			this.deadline = 0;
+		}
+	}
+
+	private static class Failures {
+		int count;
+		long retryAt;
+
+		/**
+		 * Tells whether this record no longer affects new attempts.
+		 */
+		boolean isStale(long now) {
+			return now >= this.retryAt +
+				(this.count >= BLACKLIST_FAILURES ? 0 : MAX_BACKOFF);
+		}
+	}
+}
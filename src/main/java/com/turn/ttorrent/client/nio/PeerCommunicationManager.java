@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
@@ -12,6 +13,7 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -22,7 +24,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.turn.ttorrent.client.CommunicationListener;
-import com.turn.ttorrent.common.Torrent;
+import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.common.protocol.PeerMessage;
 
 public class PeerCommunicationManager extends Thread {
 	
@@ -32,6 +35,26 @@ public class PeerCommunicationManager extends Thread {
 	public static final int PORT_RANGE_START = 6881;
 	public static final int PORT_RANGE_END = 6889;
 	
+	/** Default maximum number of open peer connections, in and out. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 500;
+	
+	/**
+	 * How messages are delimited on the wire.
+	 */
+	public enum Framing {
+		/**
+		 * Every message, handshake included, preceded by a 2-byte length:
+		 * only understood by other ttorrent multi-torrent clients.
+		 */
+		TWO_BYTE_LENGTH,
+		
+		/**
+		 * The standard BitTorrent wire format: the raw handshake, then
+		 * messages delimited by their own 4-byte length prefix.
+		 */
+		BITTORRENT
+	}
+	
 	Selector selector; // Main selector that handles all requests
 	ServerSocketChannel serverSocketChannel;
 	InetSocketAddress address;
@@ -39,13 +62,30 @@ public class PeerCommunicationManager extends Thread {
 	List<CommunicationListener> listeners = new ArrayList<CommunicationListener>();
 	ByteBuffer stagingBuffer = ByteBuffer.allocate(8192);
 	ReadWorker readWorker;
-	WriteWorker writeWorker;
-	private Map pendingData = new HashMap();
+	private final Framing framing;
+	private Map<SocketChannel, List<PendingMessage>> pendingData =
+		new HashMap<SocketChannel, List<PendingMessage>>();
+	private volatile boolean stop = false;
+	private final OutboundConnector connector = new OutboundConnector();
+	private final ConnectionMetrics metrics = new ConnectionMetrics();
+	private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
 	
 	public PeerCommunicationManager(InetAddress address)
 			throws IOException {
-		this.readWorker = new ReadWorker();
-		this.writeWorker = new WriteWorker();
+		this(address, Framing.TWO_BYTE_LENGTH);
+	}
+	
+	/**
+	 * Create a communication manager listening on the first available port
+	 * of the range, on the given address.
+	 *
+	 * @param address The address to bind to.
+	 * @param framing How messages are delimited on the wire, in and out.
+	 */
+	public PeerCommunicationManager(InetAddress address, Framing framing)
+			throws IOException {
+		this.framing = framing;
+		this.readWorker = new ReadWorker(framing);
 		
 		// Bind to the first available port in the range
 		// [PORT_RANGE_START; PORT_RANGE_END].
@@ -69,6 +109,10 @@ public class PeerCommunicationManager extends Thread {
 				logger.warn("Could not bind to {} !", tryAddress);
 			}
 		}
+
+		if (this.address == null) {
+			throw new IOException("No available port for the BitTorrent client!");
+		}
 	}
 	
 	public static String socketRepr(Socket s) {
@@ -77,7 +121,7 @@ public class PeerCommunicationManager extends Thread {
 	}
 	
 	public void run() {
-			while(true) {
+			while(!this.stop) {
 				try {
 					// Look for pending requests to change a key or socket
 					synchronized (this.changeRequests) {
@@ -89,6 +133,9 @@ public class PeerCommunicationManager extends Thread {
 								SelectionKey key = change.socket.keyFor(this.selector);
 								if (key == null) {
 									logger.warn("Selection key is null and was probably cancelled. This is a bad socket - tell the client to stop using it", key);
+									synchronized (this.pendingData) {
+										this.pendingData.remove(change.socket);
+									}
 									this.fireBadSocketListeners(change.socket);
 									break;
 								}
@@ -97,6 +144,10 @@ public class PeerCommunicationManager extends Thread {
 								} catch (CancelledKeyException e) {
 									logger.warn("Selection key is reporting as cancelled. This is a bad socket - tell the client to stop using it", e);
 									key.cancel();
+									synchronized (this.pendingData) {
+										this.pendingData.remove(change.socket);
+									}
+									this.readWorker.forget(key);
 									this.fireBadSocketListeners(change.socket);
 								}
 								break;
@@ -109,7 +160,18 @@ public class PeerCommunicationManager extends Thread {
 						this.changeRequests.clear();
 					}
 					
-					this.selector.select(); // Blocking select call
+					// Start queued connection attempts, within our budget
+					this.startConnections();
+					
+					// Blocking select call, waking up in time to expire
+					// connection attempts
+					long deadline = this.connector.nextDeadline();
+					if (deadline > 0) {
+						this.selector.select(Math.max(1,
+							deadline - System.currentTimeMillis()));
+					} else {
+						this.selector.select();
+					}
 					
 					// We found keys ready for selection
 					Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
@@ -133,75 +195,104 @@ public class PeerCommunicationManager extends Thread {
 						}
 					}
 					
+					this.expireConnections();
+					this.metrics.setOpen(this.connectionCount(),
+						this.connector.inFlight());
+					
 				} catch (IOException e) {
 					logger.error("The NIO selector threw an exception", e);
 				} catch (Throwable t) {
 					logger.error("An unexpected error was thrown in the main PeerCommunicationManager thread", t);
 				}
 			}
+			
+			this.closeAll();
+	}
+	
+	/**
+	 * Stop this communication manager.
+	 *
+	 * <p>
+	 * The selector thread stops at its next wake up, closing all the
+	 * connections it manages and the listening socket.
+	 * </p>
+	 */
+	public void close() {
+		this.stop = true;
+		this.selector.wakeup();
+	}
+	
+	private void closeAll() {
+		for (SelectionKey key : this.selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException ioe) {
+				logger.debug("Could not close channel {}", key.channel(), ioe);
+			}
+		}
+		
+		try {
+			this.selector.close();
+			this.serverSocketChannel.close();
+		} catch (IOException ioe) {
+			logger.warn("Could not close the NIO selector", ioe);
+		}
+		
+		synchronized (this.pendingData) {
+			this.pendingData.clear();
+		}
+		this.readWorker.stop();
 	}
 
 	private void write(SelectionKey key) throws IOException {
 		SocketChannel socketChannel = (SocketChannel) key.channel();
+		boolean failed = false;
 		
 		synchronized (this.pendingData) {
-			List queue= (List) this.pendingData.get(socketChannel);
+			List<PendingMessage> queue = this.pendingData.get(socketChannel);
+			if (queue == null) {
+				// Disconnected meanwhile
+				key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
 			
 			while (!queue.isEmpty()) {
-				byte[] data = (byte[]) queue.get(0);
-				short len = (short) data.length;
-				
-				// Create 2-bytes to prepend the message with indicating the length
-				byte[] lengthBytes = new TwoByteMessageLength().lengthToBytes(len);
+				PendingMessage message = queue.get(0);
 				
-				// Allocate a byte buffer of the message length, plus the length of the length prefix
-				ByteBuffer buf = ByteBuffer.allocate(len+lengthBytes.length);
-				buf.position(0);
-				buf.put(lengthBytes);
-				buf.put(data);
-				buf.flip();
-				
-				if (buf != null) {
-					while(buf.remaining() > 0) {
-						int bytesWritten;
-						
-						try {
-							synchronized (socketChannel) {
-								bytesWritten = socketChannel.write(buf);
-							}
-							
-							if (bytesWritten == -1) {
-								System.out.println("No bytes written");
-							}
-							
-							logger.trace("Writing {} bytes to socket channel {}", bytesWritten, socketChannel);
-						} catch (IOException e) {
-							logger.error("There was a problem writing to socket {}", socketChannel, e);
-							try {
-								socketChannel.close(); // Try closing the socket
-							} catch (IOException e2) {
-								logger.error("Couldn't close channel {}.", socketChannel, e); // Not much we can do here
-							}
-							queue.remove(0); // Remove this data from the queue
-							key.cancel(); // Cancel the key's registration with our selector
+				try {
+					synchronized (socketChannel) {
+						if (!message.writeTo(socketChannel)) {
+							// The socket's send buffer is full: wait for it
+							// to be writable again to carry on where we
+							// stopped.
 							return;
 						}
 					}
-				}
-				
-				if (buf.remaining() > 0) {
+				} catch (IOException e) {
+					logger.error("There was a problem writing to socket {}", socketChannel, e);
+					failed = true;
+					break;
+				} catch (RuntimeException re) {
+					// Left at the head of the queue, the message would fail
+					// again at every wake up: drop the connection instead.
+					logger.error("Unexpected error writing to socket {}", socketChannel, re);
+					failed = true;
 					break;
 				}
 				
 				queue.remove(0);
 			}
 			
-			if (queue.isEmpty()) {
+			if (!failed && queue.isEmpty()) {
 				// Set this key back to read after we're done writing
 				key.interestOps(SelectionKey.OP_READ);
 			}
 		}
-
+		
+		// Outside of the queues' lock: listeners may send to other peers.
+		if (failed) {
+			this.closeChannel(key);
+		}
 	}
 
 	private void read(SelectionKey key) throws IOException {
@@ -213,14 +304,12 @@ public class PeerCommunicationManager extends Thread {
 		try {
 			numRead = socketChannel.read(this.stagingBuffer);
 		} catch (IOException e) {
-			key.cancel();
-			socketChannel.close();
+			this.closeChannel(key);
 			return;
 		}
 		
 		if (numRead == -1) {
-			key.channel().close();
-			key.cancel();
+			this.closeChannel(key);
 			return;
 		}
 		
@@ -230,6 +319,29 @@ public class PeerCommunicationManager extends Thread {
 		
 	}
 
+	/**
+	 * Close a connection that failed or was closed by the remote peer,
+	 * release everything held for it, and report it to the listeners as a
+	 * bad socket.
+	 */
+	private void closeChannel(SelectionKey key) {
+		SocketChannel socketChannel = (SocketChannel) key.channel();
+		
+		key.cancel();
+		try {
+			socketChannel.close();
+		} catch (IOException ioe) {
+			logger.debug("Could not close channel {}", socketChannel, ioe);
+		}
+		
+		synchronized (this.pendingData) {
+			this.pendingData.remove(socketChannel);
+		}
+		this.readWorker.forget(key);
+		this.metrics.closed();
+		this.fireBadSocketListeners(socketChannel);
+	}
+
 	private void accept(SelectionKey key) {
 		// Accept a new connection - set up the resulting socket channel for read
 		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
@@ -237,8 +349,23 @@ public class PeerCommunicationManager extends Thread {
 		SocketChannel socketChannel;
 		try {
 			socketChannel = serverSocketChannel.accept();
+			if (socketChannel == null) {
+				return;
+			}
+			
+			// Refuse connections past our limit, before reading anything
+			// from them
+			if (this.connectionCount() >= this.maxConnections) {
+				logger.debug("Connection limit reached, refusing {}",
+					socketChannel);
+				socketChannel.close();
+				this.metrics.refused();
+				return;
+			}
+			
 			socketChannel.configureBlocking(false);
 			socketChannel.register(this.selector, SelectionKey.OP_READ);
+			this.metrics.accepted();
 		} catch (IOException e) {
 			logger.error("There was a problem accepting a connection on this channel", e);
 		}
@@ -246,22 +373,93 @@ public class PeerCommunicationManager extends Thread {
 
 	private void finishConnection(SelectionKey key) {
 		SocketChannel socketChannel = (SocketChannel) key.channel();
+		OutboundConnector.Attempt attempt =
+			(OutboundConnector.Attempt) key.attachment();
 		  
 	    // Finish the connection. If the connection operation failed
 	    // this will raise an IOException.
 	    try {
-	      socketChannel.finishConnect();
+	      if (!socketChannel.finishConnect()) {
+	        return;
+	      }
 	    } catch (IOException e) {
-	      // Cancel the channel's registration with our selector
-	      key.cancel();
+	      this.failConnection(attempt, e);
 	      return;
 	    }
 	    
+	    key.attach(null);
+	    key.interestOps(SelectionKey.OP_READ);
+	    this.connector.succeeded(attempt);
+	    this.metrics.connected();
+	    
 	    // Let our listeners know we've completed a connection
-	    fireNewConnectionListeners(socketChannel, (String) key.attachment());
+	    fireNewConnectionListeners(socketChannel,
+	    	attempt.peer.getTorrentHexInfoHash());
+	}
+	
+	/**
+	 * Open the connections queued for an attempt, as long as the number of
+	 * attempts in flight allows for it.
+	 */
+	private void startConnections() {
+		OutboundConnector.Attempt attempt;
+		while (this.connectionCount() < this.maxConnections &&
+				(attempt = this.connector.poll(System.currentTimeMillis())) != null) {
+			try {
+				attempt.channel = SocketChannel.open();
+				attempt.channel.configureBlocking(false);
+				if (attempt.channel.connect(new InetSocketAddress(
+						attempt.peer.getAddress(), attempt.peer.getPort()))) {
+					// Connected right away (local peer)
+					attempt.channel.register(this.selector,
+						SelectionKey.OP_READ);
+					this.connector.succeeded(attempt);
+					this.metrics.connected();
+					this.fireNewConnectionListeners(attempt.channel,
+						attempt.peer.getTorrentHexInfoHash());
+				} else {
+					attempt.channel.register(this.selector,
+						SelectionKey.OP_CONNECT, attempt);
+				}
+			} catch (IOException ioe) {
+				this.failConnection(attempt, ioe);
+			}
+		}
+	}
+	
+	/**
+	 * Fail the connection attempts past their deadline.
+	 */
+	private void expireConnections() {
+		for (OutboundConnector.Attempt attempt :
+				this.connector.expired(System.currentTimeMillis())) {
+			this.failConnection(attempt, new SocketTimeoutException(
+				"Connection to " + attempt.host + " timed out"));
+		}
 	}
 	
-	private void fireBadSocketListeners(SocketChannel socketChannel) {
+	private void failConnection(OutboundConnector.Attempt attempt,
+			Throwable cause) {
+		if (attempt.channel != null) {
+			try {
+				// Closing the channel also cancels its key
+				attempt.channel.close();
+			} catch (IOException ioe) {
+				// Ignore
+			}
+		}
+		
+		this.connector.failed(attempt, System.currentTimeMillis());
+		this.metrics.failed();
+		logger.debug("Could not connect to {}: {}", attempt.host,
+			cause.getMessage());
+		
+		for (CommunicationListener listener : this.listeners) {
+			listener.handleFailedConnection(attempt.peer, cause);
+		}
+	}
+	
+	void fireBadSocketListeners(SocketChannel socketChannel) {
 		for (CommunicationListener listener : this.listeners) {
 			listener.handleBadSocket(socketChannel);
 		}
@@ -279,6 +477,62 @@ public class PeerCommunicationManager extends Thread {
 		}
 	}
 	
+	/**
+	 * Returns the number of open peer connections, including the outbound
+	 * connections being established. Only accurate on the selector thread.
+	 */
+	private int connectionCount() {
+		// All keys but the listening socket's
+		return this.selector.keys().size() - 1;
+	}
+	
+	/**
+	 * Close a peer connection, dropping any data still queued for it.
+	 *
+	 * <p>
+	 * Listeners are not notified: the caller is expected to clean up after
+	 * the connection itself.
+	 * </p>
+	 */
+	public void disconnect(SocketChannel socketChannel) {
+		synchronized (this.pendingData) {
+			this.pendingData.remove(socketChannel);
+		}
+		
+		SelectionKey key = socketChannel.keyFor(this.selector);
+		try {
+			// Closing the channel also cancels its key
+			socketChannel.close();
+		} catch (IOException ioe) {
+			logger.debug("Could not close channel {}", socketChannel, ioe);
+		}
+		
+		if (key != null) {
+			this.readWorker.forget(key);
+		}
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Set the maximum number of open peer connections, in and out.
+	 *
+	 * <p>
+	 * Inbound connections past this limit are closed right after being
+	 * accepted; outbound connection attempts wait for connections to close.
+	 * </p>
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+	
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+	
+	public ConnectionMetrics getMetrics() {
+		return this.metrics;
+	}
+	
 	public void register(CommunicationListener listener) {
 		this.listeners.add(listener);
 	}
@@ -287,37 +541,177 @@ public class PeerCommunicationManager extends Thread {
 		return this.address;
 	}
 
-	public SocketChannel connect(InetAddress address, int port, byte[] infoHash) throws IOException {
-		SocketChannel socketChannel = SocketChannel.open();
-		socketChannel.configureBlocking(false);
-		socketChannel.connect(new InetSocketAddress(address, port));
-		
-		// We can't directly change the key, so set up a change request
-		synchronized(this.changeRequests) {
-			this.changeRequests.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_CONNECT, Torrent.byteArrayToHexString(infoHash)));
+	/**
+	 * Queue an asynchronous connection attempt to a peer.
+	 *
+	 * <p>
+	 * The connection is opened by the selector thread, as soon as the number
+	 * of attempts in flight allows for it. Listeners are notified with
+	 * {@link CommunicationListener#handleNewConnection} once it is
+	 * established, or with
+	 * {@link CommunicationListener#handleFailedConnection} if it failed or
+	 * timed out.
+	 * </p>
+	 *
+	 * @param peer The peer to connect to, on its torrent.
+	 * @return <em>false</em> if the attempt was refused because the peer's
+	 * host is backed off after previous failures, blacklisted, or already
+	 * being connected to for this torrent.
+	 */
+	public boolean connect(SharingPeer peer) {
+		if (!this.connector.offer(peer, System.currentTimeMillis())) {
+			return false;
 		}
 		
 		this.selector.wakeup();
-		
-		return socketChannel;
+		return true;
+	}
+	
+	/**
+	 * Set the maximum number of outbound connection attempts in flight.
+	 */
+	public void setMaxPendingConnections(int maxPending) {
+		this.connector.setMaxPending(maxPending);
+	}
+	
+	/**
+	 * Set the timeout of outbound connection attempts, in milliseconds.
+	 */
+	public void setConnectTimeout(long timeout) {
+		this.connector.setTimeout(timeout);
+	}
+	
+	/**
+	 * Tells whether a peer's host is currently blacklisted after repeated
+	 * connection failures.
+	 */
+	public boolean isBlacklisted(SharingPeer peer) {
+		return this.connector.isBlacklisted(peer.getAddressKey(),
+			System.currentTimeMillis());
 	}
 	
 	public void send(SocketChannel socketChannel, byte[] data) {
+		this.send(socketChannel, ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Queue a peer message for sending to the given socket channel.
+	 *
+	 * <p>
+	 * Piece messages crafted from a {@link BlockRegion} have their header
+	 * sent from memory, followed by their block transferred straight from
+	 * the torrent storage to the socket.
+	 * </p>
+	 */
+	public void send(SocketChannel socketChannel, PeerMessage message) {
+		BlockRegion region = message instanceof PeerMessage.PieceMessage
+			? ((PeerMessage.PieceMessage) message).getRegion()
+			: null;
+		this.queue(socketChannel, Collections.singletonList(
+			new PendingMessage(message.getData(), region, this.framing)));
+	}
+	
+	/**
+	 * Queue a message for sending to the given socket channel.
+	 *
+	 * <p>
+	 * The message is sent from the buffer's position to its limit. The buffer
+	 * itself is left untouched, so the same (possibly read-only) buffer can
+	 * be queued to several channels.
+	 * </p>
+	 */
+	public void send(SocketChannel socketChannel, ByteBuffer data) {
+		this.send(socketChannel, Collections.singletonList(data));
+	}
+	
+	/**
+	 * Queue several messages for sending to the given socket channel, with a
+	 * single wake up of the selector.
+	 */
+	public void send(SocketChannel socketChannel, List<ByteBuffer> data) {
+		List<PendingMessage> messages =
+			new ArrayList<PendingMessage>(data.size());
+		for (ByteBuffer buffer : data) {
+			messages.add(new PendingMessage(buffer, null, this.framing));
+		}
+		this.queue(socketChannel, messages);
+	}
+	
+	private void queue(SocketChannel socketChannel,
+			List<PendingMessage> messages) {
 		// We can't directly set a socket to write, so set up a change request
 		synchronized(this.changeRequests) {
 			this.changeRequests.add(new ChangeRequest(socketChannel, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
 			
 			// Put the data to be written in the pending data list
 			synchronized (this.pendingData) {
-				List queue = (List) this.pendingData.get(socketChannel);
+				List<PendingMessage> queue = this.pendingData.get(socketChannel);
 				if (queue == null) {
-					queue = new ArrayList();
+					queue = new ArrayList<PendingMessage>();
 					this.pendingData.put(socketChannel, queue);
 				}
-				queue.add(data);
+				queue.addAll(messages);
 			}
 		}
 		
 		this.selector.wakeup();
 	}
+	
+	/**
+	 * A message waiting to be written to a socket channel, with its 2-byte
+	 * length prefix if the framing asks for one.
+	 *
+	 * <p>
+	 * The length prefix and the message are written in a single gathering
+	 * write, the message being written from a view of its (possibly shared)
+	 * buffer without copy. The block region following the message, if any,
+	 * is then transferred from the torrent storage. Writes may be partial:
+	 * the message keeps track of what is left to write.
+	 * </p>
+	 */
+	private static class PendingMessage {
+		
+		private final ByteBuffer[] buffers;
+		private final BlockRegion region;
+		
+		PendingMessage(ByteBuffer data, BlockRegion region, Framing framing) {
+			ByteBuffer message = data.duplicate();
+			long length = message.remaining() +
+				(region != null ? region.remaining() : 0);
+			this.buffers = new ByteBuffer[] {
+				framing == Framing.TWO_BYTE_LENGTH
+					? ByteBuffer.wrap(new TwoByteMessageLength().lengthToBytes(
+						length))
+					: ByteBuffer.allocate(0),
+				message
+			};
+			this.region = region;
+		}
+		
+		/**
+		 * Write as much of the message as the socket channel takes.
+		 *
+		 * @return Whether the message has been completely written.
+		 */
+		boolean writeTo(SocketChannel socketChannel) throws IOException {
+			while (this.buffers[0].hasRemaining() ||
+					this.buffers[1].hasRemaining()) {
+				long bytesWritten = socketChannel.write(this.buffers);
+				logger.trace("Writing {} bytes to socket channel {}", bytesWritten, socketChannel);
+				if (bytesWritten == 0) {
+					return false;
+				}
+			}
+			
+			while (this.region != null && this.region.hasRemaining()) {
+				long bytesWritten = this.region.transferTo(socketChannel);
+				logger.trace("Transferred {} bytes to socket channel {}", bytesWritten, socketChannel);
+				if (bytesWritten == 0) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+	}
 }
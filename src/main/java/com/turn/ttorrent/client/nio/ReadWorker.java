@@ -1,50 +1,121 @@
 package com.turn.ttorrent.client.nio;
 
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.turn.ttorrent.client.nio.PeerCommunicationManager.Framing;
+
 public class ReadWorker implements Runnable {
 	
 	private static final Logger logger =
 			LoggerFactory.getLogger(ReadWorker.class);
 	
 	private List<ServerDataEvent> queue = new LinkedList<ServerDataEvent>();
-	private final Map<SelectionKey, ByteBuffer> readBuffers = new HashMap<SelectionKey, ByteBuffer>();
+	private final Map<SelectionKey, ByteBuffer> readBuffers = new ConcurrentHashMap<SelectionKey, ByteBuffer>();
 	private static int DEFAULT_BUFFER_SIZE = 1024 * 30;
+	
+	/**
+	 * Largest standard message accepted, length prefix excluded: enough for
+	 * the bitfield of a torrent of 16 million pieces, or a 1 MB block.
+	 */
+	static final int MAX_MESSAGE_LENGTH = 2 * 1024 * 1024;
+	
+	private final Framing framing;
+	/** Channels whose handshake was read, with the standard framing. */
+	private final Set<SelectionKey> handshaken = Collections.newSetFromMap(
+		new ConcurrentHashMap<SelectionKey, Boolean>());
 	private ExecutorService executor = Executors.newCachedThreadPool();
+	private volatile boolean stop = false;
 
 	public ReadWorker() {
-		new Thread(this).start();
+		this(Framing.TWO_BYTE_LENGTH, true);
+	}
+
+	public ReadWorker(Framing framing) {
+		this(framing, true);
+	}
+
+	ReadWorker(boolean start) {
+		this(Framing.TWO_BYTE_LENGTH, start);
+	}
+
+	/**
+	 * Create a read worker, optionally without starting its thread. Frames
+	 * can then only be reassembled by calling {@link #reassemble} directly.
+	 *
+	 * @param framing How messages are delimited in the data read.
+	 * @param start Whether to start the worker's thread.
+	 */
+	ReadWorker(Framing framing, boolean start) {
+		this.framing = framing;
+		if (start) {
+			new Thread(this).start();
+		}
 	}
 	
 	@Override
 	public void run() {
-		while (true) {
+		while (!this.stop) {
+			ServerDataEvent event;
 			synchronized (queue) {
-				while (queue.isEmpty()) {
+				while (queue.isEmpty() && !this.stop) {
 					try {
 						queue.wait();
 					} catch (InterruptedException e) {
 					}
 				}
 				
-				// Handle next item in queue
-				handleData(queue.remove(0));
+				if (this.stop) {
+					break;
+				}
+				
+				event = queue.remove(0);
 			}
+			
+			// Handle next item in queue, without holding the queue: handlers
+			// may take a while, or even stop the whole communication manager.
+			handleData(event);
+		}
+	}
+	
+	/**
+	 * Stop this worker's thread, dropping any data not handled yet.
+	 */
+	void stop() {
+		synchronized (queue) {
+			this.stop = true;
+			queue.clear();
+			queue.notify();
 		}
+		readBuffers.clear();
+		handshaken.clear();
+	}
+	
+	/**
+	 * Release the staging buffer and framing state of a closed channel.
+	 *
+	 * <p>
+	 * Data of the channel still queued is reassembled normally; its state
+	 * is released again once done, the channel's key being no longer valid.
+	 * </p>
+	 */
+	void forget(SelectionKey key) {
+		readBuffers.remove(key);
+		handshaken.remove(key);
 	}
 	
 	public void processData(PeerCommunicationManager server, SocketChannel socket, byte[] data, int count, SelectionKey key) {
@@ -57,35 +128,148 @@ public class ReadWorker implements Runnable {
 	}
 	
 	private void handleData(ServerDataEvent serverDataEvent) {
-		ByteBuffer readBuffer = readBuffers.get(serverDataEvent.key); 
+		List<ByteBuffer> result = reassemble(serverDataEvent.key, serverDataEvent.data);
+		if (result == null) {
+			logger.warn("Invalid message framing from {}, closing link.",
+				PeerCommunicationManager.socketRepr(
+					serverDataEvent.socketChannel.socket()));
+			serverDataEvent.server.disconnect(serverDataEvent.socketChannel);
+			serverDataEvent.server.fireBadSocketListeners(
+				serverDataEvent.socketChannel);
+			return;
+		}
+		
+		try {
+			serverDataEvent.addResult(result).call();
+		} catch (Exception e) {
+			logger.error("There was a problem handling the message", e);
+		}
+	}
+	
+	/**
+	 * Append data read from a channel to its staging buffer, and extract all
+	 * the complete messages the buffer now holds.
+	 *
+	 * @param key The selection key of the channel the data was read from.
+	 * @param data The data read.
+	 * @return The complete messages: without their length prefix with the
+	 * 2-byte framing; with the standard framing, the handshake first, then
+	 * the messages with their own 4-byte length prefix. Returns
+	 * <em>null</em> if the data doesn't follow the framing, in which case
+	 * the channel should be closed.
+	 */
+	List<ByteBuffer> reassemble(SelectionKey key, byte[] data) {
+		ByteBuffer readBuffer = readBuffers.get(key); 
 		
 		if (readBuffer==null) {
     		// Create a read buffer for this key at the default buffer size
     		readBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE); 
-    		readBuffers.put(serverDataEvent.key, readBuffer); 
+    		readBuffers.put(key, readBuffer); 
     	}
 		
-		try {
-			readBuffer.put(serverDataEvent.data);
-		} catch (BufferOverflowException e) {
-			logger.error("There was a problem reading data into the staging buffer", e);
+		if (readBuffer.remaining() < data.length) {
+			// Partial message and new data don't fit => grow buffer to hold both
+			ByteBuffer tmp = ByteBuffer.allocate(readBuffer.position() + data.length);
+			readBuffer.flip();
+			tmp.put(readBuffer);
+			readBuffer = tmp;
+			readBuffers.put(key, readBuffer);
 		}
+		readBuffer.put(data);
 		
 		readBuffer.flip();
 		List<ByteBuffer> result = new ArrayList<ByteBuffer>();
 		
-		// We read data from the socket, now see if we can parse one or more useful messages out of it
-		ByteBuffer msg = readMessage(serverDataEvent.key, readBuffer);
-		while (msg != null) {
-			result.add(msg);
-			msg = readMessage(serverDataEvent.key, readBuffer);
+		if (this.framing == Framing.BITTORRENT) {
+			while (true) {
+				int length = this.frameLength(key, readBuffer);
+				if (length < 0) {
+					this.forget(key);
+					return null;
+				}
+				
+				ByteBuffer msg = this.readFrame(key, readBuffer, length);
+				if (msg == null) {
+					break;
+				}
+				result.add(msg);
+				handshaken.add(key);
+			}
+		} else {
+			// We read data from the socket, now see if we can parse one or more useful messages out of it
+			ByteBuffer msg = readMessage(key, readBuffer);
+			while (msg != null) {
+				result.add(msg);
+				msg = readMessage(key, readBuffer);
+			}
 		}
 		
-		try {
-			serverDataEvent.addResult(result).call();
-		} catch (Exception e) {
-			logger.error("There was a problem handling the message", e);
+		// The channel was closed meanwhile: no more data will come for it.
+		if (!key.isValid()) {
+			this.forget(key);
 		}
+		return result;
+	}
+	
+	/**
+	 * Returns the length of the standard frame at the head of the buffer:
+	 * the raw handshake for the first frame of a channel, then messages
+	 * with their 4-byte length prefix.
+	 *
+	 * @return The length of the frame, prefix included; 0 if not enough
+	 * data was read to tell yet; -1 if the frame is invalid.
+	 */
+	private int frameLength(SelectionKey key, ByteBuffer readBuffer) {
+		int start = readBuffer.position();
+		if (!handshaken.contains(key)) {
+			if (readBuffer.remaining() < 1) {
+				return 0;
+			}
+			
+			// pstrlen, pstr, reserved bytes, info hash and peer ID
+			return 1 + (readBuffer.get(start) & 0xFF) + 8 + 20 + 20;
+		}
+		
+		if (readBuffer.remaining() < 4) {
+			return 0;
+		}
+		
+		int length = readBuffer.getInt(start);
+		if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+			return -1;
+		}
+		return 4 + length;
+	}
+	
+	/**
+	 * Extract the frame of the given length at the head of the buffer, as
+	 * is, growing the buffer if the frame doesn't fit in it.
+	 *
+	 * @return The frame, or <em>null</em> if it wasn't completely read yet,
+	 * in which case the buffer is prepared for writing again.
+	 */
+	private ByteBuffer readFrame(SelectionKey key, ByteBuffer readBuffer,
+		int length) {
+		if (length == 0 || readBuffer.remaining() < length) {
+			if (length > readBuffer.capacity()) {
+				ByteBuffer tmp = ByteBuffer.allocate(length);
+				tmp.put(readBuffer);
+				readBuffers.put(key, tmp);
+				logger.trace("Buffer needed expanded: " + length);
+			} else {
+				readBuffer.position(readBuffer.limit());
+				readBuffer.limit(readBuffer.capacity());
+			}
+			return null;
+		}
+		
+		byte[] resultMessage = new byte[length];
+		readBuffer.get(resultMessage);
+		
+		// Remove read message from buffer
+		readBuffer.compact();
+		readBuffer.flip();
+		return ByteBuffer.wrap(resultMessage);
 	}
 	
 	private ByteBuffer readMessage(SelectionKey key, ByteBuffer readBuffer) {
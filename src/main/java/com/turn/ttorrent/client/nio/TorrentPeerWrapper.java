@@ -1,18 +1,23 @@
 package com.turn.ttorrent.client.nio;
 
 import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.common.protocol.PeerMessageDecoder;
 
 public class TorrentPeerWrapper {
 	public SharingPeer peer;
 	public String torrentInfoHash;
+	/** The connection's message decoder, dispatching to the peer. */
+	public PeerMessageDecoder decoder;
 	
 	public TorrentPeerWrapper(String torrentInfoHash) {
 		this.peer = null;
 		this.torrentInfoHash = torrentInfoHash;
+		this.decoder = null;
 	}
 	
 	public TorrentPeerWrapper(SharingPeer peer, String torrentInfoHash) {
 		this.peer = peer;
 		this.torrentInfoHash = torrentInfoHash;
+		this.decoder = new PeerMessageDecoder(peer.getTorrent(), peer);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.client.Piece;
+import com.turn.ttorrent.client.SharedTorrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Sequential read-ahead of the blocks uploaded to a peer.
+ *
+ * <p>
+ * Peers usually request consecutive blocks of a piece. Once a peer's
+ * requests are found to be sequential, the rest of the piece, up to the
+ * read-ahead window size, is read from the storage in a single operation,
+ * and the following requested blocks are served from that window instead of
+ * being read one by one.
+ * </p>
+ *
+ * <p>
+ * Window buffers are taken from a pool shared by all peers when a
+ * sequential run starts, and returned to it when the peer goes away.
+ * Blocks outside of a window are read through
+ * {@link SharedTorrent#readBlock}, hence through the torrent's block cache
+ * if it has one.
+ * </p>
+ *
+ * <p>
+ * This class is not thread-safe: the peer it reads for synchronizes on it,
+ * since reads are carried out by the disk I/O threads.
+ * </p>
+ */
+class ReadAhead {
+
+	/** Default read-ahead window size, in bytes. */
+	static final int DEFAULT_WINDOW_SIZE = 256 * 1024;
+
+	/** Maximum number of idle window buffers kept in the pool. */
+	private static final int MAX_POOLED_BUFFERS = 32;
+
+	private static final Queue<ByteBuffer> pool =
+		new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private int windowSize;
+	private ByteBuffer window;
+	private int windowPiece;
+	private int windowStart;
+
+	private int lastPiece;
+	private int lastEnd;
+
+	ReadAhead() {
+		this.windowSize = DEFAULT_WINDOW_SIZE;
+		this.reset();
+	}
+
+	/**
+	 * Set the read-ahead window size, in bytes; <em>0</em> disables
+	 * read-ahead.
+	 */
+	void setWindowSize(int windowSize) {
+		if (windowSize < 0) {
+			throw new IllegalArgumentException("Invalid window size!");
+		}
+
+		this.release();
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Read a block of a valid piece, to be sent to the peer.
+	 *
+	 * <p>
+	 * The returned buffer may be a view of the read-ahead window: its
+	 * contents must be consumed before the next call.
+	 * </p>
+	 *
+	 * @param torrent The torrent the piece belongs to.
+	 * @param piece The piece to read from.
+	 * @param offset Offset inside the piece where to start reading.
+	 * @param length Number of bytes to read from the piece.
+	 */
+	ByteBuffer read(SharedTorrent torrent, Piece piece, int offset,
+		int length) throws IOException {
+		boolean sequential = piece.getIndex() == this.lastPiece &&
+			offset == this.lastEnd;
+		this.lastPiece = piece.getIndex();
+		this.lastEnd = offset + length;
+
+		if (this.window != null && piece.getIndex() == this.windowPiece &&
+				offset >= this.windowStart &&
+				offset + length <= this.windowStart + this.window.limit()) {
+			return this.slice(offset - this.windowStart, length);
+		}
+
+		int size = (int)Math.min(this.windowSize, piece.size() - offset);
+		if (!sequential || size <= length) {
+			return torrent.readBlock(piece, offset, length);
+		}
+
+		if (this.window == null) {
+			this.window = borrow(this.windowSize);
+		}
+
+		this.windowPiece = -1;
+		this.window.clear();
+		this.window.limit(size);
+		piece.read(this.window, offset);
+		this.window.flip();
+		this.windowPiece = piece.getIndex();
+		this.windowStart = offset;
+		return this.slice(0, length);
+	}
+
+	/**
+	 * Forget about the peer's requests and give the window buffer back to
+	 * the pool.
+	 */
+	void reset() {
+		this.release();
+		this.lastPiece = -1;
+		this.lastEnd = 0;
+	}
+
+	private ByteBuffer slice(int position, int length) {
+		ByteBuffer block = this.window.duplicate();
+		block.position(position);
+		block.limit(position + length);
+		return block.slice();
+	}
+
+	private void release() {
+		if (this.window != null) {
+			if (this.window.capacity() == this.windowSize &&
+					pool.size() < MAX_POOLED_BUFFERS) {
+				pool.offer(this.window);
+			}
+			this.window = null;
+		}
+		this.windowPiece = -1;
+	}
+
+	private static ByteBuffer borrow(int size) {
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null || buffer.capacity() != size) {
+			buffer = ByteBuffer.allocate(size);
+		}
+		return buffer;
+	}
+}
@@ -16,10 +16,7 @@
 package com.turn.ttorrent.client.peer;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.util.BitSet;
 import java.util.Comparator;
@@ -31,10 +28,14 @@ import java.util.concurrent.LinkedBlockingQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.turn.ttorrent.client.DiskIOExecutor;
 import com.turn.ttorrent.client.Piece;
 import com.turn.ttorrent.client.SharedTorrent;
+import com.turn.ttorrent.client.nio.BlockRegion;
+import com.turn.ttorrent.common.ConcurrentBitSet;
 import com.turn.ttorrent.common.Peer;
 import com.turn.ttorrent.common.protocol.PeerMessage;
+import com.turn.ttorrent.common.protocol.PeerMessageHandler;
 
 
 /**
@@ -68,32 +69,34 @@ import com.turn.ttorrent.common.protocol.PeerMessage;
  *
  * @author mpetazzoni
  */
-public class SharingPeer extends Peer implements MessageListener {
+public class SharingPeer extends Peer
+	implements MessageListener, PeerMessageHandler {
 
 	private static final Logger logger =
 		LoggerFactory.getLogger(SharingPeer.class);
 
 	private static final int MAX_PIPELINED_REQUESTS = 5;
 
-	private boolean choking;
-	private boolean interesting;
+	private volatile boolean choking;
+	private volatile boolean interesting;
 
-	private boolean choked;
-	private boolean interested;
+	private volatile boolean choked;
+	private volatile boolean interested;
 
 	private SharedTorrent torrent;
-	private BitSet availablePieces;
+	private final ConcurrentBitSet availablePieces;
 
 	private Piece requestedPiece;
 	private int lastRequestedOffset;
 	private BlockingQueue<PeerMessage.RequestMessage> requests;
+	private final ReadAhead readAhead = new ReadAhead();
+	private boolean zeroCopy;
 
-	private PeerExchange exchange = null;
-	private Object exchangeLock;
 	private Rate download;
 	private Rate upload;
-	private boolean bound;
+	private volatile boolean bound;
 	private SocketChannel socketChannel;
+	private volatile long lastActivity;
 
 	private Set<PeerActivityListener> listeners;
 
@@ -111,12 +114,13 @@ public class SharingPeer extends Peer implements MessageListener {
 
 		this.torrent = torrent;
 		this.listeners = new HashSet<PeerActivityListener>();
-		this.availablePieces = new BitSet(this.torrent.getPieceCount());
-		this.exchangeLock = new Object();
+		this.availablePieces =
+			new ConcurrentBitSet(this.torrent.getPieceCount());
 
 		this.reset();
 		this.requestedPiece = null;
 		this.bound = false;
+		this.zeroCopy = false;
 	}
 
 	/**
@@ -151,10 +155,40 @@ public class SharingPeer extends Peer implements MessageListener {
 		this.choked = true;
 		this.interested = false;
 
-		this.exchange = null;
-
 		this.requests = null;
 		this.lastRequestedOffset = 0;
+		synchronized (this.readAhead) {
+			this.readAhead.reset();
+		}
+	}
+
+	/**
+	 * Set the size of the read-ahead window used when this peer requests
+	 * consecutive blocks.
+	 *
+	 * @param windowSize The window size, in bytes, or <em>0</em> to read
+	 * each requested block on its own.
+	 */
+	public void setReadAheadWindow(int windowSize) {
+		synchronized (this.readAhead) {
+			this.readAhead.setWindowSize(windowSize);
+		}
+	}
+
+	/**
+	 * Choose how the blocks requested by this peer are sent.
+	 *
+	 * <p>
+	 * Blocks found in the torrent's block cache are always sent from
+	 * memory. Other blocks are read, with read-ahead and through the block
+	 * cache, by the torrent's disk I/O executor; without an executor, the
+	 * blocks of file-backed storage are instead transferred straight from
+	 * the files to the peer's socket. With zero-copy, they always are, at
+	 * the cost of reading them on the network thread.
+	 * </p>
+	 */
+	public synchronized void setZeroCopy(boolean zeroCopy) {
+		this.zeroCopy = zeroCopy;
 	}
 
 	/**
@@ -184,8 +218,10 @@ public class SharingPeer extends Peer implements MessageListener {
 	public void unchoke() {
 		if (this.choking) {
 			logger.trace("Unchoking {}", this);
-			this.send(PeerMessage.UnchokeMessage.craft());
+			// Update our state first: the peer's requests may come back
+			// before send() even returns.
 			this.choking = false;
+			this.send(PeerMessage.UnchokeMessage.craft());
 		}
 	}
 
@@ -226,12 +262,24 @@ public class SharingPeer extends Peer implements MessageListener {
 	/**
 	 * Returns the available pieces from this peer.
 	 *
-	 * @return A clone of the available pieces bit field from this peer.
+	 * @return A copy of the available pieces bit field from this peer.
+	 * @see #getAvailability
 	 */
 	public BitSet getAvailablePieces() {
-		synchronized (this.availablePieces) {
-			return (BitSet)this.availablePieces.clone();
-		}
+		return this.availablePieces.toBitSet();
+	}
+
+	/**
+	 * Returns the live bit field of the pieces available from this peer.
+	 *
+	 * <p>
+	 * The set is updated as the peer announces new pieces: this saves the
+	 * copy {@link #getAvailablePieces} makes, which matters for torrents
+	 * with many pieces. It must not be modified.
+	 * </p>
+	 */
+	public ConcurrentBitSet getAvailability() {
+		return this.availablePieces;
 	}
 
 	/**
@@ -249,42 +297,10 @@ public class SharingPeer extends Peer implements MessageListener {
 	 */
 	public synchronized boolean isSeed() {
 		return this.torrent.getPieceCount() > 0 &&
-			this.getAvailablePieces().cardinality() ==
+			this.availablePieces.cardinality() ==
 				this.torrent.getPieceCount();
 	}
 	
-	/**
-	 * Bind a connected socket to this peer.
-	 *
-	 * <p>
-	 * This will create a new peer exchange with this peer using the given
-	 * socket, and register the peer as a message listener.
-	 * </p>
-	 *
-	 * @param socket The connected socket for this peer.
-	 * @throws ClosedChannelException 
-	 */
-	public synchronized void bind(Socket socket) throws SocketException {
-		this.unbind(true);
-
-		this.exchange = new PeerExchange(this, this.torrent, socket);
-		this.exchange.register(this);
-
-		resetRates();
-	}
-
-	/**
-	 * Bind a socket channel to this peer, to allow it to send and receive messages in a non-blocking way.
-	 *
-	 * @param socket The connected socket for this peer.
-	 * @throws SocketException
-	 * @throws ClosedChannelException 
-	 */
-	public synchronized void bind(SocketChannel socketChannel) throws SocketException, ClosedChannelException {
-		this.exchange.register(this);
-		resetRates();
-	}
-	
 	public synchronized void resetRates() {
 		this.download = new Rate();
 		this.download.reset();
@@ -294,28 +310,33 @@ public class SharingPeer extends Peer implements MessageListener {
 	}
 
 	/**
-	 * Tells whether this peer as an active connection through a peer exchange.
+	 * Tells whether this peer is bound to an active connection.
 	 */
 	public boolean isConnected() {
-		if (this.exchange == null) {
-			return this.bound;
-		}
-		synchronized (this.exchangeLock) {
-			return this.exchange != null && this.exchange.isConnected();
-		}
+		return this.bound;
 	}
 	
 	public void setBound(boolean bound) {
 		this.bound = bound;
+		if (bound) {
+			this.lastActivity = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Returns the time of the last block exchanged with this peer, in either
+	 * direction, or of its connection if none was exchanged yet.
+	 */
+	public long getLastActivity() {
+		return this.lastActivity;
 	}
 
 	/**
 	 * Unbind and disconnect this peer.
 	 *
 	 * <p>
-	 * This terminates the eventually present and/or connected peer exchange
-	 * with the peer and fires the peer disconnected event to any peer activity
-	 * listeners registered on this peer.
+	 * This tells the peer we're going away; the connection itself is owned,
+	 * and closed, by the client's communication manager.
 	 * </p>
 	 *
 	 * @param force Force unbind without sending cancel requests.
@@ -328,18 +349,6 @@ public class SharingPeer extends Peer implements MessageListener {
 			this.send(PeerMessage.NotInterestedMessage.craft());
 		}
 
-		synchronized (this.exchangeLock) {
-			if (this.exchange != null) {
-				if (force) {
-					this.exchange.terminate();
-				} else {
-					this.exchange.close();
-				}
-
-				this.exchange = null;
-			}
-		}
-
 		//this.firePeerDisconnected();
 		this.send(PeerMessage.CancelMessage.craft());
 		this.requestedPiece = null;
@@ -352,19 +361,11 @@ public class SharingPeer extends Peer implements MessageListener {
 	 * Delivery of the message can only happen if the peer is connected.
 	 * </p>
 	 *
-	 * @param message The message to send to the remote peer through our peer
-	 * exchange.
+	 * @param message The message to send to the remote peer, handed to the
+	 * peer activity listeners owning the connection.
 	 */
 	public void send(PeerMessage message) throws IllegalStateException {
-		if (this.exchange != null) {
-			synchronized (this.exchangeLock) {
-				if (this.isConnected()) {
-					this.exchange.send(message);
-				}
-			}
-		} else {
-			this.fireNewMessage(message);
-		}
+		this.fireNewMessage(message);
 	}
 
 	/**
@@ -445,15 +446,14 @@ public class SharingPeer extends Peer implements MessageListener {
 	 *
 	 * @param message The PIECE message received.
 	 */
-	private synchronized void removeBlockRequest(
-		PeerMessage.PieceMessage message) {
+	private synchronized void removeBlockRequest(int piece, int offset) {
 		if (this.requests == null) {
 			return;
 		}
 
 		for (PeerMessage.RequestMessage request : this.requests) {
-			if (request.getPiece() == message.getPiece() &&
-					request.getOffset() == message.getOffset()) {
+			if (request.getPiece() == piece &&
+					request.getOffset() == offset) {
 				this.requests.remove(request);
 				break;
 			}
@@ -493,161 +493,259 @@ public class SharingPeer extends Peer implements MessageListener {
 	/**
 	 * Handle an incoming message from this peer.
 	 *
+	 * <p>
+	 * Adapts message objects to the typed {@link PeerMessageHandler}
+	 * callbacks, which connections decoding messages with a
+	 * {@link com.turn.ttorrent.common.protocol.PeerMessageDecoder} call
+	 * directly.
+	 * </p>
+	 *
 	 * @param msg The incoming, parsed message.
 	 */
 	@Override
 	public synchronized void handleMessage(PeerMessage msg) {
-		logger.trace("Got a {} message from peer {} regarding torrent " + this.getTorrent().toString(), msg.getType(), this);
 		switch (msg.getType()) {
 			case KEEP_ALIVE:
-				// Nothing to do, we're keeping the connection open anyways.
+				this.onKeepAlive();
 				break;
 			case CHOKE:
-				this.choked = true;
-				this.firePeerChoked();
-				this.cancelPendingRequests();
+				this.onChoke();
 				break;
 			case UNCHOKE:
-				this.choked = false;
-				logger.trace("Peer {} is now accepting requests.", this);
-				this.firePeerReady();
+				this.onUnchoke();
 				break;
 			case INTERESTED:
-				this.interested = true;
+				this.onInterested();
 				break;
 			case NOT_INTERESTED:
-				this.interested = false;
+				this.onNotInterested();
 				break;
 			case HAVE:
-				// Record this peer has the given piece
-				PeerMessage.HaveMessage have = (PeerMessage.HaveMessage)msg;
-				Piece havePiece = this.torrent.getPiece(have.getPieceIndex());
-
-				synchronized (this.availablePieces) {
-					this.availablePieces.set(havePiece.getIndex());
-					logger.trace("Peer {} now has {} [{}/{}].",
-						new Object[] {
-							this,
-							havePiece,
-							this.availablePieces.cardinality(),
-							this.torrent.getPieceCount()
-						});
-				}
-
-				this.firePieceAvailabity(havePiece);
+				this.onHave(((PeerMessage.HaveMessage)msg).getPieceIndex());
 				break;
 			case BITFIELD:
-				// Augment the hasPiece bit field from this BITFIELD message
-				PeerMessage.BitfieldMessage bitfield =
-					(PeerMessage.BitfieldMessage)msg;
-
-				synchronized (this.availablePieces) {
-					this.availablePieces = bitfield.getBitfield();
-					logger.trace("Recorded bitfield from {} with {} " +
-						"pieces(s) [{}/{}].",
-						new Object[] {
-							this,
-							bitfield.getBitfield().cardinality(),
-							this.availablePieces.cardinality(),
-							this.torrent.getPieceCount()
-						});
-				}
-
-				this.fireBitfieldAvailabity();
+				this.recordBitfield(((PeerMessage.BitfieldMessage)msg)
+					.getBitfield());
 				break;
 			case REQUEST:
 				PeerMessage.RequestMessage request =
 					(PeerMessage.RequestMessage)msg;
+				this.onRequest(request.getPiece(), request.getOffset(),
+					request.getLength());
+				break;
+			case PIECE:
+				PeerMessage.PieceMessage piece = (PeerMessage.PieceMessage)msg;
+				this.onPiece(piece.getPiece(), piece.getOffset(),
+					piece.getBlock());
+				break;
+			case CANCEL:
+				this.onCancel();
+				break;
+			case SERVER:
+				this.onServer(((PeerMessage.ServerMessage)msg).getCompletion());
+				break;
+		}
+	}
 
-				// If we are choking from this peer and it still sends us
-				// requests, it is a violation of the BitTorrent protocol.
-				// Similarly, if the peer requests a piece we don't have, it
-				// is a violation of the BitTorrent protocol. In these
-				// situation, terminate the connection.
-				if (this.isChoking() ||
-						!this.torrent.getPiece(request.getPiece()).isValid()) {
-					logger.warn("Peer {} violated protocol, " +
-						"terminating exchange.", this);
-					this.unbind(true);
-					break;
-				}
+	@Override
+	public synchronized void onKeepAlive() {
+		this.traceMessage(PeerMessage.Type.KEEP_ALIVE);
+		// Nothing to do, we're keeping the connection open anyways.
+	}
 
-				if (request.getLength() >
-						PeerMessage.RequestMessage.MAX_REQUEST_SIZE) {
-					logger.warn("Peer {} requested a block too big, " +
-						"terminating exchange.", this);
-					this.unbind(true);
-					break;
-				}
+	@Override
+	public synchronized void onChoke() {
+		this.traceMessage(PeerMessage.Type.CHOKE);
+		this.choked = true;
+		this.firePeerChoked();
+		this.cancelPendingRequests();
+	}
 
-				// At this point we agree to send the requested piece block to
-				// the remote peer, so let's queue a message with that block
-				try {
-					Piece p = this.torrent.getPiece(request.getPiece());
+	@Override
+	public synchronized void onUnchoke() {
+		this.traceMessage(PeerMessage.Type.UNCHOKE);
+		this.choked = false;
+		logger.trace("Peer {} is now accepting requests.", this);
+		this.firePeerReady();
+	}
 
-					ByteBuffer block = p.read(request.getOffset(),
-									request.getLength());
-					this.send(PeerMessage.PieceMessage.craft(request.getPiece(),
-							request.getOffset(), block));
-					this.upload.add(block.capacity());
+	@Override
+	public synchronized void onInterested() {
+		this.traceMessage(PeerMessage.Type.INTERESTED);
+		this.interested = true;
+	}
 
-					if (request.getOffset() + request.getLength() == p.size()) {
-						this.firePieceSent(p);
-					}
-				} catch (IOException ioe) {
-					this.fireIOException(ioe);
-				}
+	@Override
+	public synchronized void onNotInterested() {
+		this.traceMessage(PeerMessage.Type.NOT_INTERESTED);
+		this.interested = false;
+	}
 
-				break;
-			case PIECE:
-				// Record the incoming piece block.
+	@Override
+	public synchronized void onHave(int piece) {
+		this.traceMessage(PeerMessage.Type.HAVE);
+
+		// Record this peer has the given piece
+		Piece havePiece = this.torrent.getPiece(piece);
+
+		this.availablePieces.set(havePiece.getIndex());
+		if (logger.isTraceEnabled()) {
+			logger.trace("Peer {} now has {} [{}/{}].",
+				new Object[] {
+					this,
+					havePiece,
+					this.availablePieces.cardinality(),
+					this.torrent.getPieceCount()
+				});
+		}
 
-				// Should we keep track of the requested pieces and act when we
-				// get a piece we didn't ask for, or should we just stay
-				// greedy?
-				PeerMessage.PieceMessage piece = (PeerMessage.PieceMessage)msg;
-				Piece p = this.torrent.getPiece(piece.getPiece());
-				
-				logger.trace("Got a PIECE message for piece {} from {}", piece.getPiece(), this);
+		this.firePieceAvailabity(havePiece);
+	}
 
-				// Remove the corresponding request from the request to make
-				// room for next block requests.
-				this.removeBlockRequest(piece);
-				this.download.add(piece.getBlock().capacity());
+	@Override
+	public synchronized void onBitfield(ByteBuffer bitfield) {
+		this.recordBitfield(PeerMessage.BitfieldMessage.toBitSet(bitfield));
+	}
 
-				try {
-					p.record(piece.getBlock(), piece.getOffset());
-
-					// If the block offset equals the piece size and the block
-					// length is 0, it means the piece has been entirely
-					// downloaded. In this case, we have nothing to save, but
-					// we should validate the piece.
-					if (piece.getOffset() + piece.getBlock().capacity()
-							== p.size()) {
-						logger.trace("That was the last PIECE message for piece {}", piece.getPiece());
-						p.validate();
-						this.firePieceCompleted(p);
-						this.requestedPiece = null;
-						this.firePeerReady();
-					} else {
-						logger.trace("Request more blocks for this piece");
-						this.requestNextBlocks();
-					}
-				} catch (IOException ioe) {
-					this.fireIOException(ioe);
-					break;
-				}
-				break;
-			case CANCEL:
-				// This peer is going away
-				this.firePeerDisconnected();
-				break;
-			case SERVER:
-				// This is the main server, if interested.
-				this.server = true;
-				PeerMessage.ServerMessage serverMessage = (PeerMessage.ServerMessage)msg;
-				this.serverCompletion = serverMessage.getCompletion();
+	private void recordBitfield(BitSet bitfield) {
+		this.traceMessage(PeerMessage.Type.BITFIELD);
+
+		// Augment the hasPiece bit field from this BITFIELD message
+		this.availablePieces.copyFrom(bitfield);
+		logger.trace("Recorded bitfield from {} with {} " +
+			"pieces(s) [{}/{}].",
+			new Object[] {
+				this,
+				bitfield.cardinality(),
+				this.availablePieces.cardinality(),
+				this.torrent.getPieceCount()
+			});
+
+		this.fireBitfieldAvailabity(bitfield);
+	}
+
+	@Override
+	public synchronized void onRequest(int piece, int offset, int length) {
+		this.traceMessage(PeerMessage.Type.REQUEST);
+
+		// If we are choking from this peer and it still sends us
+		// requests, it is a violation of the BitTorrent protocol.
+		// Similarly, if the peer requests a piece we don't have, it
+		// is a violation of the BitTorrent protocol. In these
+		// situation, terminate the connection.
+		if (this.isChoking() || !this.torrent.getPiece(piece).isValid()) {
+			logger.warn("Peer {} violated protocol, " +
+				"terminating exchange.", this);
+			this.unbind(true);
+			return;
+		}
+
+		if (length > PeerMessage.RequestMessage.MAX_REQUEST_SIZE) {
+			logger.warn("Peer {} requested a block too big, " +
+				"terminating exchange.", this);
+			this.unbind(true);
+			return;
+		}
+
+		// At this point we agree to send the requested piece block to
+		// the remote peer, so let's queue a message with that block
+		Piece p = this.torrent.getPiece(piece);
+		ByteBuffer cached = this.torrent.getCachedBlock(p, offset, length);
+		if (cached != null) {
+			this.send(PeerMessage.PieceMessage.craft(piece, offset, cached));
+			this.blockSent(p, offset, length);
+			return;
+		}
+
+		// Transferring the block straight from its file reads it on the
+		// network thread: only do it if there is no disk I/O thread to
+		// hand the read to anyway, or if asked to.
+		if (this.torrent.isFileBacked() &&
+			(this.zeroCopy || !this.torrent.hasDiskIO())) {
+			this.send(PeerMessage.PieceMessage.craft(piece, offset,
+				new BlockRegion(p, offset, length)));
+			this.blockSent(p, offset, length);
+			return;
+		}
+
+		this.torrent.submit(new BlockRead(p, offset, length));
+	}
+
+	/**
+	 * Account for a block of a piece queued for sending to this peer.
+	 */
+	private void blockSent(Piece piece, int offset, int length) {
+		this.upload.add(length);
+		this.lastActivity = System.currentTimeMillis();
+
+		if (offset + length == piece.size()) {
+			this.firePieceSent(piece);
+		}
+	}
+
+	@Override
+	public synchronized void onPiece(int piece, int offset, ByteBuffer block) {
+		this.traceMessage(PeerMessage.Type.PIECE);
+
+		// Record the incoming piece block.
+
+		// Should we keep track of the requested pieces and act when we
+		// get a piece we didn't ask for, or should we just stay
+		// greedy?
+		Piece p = this.torrent.getPiece(piece);
+
+		logger.trace("Got a PIECE message for piece {} from {}", piece, this);
+
+		// Remove the corresponding request from the request to make
+		// room for next block requests.
+		this.removeBlockRequest(piece, offset);
+		this.download.add(block.remaining());
+		this.lastActivity = System.currentTimeMillis();
+
+		// If the block offset equals the piece size and the block
+		// length is 0, it means the piece has been entirely
+		// downloaded. In this case, we have nothing to save, but
+		// we should validate the piece.
+		if (offset + block.remaining() == p.size()) {
+			logger.trace("That was the last PIECE message for piece {}", piece);
+			this.torrent.submit(new PieceCompletion(p, block, offset));
+			return;
+		}
+
+		try {
+			// Blocks are assembled in memory until the last one comes in,
+			// so this doesn't touch the storage.
+			p.record(block, offset);
+
+			logger.trace("Request more blocks for this piece");
+			this.requestNextBlocks();
+		} catch (IOException ioe) {
+			this.fireIOException(ioe);
+		}
+	}
+
+	@Override
+	public synchronized void onCancel() {
+		this.traceMessage(PeerMessage.Type.CANCEL);
+		// This peer is going away
+		this.firePeerDisconnected();
+	}
+
+	@Override
+	public synchronized void onServer(int completion) {
+		this.traceMessage(PeerMessage.Type.SERVER);
+		// This is the main server, if interested.
+		this.server = true;
+		this.serverCompletion = completion;
+	}
+
+	private void traceMessage(PeerMessage.Type type) {
+		if (!logger.isTraceEnabled()) {
+			return;
 		}
+
+		logger.trace("Got a {} message from peer {} regarding torrent {}",
+			new Object[] { type, this, this.getTorrent() });
 	}
 
 	/**
@@ -695,10 +793,9 @@ public class SharingPeer extends Peer implements MessageListener {
 	 * The event contains the peer (this), and the bit field of available pieces
 	 * from this peer.
 	 */
-	private void fireBitfieldAvailabity() {
+	private void fireBitfieldAvailabity(BitSet bitfield) {
 		for (PeerActivityListener listener : this.listeners) {
-			listener.handleBitfieldAvailability(this,
-					this.getAvailablePieces());
+			listener.handleBitfieldAvailability(this, bitfield);
 		}
 	}
 
@@ -803,6 +900,102 @@ public class SharingPeer extends Peer implements MessageListener {
 		}
 	}
 
+	/**
+	 * Storage of the last block of a piece downloaded from this peer, and
+	 * validation of the completed piece.
+	 *
+	 * <p>
+	 * The piece's blocks are assembled in memory, so this is when the whole
+	 * piece gets written, then read back to be hashed. The piece completion
+	 * is reported, and the peer made ready for its next piece, once this is
+	 * done.
+	 * </p>
+	 */
+	private class PieceCompletion extends DiskIOExecutor.Request {
+
+		private final Piece piece;
+		private final ByteBuffer block;
+		private final int offset;
+
+		PieceCompletion(Piece piece, ByteBuffer block, int offset) {
+			super(SharingPeer.this.torrent, piece.getOffset() + offset);
+			this.piece = piece;
+			// The decoder rewinds the message frame once handled: keep a
+			// view of the block of our own.
+			this.block = block.slice();
+			this.offset = offset;
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			this.piece.record(this.block, this.offset);
+			this.piece.validate();
+		}
+
+		@Override
+		protected void onCompletion() {
+			synchronized (SharingPeer.this) {
+				try {
+					firePieceCompleted(this.piece);
+				} catch (IOException ioe) {
+					fireIOException(ioe);
+					return;
+				}
+
+				requestedPiece = null;
+				if (isConnected()) {
+					firePeerReady();
+				}
+			}
+		}
+
+		@Override
+		protected void onFailure(IOException ioe) {
+			fireIOException(ioe);
+		}
+	}
+
+	/**
+	 * Read of a block requested by this peer, sent to the peer once read.
+	 */
+	private class BlockRead extends DiskIOExecutor.Request {
+
+		private final Piece piece;
+		private final int offset;
+		private final int length;
+
+		BlockRead(Piece piece, int offset, int length) {
+			super(SharingPeer.this.torrent, piece.getOffset() + offset);
+			this.piece = piece;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		protected void execute() throws IOException {
+			// The block may be a view of the read-ahead window: crafting the
+			// message copies it before the window can be refilled.
+			synchronized (readAhead) {
+				ByteBuffer block = readAhead.read(torrent, this.piece,
+					this.offset, this.length);
+				send(PeerMessage.PieceMessage.craft(this.piece.getIndex(),
+					this.offset, block));
+			}
+		}
+
+		@Override
+		protected void onCompletion() {
+			synchronized (SharingPeer.this) {
+				blockSent(this.piece, this.offset, this.length);
+			}
+		}
+
+		@Override
+		protected void onFailure(IOException ioe) {
+			fireIOException(ioe);
+		}
+	}
+
 	public String toString() {
 		return new StringBuilder(super.toString())
 			.append(" [")
@@ -17,7 +17,7 @@ package com.turn.ttorrent.client.storage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -35,6 +35,20 @@ import org.slf4j.LoggerFactory;
  * file this offset lands.
  * </p>
  *
+ * <p>
+ * The starting offset of each file is kept in a sorted array, so that the
+ * file an operation starts in is found by binary search, in
+ * <em>O(log(files))</em>. An operation spanning several files is then
+ * scattered (or gathered) across consecutive files by moving the limit of
+ * the caller's buffer, without copying its contents.
+ * </p>
+ *
+ * <p>
+ * With the {@link StoragePolicy.Durability#PERIODIC} durability, the files
+ * written to are synced all at once, on the first write after each sync
+ * interval, instead of one by one.
+ * </p>
+ *
  * @author mpetazzoni
  * @author dgiffin
  */
@@ -43,20 +57,48 @@ public class FileCollectionStorage implements TorrentByteStorage {
 	private static final Logger logger =
 		LoggerFactory.getLogger(FileCollectionStorage.class);
 
-	private final List<FileStorage> files;
+	private final FileStorage[] files;
+	private final long[] offsets;
 	private final long size;
+	private final StoragePolicy policy;
+	private volatile long lastSync;
 
 	/**
 	 * Initialize a new multi-file torrent byte storage.
 	 *
 	 * @param files The list of individual {@link FileStorage}
-	 * objects making up the torrent.
+	 * objects making up the torrent, in order.
 	 * @param size The total size of the torrent data, in bytes.
 	 */
 	public FileCollectionStorage(List<FileStorage> files,
 		long size) {
-		this.files = files;
+		this(files, size, new StoragePolicy());
+	}
+
+	/**
+	 * Initialize a new multi-file torrent byte storage.
+	 *
+	 * @param files The list of individual {@link FileStorage}
+	 * objects making up the torrent, in order.
+	 * @param size The total size of the torrent data, in bytes.
+	 * @param policy The storage policy, whose durability rules when the
+	 * files written to are synced together.
+	 */
+	public FileCollectionStorage(List<FileStorage> files,
+		long size, StoragePolicy policy) {
+		this.files = files.toArray(new FileStorage[files.size()]);
+		this.offsets = new long[this.files.length];
 		this.size = size;
+		this.policy = policy;
+		this.lastSync = System.currentTimeMillis();
+
+		for (int i=0; i < this.files.length; i++) {
+			this.offsets[i] = this.files[i].offset();
+			if (i > 0 && this.offsets[i] < this.offsets[i-1]) {
+				throw new IllegalArgumentException(
+					"Files must be given in increasing offset order!");
+			}
+		}
 
 		logger.debug("Initialized torrent byte storage on {} file(s) " +
 			"({} total byte(s)).", files.size(), size);
@@ -70,14 +112,7 @@ public class FileCollectionStorage implements TorrentByteStorage {
 	@Override
 	public int read(ByteBuffer buffer, long offset) throws IOException {
 		int requested = buffer.remaining();
-		int bytes = 0;
-
-		for (FileOffset fo : this.select(offset, requested)) {
-			// TODO: remove cast to int when large ByteBuffer support is
-			// implemented in Java.
-			buffer.limit((int)(bytes + fo.length));
-			bytes += fo.file.read(buffer, fo.offset);
-		}
+		int bytes = this.transfer(buffer, offset, false);
 
 		if (bytes < requested) {
 			throw new IOException("Storage collection read underrun!");
@@ -89,16 +124,73 @@ public class FileCollectionStorage implements TorrentByteStorage {
 	@Override
 	public int write(ByteBuffer buffer, long offset) throws IOException {
 		int requested = buffer.remaining();
+		int bytes = this.transfer(buffer, offset, true);
 
-		int bytes = 0;
+		if (bytes < requested) {
+			throw new IOException("Storage collection write underrun!");
+		}
 
-		for (FileOffset fo : this.select(offset, requested)) {
-			buffer.limit(bytes + (int)fo.length);
-			bytes += fo.file.write(buffer, (int)fo.offset);
+		if (this.policy.getDurability() == StoragePolicy.Durability.PERIODIC &&
+				System.currentTimeMillis() - this.lastSync >=
+					this.policy.getSyncInterval()) {
+			this.sync();
 		}
 
-		if (bytes < requested) {
-			throw new IOException("Storage collection write underrun!");
+		return bytes;
+	}
+
+	/**
+	 * Force the data written to any of the files since the last sync to the
+	 * storage device, in a single pass over the files.
+	 *
+	 * @return The number of files synced.
+	 */
+	public int sync() throws IOException {
+		this.lastSync = System.currentTimeMillis();
+
+		int synced = 0;
+		for (FileStorage file : this.files) {
+			if (file.sync()) {
+				synced++;
+			}
+		}
+
+		logger.trace("Synced {} file(s).", synced);
+		return synced;
+	}
+
+	/**
+	 * Transfer bytes across the files impacted by the operation directly to
+	 * a channel.
+	 *
+	 * <p>
+	 * The transfer stops early, at whatever file it has reached, as soon as
+	 * the target channel takes less than what was offered to it.
+	 * </p>
+	 */
+	@Override
+	public long transferTo(long offset, long length,
+		WritableByteChannel target) throws IOException {
+		if (offset < 0 || offset + length > this.size) {
+			throw new IllegalArgumentException("Transfer overrun (" +
+				offset + " + " + length + " > " + this.size + ") !");
+		}
+
+		long bytes = 0;
+		for (int i = this.indexOf(offset);
+				i < this.files.length && bytes < length; i++) {
+			FileStorage file = this.files[i];
+			long position = offset + bytes - this.offsets[i];
+			long chunk = Math.min(file.size() - position, length - bytes);
+			if (chunk <= 0) {
+				continue;
+			}
+
+			long transferred = file.transferTo(position, chunk, target);
+			bytes += transferred;
+			if (transferred < chunk) {
+				break;
+			}
 		}
 
 		return bytes;
@@ -130,80 +222,80 @@ public class FileCollectionStorage implements TorrentByteStorage {
 	}
 
 	/**
-	 * File operation details holder.
+	 * Read or write a buffer across the files impacted by the operation.
 	 *
 	 * <p>
-	 * This simple inner class holds the details for a read or write operation
-	 * on one of the underlying {@link FileStorage}s.
-	 * </p>
-	 *
-	 * @author dgiffin
-	 * @author mpetazzoni
-	 */
-	private static class FileOffset {
-
-		public final FileStorage file;
-		public final long offset;
-		public final long length;
-
-		FileOffset(FileStorage file, long offset, long length) {
-			this.file = file;
-			this.offset = offset;
-			this.length = length;
-		}
-	};
-
-	/**
-	 * Select the group of files impacted by an operation.
-	 *
-	 * <p>
-	 * This function selects which files are impacted by a read or write
-	 * operation, with their respective relative offset and chunk length.
+	 * The buffer is handed to each file in turn, with its limit set to the
+	 * end of the chunk that goes to (or comes from) that file. Its original
+	 * limit is restored before returning.
 	 * </p>
 	 *
+	 * @param buffer The buffer to read into or write from.
 	 * @param offset The offset of the operation, in bytes, relative to the
 	 * complete byte storage.
-	 * @param length The number of bytes to read or write.
-	 * @return A list of {@link FileOffset} objects representing the {@link
-	 * FileStorage}s impacted by the operation, bundled with their
-	 * respective relative offset and number of bytes to read or write.
+	 * @param write Whether to write the buffer, or read into it.
+	 * @return The number of bytes transferred.
 	 * @throws IllegalArgumentException If the offset and length go over the
 	 * byte storage size.
-	 * @throws IllegalStateException If the files registered with this byte
-	 * storage can't accommodate the request (should not happen, really).
 	 */
-	private List<FileOffset> select(long offset, long length) {
-		if (offset + length > this.size) {
+	private int transfer(ByteBuffer buffer, long offset, boolean write)
+		throws IOException {
+		long length = buffer.remaining();
+		if (offset < 0 || offset + length > this.size) {
 			throw new IllegalArgumentException("Buffer overrun (" +
 				offset + " + " + length + " > " + this.size + ") !");
 		}
 
-		List<FileOffset> selected = new LinkedList<FileOffset>();
-		long bytes = 0;
-
-		for (FileStorage file : this.files) {
-			if (file.offset() > offset + length) {
-				break;
-			}
+		int limit = buffer.limit();
+		int bytes = 0;
 
-			if (file.offset() + file.size() < offset) {
-				continue;
+		try {
+			for (int i = this.indexOf(offset);
+					i < this.files.length && bytes < length; i++) {
+				FileStorage file = this.files[i];
+				long position = offset + bytes - this.offsets[i];
+				long chunk = Math.min(file.size() - position, length - bytes);
+				if (chunk <= 0) {
+					continue;
+				}
+
+				buffer.limit(buffer.position() + (int)chunk);
+				bytes += write
+					? file.write(buffer, position)
+					: file.read(buffer, position);
 			}
-
-			long position = offset - file.offset();
-			position = position > 0 ? position : 0;
-			long size = Math.min(
-				file.size() - position,
-				length - bytes);
-			selected.add(new FileOffset(file, position, size));
-			bytes += size;
+		} finally {
+			buffer.limit(limit);
 		}
 
-		if (selected.size() == 0 || bytes < length) {
-			throw new IllegalStateException("Buffer underrun (only got " +
-				bytes + " out of " + length + " byte(s) requested)!");
+		return bytes;
+	}
+
+	/**
+	 * Find the file holding the byte at the given offset.
+	 *
+	 * <p>
+	 * Returns the index of the last file starting at or before the offset:
+	 * empty files share their starting offset with the next file, and are
+	 * thus skipped.
+	 * </p>
+	 *
+	 * @param offset The offset, in bytes, relative to the complete byte
+	 * storage.
+	 */
+	private int indexOf(long offset) {
+		int low = 0;
+		int high = this.offsets.length - 1;
+
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (this.offsets[mid] <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
 		}
 
-		return selected;
+		return low;
 	}
 }
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -35,6 +36,18 @@ import org.slf4j.LoggerFactory;
  * FileChannel to expose thread-safe read/write methods.
  * </p>
  *
+ * <p>
+ * How the file is allocated, where it is downloaded to and when its data is
+ * forced to the storage device is controlled by a {@link StoragePolicy}.
+ * </p>
+ *
+ * <p>
+ * A file that doesn't exist yet is only created when first written to, so
+ * that the files of a torrent that are skipped never take any space. Until
+ * then, it reads as zeros. An empty file, which has nothing to be written,
+ * is created when the storage is finished.
+ * </p>
+ *
  * @author mpetazzoni
  */
 public class FileStorage implements TorrentByteStorage {
@@ -42,14 +55,19 @@ public class FileStorage implements TorrentByteStorage {
 	private static final Logger logger =
 		LoggerFactory.getLogger(FileStorage.class);
 
+	/** Size of the buffer of zeros used to fully allocate files. */
+	private static final int ALLOCATION_BUFFER_SIZE = 64 * 1024;
+
 	private final File target;
 	private final File partial;
 	private final long offset;
 	private final long size;
+	private final StoragePolicy policy;
 
 	private RandomAccessFile raf;
-	private FileChannel channel;
+	private volatile FileChannel channel;
 	private File current;
+	private volatile boolean dirty;
 
 	public FileStorage(File file, long size) throws IOException {
 		this(file, 0, size);
@@ -57,9 +75,15 @@ public class FileStorage implements TorrentByteStorage {
 
 	public FileStorage(File file, long offset, long size)
 		throws IOException {
+		this(file, offset, size, new StoragePolicy());
+	}
+
+	public FileStorage(File file, long offset, long size,
+		StoragePolicy policy) throws IOException {
 		this.target = file;
 		this.offset = offset;
 		this.size = size;
+		this.policy = policy;
 
 		this.partial = new File(this.target.getAbsolutePath() +
 			TorrentByteStorage.PARTIAL_FILE_NAME_SUFFIX);
@@ -69,22 +93,47 @@ public class FileStorage implements TorrentByteStorage {
 				this.partial.getAbsolutePath());
 			this.current = this.partial;
 		} else if (!this.target.exists()) {
+			this.current = this.policy.isInPlace()
+				? this.target
+				: this.partial;
 			logger.debug("Downloading new file to {}...",
-				this.partial.getAbsolutePath());
-			this.current = this.partial;
+				this.current.getAbsolutePath());
 		} else {
 			logger.debug("Using existing file {}.",
 				this.target.getAbsolutePath());
 			this.current = this.target;
 		}
 
+		if (this.current.exists()) {
+			this.open();
+		}
+	}
+
+	/**
+	 * Open the file, creating and allocating it if needed.
+	 */
+	private synchronized FileChannel open() throws IOException {
+		if (this.channel != null) {
+			return this.channel;
+		}
+
+		File parent = this.current.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+
 		this.raf = new RandomAccessFile(this.current, "rw");
+		long length = this.raf.length();
 
 		// Set the file length to the appropriate size, eventually truncating
 		// or extending the file if it already exists with a different size.
 		this.raf.setLength(this.size);
 
-		this.channel = raf.getChannel();
+		FileChannel channel = this.raf.getChannel();
+		if (this.policy.getAllocation() == StoragePolicy.Allocation.FULL &&
+				length < this.size) {
+			this.allocate(channel, length);
+		}
 		logger.info("Initialized byte storage file at {} " +
 			"({}+{} byte(s)).",
 			new Object[] {
@@ -92,6 +141,9 @@ public class FileStorage implements TorrentByteStorage {
 				this.offset,
 				this.size,
 			});
+
+		this.channel = channel;
+		return channel;
 	}
 
 	protected long offset() {
@@ -111,7 +163,16 @@ public class FileStorage implements TorrentByteStorage {
 			throw new IllegalArgumentException("Invalid storage read request!");
 		}
 
-		int bytes = this.channel.read(buffer, offset);
+		FileChannel channel = this.channel;
+		if (channel == null) {
+			// Never written to yet.
+			while (buffer.hasRemaining()) {
+				buffer.put((byte)0);
+			}
+			return requested;
+		}
+
+		int bytes = channel.read(buffer, offset);
 		if (bytes < requested) {
 			throw new IOException("Storage underrun!");
 		}
@@ -127,12 +188,51 @@ public class FileStorage implements TorrentByteStorage {
 			throw new IllegalArgumentException("Invalid storage write request!");
 		}
 
-		return this.channel.write(buffer, offset);
+		int bytes = this.open().write(buffer, offset);
+		this.dirty = true;
+
+		if (this.policy.getDurability() ==
+				StoragePolicy.Durability.EVERY_WRITE) {
+			this.sync();
+		}
+
+		return bytes;
+	}
+
+	@Override
+	public long transferTo(long offset, long length,
+		WritableByteChannel target) throws IOException {
+		if (offset < 0 || offset + length > this.size) {
+			throw new IllegalArgumentException("Invalid storage transfer request!");
+		}
+
+		return this.open().transferTo(offset, length, target);
+	}
+
+	/**
+	 * Force the data written since the last sync to the storage device.
+	 *
+	 * @return Whether there was anything to sync.
+	 */
+	public boolean sync() throws IOException {
+		if (!this.dirty) {
+			return false;
+		}
+
+		// Clear the flag first: a write racing with the sync is either
+		// covered by it, or flags the file again.
+		this.dirty = false;
+		this.channel.force(false);
+		return true;
 	}
 
 	@Override
 	public synchronized void close() throws IOException {
-		this.channel.force(true);
+		if (this.channel == null) {
+			return;
+		}
+
+		this.force();
 		this.raf.close();
 	}
 
@@ -140,7 +240,17 @@ public class FileStorage implements TorrentByteStorage {
 	 */
 	@Override
 	public synchronized void finish() throws IOException {
-		this.channel.force(true);
+		if (this.channel == null) {
+			// Never written to: only an empty file has all its data.
+			if (this.size > 0) {
+				return;
+			}
+
+			this.current = this.target;
+			this.open();
+		}
+
+		this.force();
 
 		// Nothing more to do if we're already on the target file.
 		if (this.isFinished()) {
@@ -165,8 +275,45 @@ public class FileStorage implements TorrentByteStorage {
 			this.target.getName());
 	}
 
+	/**
+	 * Tells whether the file is at its target location, or was never
+	 * written to and has nothing to be moved there.
+	 */
 	@Override
-	public boolean isFinished() {
-		return this.current.equals(this.target);
+	public synchronized boolean isFinished() {
+		return this.current.equals(this.target) ||
+			(this.channel == null && this.size > 0);
+	}
+
+	/**
+	 * Force the file's data and metadata to the storage device, unless the
+	 * policy leaves that to the operating system.
+	 */
+	private void force() throws IOException {
+		if (this.channel != null &&
+				this.policy.getDurability() != StoragePolicy.Durability.NONE) {
+			this.dirty = false;
+			this.channel.force(true);
+		}
+	}
+
+	/**
+	 * Fill the file with zeros from the given position up to its size, to
+	 * have the file system allocate its blocks.
+	 *
+	 * @param channel The channel of the file.
+	 * @param from The position to start filling from.
+	 */
+	private void allocate(FileChannel channel, long from)
+		throws IOException {
+		ByteBuffer zeros = ByteBuffer.allocateDirect(ALLOCATION_BUFFER_SIZE);
+		for (long position = from; position < this.size; ) {
+			zeros.clear();
+			zeros.limit((int)Math.min(zeros.capacity(), this.size - position));
+			position += channel.write(zeros, position);
+		}
+
+		logger.debug("Allocated {} byte(s) of {}.", this.size - from,
+			this.current.getAbsolutePath());
 	}
 }
@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * In-memory torrent byte storage.
+ *
+ * <p>
+ * The torrent data is held off-heap, in direct buffers of a fixed chunk
+ * size, so that a storage can be larger than the 2 GB a single buffer can
+ * address. Chunks are only allocated when first written to; the parts of
+ * the storage never written to read as zeros.
+ * </p>
+ *
+ * <p>
+ * Nothing is ever written to disk: the data is lost when the storage is
+ * closed, and finishing the storage has nothing to do. Reads and writes of
+ * distinct chunks don't contend on any lock, and are thread-safe as long as
+ * concurrent operations don't overlap.
+ * </p>
+ */
+public class MemoryStorage implements TorrentByteStorage {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(MemoryStorage.class);
+
+	/** Default chunk size, in bytes. */
+	public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+	private final long size;
+	private final int chunkSize;
+	private final AtomicReferenceArray<ByteBuffer> chunks;
+	private volatile boolean closed;
+
+	public MemoryStorage(long size) {
+		this(size, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Create a new in-memory byte storage.
+	 *
+	 * @param size The total size of the storage, in bytes.
+	 * @param chunkSize The size of the buffers the data is held in.
+	 */
+	public MemoryStorage(long size, int chunkSize) {
+		if (size < 0 || chunkSize <= 0) {
+			throw new IllegalArgumentException("Invalid storage size!");
+		}
+
+		long count = (size + chunkSize - 1) / chunkSize;
+		if (count > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Chunk size too small for " +
+				size + " byte(s)!");
+		}
+
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.chunks = new AtomicReferenceArray<ByteBuffer>((int)count);
+		this.closed = false;
+
+		logger.debug("Initialized in-memory byte storage of {} byte(s) " +
+			"in {} chunk(s).", size, count);
+	}
+
+	@Override
+	public long size() {
+		return this.size;
+	}
+
+	@Override
+	public int read(ByteBuffer buffer, long offset) throws IOException {
+		return this.transfer(buffer, offset, false);
+	}
+
+	@Override
+	public int write(ByteBuffer buffer, long offset) throws IOException {
+		return this.transfer(buffer, offset, true);
+	}
+
+	@Override
+	public long transferTo(long offset, long length,
+		WritableByteChannel target) throws IOException {
+		this.check(offset, length);
+
+		long bytes = 0;
+		while (bytes < length) {
+			long position = offset + bytes;
+			int index = (int)(position / this.chunkSize);
+			int start = (int)(position % this.chunkSize);
+			int chunk = (int)Math.min(this.chunkLength(index) - start,
+				length - bytes);
+
+			ByteBuffer view = this.chunk(index).duplicate();
+			view.limit(start + chunk);
+			view.position(start);
+
+			int written = target.write(view);
+			bytes += written;
+			if (written < chunk) {
+				break;
+			}
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Release the memory held by this storage; its data is lost.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		for (int i=0; i < this.chunks.length(); i++) {
+			this.chunks.set(i, null);
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+	}
+
+	@Override
+	public boolean isFinished() {
+		return true;
+	}
+
+	/**
+	 * Returns the number of bytes of memory currently allocated.
+	 */
+	public long getAllocated() {
+		long allocated = 0;
+		for (int i=0; i < this.chunks.length(); i++) {
+			ByteBuffer chunk = this.chunks.get(i);
+			if (chunk != null) {
+				allocated += chunk.capacity();
+			}
+		}
+		return allocated;
+	}
+
+	/**
+	 * Copy bytes between the caller's buffer and the chunks an operation
+	 * spans.
+	 */
+	private int transfer(ByteBuffer buffer, long offset, boolean write)
+		throws IOException {
+		int length = buffer.remaining();
+		this.check(offset, length);
+
+		int bytes = 0;
+		while (bytes < length) {
+			long position = offset + bytes;
+			int index = (int)(position / this.chunkSize);
+			int start = (int)(position % this.chunkSize);
+			int chunk = Math.min(this.chunkLength(index) - start,
+				length - bytes);
+
+			ByteBuffer view = write || this.chunks.get(index) != null
+				? this.chunk(index).duplicate()
+				: null;
+
+			if (view == null) {
+				// Never written to: reads as zeros.
+				for (int i=0; i < chunk; i++) {
+					buffer.put((byte)0);
+				}
+			} else {
+				view.limit(start + chunk);
+				view.position(start);
+				if (write) {
+					int limit = buffer.limit();
+					buffer.limit(buffer.position() + chunk);
+					view.put(buffer);
+					buffer.limit(limit);
+				} else {
+					buffer.put(view);
+				}
+			}
+
+			bytes += chunk;
+		}
+
+		return bytes;
+	}
+
+	private void check(long offset, long length) throws IOException {
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+
+		if (offset < 0 || offset + length > this.size) {
+			throw new IllegalArgumentException("Buffer overrun (" +
+				offset + " + " + length + " > " + this.size + ") !");
+		}
+	}
+
+	private int chunkLength(int index) {
+		return (int)Math.min(this.chunkSize,
+			this.size - (long)index * this.chunkSize);
+	}
+
+	/**
+	 * Returns the chunk of the given index, allocating it if needed.
+	 */
+	private ByteBuffer chunk(int index) {
+		ByteBuffer chunk = this.chunks.get(index);
+		if (chunk == null) {
+			this.chunks.compareAndSet(index, null,
+				ByteBuffer.allocateDirect(this.chunkLength(index)));
+			chunk = this.chunks.get(index);
+		}
+		return chunk;
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.storage;
+
+
+/**
+ * Storage backend, allocation and durability policy of a torrent.
+ *
+ * <p>
+ * The default policy matches the historical behavior of the file storage:
+ * files are sparse, downloaded to a partial file moved to its target
+ * location once complete, and only forced to the device when the storage
+ * is finished or closed.
+ * </p>
+ *
+ * <p>
+ * The allocation and durability settings apply to the files of the
+ * {@link Backend#FILE} and {@link Backend#TIERED} backends only.
+ * </p>
+ */
+public class StoragePolicy {
+
+	/** Default interval between group syncs, in milliseconds. */
+	public static final long DEFAULT_SYNC_INTERVAL = 5000;
+
+	/** Default memory budget of the tiered backend, in bytes. */
+	public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+	/**
+	 * Where the torrent's data is held.
+	 */
+	public enum Backend {
+		/** In the torrent's files, see {@link FileCollectionStorage}. */
+		FILE,
+
+		/**
+		 * In memory only, see {@link MemoryStorage}: no file is ever
+		 * created, and the data is lost when the torrent is closed. The
+		 * torrent can't be seeded from existing files.
+		 */
+		MEMORY,
+
+		/**
+		 * In memory up to the memory budget, spilling the least recently
+		 * used pieces to the torrent's files, see {@link TieredStorage}.
+		 */
+		TIERED;
+	};
+
+	/**
+	 * How the space of the files is reserved.
+	 */
+	public enum Allocation {
+		/**
+		 * Files are only set to their size, leaving the file system to
+		 * allocate blocks as they get written; most file systems keep such
+		 * files sparse.
+		 */
+		SPARSE,
+
+		/**
+		 * Files are filled with zeros up to their size when created or
+		 * extended, so that their blocks are allocated up front, and as
+		 * contiguously as the file system can. This limits the fragmentation
+		 * caused by pieces being written in random order, at the cost of
+		 * writing each file twice.
+		 */
+		FULL;
+	};
+
+	/**
+	 * When written data is forced to the storage device.
+	 */
+	public enum Durability {
+		/** Never: flushing is left to the operating system. */
+		NONE,
+
+		/** When the storage is finished or closed. */
+		ON_CLOSE,
+
+		/**
+		 * When the storage is finished or closed, and on writes, at most
+		 * once per sync interval, for all the files written to since the
+		 * previous sync.
+		 */
+		PERIODIC,
+
+		/** After each write, and when the storage is finished or closed. */
+		EVERY_WRITE;
+	};
+
+	private Backend backend;
+	private long memoryBudget;
+	private Allocation allocation;
+	private Durability durability;
+	private long syncInterval;
+	private boolean inPlace;
+
+	public StoragePolicy() {
+		this.backend = Backend.FILE;
+		this.memoryBudget = DEFAULT_MEMORY_BUDGET;
+		this.allocation = Allocation.SPARSE;
+		this.durability = Durability.ON_CLOSE;
+		this.syncInterval = DEFAULT_SYNC_INTERVAL;
+		this.inPlace = false;
+	}
+
+	public Backend getBackend() {
+		return this.backend;
+	}
+
+	public void setBackend(Backend backend) {
+		this.backend = backend;
+	}
+
+	/**
+	 * Returns the maximum number of bytes of memory the
+	 * {@link Backend#TIERED} backend keeps pieces in.
+	 */
+	public long getMemoryBudget() {
+		return this.memoryBudget;
+	}
+
+	public void setMemoryBudget(long memoryBudget) {
+		if (memoryBudget < 0) {
+			throw new IllegalArgumentException("Invalid memory budget!");
+		}
+		this.memoryBudget = memoryBudget;
+	}
+
+	public Allocation getAllocation() {
+		return this.allocation;
+	}
+
+	public void setAllocation(Allocation allocation) {
+		this.allocation = allocation;
+	}
+
+	public Durability getDurability() {
+		return this.durability;
+	}
+
+	public void setDurability(Durability durability) {
+		this.durability = durability;
+	}
+
+	/**
+	 * Returns the minimum interval between group syncs, in milliseconds,
+	 * with the {@link Durability#PERIODIC} durability.
+	 */
+	public long getSyncInterval() {
+		return this.syncInterval;
+	}
+
+	public void setSyncInterval(long syncInterval) {
+		if (syncInterval < 0) {
+			throw new IllegalArgumentException("Invalid sync interval!");
+		}
+		this.syncInterval = syncInterval;
+	}
+
+	/**
+	 * Tells whether new files are downloaded in place, straight to their
+	 * target location.
+	 *
+	 * <p>
+	 * This saves moving the partial file to its target once complete, which
+	 * is a full copy when both are on different file systems, but an
+	 * incomplete file can then be found at the target location.
+	 * </p>
+	 */
+	public boolean isInPlace() {
+		return this.inPlace;
+	}
+
+	public void setInPlace(boolean inPlace) {
+		this.inPlace = inPlace;
+	}
+
+	public String toString() {
+		if (this.backend == Backend.MEMORY) {
+			return "memory backend";
+		}
+
+		return String.format("%s backend%s, %s allocation, %s durability%s%s",
+			this.backend.name().toLowerCase(),
+			this.backend == Backend.TIERED
+				? " (" + this.memoryBudget + " bytes)" : "",
+			this.allocation.name().toLowerCase(),
+			this.durability.name().toLowerCase(),
+			this.durability == Durability.PERIODIC
+				? " (" + this.syncInterval + "ms)" : "",
+			this.inPlace ? ", in place" : "");
+	}
+}
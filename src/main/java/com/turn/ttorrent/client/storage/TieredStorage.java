@@ -0,0 +1,317 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Torrent byte storage keeping hot data in memory, over a backing storage.
+ *
+ * <p>
+ * The storage is split into pages, typically one per piece. Pages accessed
+ * are held off-heap in direct buffers, up to a memory budget; past that
+ * budget, the least recently used pages are evicted, and written to the
+ * backing storage if they were modified. As long as the torrent's data fits
+ * in the budget, or is consumed before getting evicted, it never reaches
+ * the backing storage until the storage is finished or closed.
+ * </p>
+ *
+ * <p>
+ * A page is loaded from the backing storage when first accessed, so that
+ * partial writes don't lose the rest of the page when it is written back;
+ * pages entirely overwritten, like whole pieces, are not loaded. All
+ * operations are serialized on the storage.
+ * </p>
+ */
+public class TieredStorage implements TorrentByteStorage {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(TieredStorage.class);
+
+	private final TorrentByteStorage backing;
+	private final int pageSize;
+	private final long budget;
+
+	/** Resident pages, in access order. */
+	private final LinkedHashMap<Long, Page> pages;
+	private long resident;
+	private ByteBuffer spare;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Create a new tiered byte storage.
+	 *
+	 * @param backing The storage pages are loaded from and evicted to.
+	 * @param pageSize The size of the pages, in bytes.
+	 * @param budget The maximum number of bytes of memory used for pages. At
+	 * least one page is always kept in memory.
+	 */
+	public TieredStorage(TorrentByteStorage backing, int pageSize,
+		long budget) {
+		if (pageSize <= 0 || budget < 0) {
+			throw new IllegalArgumentException("Invalid page size or budget!");
+		}
+
+		this.backing = backing;
+		this.pageSize = pageSize;
+		this.budget = budget;
+		this.pages = new LinkedHashMap<Long, Page>(16, 0.75f, true);
+		this.resident = 0;
+		this.spare = null;
+	}
+
+	@Override
+	public long size() {
+		return this.backing.size();
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer buffer, long offset)
+		throws IOException {
+		return this.transfer(buffer, offset, false);
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer buffer, long offset)
+		throws IOException {
+		return this.transfer(buffer, offset, true);
+	}
+
+	@Override
+	public synchronized long transferTo(long offset, long length,
+		WritableByteChannel target) throws IOException {
+		this.check(offset, length);
+
+		long bytes = 0;
+		while (bytes < length) {
+			long position = offset + bytes;
+			long index = position / this.pageSize;
+			int start = (int)(position % this.pageSize);
+			int chunk = (int)Math.min(this.pageLength(index) - start,
+				length - bytes);
+
+			long written;
+			Page page = this.pages.get(index);
+			if (page != null) {
+				this.hits++;
+				ByteBuffer view = page.data.duplicate();
+				view.limit(start + chunk);
+				view.position(start);
+				written = target.write(view);
+			} else {
+				this.misses++;
+				written = this.backing.transferTo(position, chunk, target);
+			}
+
+			bytes += written;
+			if (written < chunk) {
+				break;
+			}
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Write the modified pages back, and close the backing storage.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		this.flush();
+		this.pages.clear();
+		this.resident = 0;
+		this.spare = null;
+		this.backing.close();
+	}
+
+	/**
+	 * Write the modified pages back, and finish the backing storage.
+	 */
+	@Override
+	public synchronized void finish() throws IOException {
+		this.flush();
+		this.backing.finish();
+	}
+
+	@Override
+	public synchronized boolean isFinished() {
+		return this.backing.isFinished();
+	}
+
+	/**
+	 * Write all the modified pages to the backing storage.
+	 *
+	 * <p>
+	 * The pages stay in memory.
+	 * </p>
+	 */
+	public synchronized void flush() throws IOException {
+		for (Map.Entry<Long, Page> entry : this.pages.entrySet()) {
+			this.writeBack(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/** Returns the number of bytes of memory held by resident pages. */
+	public synchronized long getResident() {
+		return this.resident;
+	}
+
+	public synchronized String toString() {
+		return String.format("%d/%d byte(s) resident, %d hit(s), " +
+			"%d miss(es), %d eviction(s)",
+			this.resident, this.budget, this.hits, this.misses,
+			this.evictions);
+	}
+
+	/**
+	 * Copy bytes between the caller's buffer and the pages an operation
+	 * spans, loading them as needed.
+	 */
+	private int transfer(ByteBuffer buffer, long offset, boolean write)
+		throws IOException {
+		int length = buffer.remaining();
+		this.check(offset, length);
+
+		int bytes = 0;
+		while (bytes < length) {
+			long position = offset + bytes;
+			long index = position / this.pageSize;
+			int start = (int)(position % this.pageSize);
+			int chunk = Math.min(this.pageLength(index) - start,
+				length - bytes);
+
+			// A write covering the whole page doesn't need its current content.
+			Page page = this.page(index,
+				write && start == 0 && chunk == this.pageLength(index));
+			ByteBuffer view = page.data.duplicate();
+			view.limit(start + chunk);
+			view.position(start);
+			if (write) {
+				int limit = buffer.limit();
+				buffer.limit(buffer.position() + chunk);
+				view.put(buffer);
+				buffer.limit(limit);
+				page.dirty = true;
+			} else {
+				buffer.put(view);
+			}
+
+			bytes += chunk;
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Returns the page of the given index, loading it from the backing
+	 * storage, and making room for it, if it is not resident.
+	 *
+	 * @param index The index of the page.
+	 * @param overwrite Whether the page is about to be entirely overwritten,
+	 * in which case it is not loaded.
+	 */
+	private Page page(long index, boolean overwrite) throws IOException {
+		Page page = this.pages.get(index);
+		if (page != null) {
+			this.hits++;
+			return page;
+		}
+
+		this.misses++;
+		int length = this.pageLength(index);
+		this.evict(length);
+
+		ByteBuffer data = this.spare != null && this.spare.capacity() == length
+			? this.spare
+			: ByteBuffer.allocateDirect(length);
+		this.spare = null;
+
+		data.clear();
+		if (!overwrite) {
+			this.backing.read(data, index * this.pageSize);
+			data.clear();
+		}
+
+		page = new Page(data);
+		this.pages.put(index, page);
+		this.resident += length;
+		return page;
+	}
+
+	/**
+	 * Evict the least recently used pages until the given number of bytes
+	 * fits in the budget, or no page is left.
+	 */
+	private void evict(int needed) throws IOException {
+		Iterator<Map.Entry<Long, Page>> it = this.pages.entrySet().iterator();
+		while (this.resident + needed > this.budget && it.hasNext()) {
+			Map.Entry<Long, Page> eldest = it.next();
+			this.writeBack(eldest.getKey(), eldest.getValue());
+			it.remove();
+
+			this.resident -= eldest.getValue().data.capacity();
+			this.spare = eldest.getValue().data;
+			this.evictions++;
+		}
+	}
+
+	private void writeBack(long index, Page page) throws IOException {
+		if (!page.dirty) {
+			return;
+		}
+
+		ByteBuffer data = page.data.duplicate();
+		data.clear();
+		this.backing.write(data, index * this.pageSize);
+		page.dirty = false;
+		logger.trace("Wrote back page #{} to {}.", index, this.backing);
+	}
+
+	private void check(long offset, long length) {
+		if (offset < 0 || offset + length > this.size()) {
+			throw new IllegalArgumentException("Buffer overrun (" +
+				offset + " + " + length + " > " + this.size() + ") !");
+		}
+	}
+
+	private int pageLength(long index) {
+		return (int)Math.min(this.pageSize,
+			this.size() - index * this.pageSize);
+	}
+
+	private static class Page {
+
+		private final ByteBuffer data;
+		private boolean dirty;
+
+		Page(ByteBuffer data) {
+			this.data = data;
+			this.dirty = false;
+		}
+	}
+}
@@ -17,6 +17,7 @@ package com.turn.ttorrent.client.storage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 
 /**
@@ -78,6 +79,27 @@ public interface TorrentByteStorage {
 	 */
 	public int write(ByteBuffer block, long offset) throws IOException;
 
+	/**
+	 * Transfer bytes from the byte storage directly to a channel.
+	 *
+	 * <p>
+	 * Unlike {@link #read}, the bytes are not copied into a buffer first:
+	 * when the storage is backed by files, the transfer is carried out by
+	 * the operating system, from its file cache to the target channel.
+	 * </p>
+	 *
+	 * @param offset The offset, in bytes, to transfer from. This must be
+	 * within the storage boundary.
+	 * @param length The number of bytes to transfer.
+	 * @param target The channel to write the bytes to.
+	 * @return The number of bytes transferred, possibly less than requested
+	 * if the target channel is non-blocking and can't take more for now.
+	 * @throws IOException If an I/O error occurs while reading from the byte
+	 * storage or writing to the target channel.
+	 */
+	public long transferTo(long offset, long length,
+		WritableByteChannel target) throws IOException;
+
 	/**
 	 * Close this byte storage.
 	 *
@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A fixed-size bit set safe for concurrent use without locking.
+ *
+ * <p>
+ * Bits are stored in an array of atomic words: single bits are set and
+ * cleared with a compare-and-set of their word, and never lose a concurrent
+ * update of another bit. Operations over the whole set read it word by
+ * word; they see each word atomically, but not the set as a whole.
+ * </p>
+ *
+ * <p>
+ * Unlike {@link BitSet}, searching and counting the bits set in two sets at
+ * once doesn't require a copy of either: this is what the piece picker
+ * needs to find the pieces a peer has that we want, for each decision,
+ * without allocating.
+ * </p>
+ */
+public class ConcurrentBitSet {
+
+	private final int size;
+	private final AtomicLongArray words;
+
+	/**
+	 * Create a new bit set, all clear.
+	 *
+	 * @param size The number of bits of the set.
+	 */
+	public ConcurrentBitSet(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Invalid bit set size!");
+		}
+
+		this.size = size;
+		this.words = new AtomicLongArray((size + 63) >>> 6);
+	}
+
+	/**
+	 * Returns the number of bits of this set.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	public boolean get(int index) {
+		this.check(index);
+		return (this.words.get(index >>> 6) & (1L << index)) != 0;
+	}
+
+	public void set(int index) {
+		this.check(index);
+		int w = index >>> 6;
+		long bit = 1L << index;
+
+		long word;
+		do {
+			word = this.words.get(w);
+			if ((word & bit) != 0) {
+				return;
+			}
+		} while (!this.words.compareAndSet(w, word, word | bit));
+	}
+
+	public void clear(int index) {
+		this.check(index);
+		int w = index >>> 6;
+		long bit = 1L << index;
+
+		long word;
+		do {
+			word = this.words.get(w);
+			if ((word & bit) == 0) {
+				return;
+			}
+		} while (!this.words.compareAndSet(w, word, word & ~bit));
+	}
+
+	public void set(int index, boolean value) {
+		if (value) {
+			this.set(index);
+		} else {
+			this.clear(index);
+		}
+	}
+
+	/**
+	 * Clear all the bits of this set.
+	 */
+	public void clear() {
+		for (int w=0; w < this.words.length(); w++) {
+			this.words.set(w, 0L);
+		}
+	}
+
+	/**
+	 * Replace the content of this set with the given bits.
+	 *
+	 * <p>
+	 * Bits past the size of this set are ignored.
+	 * </p>
+	 */
+	public void copyFrom(BitSet bits) {
+		for (int w=0; w < this.words.length(); w++) {
+			long word = 0L;
+			int end = Math.min((w + 1) << 6, this.size);
+			for (int i = bits.nextSetBit(w << 6); i >= 0 && i < end;
+					i = bits.nextSetBit(i+1)) {
+				word |= 1L << i;
+			}
+			this.words.set(w, word);
+		}
+	}
+
+	/**
+	 * Returns the number of bits set.
+	 */
+	public int cardinality() {
+		int count = 0;
+		for (int w=0; w < this.words.length(); w++) {
+			count += Long.bitCount(this.words.get(w));
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the index of the first bit set at or after the given index, or
+	 * -1 if there is none.
+	 */
+	public int nextSetBit(int from) {
+		if (from < 0) {
+			throw new IndexOutOfBoundsException("Invalid index " + from);
+		}
+
+		if (from >= this.size) {
+			return -1;
+		}
+
+		int w = from >>> 6;
+		long word = this.words.get(w) & (-1L << from);
+		while (word == 0) {
+			if (++w == this.words.length()) {
+				return -1;
+			}
+			word = this.words.get(w);
+		}
+
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * Returns the index of the first bit set in both this set and the given
+	 * one, at or after the given index, or -1 if there is none.
+	 */
+	public int nextSetBit(int from, ConcurrentBitSet other) {
+		if (from < 0) {
+			throw new IndexOutOfBoundsException("Invalid index " + from);
+		}
+
+		int length = Math.min(this.words.length(), other.words.length());
+		int w = from >>> 6;
+		if (w >= length) {
+			return -1;
+		}
+
+		long word = this.words.get(w) & other.words.get(w) & (-1L << from);
+		while (word == 0) {
+			if (++w == length) {
+				return -1;
+			}
+			word = this.words.get(w) & other.words.get(w);
+		}
+
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * Tells whether this set and the given one have a bit set in common.
+	 */
+	public boolean intersects(ConcurrentBitSet other) {
+		return this.nextSetBit(0, other) >= 0;
+	}
+
+	/**
+	 * Returns the number of bits set in both this set and the given one.
+	 */
+	public int intersectionCardinality(ConcurrentBitSet other) {
+		int length = Math.min(this.words.length(), other.words.length());
+		int count = 0;
+		for (int w=0; w < length; w++) {
+			count += Long.bitCount(this.words.get(w) & other.words.get(w));
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a copy of this set as a {@link BitSet}.
+	 */
+	public BitSet toBitSet() {
+		BitSet bits = new BitSet(this.size);
+		for (int i = this.nextSetBit(0); i >= 0; i = this.nextSetBit(i+1)) {
+			bits.set(i);
+		}
+		return bits;
+	}
+
+	public String toString() {
+		return this.toBitSet().toString();
+	}
+
+	private void check(int index) {
+		if (index < 0 || index >= this.size) {
+			throw new IndexOutOfBoundsException("Invalid index " + index +
+				" (size " + this.size + ")");
+		}
+	}
+}
@@ -35,9 +35,11 @@ import java.nio.ByteBuffer;
 public class Peer {
 
 	private final InetSocketAddress address;
-	private final String hostId;
+	private final PeerKey addressKey;
+	private String hostId;
 
 	private ByteBuffer peerId;
+	private PeerKey idKey;
 	private String hexPeerId;
 	
 	protected boolean server = false;
@@ -93,9 +95,8 @@ public class Peer {
 	}
 	public Peer(InetSocketAddress address, ByteBuffer peerId, boolean server) {
 		this.address = address;
-		this.hostId = String.format("%s:%d",
-			this.address.getAddress(),
-			this.address.getPort());
+		this.addressKey = PeerKey.fromAddress(address);
+		this.hostId = null;
 
 		this.setPeerId(peerId);
 		this.server = server;
@@ -123,17 +124,26 @@ public class Peer {
 	public void setPeerId(ByteBuffer peerId) {
 		if (peerId != null) {
 			this.peerId = peerId;
-			this.hexPeerId = Torrent.byteArrayToHexString(peerId.array());
+			this.idKey = PeerKey.fromPeerId(peerId);
 		} else {
 			this.peerId = null;
-			this.hexPeerId = null;
+			this.idKey = null;
 		}
+		this.hexPeerId = null;
 	}
 
 	/**
 	 * Get the hexadecimal-encoded string representation of this peer's ID.
+	 *
+	 * <p>
+	 * The string is only built when first requested; use {@link #getIdKey()}
+	 * to index peers by their ID.
+	 * </p>
 	 */
 	public String getHexPeerId() {
+		if (this.hexPeerId == null && this.peerId != null) {
+			this.hexPeerId = Torrent.byteArrayToHexString(this.peerId.array());
+		}
 		return this.hexPeerId;
 	}
 
@@ -141,8 +151,33 @@ public class Peer {
 	 * Get the shortened hexadecimal-encoded peer ID.
 	 */
 	public String getShortHexPeerId() {
+		String hex = this.getHexPeerId();
 		return String.format("..%s",
-			this.hexPeerId.substring(this.hexPeerId.length()-6).toUpperCase());
+			hex.substring(hex.length()-6).toUpperCase());
+	}
+
+	/**
+	 * Returns the binary key of this peer's ID, or <em>null</em> if its ID
+	 * is not known yet.
+	 */
+	public PeerKey getIdKey() {
+		return this.idKey;
+	}
+
+	/**
+	 * Returns the binary key of this peer's address.
+	 */
+	public PeerKey getAddressKey() {
+		return this.addressKey;
+	}
+
+	/**
+	 * Returns the key this peer is best identified by: its ID key if its ID
+	 * is known, its address key otherwise.
+	 */
+	public PeerKey getKey() {
+		PeerKey key = this.idKey;
+		return key != null ? key : this.addressKey;
 	}
 
 	/**
@@ -170,6 +205,11 @@ public class Peer {
 	 * Returns this peer's host identifier ("host:port").
 	 */
 	public String getHostIdentifier() {
+		if (this.hostId == null) {
+			this.hostId = String.format("%s:%d",
+				this.address.getAddress(),
+				this.address.getPort());
+		}
 		return this.hostId;
 	}
 
@@ -201,7 +241,8 @@ public class Peer {
 			.append("/");
 
 		if (this.hasPeerId()) {
-			s.append(this.hexPeerId.substring(this.hexPeerId.length()-6));
+			String hex = this.getHexPeerId();
+			s.append(hex.substring(hex.length()-6));
 		} else {
 			s.append("?");
 		}
@@ -218,9 +259,9 @@ public class Peer {
 			return false;
 		}
 
-		return this.hostId.equals(other.hostId) &&
+		return this.addressKey.equals(other.addressKey) &&
 			(this.hasPeerId()
-				 ? this.hexPeerId.equals(other.hexPeerId)
+				 ? this.idKey.equals(other.idKey)
 				 : true);
 	}
 }
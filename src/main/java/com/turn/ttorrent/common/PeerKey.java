@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Compact binary key identifying a peer, for use in hash-based registries.
+ *
+ * <p>
+ * A key is either built from a peer's raw ID (20 bytes), or from its packed
+ * address (the 4 or 16 bytes of its IP address followed by its port number
+ * on 2 bytes). Keys of both kinds never compare equal to each other since
+ * their lengths differ, so they can share the same map, in the same way the
+ * hexadecimal peer ID and the <em>ip:port</em> host identifier strings used
+ * to. Building a key does not involve any string formatting, and its hash
+ * code is computed once.
+ * </p>
+ */
+public final class PeerKey {
+
+	private final byte[] bytes;
+	private final int hash;
+
+	private PeerKey(byte[] bytes) {
+		this.bytes = bytes;
+		this.hash = Arrays.hashCode(bytes);
+	}
+
+	/**
+	 * Build the key of a peer ID.
+	 *
+	 * @param peerId The raw peer ID; it is read from its beginning,
+	 * regardless of its current position.
+	 */
+	public static PeerKey fromPeerId(ByteBuffer peerId) {
+		ByteBuffer id = peerId.duplicate();
+		id.clear();
+		byte[] bytes = new byte[id.remaining()];
+		id.get(bytes);
+		return new PeerKey(bytes);
+	}
+
+	/**
+	 * Build the key of a peer address.
+	 *
+	 * @param ip The raw IP address, as 4 or 16 bytes.
+	 * @param port The port number.
+	 */
+	public static PeerKey fromAddress(byte[] ip, int port) {
+		byte[] bytes = Arrays.copyOf(ip, ip.length + 2);
+		bytes[ip.length] = (byte)(port >> 8);
+		bytes[ip.length + 1] = (byte)port;
+		return new PeerKey(bytes);
+	}
+
+	/**
+	 * Build the key of a peer address.
+	 *
+	 * @param address The resolved peer address, with port.
+	 */
+	public static PeerKey fromAddress(InetSocketAddress address) {
+		return fromAddress(address.getAddress().getAddress(),
+			address.getPort());
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+
+		return o instanceof PeerKey &&
+			this.hash == ((PeerKey)o).hash &&
+			Arrays.equals(this.bytes, ((PeerKey)o).bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+
+	/**
+	 * Returns the hexadecimal representation of the key, for debugging
+	 * purposes.
+	 */
+	public String toString() {
+		return Torrent.byteArrayToHexString(this.bytes);
+	}
+}
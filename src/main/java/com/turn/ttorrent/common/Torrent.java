@@ -15,7 +15,6 @@
  */
 package com.turn.ttorrent.common;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -55,9 +54,11 @@ import org.apache.log4j.PatternLayout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.turn.ttorrent.bcodec.BDecoder;
 import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.bcodec.BEView;
 import com.turn.ttorrent.bcodec.BEncoder;
+import com.turn.ttorrent.bcodec.BLazyDecoder;
+import com.turn.ttorrent.bcodec.InvalidBEncodingException;
 
 /**
  * A torrent file tracked by the controller's BitTorrent tracker.
@@ -124,6 +125,13 @@ public class Torrent extends Observable {
 	protected Map<String, BEValue> decoded;
 	protected Map<String, BEValue> decoded_info;
 
+	/**
+	 * Lazy views over the meta-info and its info dictionary, in the encoded
+	 * meta-info bytes.
+	 */
+	protected BEView metainfo;
+	protected BEView info;
+
 	private byte[] info_hash;
 	private String hex_info_hash;
 
@@ -151,8 +159,15 @@ public class Torrent extends Observable {
 	 * @param torrent The meta-info byte data.
 	 * @param parent The parent directory or location of the torrent files.
 	 * @param seeder Whether we'll be seeding for this torrent or not.
-	 * @throws IOException When the info dictionary can't be read or
-	 * encoded and hashed back to create the torrent's SHA-1 hash.
+	 * <p>
+	 * The info hash is computed over the info dictionary's bytes as they
+	 * appear in the meta-info data, without re-encoding it. The meta-info is
+	 * only indexed, not materialized: the decoded maps are only built when
+	 * asked for, so that the pieces hashes are not kept in memory twice.
+	 * </p>
+	 *
+	 * @throws IOException When the meta-info or its info dictionary can't be
+	 * decoded.
 	 * @throws NoSuchAlgorithmException If the SHA-1 algorithm is not
 	 * available.
 	 */
@@ -162,14 +177,17 @@ public class Torrent extends Observable {
 		this.seeder = seeder;
 		this.pieceHash = pieceHash;
 
-		this.decoded = BDecoder.bdecode(
-				new ByteArrayInputStream(this.encoded)).getMap();
+		this.metainfo = BLazyDecoder.bdecode(ByteBuffer.wrap(this.encoded));
+		if (this.metainfo == null || !this.metainfo.isMap()) {
+			throw new InvalidBEncodingException("Invalid torrent meta-info!");
+		}
 
-		this.decoded_info = this.decoded.get("info").getMap();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		BEncoder.bencode(this.decoded_info, baos);
-		this.encoded_info = baos.toByteArray();
-		this.info_hash = Torrent.hash(this.encoded_info);
+		this.info = this.metainfo.get("info");
+		if (this.info == null || !this.info.isMap()) {
+			throw new InvalidBEncodingException("Missing info dictionary!");
+		}
+
+		this.info_hash = Torrent.hash(this.info.getRaw());
 		this.hex_info_hash = Torrent.byteArrayToHexString(this.info_hash);
 
 		/**
@@ -189,8 +207,8 @@ public class Torrent extends Observable {
 			this.trackers = new ArrayList<List<URI>>();
 			this.allTrackers = new HashSet<URI>();
 
-			if (!this.decoded.containsKey("announce-list")) {
-				URI tracker = new URI(this.decoded.get("announce").getString());
+			if (!this.metainfo.containsKey("announce-list")) {
+				URI tracker = new URI(this.metainfo.get("announce").getString());
 				this.allTrackers.add(tracker);
 
 				// Build a single-tier announce list.
@@ -198,15 +216,15 @@ public class Torrent extends Observable {
 				tier.add(tracker);
 				this.trackers.add(tier);
 			} else {
-				List<BEValue> tiers = this.decoded.get("announce-list").getList();
-				for (BEValue tv : tiers) {
-					List<BEValue> trackers = tv.getList();
+				List<BEView> tiers = this.metainfo.get("announce-list").getList();
+				for (BEView tv : tiers) {
+					List<BEView> trackers = tv.getList();
 					if (trackers.isEmpty()) {
 						continue;
 					}
 
 					List<URI> tier = new ArrayList<URI>();
-					for (BEValue tracker : trackers) {
+					for (BEView tracker : trackers) {
 						URI uri = new URI(tracker.getString());
 
 						// Make sure we're not adding duplicate trackers.
@@ -226,25 +244,24 @@ public class Torrent extends Observable {
 			throw new IOException(use);
 		}
 
-		this.creationDate = this.decoded.containsKey("creation date")
-			? new Date(this.decoded.get("creation date").getLong() * 1000)
+		this.creationDate = this.metainfo.containsKey("creation date")
+			? new Date(this.metainfo.get("creation date").getLong() * 1000)
 			: null;
-		this.comment = this.decoded.containsKey("comment")
-			? this.decoded.get("comment").getString()
+		this.comment = this.metainfo.containsKey("comment")
+			? this.metainfo.get("comment").getString()
 			: null;
-		this.createdBy = this.decoded.containsKey("created by")
-			? this.decoded.get("created by").getString()
+		this.createdBy = this.metainfo.containsKey("created by")
+			? this.metainfo.get("created by").getString()
 			: null;
-		this.name = this.decoded_info.get("name").getString();
+		this.name = this.info.get("name").getString();
 
 		this.files = new LinkedList<TorrentFile>();
 
 		// Parse multi-file torrent file information structure.
-		if (this.decoded_info.containsKey("files")) {
-			for (BEValue file : this.decoded_info.get("files").getList()) {
-				Map<String, BEValue> fileInfo = file.getMap();
+		if (this.info.containsKey("files")) {
+			for (BEView fileInfo : this.info.get("files").getList()) {
 				StringBuilder path = new StringBuilder();
-				for (BEValue pathElement : fileInfo.get("path").getList()) {
+				for (BEView pathElement : fileInfo.get("path").getList()) {
 					path.append(File.separator)
 						.append(pathElement.getString());
 				}
@@ -257,7 +274,7 @@ public class Torrent extends Observable {
 			// directly the name of the file.
 			this.files.add(new TorrentFile(
 				new File(this.name),
-				this.decoded_info.get("length").getLong()));
+				this.info.get("length").getLong()));
 		}
 
 		// Calculate the total size of this torrent from its files' sizes.
@@ -305,8 +322,8 @@ public class Torrent extends Observable {
 		}
 
 		logger.info("  Pieces......: {} piece(s) ({} byte(s)/piece)",
-			(this.size / this.decoded_info.get("piece length").getInt()) + 1,
-			this.decoded_info.get("piece length").getInt());
+			(this.size / this.info.get("piece length").getInt()) + 1,
+			this.info.get("piece length").getInt());
 		logger.info("  Total size..: {} byte(s)",
 			String.format("%,d", this.size));
 	}
@@ -444,6 +461,17 @@ public class Torrent extends Observable {
 		return md.digest();
 	}
 
+	/**
+	 * Compute the SHA-1 hash of the remaining bytes of a buffer.
+	 *
+	 * @param data The buffer to hash. Its position is left unchanged.
+	 */
+	public static byte[] hash(ByteBuffer data) throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		md.update(data.duplicate());
+		return md.digest();
+	}
+
 	/**
 	 * Convert a byte string to a string containing an hexadecimal
 	 * representation of the original data.
@@ -455,6 +483,21 @@ public class Torrent extends Observable {
 		return String.format("%0" + (bytes.length << 1) + "X", bi);
 	}
 
+	/**
+	 * Convert a string containing an hexadecimal representation of some data
+	 * back to the original byte string.
+	 *
+	 * @param hex The hexadecimal string to convert.
+	 */
+	public static byte[] hexStringToByteArray(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)Integer.parseInt(
+				hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
 	/**
 	 * Return an hexadecimal representation of the bytes contained in the
 	 * given string, following the default, expected byte encoding.
@@ -891,7 +934,20 @@ public class Torrent extends Observable {
 		}
 	}
 	
+	/**
+	 * Return the B-encoded info dictionary of this torrent.
+	 *
+	 * <p>
+	 * Unless explicitly set, it is copied out of the meta-info data on each
+	 * call rather than kept around.
+	 * </p>
+	 */
 	public byte[] getEncoded_info() {
+		if (this.encoded_info == null && this.info != null) {
+			byte[] bytes = new byte[this.info.getRawLength()];
+			this.info.getRaw().get(bytes);
+			return bytes;
+		}
 		return encoded_info;
 	}
 
@@ -899,7 +955,18 @@ public class Torrent extends Observable {
 		this.encoded_info = encoded_info;
 	}
 
+	/**
+	 * Return the decoded meta-info of this torrent.
+	 *
+	 * <p>
+	 * The meta-info is only decoded into {@link BEValue}s the first time
+	 * this is called, and is kept from then on.
+	 * </p>
+	 */
 	public Map<String, BEValue> getDecoded() {
+		if (this.decoded == null && this.metainfo != null) {
+			this.decoded = Torrent.materialize(this.metainfo);
+		}
 		return decoded;
 	}
 
@@ -907,10 +974,30 @@ public class Torrent extends Observable {
 		this.decoded = decoded;
 	}
 
+	/**
+	 * Return the decoded info dictionary of this torrent.
+	 *
+	 * <p>
+	 * Like {@link #getDecoded()}, the info dictionary is only decoded the
+	 * first time this is called.
+	 * </p>
+	 */
 	public Map<String, BEValue> getDecoded_info() {
+		if (this.decoded_info == null && this.info != null) {
+			this.decoded_info = Torrent.materialize(this.info);
+		}
 		return decoded_info;
 	}
 
+	private static Map<String, BEValue> materialize(BEView view) {
+		try {
+			return view.toBEValue().getMap();
+		} catch (InvalidBEncodingException ibee) {
+			// Views are validated when the meta-info is decoded.
+			throw new IllegalStateException(ibee);
+		}
+	}
+
 	public void setDecoded_info(Map<String, BEValue> decoded_info) {
 		this.decoded_info = decoded_info;
 	}
@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.turn.ttorrent.client.SharedTorrent;
+import com.turn.ttorrent.client.nio.BlockRegion;
 import com.turn.ttorrent.client.nio.PeerCommunicationManager;
 
 /**
@@ -100,8 +101,16 @@ public abstract class PeerMessage {
 		return this.type;
 	}
 
+	/**
+	 * Returns this message's encoded form.
+	 *
+	 * <p>
+	 * Messages without payload are pre-encoded once and shared; for those, a
+	 * new read-only view of the shared encoding is returned on each call.
+	 * </p>
+	 */
 	public ByteBuffer getData() {
-		return this.data;
+		return this.data.isReadOnly() ? this.data.duplicate() : this.data;
 	}
 
 	/**
@@ -183,12 +192,34 @@ public abstract class PeerMessage {
 		}
 	}
 
+	/**
+	 * Encode a message without payload once, to be shared by all its
+	 * instances.
+	 *
+	 * @param size The message size, as announced in its length prefix.
+	 * @param type The message type, or <em>null</em> for a keep-alive.
+	 * @return A read-only buffer over the encoded message.
+	 */
+	private static ByteBuffer encodeShared(int size, Type type) {
+		ByteBuffer buffer = ByteBuffer.allocate(size + 4);
+		buffer.putInt(size);
+		if (type != null) {
+			buffer.put(type.getTypeByte());
+		}
+		buffer.rewind();
+		return buffer.asReadOnlyBuffer();
+	}
+
 	public static class MessageValidationException extends ParseException {
 
 		static final long serialVersionUID = -1;
 
 		public MessageValidationException(PeerMessage m) {
-			super("Message " + m + " is not valid!", 0);
+			this(m.toString());
+		}
+
+		public MessageValidationException(String description) {
+			super("Message " + description + " is not valid!", 0);
 		}
 
 	}
@@ -203,6 +234,10 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 0;
 
+		private static final KeepAliveMessage INSTANCE =
+			new KeepAliveMessage(PeerMessage.encodeShared(
+					KeepAliveMessage.BASE_SIZE, null));
+
 		private KeepAliveMessage(ByteBuffer buffer) {
 			super(Type.KEEP_ALIVE, buffer);
 		}
@@ -214,8 +249,7 @@ public abstract class PeerMessage {
 		}
 
 		public static KeepAliveMessage craft() {
-			return new KeepAliveMessage(ByteBuffer.allocate(
-						KeepAliveMessage.BASE_SIZE));
+			return KeepAliveMessage.INSTANCE;
 		}
 	}
 
@@ -228,6 +262,10 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 1;
 
+		private static final ChokeMessage INSTANCE =
+			new ChokeMessage(PeerMessage.encodeShared(
+					ChokeMessage.BASE_SIZE, Type.CHOKE));
+
 		private ChokeMessage(ByteBuffer buffer) {
 			super(Type.CHOKE, buffer);
 		}
@@ -239,10 +277,7 @@ public abstract class PeerMessage {
 		}
 
 		public static ChokeMessage craft() {
-			ByteBuffer buffer = ByteBuffer.allocate(ChokeMessage.BASE_SIZE + 4);
-			buffer.putInt(ChokeMessage.BASE_SIZE);
-			buffer.put(PeerMessage.Type.CHOKE.getTypeByte());
-			return new ChokeMessage(buffer);
+			return ChokeMessage.INSTANCE;
 		}
 	}
 
@@ -255,6 +290,10 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 1;
 
+		private static final UnchokeMessage INSTANCE =
+			new UnchokeMessage(PeerMessage.encodeShared(
+					UnchokeMessage.BASE_SIZE, Type.UNCHOKE));
+
 		private UnchokeMessage(ByteBuffer buffer) {
 			super(Type.UNCHOKE, buffer);
 		}
@@ -266,10 +305,7 @@ public abstract class PeerMessage {
 		}
 
 		public static UnchokeMessage craft() {
-			ByteBuffer buffer = ByteBuffer.allocate(UnchokeMessage.BASE_SIZE + 4);
-			buffer.putInt(UnchokeMessage.BASE_SIZE);
-			buffer.put(PeerMessage.Type.UNCHOKE.getTypeByte());
-			return new UnchokeMessage(buffer);
+			return UnchokeMessage.INSTANCE;
 		}
 	}
 
@@ -282,6 +318,10 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 1;
 
+		private static final InterestedMessage INSTANCE =
+			new InterestedMessage(PeerMessage.encodeShared(
+					InterestedMessage.BASE_SIZE, Type.INTERESTED));
+
 		private InterestedMessage(ByteBuffer buffer) {
 			super(Type.INTERESTED, buffer);
 		}
@@ -293,10 +333,7 @@ public abstract class PeerMessage {
 		}
 
 		public static InterestedMessage craft() {
-			ByteBuffer buffer = ByteBuffer.allocate(InterestedMessage.BASE_SIZE + 4);
-			buffer.putInt(InterestedMessage.BASE_SIZE);
-			buffer.put(PeerMessage.Type.INTERESTED.getTypeByte());
-			return new InterestedMessage(buffer);
+			return InterestedMessage.INSTANCE;
 		}
 	}
 
@@ -309,6 +346,10 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 1;
 
+		private static final NotInterestedMessage INSTANCE =
+			new NotInterestedMessage(PeerMessage.encodeShared(
+					NotInterestedMessage.BASE_SIZE, Type.NOT_INTERESTED));
+
 		private NotInterestedMessage(ByteBuffer buffer) {
 			super(Type.NOT_INTERESTED, buffer);
 		}
@@ -320,10 +361,7 @@ public abstract class PeerMessage {
 		}
 
 		public static NotInterestedMessage craft() {
-			ByteBuffer buffer = ByteBuffer.allocate(NotInterestedMessage.BASE_SIZE + 4);
-			buffer.putInt(NotInterestedMessage.BASE_SIZE);
-			buffer.put(PeerMessage.Type.NOT_INTERESTED.getTypeByte());
-			return new NotInterestedMessage(buffer);
+			return NotInterestedMessage.INSTANCE;
 		}
 	}
 
@@ -408,15 +446,23 @@ public abstract class PeerMessage {
 
 		public static BitfieldMessage parse(ByteBuffer buffer,
 				SharedTorrent torrent) throws MessageValidationException {
+			return new BitfieldMessage(buffer, toBitSet(buffer))
+				.validate(torrent);
+		}
+
+		/**
+		 * Convert the bitfield bytes between a buffer's position and limit
+		 * into a bit set.
+		 */
+		public static BitSet toBitSet(ByteBuffer buffer) {
+			int start = buffer.position();
 			BitSet bitfield = new BitSet(buffer.remaining()*8);
 			for (int i=0; i < buffer.remaining()*8; i++) {
-				if ((buffer.get(i/8) & (1 << (7 -(i % 8)))) > 0) {
+				if ((buffer.get(start + i/8) & (1 << (7 -(i % 8)))) != 0) {
 					bitfield.set(i);
 				}
 			}
-
-			return new BitfieldMessage(buffer, bitfield)
-				.validate(torrent);
+			return bitfield;
 		}
 
 		public static BitfieldMessage craft(BitSet availablePieces) {
@@ -482,7 +528,8 @@ public abstract class PeerMessage {
 		public RequestMessage validate(SharedTorrent torrent)
 			throws MessageValidationException {
 			if (this.piece >= 0 && this.piece < torrent.getPieceCount() &&
-				this.offset + this.length <=
+				this.offset >= 0 && this.length >= 0 &&
+				(long)this.offset + this.length <=
 					torrent.getPiece(this.piece).size()) {
 				return this;
 			}
@@ -519,6 +566,13 @@ public abstract class PeerMessage {
 	 * Piece message.
 	 *
 	 * <len=0009+X><id=7><piece index><block offset><block data>
+	 *
+	 * <p>
+	 * An outgoing piece message can also be crafted from a
+	 * {@link BlockRegion} instead of the block data: its encoded form then
+	 * only holds the message header, and the block is meant to be sent
+	 * straight from the torrent storage right after it.
+	 * </p>
 	 */
 	public static class PieceMessage extends PeerMessage {
 
@@ -526,16 +580,28 @@ public abstract class PeerMessage {
 
 		private int piece;
 		private int offset;
+		private int length;
 		private ByteBuffer block;
+		private BlockRegion region;
 
 		private PieceMessage(ByteBuffer buffer, int piece,
 				int offset, ByteBuffer block) {
 			super(Type.PIECE, buffer);
 			this.piece = piece;
 			this.offset = offset;
+			this.length = block.capacity();
 			this.block = block;
 		}
 
+		private PieceMessage(ByteBuffer buffer, int piece,
+				int offset, int length, BlockRegion region) {
+			super(Type.PIECE, buffer);
+			this.piece = piece;
+			this.offset = offset;
+			this.length = length;
+			this.region = region;
+		}
+
 		public int getPiece() {
 			return this.piece;
 		}
@@ -544,15 +610,33 @@ public abstract class PeerMessage {
 			return this.offset;
 		}
 
+		public int getLength() {
+			return this.length;
+		}
+
+		/**
+		 * Returns the block data, or <em>null</em> if this message was
+		 * crafted from a block region.
+		 */
 		public ByteBuffer getBlock() {
 			return this.block;
 		}
 
+		/**
+		 * Returns the region of the torrent storage to send after this
+		 * message's header, or <em>null</em> if the block data is part of
+		 * the message.
+		 */
+		public BlockRegion getRegion() {
+			return this.region;
+		}
+
 		@Override
 		public PieceMessage validate(SharedTorrent torrent)
 			throws MessageValidationException {
 			if (this.piece >= 0 && this.piece < torrent.getPieceCount() &&
-				this.offset + this.block.limit() <=
+				this.offset >= 0 &&
+				(long)this.offset + this.block.limit() <=
 				torrent.getPiece(this.piece).size()) {
 				return this;
 			}
@@ -581,9 +665,30 @@ public abstract class PeerMessage {
 			return new PieceMessage(buffer, piece, offset, block);
 		}
 
+		/**
+		 * Craft a piece message whose block is sent from the torrent
+		 * storage.
+		 *
+		 * @param piece The piece index.
+		 * @param offset The block offset inside the piece.
+		 * @param region The region of the torrent storage holding the
+		 * block.
+		 */
+		public static PieceMessage craft(int piece, int offset,
+				BlockRegion region) {
+			int length = (int)region.remaining();
+			ByteBuffer buffer = ByteBuffer.allocate(PieceMessage.BASE_SIZE +
+					4);
+			buffer.putInt(PieceMessage.BASE_SIZE + length);
+			buffer.put(PeerMessage.Type.PIECE.getTypeByte());
+			buffer.putInt(piece);
+			buffer.putInt(offset);
+			return new PieceMessage(buffer, piece, offset, length, region);
+		}
+
 		public String toString() {
 			return super.toString() + " #" + this.getPiece() +
-				" (" + this.getBlock().capacity() + "@" + this.getOffset() + ")";
+				" (" + this.getLength() + "@" + this.getOffset() + ")";
 		}
 	}
 
@@ -596,6 +701,10 @@ public abstract class PeerMessage {
 
 		private static final int BASE_SIZE = 1;
 
+		private static final CancelMessage INSTANCE =
+			new CancelMessage(PeerMessage.encodeShared(
+					CancelMessage.BASE_SIZE, Type.CANCEL));
+
 		private CancelMessage(ByteBuffer buffer) {
 			super(Type.CANCEL, buffer);
 		}
@@ -605,10 +714,7 @@ public abstract class PeerMessage {
 		}
 		
 		public static CancelMessage craft() {
-			ByteBuffer buffer = ByteBuffer.allocate(CancelMessage.BASE_SIZE + 4);
-			buffer.putInt(BASE_SIZE);
-			buffer.put(PeerMessage.Type.CANCEL.getTypeByte());
-			return new CancelMessage(buffer);
+			return CancelMessage.INSTANCE;
 		}
 
 		public String toString() {
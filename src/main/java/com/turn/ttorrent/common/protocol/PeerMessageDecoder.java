@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common.protocol;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.turn.ttorrent.client.SharedTorrent;
+import com.turn.ttorrent.common.protocol.PeerMessage.MessageValidationException;
+
+
+/**
+ * Flyweight peer protocol message decoder.
+ *
+ * <p>
+ * Contrary to {@link PeerMessage#parse(ByteBuffer, SharedTorrent)}, which
+ * builds a new message object (and slices of the frame) for every message
+ * received, this decoder reads the message fields directly from the frame
+ * buffer and passes them to the typed callbacks of a
+ * {@link PeerMessageHandler}. Nothing is allocated per message, which matters
+ * for floods of HAVE, REQUEST and PIECE messages.
+ * </p>
+ *
+ * <p>
+ * A decoder is meant to be created once per connection, and reused for all
+ * the messages received on it. Messages are validated against the torrent
+ * the same way parsed message objects are.
+ * </p>
+ */
+public class PeerMessageDecoder {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(PeerMessageDecoder.class);
+
+	private static final int LENGTH_SIZE = 4;
+	private static final int PAYLOAD_OFFSET = LENGTH_SIZE + 1;
+
+	private final SharedTorrent torrent;
+	private final PeerMessageHandler handler;
+
+	public PeerMessageDecoder(SharedTorrent torrent,
+			PeerMessageHandler handler) {
+		this.torrent = torrent;
+		this.handler = handler;
+	}
+
+	/**
+	 * Decode a message frame and dispatch it to the handler.
+	 *
+	 * <p>
+	 * The frame, starting with the message's length prefix, is read from the
+	 * beginning of the buffer up to its limit. The buffer's position is
+	 * moved to the start of the payload while a bitfield or block is handed
+	 * to the handler, and rewound afterwards.
+	 * </p>
+	 *
+	 * @param frame The buffer holding the message frame.
+	 * @throws ParseException When the message is invalid, can't be parsed or
+	 * does not match the protocol requirements.
+	 */
+	public void decode(ByteBuffer frame) throws ParseException {
+		int limit = frame.limit();
+		if (limit < LENGTH_SIZE) {
+			throw new ParseException("Message too short!", 0);
+		}
+
+		int length = frame.getInt(0);
+		if (length == 0) {
+			this.handler.onKeepAlive();
+			return;
+		} else if (length != limit - LENGTH_SIZE) {
+			logger.error("Looking for {}, found {}", length,
+				limit - LENGTH_SIZE);
+			throw new ParseException("Message size did not match announced " +
+					"size!", 0);
+		}
+
+		int id = frame.get(LENGTH_SIZE);
+		int payload = limit - PAYLOAD_OFFSET;
+		switch (id) {
+			case 0:
+				this.handler.onChoke();
+				break;
+			case 1:
+				this.handler.onUnchoke();
+				break;
+			case 2:
+				this.handler.onInterested();
+				break;
+			case 3:
+				this.handler.onNotInterested();
+				break;
+			case 4:
+				this.expect(payload == 4, payload, id);
+				this.decodeHave(frame.getInt(PAYLOAD_OFFSET));
+				break;
+			case 5:
+				this.decodeBitfield(frame);
+				break;
+			case 6:
+				this.expect(payload == 12, payload, id);
+				this.decodeRequest(frame.getInt(PAYLOAD_OFFSET),
+					frame.getInt(PAYLOAD_OFFSET + 4),
+					frame.getInt(PAYLOAD_OFFSET + 8));
+				break;
+			case 7:
+				this.expect(payload >= 8, payload, id);
+				this.decodePiece(frame, frame.getInt(PAYLOAD_OFFSET),
+					frame.getInt(PAYLOAD_OFFSET + 4));
+				break;
+			case 8:
+				this.handler.onCancel();
+				break;
+			case 9:
+				this.expect(payload == 4, payload, id);
+				this.handler.onServer(frame.getInt(PAYLOAD_OFFSET));
+				break;
+			default:
+				throw new ParseException("Unknown message ID!", LENGTH_SIZE);
+		}
+	}
+
+	private void decodeHave(int piece) throws MessageValidationException {
+		if (piece < 0 || piece >= this.torrent.getPieceCount()) {
+			throw new MessageValidationException("HAVE #" + piece);
+		}
+
+		this.handler.onHave(piece);
+	}
+
+	private void decodeBitfield(ByteBuffer frame)
+		throws MessageValidationException {
+		// The highest bit set must refer to an existing piece.
+		int last = frame.limit() - 1;
+		while (last >= PAYLOAD_OFFSET && frame.get(last) == 0) {
+			last--;
+		}
+		if (last >= PAYLOAD_OFFSET) {
+			int bits = (last - PAYLOAD_OFFSET) * 8 + 8 -
+				Integer.numberOfTrailingZeros(frame.get(last) & 0xFF);
+			if (bits > this.torrent.getPieceCount()) {
+				throw new MessageValidationException("BITFIELD");
+			}
+		}
+
+		frame.position(PAYLOAD_OFFSET);
+		try {
+			this.handler.onBitfield(frame);
+		} finally {
+			frame.rewind();
+		}
+	}
+
+	private void decodeRequest(int piece, int offset, int length)
+		throws MessageValidationException {
+		if (!this.isValidBlock(piece, offset, length)) {
+			throw new MessageValidationException("REQUEST #" + piece +
+				" (" + length + "@" + offset + ")");
+		}
+
+		this.handler.onRequest(piece, offset, length);
+	}
+
+	private void decodePiece(ByteBuffer frame, int piece, int offset)
+		throws MessageValidationException {
+		int length = frame.limit() - PAYLOAD_OFFSET - 8;
+		if (!this.isValidBlock(piece, offset, length)) {
+			throw new MessageValidationException("PIECE #" + piece +
+				" (" + length + "@" + offset + ")");
+		}
+
+		frame.position(PAYLOAD_OFFSET + 8);
+		try {
+			this.handler.onPiece(piece, offset, frame);
+		} finally {
+			frame.rewind();
+		}
+	}
+
+	private boolean isValidBlock(int piece, int offset, int length) {
+		return piece >= 0 && piece < this.torrent.getPieceCount() &&
+			offset >= 0 && length >= 0 &&
+			(long)offset + length <= this.torrent.getPiece(piece).size();
+	}
+
+	private void expect(boolean valid, int payload, int id)
+		throws ParseException {
+		if (!valid) {
+			throw new ParseException("Invalid payload size " + payload +
+				" for message ID " + id + "!", PAYLOAD_OFFSET);
+		}
+	}
+}
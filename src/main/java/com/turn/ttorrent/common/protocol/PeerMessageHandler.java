@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common.protocol;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Typed callbacks for peer protocol messages decoded by a
+ * {@link PeerMessageDecoder}.
+ *
+ * <p>
+ * Message fields are passed as primitives, and variable-length payloads as
+ * views of the decoded frame: bitfield and block buffers are only valid for
+ * the duration of the call, and must be copied if they need to be kept.
+ * </p>
+ */
+public interface PeerMessageHandler {
+
+	public void onKeepAlive();
+
+	public void onChoke();
+
+	public void onUnchoke();
+
+	public void onInterested();
+
+	public void onNotInterested();
+
+	public void onHave(int piece);
+
+	/**
+	 * @param bitfield The bitfield's bytes, between the buffer's position and
+	 * limit.
+	 */
+	public void onBitfield(ByteBuffer bitfield);
+
+	public void onRequest(int piece, int offset, int length);
+
+	/**
+	 * @param block The block's data, between the buffer's position and limit.
+	 */
+	public void onPiece(int piece, int offset, ByteBuffer block);
+
+	public void onCancel();
+
+	public void onServer(int completion);
+}
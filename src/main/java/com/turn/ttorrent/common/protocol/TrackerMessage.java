@@ -246,6 +246,92 @@ public abstract class TrackerMessage {
 	};
 
 
+	/**
+	 * Base interface for scrape request messages.
+	 *
+	 * <p>
+	 * This interface must be implemented by all subtypes of scrape request
+	 * messages for the various tracker protocols. An empty list of info
+	 * hashes means the client requests statistics for all the torrents the
+	 * tracker knows about.
+	 * </p>
+	 */
+	public interface ScrapeRequestMessage {
+
+		public List<byte[]> getInfoHashes();
+		public List<String> getHexInfoHashes();
+	};
+
+
+	/**
+	 * Base interface for scrape response messages.
+	 *
+	 * <p>
+	 * This interface must be implemented by all subtypes of scrape response
+	 * messages for the various tracker protocols.
+	 * </p>
+	 */
+	public interface ScrapeResponseMessage {
+
+		public List<ScrapeStatistics> getStatistics();
+	};
+
+
+	/**
+	 * Swarm statistics of a single torrent, as reported in scrape responses.
+	 *
+	 * <p>
+	 * Not all tracker protocols identify the torrent each statistics entry
+	 * refers to: UDP scrape responses list their entries in the order of the
+	 * info hashes of the request, in which case the info hash is
+	 * <em>null</em>.
+	 * </p>
+	 */
+	public static class ScrapeStatistics {
+
+		private final String hexInfoHash;
+		private final int complete;
+		private final int downloaded;
+		private final int incomplete;
+
+		public ScrapeStatistics(String hexInfoHash, int complete,
+			int downloaded, int incomplete) {
+			this.hexInfoHash = hexInfoHash;
+			this.complete = complete;
+			this.downloaded = downloaded;
+			this.incomplete = incomplete;
+		}
+
+		/**
+		 * Returns the hexadecimal info hash of the torrent, if known.
+		 */
+		public String getHexInfoHash() {
+			return this.hexInfoHash;
+		}
+
+		/**
+		 * Returns the number of seeders on the torrent.
+		 */
+		public int getComplete() {
+			return this.complete;
+		}
+
+		/**
+		 * Returns the number of times the torrent was fully downloaded.
+		 */
+		public int getDownloaded() {
+			return this.downloaded;
+		}
+
+		/**
+		 * Returns the number of leechers on the torrent.
+		 */
+		public int getIncomplete() {
+			return this.incomplete;
+		}
+	}
+
+
 	/**
 	 * Base interface for tracker error messages.
 	 *
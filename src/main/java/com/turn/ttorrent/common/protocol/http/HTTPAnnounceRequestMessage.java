@@ -188,8 +188,17 @@ public class HTTPAnnounceRequestMessage extends HTTPTrackerMessage
 				"Could not decode tracker message (not B-encoded?)!");
 		}
 
-		Map<String, BEValue> params = decoded.getMap();
+		return HTTPAnnounceRequestMessage.fromParams(decoded.getMap(), data);
+	}
 
+	/**
+	 * Build an announce request message from its decoded parameters.
+	 *
+	 * @param params The announce request parameters.
+	 * @param data The encoded message data, if any.
+	 */
+	static HTTPAnnounceRequestMessage fromParams(Map<String, BEValue> params,
+		ByteBuffer data) throws MessageValidationException {
 		if (!params.containsKey("info_hash")) {
 			throw new MessageValidationException(
 				ErrorMessage.FailureReason.MISSING_HASH.getMessage());
@@ -96,8 +96,17 @@ public class HTTPAnnounceResponseMessage extends HTTPTrackerMessage
 				"Could not decode tracker message (not B-encoded?)!");
 		}
 
-		Map<String, BEValue> params = decoded.getMap();
+		return HTTPAnnounceResponseMessage.fromParams(decoded.getMap(), data);
+	}
 
+	/**
+	 * Build an announce response message from its decoded parameters.
+	 *
+	 * @param params The announce response parameters.
+	 * @param data The encoded message data, if any.
+	 */
+	static HTTPAnnounceResponseMessage fromParams(Map<String, BEValue> params,
+		ByteBuffer data) throws MessageValidationException {
 		try {
 			List<Peer> peers;
 
@@ -165,7 +174,7 @@ public class HTTPAnnounceResponseMessage extends HTTPTrackerMessage
 	 * @return A {@link List} of {@link Peer}s representing the
 	 * peers' addresses. Peer IDs are lost, but they are not crucial.
 	 */
-	private static List<Peer> toPeerList(byte[] data)
+	static List<Peer> toPeerList(byte[] data)
 		throws InvalidBEncodingException, UnknownHostException {
 		if (data.length % 6 != 0) {
 			throw new InvalidBEncodingException("Invalid peers " +
@@ -188,6 +197,33 @@ public class HTTPAnnounceResponseMessage extends HTTPTrackerMessage
 		return result;
 	}
 
+	/**
+	 * Build the binary compact peer list of an announce response.
+	 *
+	 * <p>
+	 * Peers without an IPv4 address can't be represented in the compact
+	 * form and are skipped.
+	 * </p>
+	 *
+	 * @param peers The peers to include in the announce response.
+	 */
+	static byte[] toCompactPeers(List<Peer> peers) {
+		ByteBuffer data = ByteBuffer.allocate(peers.size() * 6);
+		for (Peer peer : peers) {
+			byte[] ip = peer.getRawIp();
+			if (ip == null || ip.length != 4) {
+				continue;
+			}
+			data.put(ip);
+			data.putShort((short)peer.getPort());
+		}
+
+		byte[] compact = new byte[data.position()];
+		data.flip();
+		data.get(compact);
+		return compact;
+	}
+
 	/**
 	 * Craft a compact announce response message.
 	 *
@@ -205,17 +241,7 @@ public class HTTPAnnounceResponseMessage extends HTTPTrackerMessage
 		response.put("interval", new BEValue(interval));
 		response.put("complete", new BEValue(complete));
 		response.put("incomplete", new BEValue(incomplete));
-
-		ByteBuffer data = ByteBuffer.allocate(peers.size() * 6);
-		for (Peer peer : peers) {
-			byte[] ip = peer.getRawIp();
-			if (ip == null || ip.length != 4) {
-				continue;
-			}
-			data.put(ip);
-			data.putShort((short)peer.getPort());
-		}
-		response.put("peers", new BEValue(data.array()));
+		response.put("peers", new BEValue(toCompactPeers(peers)));
 
 		return new HTTPAnnounceResponseMessage(
 			BEncoder.bencode(response),
@@ -240,17 +266,7 @@ public class HTTPAnnounceResponseMessage extends HTTPTrackerMessage
 		response.put("complete", new BEValue(complete));
 		response.put("incomplete", new BEValue(incomplete));
 		response.put("torrentIdentifier", new BEValue(hexInfoHash));
-
-		ByteBuffer data = ByteBuffer.allocate(peers.size() * 6);
-		for (Peer peer : peers) {
-			byte[] ip = peer.getRawIp();
-			if (ip == null || ip.length != 4) {
-				continue;
-			}
-			data.put(ip);
-			data.putShort((short)peer.getPort());
-		}
-		response.put("peers", new BEValue(data.array()));
+		response.put("peers", new BEValue(toCompactPeers(peers)));
 
 		return new HTTPAnnounceResponseMessage(
 			BEncoder.bencode(response),
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common.protocol.http;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.turn.ttorrent.bcodec.BDecoder;
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.bcodec.BEncoder;
+import com.turn.ttorrent.bcodec.InvalidBEncodingException;
+import com.turn.ttorrent.common.Torrent;
+import com.turn.ttorrent.common.protocol.TrackerMessage.AnnounceRequestMessage;
+
+
+/**
+ * The batched announce request message of our HTTP tracker.
+ *
+ * <p>
+ * A batched announce carries the announces of many torrents shared by the
+ * same peer in a single request, POSTed B-encoded to the tracker. The
+ * parameters describing the peer (<em>peer_id</em>, <em>port</em>,
+ * <em>ip</em>, <em>compact</em>, <em>no_peer_id</em> and <em>numwant</em>)
+ * are given once at the top level, while the <em>torrents</em> list holds one
+ * dictionary per torrent with its <em>info_hash</em>, <em>uploaded</em>,
+ * <em>downloaded</em>, <em>left</em> and <em>event</em> parameters.
+ * </p>
+ *
+ * <p>
+ * This is an extension of the HTTP tracker protocol only understood by our
+ * own tracker.
+ * </p>
+ */
+public class HTTPBatchAnnounceRequestMessage extends HTTPTrackerMessage {
+
+	/** Parameters shared by all the announces of a batch. */
+	private static final String[] PEER_PARAMS = {
+		"peer_id", "port", "ip", "compact", "no_peer_id", "numwant"
+	};
+
+	private final List<HTTPAnnounceRequestMessage> announces;
+
+	private HTTPBatchAnnounceRequestMessage(ByteBuffer data,
+		List<HTTPAnnounceRequestMessage> announces) {
+		super(Type.ANNOUNCE_REQUEST, data);
+		this.announces = announces;
+	}
+
+	/**
+	 * Returns the announce requests of this batch, one per torrent.
+	 */
+	public List<HTTPAnnounceRequestMessage> getAnnounces() {
+		return this.announces;
+	}
+
+	/**
+	 * Build the batched announce URL for the given tracker announce URL.
+	 *
+	 * <p>
+	 * The batched announce URL is derived from the announce URL by replacing
+	 * its last <em>/announce</em> path component by <em>/batch_announce</em>.
+	 * </p>
+	 *
+	 * @param trackerAnnounceURL The tracker's announce URL.
+	 * @return The batched announce URL, or <em>null</em> if the announce URL
+	 * does not follow this convention.
+	 */
+	public static URL buildBatchAnnounceURL(URL trackerAnnounceURL)
+		throws MalformedURLException {
+		String base = trackerAnnounceURL.toString();
+		int index = base.lastIndexOf("/announce");
+		if (index < 0) {
+			return null;
+		}
+
+		return new URL(base.substring(0, index) + "/batch_announce" +
+			base.substring(index + "/announce".length()));
+	}
+
+	public static HTTPBatchAnnounceRequestMessage parse(ByteBuffer data)
+		throws IOException, MessageValidationException {
+		return HTTPBatchAnnounceRequestMessage.parse(data, null);
+	}
+
+	/**
+	 * Parse a batched announce request.
+	 *
+	 * @param data The B-encoded request.
+	 * @param defaultIp The IP address to use for the announcing peer if the
+	 * request does not specify one.
+	 */
+	public static HTTPBatchAnnounceRequestMessage parse(ByteBuffer data,
+		String defaultIp) throws IOException, MessageValidationException {
+		BEValue decoded = BDecoder.bdecode(data);
+		if (decoded == null) {
+			throw new MessageValidationException(
+				"Could not decode tracker message (not B-encoded?)!");
+		}
+
+		Map<String, BEValue> params = decoded.getMap();
+		if (!params.containsKey("torrents")) {
+			throw new MessageValidationException(
+				ErrorMessage.FailureReason.MISSING_HASH.getMessage());
+		}
+
+		Map<String, BEValue> peer = new HashMap<String, BEValue>();
+		for (String key : PEER_PARAMS) {
+			if (params.containsKey(key)) {
+				peer.put(key, params.get(key));
+			}
+		}
+
+		if (!peer.containsKey("ip") && defaultIp != null) {
+			peer.put("ip", new BEValue(defaultIp, Torrent.BYTE_ENCODING));
+		}
+
+		try {
+			List<BEValue> torrents = params.get("torrents").getList();
+			List<HTTPAnnounceRequestMessage> announces =
+				new ArrayList<HTTPAnnounceRequestMessage>(torrents.size());
+			for (BEValue torrent : torrents) {
+				Map<String, BEValue> announce =
+					new HashMap<String, BEValue>(torrent.getMap());
+				announce.putAll(peer);
+				announces.add(
+					HTTPAnnounceRequestMessage.fromParams(announce, null));
+			}
+
+			return new HTTPBatchAnnounceRequestMessage(data, announces);
+		} catch (InvalidBEncodingException ibee) {
+			throw new MessageValidationException(
+				"Invalid HTTP tracker request!", ibee);
+		}
+	}
+
+	/**
+	 * Craft a batched announce request.
+	 *
+	 * @param announces The announce requests to batch. They must all be made
+	 * on behalf of the same peer, whose parameters are taken from the first
+	 * announce.
+	 */
+	public static HTTPBatchAnnounceRequestMessage craft(
+		List<HTTPAnnounceRequestMessage> announces)
+		throws IOException, MessageValidationException {
+		if (announces.isEmpty()) {
+			throw new MessageValidationException("Empty announce batch!");
+		}
+
+		HTTPAnnounceRequestMessage first = announces.get(0);
+		Map<String, BEValue> params = new HashMap<String, BEValue>();
+		params.put("peer_id", new BEValue(first.getPeerId()));
+		params.put("port", new BEValue(first.getPort()));
+		params.put("compact", new BEValue(first.getCompact() ? 1 : 0));
+		params.put("no_peer_id", new BEValue(first.getNoPeerIds() ? 1 : 0));
+
+		if (first.getIp() != null) {
+			params.put("ip",
+				new BEValue(first.getIp(), Torrent.BYTE_ENCODING));
+		}
+
+		if (first.getNumWant() != AnnounceRequestMessage.DEFAULT_NUM_WANT) {
+			params.put("numwant", new BEValue(first.getNumWant()));
+		}
+
+		List<BEValue> torrents = new ArrayList<BEValue>(announces.size());
+		for (HTTPAnnounceRequestMessage announce : announces) {
+			Map<String, BEValue> torrent = new HashMap<String, BEValue>();
+			torrent.put("info_hash", new BEValue(announce.getInfoHash()));
+			torrent.put("uploaded", new BEValue(announce.getUploaded()));
+			torrent.put("downloaded", new BEValue(announce.getDownloaded()));
+			torrent.put("left", new BEValue(announce.getLeft()));
+
+			if (announce.getEvent() != null &&
+				!AnnounceRequestMessage.RequestEvent.NONE.equals(
+					announce.getEvent())) {
+				torrent.put("event", new BEValue(
+					announce.getEvent().getEventName(),
+					Torrent.BYTE_ENCODING));
+			}
+
+			torrents.add(new BEValue(torrent));
+		}
+		params.put("torrents", new BEValue(torrents));
+
+		return new HTTPBatchAnnounceRequestMessage(
+			BEncoder.bencode(params), announces);
+	}
+}
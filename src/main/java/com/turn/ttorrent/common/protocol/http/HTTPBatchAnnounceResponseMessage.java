@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common.protocol.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.turn.ttorrent.bcodec.BDecoder;
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.bcodec.BEncoder;
+import com.turn.ttorrent.bcodec.InvalidBEncodingException;
+import com.turn.ttorrent.common.Torrent;
+
+
+/**
+ * The batched announce response message of our HTTP tracker.
+ *
+ * <p>
+ * The response holds the default <em>interval</em> and a <em>torrents</em>
+ * list with one entry per announced torrent, identified by its
+ * <em>torrentIdentifier</em>. Successful entries are regular announce
+ * responses; the announces the tracker refused carry a <em>failure
+ * reason</em> instead.
+ * </p>
+ *
+ * @see HTTPBatchAnnounceRequestMessage
+ */
+public class HTTPBatchAnnounceResponseMessage extends HTTPTrackerMessage {
+
+	private final int interval;
+	private final List<HTTPAnnounceResponseMessage> responses;
+	private final Map<String, String> failures;
+
+	private HTTPBatchAnnounceResponseMessage(ByteBuffer data, int interval,
+		List<HTTPAnnounceResponseMessage> responses,
+		Map<String, String> failures) {
+		super(Type.ANNOUNCE_RESPONSE, data);
+		this.interval = interval;
+		this.responses = responses;
+		this.failures = failures;
+	}
+
+	/**
+	 * Returns the default announce interval, in seconds.
+	 */
+	public int getInterval() {
+		return this.interval;
+	}
+
+	/**
+	 * Returns the announce responses of the successfully announced torrents.
+	 */
+	public List<HTTPAnnounceResponseMessage> getResponses() {
+		return this.responses;
+	}
+
+	/**
+	 * Returns the failure reasons of the refused announces, keyed by
+	 * hexadecimal info hash.
+	 */
+	public Map<String, String> getFailures() {
+		return this.failures;
+	}
+
+	public static HTTPBatchAnnounceResponseMessage parse(ByteBuffer data)
+		throws IOException, MessageValidationException {
+		BEValue decoded = BDecoder.bdecode(data);
+		if (decoded == null) {
+			throw new MessageValidationException(
+				"Could not decode tracker message (not B-encoded?)!");
+		}
+
+		Map<String, BEValue> params = decoded.getMap();
+		if (!params.containsKey("torrents")) {
+			throw new MessageValidationException(
+				"Invalid batch announce response from tracker!");
+		}
+
+		try {
+			List<HTTPAnnounceResponseMessage> responses =
+				new ArrayList<HTTPAnnounceResponseMessage>();
+			Map<String, String> failures = new HashMap<String, String>();
+
+			for (BEValue torrent : params.get("torrents").getList()) {
+				Map<String, BEValue> entry = torrent.getMap();
+				if (!entry.containsKey("torrentIdentifier")) {
+					continue;
+				}
+
+				if (entry.containsKey("failure reason")) {
+					failures.put(entry.get("torrentIdentifier").getString(),
+						entry.get("failure reason")
+							.getString(Torrent.BYTE_ENCODING));
+				} else {
+					responses.add(
+						HTTPAnnounceResponseMessage.fromParams(entry, null));
+				}
+			}
+
+			return new HTTPBatchAnnounceResponseMessage(data,
+				params.get("interval").getInt(), responses, failures);
+		} catch (InvalidBEncodingException ibee) {
+			throw new MessageValidationException("Invalid batch announce " +
+				"response from tracker!", ibee);
+		}
+	}
+
+	/**
+	 * Craft a batched announce response message.
+	 *
+	 * <p>
+	 * The response entries are copied from the already B-encoded announce
+	 * responses instead of being encoded a second time.
+	 * </p>
+	 *
+	 * @param interval The default announce interval, in seconds.
+	 * @param responses The announce responses of the successfully announced
+	 * torrents, crafted with their torrent identifier.
+	 * @param failures The failure reasons of the refused announces, keyed by
+	 * hexadecimal info hash.
+	 */
+	public static HTTPBatchAnnounceResponseMessage craft(int interval,
+		List<HTTPAnnounceResponseMessage> responses,
+		Map<String, String> failures) throws IOException {
+		int size = 32;
+		for (HTTPAnnounceResponseMessage response : responses) {
+			size += response.getData().remaining();
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(
+			size + failures.size() * 128);
+		baos.write('d');
+		BEncoder.bencode("interval", baos);
+		BEncoder.bencode(interval, baos);
+		BEncoder.bencode("torrents", baos);
+		baos.write('l');
+
+		for (HTTPAnnounceResponseMessage response : responses) {
+			ByteBuffer data = response.getData().duplicate();
+			data.rewind();
+			baos.write(data.array(), data.arrayOffset() + data.position(),
+				data.remaining());
+		}
+
+		for (Map.Entry<String, String> failure : failures.entrySet()) {
+			Map<String, BEValue> entry = new HashMap<String, BEValue>();
+			entry.put("torrentIdentifier", new BEValue(failure.getKey()));
+			entry.put("failure reason",
+				new BEValue(failure.getValue(), Torrent.BYTE_ENCODING));
+			BEncoder.bencode(entry, baos);
+		}
+
+		baos.write('e');
+		baos.write('e');
+		baos.close();
+
+		return new HTTPBatchAnnounceResponseMessage(
+			ByteBuffer.wrap(baos.toByteArray()), interval, responses,
+			failures);
+	}
+}
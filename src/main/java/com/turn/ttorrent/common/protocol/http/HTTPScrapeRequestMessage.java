@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common.protocol.http;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.turn.ttorrent.bcodec.BDecoder;
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.bcodec.BEncoder;
+import com.turn.ttorrent.bcodec.InvalidBEncodingException;
+import com.turn.ttorrent.common.Torrent;
+import com.turn.ttorrent.common.protocol.TrackerMessage.ScrapeRequestMessage;
+
+
+/**
+ * The scrape request message for the HTTP tracker protocol.
+ *
+ * <p>
+ * A scrape request carries any number of <em>info_hash</em> parameters. Like
+ * announce requests, the tracker service converts the query parameters into
+ * a B-encoded dictionary before parsing it, the info hashes being stored as a
+ * list under the <em>info_hash</em> key.
+ * </p>
+ */
+public class HTTPScrapeRequestMessage extends HTTPTrackerMessage
+	implements ScrapeRequestMessage {
+
+	/** Path component of announce URLs that can be scraped. */
+	private static final String ANNOUNCE_PATH_COMPONENT = "/announce";
+
+	/** Path component replacing the announce component in scrape URLs. */
+	private static final String SCRAPE_PATH_COMPONENT = "/scrape";
+
+	private final List<byte[]> infoHashes;
+
+	private HTTPScrapeRequestMessage(ByteBuffer data, List<byte[]> infoHashes) {
+		super(Type.SCRAPE_REQUEST, data);
+		this.infoHashes = infoHashes;
+	}
+
+	@Override
+	public List<byte[]> getInfoHashes() {
+		return this.infoHashes;
+	}
+
+	@Override
+	public List<String> getHexInfoHashes() {
+		List<String> hexInfoHashes = new ArrayList<String>(
+			this.infoHashes.size());
+		for (byte[] infoHash : this.infoHashes) {
+			hexInfoHashes.add(Torrent.byteArrayToHexString(infoHash));
+		}
+		return hexInfoHashes;
+	}
+
+	/**
+	 * Build the scrape request URL for the given tracker announce URL.
+	 *
+	 * <p>
+	 * Following the scrape convention, the scrape URL is derived from the
+	 * announce URL by replacing its last <em>/announce</em> path component
+	 * with <em>/scrape</em>.
+	 * </p>
+	 *
+	 * @param trackerAnnounceURL The tracker's announce URL.
+	 * @return The URL object representing the scrape request URL.
+	 * @throws MalformedURLException If the tracker does not support scraping.
+	 */
+	public URL buildScrapeURL(URL trackerAnnounceURL)
+		throws UnsupportedEncodingException, MalformedURLException {
+		String base = trackerAnnounceURL.toString();
+		int index = base.lastIndexOf(ANNOUNCE_PATH_COMPONENT);
+		if (index == -1) {
+			throw new MalformedURLException("Tracker at " + base +
+				" does not support scraping!");
+		}
+
+		StringBuilder url = new StringBuilder(base.substring(0, index))
+			.append(SCRAPE_PATH_COMPONENT)
+			.append(base.substring(index + ANNOUNCE_PATH_COMPONENT.length()));
+
+		boolean first = !url.toString().contains("?");
+		for (byte[] infoHash : this.infoHashes) {
+			url.append(first ? "?" : "&")
+				.append("info_hash=")
+				.append(URLEncoder.encode(
+					new String(infoHash, Torrent.BYTE_ENCODING),
+					Torrent.BYTE_ENCODING));
+			first = false;
+		}
+
+		return new URL(url.toString());
+	}
+
+	public static HTTPScrapeRequestMessage parse(ByteBuffer data)
+		throws IOException, MessageValidationException {
+		BEValue decoded = BDecoder.bdecode(data);
+		if (decoded == null) {
+			throw new MessageValidationException(
+				"Could not decode tracker message (not B-encoded?)!");
+		}
+
+		Map<String, BEValue> params = decoded.getMap();
+		List<byte[]> infoHashes = new ArrayList<byte[]>();
+
+		try {
+			if (params.containsKey("info_hash")) {
+				for (BEValue infoHash : params.get("info_hash").getList()) {
+					infoHashes.add(infoHash.getBytes());
+				}
+			}
+		} catch (InvalidBEncodingException ibee) {
+			throw new MessageValidationException(
+				"Invalid HTTP tracker scrape request!", ibee);
+		}
+
+		return new HTTPScrapeRequestMessage(data, infoHashes);
+	}
+
+	public static HTTPScrapeRequestMessage craft(List<byte[]> infoHashes)
+		throws IOException {
+		List<BEValue> hashes = new ArrayList<BEValue>(infoHashes.size());
+		for (byte[] infoHash : infoHashes) {
+			hashes.add(new BEValue(infoHash));
+		}
+
+		Map<String, BEValue> params = new HashMap<String, BEValue>();
+		params.put("info_hash", new BEValue(hashes));
+
+		return new HTTPScrapeRequestMessage(BEncoder.bencode(params),
+			infoHashes);
+	}
+}
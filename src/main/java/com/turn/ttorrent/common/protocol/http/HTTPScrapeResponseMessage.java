@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common.protocol.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.turn.ttorrent.bcodec.BDecoder;
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.bcodec.BEncoder;
+import com.turn.ttorrent.bcodec.InvalidBEncodingException;
+import com.turn.ttorrent.common.Torrent;
+import com.turn.ttorrent.common.protocol.TrackerMessage.ScrapeResponseMessage;
+import com.turn.ttorrent.common.protocol.TrackerMessage.ScrapeStatistics;
+
+
+/**
+ * The scrape response message from an HTTP tracker.
+ *
+ * <p>
+ * The response is a dictionary whose <em>files</em> entry maps each raw info
+ * hash to the <em>complete</em>, <em>downloaded</em> and <em>incomplete</em>
+ * counters of that torrent. Because our B-decoder reads dictionary keys as
+ * UTF-8 strings, the raw info hash keys cannot be recovered when parsing; each
+ * entry thus also carries the custom <em>torrentIdentifier</em> field used by
+ * announce responses, holding the hexadecimal info hash.
+ * </p>
+ */
+public class HTTPScrapeResponseMessage extends HTTPTrackerMessage
+	implements ScrapeResponseMessage {
+
+	private final List<ScrapeStatistics> statistics;
+
+	private HTTPScrapeResponseMessage(ByteBuffer data,
+		List<ScrapeStatistics> statistics) {
+		super(Type.SCRAPE_RESPONSE, data);
+		this.statistics = statistics;
+	}
+
+	@Override
+	public List<ScrapeStatistics> getStatistics() {
+		return this.statistics;
+	}
+
+	public static HTTPScrapeResponseMessage parse(ByteBuffer data)
+		throws IOException, MessageValidationException {
+		BEValue decoded = BDecoder.bdecode(data);
+		if (decoded == null) {
+			throw new MessageValidationException(
+				"Could not decode tracker message (not B-encoded?)!");
+		}
+
+		Map<String, BEValue> params = decoded.getMap();
+		if (!params.containsKey("files")) {
+			throw new MessageValidationException(
+				"Invalid scrape response from tracker!");
+		}
+
+		List<ScrapeStatistics> statistics = new ArrayList<ScrapeStatistics>();
+
+		try {
+			for (BEValue file : params.get("files").getMap().values()) {
+				Map<String, BEValue> stats = file.getMap();
+				if (!stats.containsKey("torrentIdentifier")) {
+					continue;
+				}
+
+				statistics.add(new ScrapeStatistics(
+					stats.get("torrentIdentifier").getString(),
+					stats.get("complete").getInt(),
+					stats.get("downloaded").getInt(),
+					stats.get("incomplete").getInt()));
+			}
+		} catch (InvalidBEncodingException ibee) {
+			throw new MessageValidationException("Invalid scrape response " +
+				"from tracker!", ibee);
+		}
+
+		return new HTTPScrapeResponseMessage(data, statistics);
+	}
+
+	/**
+	 * Craft a scrape response message.
+	 *
+	 * <p>
+	 * The <em>files</em> dictionary is written by hand, as its keys are raw
+	 * info hashes that would not survive the UTF-8 encoding of dictionary keys
+	 * done by {@link BEncoder}. Sorting the hexadecimal info hashes yields the
+	 * same order as sorting the raw byte strings, as B-encoding requires.
+	 * </p>
+	 *
+	 * @param statistics The torrent statistics to include in the response.
+	 * Entries without an info hash are ignored.
+	 */
+	public static HTTPScrapeResponseMessage craft(
+		Collection<ScrapeStatistics> statistics) throws IOException {
+		SortedMap<String, ScrapeStatistics> sorted =
+			new TreeMap<String, ScrapeStatistics>();
+		for (ScrapeStatistics stats : statistics) {
+			if (stats.getHexInfoHash() != null) {
+				sorted.put(stats.getHexInfoHash(), stats);
+			}
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(
+			16 + sorted.size() * 128);
+		baos.write('d');
+		BEncoder.bencode("files", baos);
+		baos.write('d');
+
+		for (Map.Entry<String, ScrapeStatistics> entry : sorted.entrySet()) {
+			ScrapeStatistics stats = entry.getValue();
+			Map<String, BEValue> file = new HashMap<String, BEValue>();
+			file.put("complete", new BEValue(stats.getComplete()));
+			file.put("downloaded", new BEValue(stats.getDownloaded()));
+			file.put("incomplete", new BEValue(stats.getIncomplete()));
+			file.put("torrentIdentifier", new BEValue(entry.getKey()));
+
+			BEncoder.bencode(Torrent.hexStringToByteArray(entry.getKey()),
+				baos);
+			BEncoder.bencode(file, baos);
+		}
+
+		baos.write('e');
+		baos.write('e');
+		baos.close();
+
+		return new HTTPScrapeResponseMessage(
+			ByteBuffer.wrap(baos.toByteArray()),
+			new ArrayList<ScrapeStatistics>(sorted.values()));
+	}
+}
@@ -45,10 +45,19 @@ public abstract class HTTPTrackerMessage extends TrackerMessage {
 
 		Map<String, BEValue> params = decoded.getMap();
 
-		if (params.containsKey("info_hash")) {
+		if (params.containsKey("torrents") && params.containsKey("peer_id")) {
+			return HTTPBatchAnnounceRequestMessage.parse(data);
+		} else if (params.containsKey("torrents")) {
+			return HTTPBatchAnnounceResponseMessage.parse(data);
+		} else if (params.containsKey("info_hash") &&
+			params.containsKey("peer_id")) {
 			return HTTPAnnounceRequestMessage.parse(data);
+		} else if (params.containsKey("info_hash")) {
+			return HTTPScrapeRequestMessage.parse(data);
 		} else if (params.containsKey("peers")) {
 			return HTTPAnnounceResponseMessage.parse(data);
+		} else if (params.containsKey("files")) {
+			return HTTPScrapeResponseMessage.parse(data);
 		} else if (params.containsKey("failure reason")) {
 			return HTTPTrackerErrorMessage.parse(data);
 		}
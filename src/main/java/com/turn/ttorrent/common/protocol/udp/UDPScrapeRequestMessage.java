@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common.protocol.udp;
+
+import com.turn.ttorrent.common.Torrent;
+import com.turn.ttorrent.common.protocol.TrackerMessage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The scrape request message for the UDP tracker protocol.
+ */
+public class UDPScrapeRequestMessage
+	extends UDPTrackerMessage.UDPTrackerRequestMessage
+	implements TrackerMessage.ScrapeRequestMessage {
+
+	private static final int UDP_SCRAPE_REQUEST_MIN_MESSAGE_SIZE = 16;
+	private static final int INFO_HASH_SIZE = 20;
+
+	/**
+	 * Maximum number of info hashes in a single scrape request, as imposed by
+	 * the UDP tracker protocol.
+	 */
+	public static final int MAX_INFO_HASHES = 74;
+
+	/** Size of a scrape request carrying the maximum number of info hashes. */
+	public static final int MAX_MESSAGE_SIZE =
+		UDP_SCRAPE_REQUEST_MIN_MESSAGE_SIZE + INFO_HASH_SIZE * MAX_INFO_HASHES;
+
+	private final long connectionId;
+	private final int actionId = Type.SCRAPE_REQUEST.getId();
+	private final int transactionId;
+	private final List<byte[]> infoHashes;
+
+	private UDPScrapeRequestMessage(ByteBuffer data, long connectionId,
+		int transactionId, List<byte[]> infoHashes) {
+		super(Type.SCRAPE_REQUEST, data);
+		this.connectionId = connectionId;
+		this.transactionId = transactionId;
+		this.infoHashes = infoHashes;
+	}
+
+	public long getConnectionId() {
+		return this.connectionId;
+	}
+
+	@Override
+	public int getActionId() {
+		return this.actionId;
+	}
+
+	@Override
+	public int getTransactionId() {
+		return this.transactionId;
+	}
+
+	@Override
+	public List<byte[]> getInfoHashes() {
+		return this.infoHashes;
+	}
+
+	@Override
+	public List<String> getHexInfoHashes() {
+		List<String> hexInfoHashes = new ArrayList<String>(
+			this.infoHashes.size());
+		for (byte[] infoHash : this.infoHashes) {
+			hexInfoHashes.add(Torrent.byteArrayToHexString(infoHash));
+		}
+		return hexInfoHashes;
+	}
+
+	public static UDPScrapeRequestMessage parse(ByteBuffer data)
+		throws MessageValidationException {
+		if (data.remaining() < UDP_SCRAPE_REQUEST_MIN_MESSAGE_SIZE ||
+			(data.remaining() - UDP_SCRAPE_REQUEST_MIN_MESSAGE_SIZE) %
+				INFO_HASH_SIZE != 0) {
+			throw new MessageValidationException(
+				"Invalid scrape request message size!");
+		}
+
+		long connectionId = data.getLong();
+
+		if (data.getInt() != Type.SCRAPE_REQUEST.getId()) {
+			throw new MessageValidationException(
+				"Invalid action code for scrape request!");
+		}
+
+		int transactionId = data.getInt();
+
+		int count = data.remaining() / INFO_HASH_SIZE;
+		if (count > MAX_INFO_HASHES) {
+			throw new MessageValidationException(
+				"Too many info hashes in scrape request!");
+		}
+
+		List<byte[]> infoHashes = new ArrayList<byte[]>(count);
+		for (int i=0; i < count; i++) {
+			byte[] infoHash = new byte[INFO_HASH_SIZE];
+			data.get(infoHash);
+			infoHashes.add(infoHash);
+		}
+
+		return new UDPScrapeRequestMessage(data,
+			connectionId,
+			transactionId,
+			infoHashes);
+	}
+
+	public static UDPScrapeRequestMessage craft(long connectionId,
+		int transactionId, List<byte[]> infoHashes) {
+		if (infoHashes.size() > MAX_INFO_HASHES) {
+			throw new IllegalArgumentException(
+				"Too many info hashes in scrape request!");
+		}
+
+		ByteBuffer data = ByteBuffer
+			.allocate(UDP_SCRAPE_REQUEST_MIN_MESSAGE_SIZE +
+				INFO_HASH_SIZE * infoHashes.size());
+		data.putLong(connectionId);
+		data.putInt(Type.SCRAPE_REQUEST.getId());
+		data.putInt(transactionId);
+
+		for (byte[] infoHash : infoHashes) {
+			if (infoHash == null || infoHash.length != INFO_HASH_SIZE) {
+				throw new IllegalArgumentException("Invalid info hash!");
+			}
+			data.put(infoHash);
+		}
+
+		return new UDPScrapeRequestMessage(data,
+			connectionId,
+			transactionId,
+			infoHashes);
+	}
+}
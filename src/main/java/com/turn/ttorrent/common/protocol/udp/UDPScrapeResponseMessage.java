@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.common.protocol.udp;
+
+import com.turn.ttorrent.common.protocol.TrackerMessage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The scrape response message for the UDP tracker protocol.
+ *
+ * <p>
+ * UDP scrape responses don't repeat the info hashes: statistics are listed in
+ * the order of the info hashes of the corresponding request, and the parsed
+ * {@link TrackerMessage.ScrapeStatistics} thus have no info hash.
+ * </p>
+ */
+public class UDPScrapeResponseMessage
+	extends UDPTrackerMessage.UDPTrackerResponseMessage
+	implements TrackerMessage.ScrapeResponseMessage {
+
+	private static final int UDP_SCRAPE_RESPONSE_MIN_MESSAGE_SIZE = 8;
+	private static final int UDP_SCRAPE_RESPONSE_ENTRY_SIZE = 12;
+
+	private final int actionId = Type.SCRAPE_RESPONSE.getId();
+	private final int transactionId;
+	private final List<ScrapeStatistics> statistics;
+
+	private UDPScrapeResponseMessage(ByteBuffer data, int transactionId,
+		List<ScrapeStatistics> statistics) {
+		super(Type.SCRAPE_RESPONSE, data);
+		this.transactionId = transactionId;
+		this.statistics = statistics;
+	}
+
+	@Override
+	public int getActionId() {
+		return this.actionId;
+	}
+
+	@Override
+	public int getTransactionId() {
+		return this.transactionId;
+	}
+
+	@Override
+	public List<ScrapeStatistics> getStatistics() {
+		return this.statistics;
+	}
+
+	public static UDPScrapeResponseMessage parse(ByteBuffer data)
+		throws MessageValidationException {
+		if (data.remaining() < UDP_SCRAPE_RESPONSE_MIN_MESSAGE_SIZE ||
+			(data.remaining() - UDP_SCRAPE_RESPONSE_MIN_MESSAGE_SIZE) %
+				UDP_SCRAPE_RESPONSE_ENTRY_SIZE != 0) {
+			throw new MessageValidationException(
+				"Invalid scrape response message size!");
+		}
+
+		if (data.getInt() != Type.SCRAPE_RESPONSE.getId()) {
+			throw new MessageValidationException(
+				"Invalid action code for scrape response!");
+		}
+
+		int transactionId = data.getInt();
+
+		int count = data.remaining() / UDP_SCRAPE_RESPONSE_ENTRY_SIZE;
+		List<ScrapeStatistics> statistics =
+			new ArrayList<ScrapeStatistics>(count);
+		for (int i=0; i < count; i++) {
+			int complete = data.getInt();
+			int downloaded = data.getInt();
+			int incomplete = data.getInt();
+			statistics.add(new ScrapeStatistics(null,
+				complete, downloaded, incomplete));
+		}
+
+		return new UDPScrapeResponseMessage(data,
+			transactionId,
+			statistics);
+	}
+
+	public static UDPScrapeResponseMessage craft(int transactionId,
+		List<ScrapeStatistics> statistics) {
+		ByteBuffer data = ByteBuffer
+			.allocate(UDP_SCRAPE_RESPONSE_MIN_MESSAGE_SIZE +
+				UDP_SCRAPE_RESPONSE_ENTRY_SIZE * statistics.size());
+		data.putInt(Type.SCRAPE_RESPONSE.getId());
+		data.putInt(transactionId);
+
+		/**
+		 * Each entry lists seeders, completed downloads and leechers, in that
+		 * order.
+		 */
+		for (ScrapeStatistics stats : statistics) {
+			data.putInt(stats.getComplete());
+			data.putInt(stats.getDownloaded());
+			data.putInt(stats.getIncomplete());
+		}
+
+		return new UDPScrapeResponseMessage(data,
+			transactionId,
+			statistics);
+	}
+}
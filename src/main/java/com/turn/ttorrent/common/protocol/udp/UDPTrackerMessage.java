@@ -62,6 +62,8 @@ public abstract class UDPTrackerMessage extends TrackerMessage {
 				return UDPConnectRequestMessage.parse(data);
 			} else if (action == Type.ANNOUNCE_REQUEST.getId()) {
 				return UDPAnnounceRequestMessage.parse(data);
+			} else if (action == Type.SCRAPE_REQUEST.getId()) {
+				return UDPScrapeRequestMessage.parse(data);
 			}
 
 			throw new MessageValidationException("Unknown UDP tracker " +
@@ -96,6 +98,8 @@ public abstract class UDPTrackerMessage extends TrackerMessage {
 				return UDPConnectResponseMessage.parse(data);
 			} else if (action == Type.ANNOUNCE_RESPONSE.getId()) {
 				return UDPAnnounceResponseMessage.parse(data);
+			} else if (action == Type.SCRAPE_RESPONSE.getId()) {
+				return UDPScrapeResponseMessage.parse(data);
 			} else if (action == Type.ERROR.getId()) {
 				return UDPTrackerErrorMessage.parse(data);
 			}
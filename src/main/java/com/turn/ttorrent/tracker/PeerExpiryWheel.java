@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2011-2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.tracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Timing wheel used by the tracker to expire unfresh peers.
+ *
+ * <p>
+ * Every announce schedules the announcing peer in the slot of the wheel
+ * corresponding to the time at which it will stop being fresh. When the wheel
+ * advances over a slot, only the peers scheduled in that slot are looked at:
+ * those that announced again in the meantime are simply dropped from the slot
+ * (their latest announce scheduled them further down the wheel), the others
+ * are removed from their torrent. The cost of a collection is thus
+ * proportional to the number of announces that reached their deadline, and
+ * not to the total number of tracked peers.
+ * </p>
+ *
+ * <p>
+ * Deadlines further away than one revolution of the wheel are kept in their
+ * slot with a count of remaining revolutions. The wheel is sharded by peer so
+ * that concurrent announces on different peers rarely contend on the same
+ * lock.
+ * </p>
+ */
+public class PeerExpiryWheel {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(PeerExpiryWheel.class);
+
+	/** Duration of a wheel slot, in milliseconds. */
+	public static final long DEFAULT_TICK_MS = 1000;
+
+	/** Number of slots of the wheel, covering a bit more than a minute. */
+	public static final int DEFAULT_WHEEL_SIZE = 64;
+
+	/** Number of independently locked shards. */
+	public static final int DEFAULT_SHARDS = 16;
+
+	private final long tickMs;
+	private final Shard[] shards;
+
+	public PeerExpiryWheel() {
+		this(DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE, DEFAULT_SHARDS,
+			System.currentTimeMillis());
+	}
+
+	/**
+	 * Create a new peer expiry wheel.
+	 *
+	 * @param tickMs The duration of a wheel slot, in milliseconds.
+	 * @param wheelSize The number of slots of the wheel.
+	 * @param shards The number of shards of the wheel.
+	 * @param now The current time, in milliseconds.
+	 */
+	public PeerExpiryWheel(long tickMs, int wheelSize, int shards, long now) {
+		if (tickMs <= 0 || wheelSize <= 0 || shards <= 0) {
+			throw new IllegalArgumentException("Invalid wheel geometry!");
+		}
+
+		this.tickMs = tickMs;
+		this.shards = new Shard[shards];
+		for (int i=0; i < shards; i++) {
+			this.shards[i] = new Shard(wheelSize, now / tickMs);
+		}
+	}
+
+	/**
+	 * Schedule the expiration of a peer after its latest announce.
+	 *
+	 * @param torrent The torrent the peer exchanges on.
+	 * @param peer The peer that just announced.
+	 */
+	public void schedule(TrackedTorrent torrent, TrackedPeer peer) {
+		long deadline = peer.getFreshUntil();
+		if (deadline <= 0) {
+			return;
+		}
+
+		// Round up so that peers are never looked at before they expire.
+		long tick = (deadline + this.tickMs - 1) / this.tickMs;
+		this.shardFor(peer).add(new Entry(torrent, peer), tick);
+	}
+
+	/**
+	 * Advance the wheel up to the given time, removing the peers that expired
+	 * in the meantime from their torrent.
+	 *
+	 * @param now The current time, in milliseconds.
+	 * @return The number of peers removed.
+	 */
+	public int expire(long now) {
+		long tick = now / this.tickMs;
+		int removed = 0;
+
+		for (Shard shard : this.shards) {
+			for (Entry entry : shard.advance(tick)) {
+				if (entry.peer.isFresh()) {
+					// The peer announced again since this entry was
+					// scheduled, a later entry now covers it.
+					continue;
+				}
+
+				if (entry.torrent.removePeer(entry.peer.getHexPeerId(),
+						entry.peer)) {
+					logger.debug("Collected stale peer {}.", entry.peer);
+					removed++;
+				}
+			}
+		}
+
+		return removed;
+	}
+
+	private Shard shardFor(TrackedPeer peer) {
+		int h = peer.getHexPeerId().hashCode();
+		h ^= (h >>> 16);
+		return this.shards[(h & 0x7fffffff) % this.shards.length];
+	}
+
+	/**
+	 * An announce waiting for its deadline in the wheel.
+	 */
+	private static class Entry {
+
+		private final TrackedTorrent torrent;
+		private final TrackedPeer peer;
+		private long rounds;
+
+		Entry(TrackedTorrent torrent, TrackedPeer peer) {
+			this.torrent = torrent;
+			this.peer = peer;
+		}
+	}
+
+	/**
+	 * A single-level hashed wheel protected by its own lock.
+	 */
+	private static class Shard {
+
+		private final List<List<Entry>> slots;
+		private long current;
+
+		Shard(int wheelSize, long current) {
+			this.slots = new ArrayList<List<Entry>>(wheelSize);
+			for (int i=0; i < wheelSize; i++) {
+				this.slots.add(new ArrayList<Entry>());
+			}
+			this.current = current;
+		}
+
+		synchronized void add(Entry entry, long tick) {
+			// Deadlines already passed are handled on the next advance.
+			long delta = Math.max(tick - this.current, 1);
+			entry.rounds = (delta - 1) / this.slots.size();
+			this.slots.get(this.slot(this.current + delta)).add(entry);
+		}
+
+		/**
+		 * Advance this shard up to the given tick.
+		 *
+		 * @return The entries whose deadline was reached.
+		 */
+		synchronized List<Entry> advance(long tick) {
+			List<Entry> expired = new ArrayList<Entry>();
+			while (this.current < tick) {
+				this.current++;
+
+				List<Entry> slot = this.slots.get(this.slot(this.current));
+				if (slot.isEmpty()) {
+					continue;
+				}
+
+				List<Entry> remaining = new ArrayList<Entry>();
+				for (Entry entry : slot) {
+					if (entry.rounds > 0) {
+						entry.rounds--;
+						remaining.add(entry);
+					} else {
+						expired.add(entry);
+					}
+				}
+
+				this.slots.set(this.slot(this.current), remaining);
+			}
+			return expired;
+		}
+
+		private int slot(long tick) {
+			return (int)(tick % this.slots.size());
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2011-2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.tracker;
+
+import com.turn.ttorrent.common.protocol.TrackerMessage.ScrapeStatistics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Snapshot of the scrape statistics of all the torrents of a tracker.
+ *
+ * <p>
+ * Counting seeders and leechers requires walking the peers of a torrent.
+ * Instead of doing so for every torrent of every scrape request, the tracker
+ * periodically refreshes this cache and scrape requests are served from the
+ * latest immutable snapshot, without any locking on the request path.
+ * </p>
+ */
+public class ScrapeCache {
+
+	private volatile Map<String, ScrapeStatistics> snapshot;
+
+	ScrapeCache() {
+		this.snapshot = Collections.emptyMap();
+	}
+
+	/**
+	 * Rebuild the snapshot from the given torrents.
+	 *
+	 * @param torrents The torrents currently tracked.
+	 */
+	void refresh(Collection<TrackedTorrent> torrents) {
+		Map<String, ScrapeStatistics> snapshot =
+			new HashMap<String, ScrapeStatistics>(torrents.size() * 2);
+		for (TrackedTorrent torrent : torrents) {
+			snapshot.put(torrent.getHexInfoHash(), torrent.getStatistics());
+		}
+
+		this.snapshot = Collections.unmodifiableMap(snapshot);
+	}
+
+	/**
+	 * Returns the statistics of the given torrent from the latest snapshot.
+	 *
+	 * @param hexInfoHash The hexadecimal info hash of the torrent.
+	 * @return The torrent's statistics, or <em>null</em> if the torrent was
+	 * not tracked at the time of the latest snapshot.
+	 */
+	public ScrapeStatistics get(String hexInfoHash) {
+		return this.snapshot.get(hexInfoHash);
+	}
+
+	/**
+	 * Returns the statistics of the given torrents from the latest snapshot.
+	 *
+	 * <p>
+	 * Unknown torrents are skipped. An empty list of info hashes returns the
+	 * statistics of all the torrents of the snapshot.
+	 * </p>
+	 *
+	 * @param hexInfoHashes The hexadecimal info hashes of the torrents.
+	 */
+	public List<ScrapeStatistics> get(List<String> hexInfoHashes) {
+		Map<String, ScrapeStatistics> snapshot = this.snapshot;
+		if (hexInfoHashes.isEmpty()) {
+			return new ArrayList<ScrapeStatistics>(snapshot.values());
+		}
+
+		List<ScrapeStatistics> statistics =
+			new ArrayList<ScrapeStatistics>(hexInfoHashes.size());
+		for (String hexInfoHash : hexInfoHashes) {
+			ScrapeStatistics stats = snapshot.get(hexInfoHash);
+			if (stats != null) {
+				statistics.add(stats);
+			}
+		}
+		return statistics;
+	}
+}
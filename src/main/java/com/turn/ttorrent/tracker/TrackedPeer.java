@@ -193,6 +193,18 @@ public class TrackedPeer extends Peer {
 				 new Date().getTime()));
 	}
 
+	/**
+	 * Returns the time, in milliseconds, at which this peer will stop being
+	 * fresh unless it checks in with the tracker again, or 0 if it never
+	 * announced.
+	 */
+	public long getFreshUntil() {
+		Date lastAnnounce = this.lastAnnounce;
+		return lastAnnounce != null
+			? lastAnnounce.getTime() + (FRESH_TIME_SECONDS * 1000)
+			: 0;
+	}
+
 	/**
 	 * Returns a BEValue representing this peer for inclusion in an
 	 * announce reply from the tracker.
@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlTransient;
@@ -37,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import com.turn.ttorrent.common.Peer;
 import com.turn.ttorrent.common.Torrent;
 import com.turn.ttorrent.common.protocol.TrackerMessage.AnnounceRequestMessage.RequestEvent;
+import com.turn.ttorrent.common.protocol.TrackerMessage.ScrapeStatistics;
 
 
 /**
@@ -74,6 +76,10 @@ public class TrackedTorrent extends Torrent {
 	/** Peers currently exchanging on this torrent. */
 	@XmlTransient
 	private ConcurrentMap<String, TrackedPeer> peers;
+
+	/** Number of completed downloads reported to the tracker. */
+	@XmlTransient
+	private final AtomicInteger completed = new AtomicInteger(0);
 	
 	public TrackedTorrent() {
 		
@@ -136,6 +142,18 @@ public class TrackedTorrent extends Torrent {
 		return this.peers.remove(peerId);
 	}
 
+	/**
+	 * Remove a peer from this torrent's swarm, only if it is still the given
+	 * peer object.
+	 *
+	 * @param peerId The hexadecimal representation of the peer's ID.
+	 * @param peer The peer expected to be registered under this ID.
+	 * @return Whether the peer was removed.
+	 */
+	public boolean removePeer(String peerId, TrackedPeer peer) {
+		return this.peers.remove(peerId, peer);
+	}
+
 	/**
 	 * Count the number of seeders (peers in the COMPLETED state) on this
 	 * torrent.
@@ -163,12 +181,44 @@ public class TrackedTorrent extends Torrent {
 		return count;
 	}
 
+	/**
+	 * Returns the number of completed downloads reported for this torrent.
+	 */
+	public int getCompleted() {
+		return this.completed.get();
+	}
+
+	/**
+	 * Compute the scrape statistics of this torrent.
+	 *
+	 * <p>
+	 * Seeders and leechers are counted in a single pass over the peers. This
+	 * is meant to be called periodically by the tracker's {@link ScrapeCache}
+	 * rather than when serving scrape requests.
+	 * </p>
+	 */
+	public ScrapeStatistics getStatistics() {
+		int seeders = 0;
+		int leechers = 0;
+		for (TrackedPeer peer : this.peers.values()) {
+			if (peer.isCompleted()) {
+				seeders++;
+			} else {
+				leechers++;
+			}
+		}
+
+		return new ScrapeStatistics(this.getHexInfoHash(), seeders,
+			this.completed.get(), leechers);
+	}
+
 	/**
 	 * Remove unfresh peers from this torrent.
 	 *
 	 * <p>
-	 * Collect and remove all non-fresh peers from this torrent. This is
-	 * usually called by the periodic peer collector of the BitTorrent tracker.
+	 * Collect and remove all non-fresh peers from this torrent. This walks all
+	 * the peers of the torrent; the BitTorrent tracker instead expires peers
+	 * incrementally through its {@link PeerExpiryWheel}.
 	 * </p>
 	 */
 	public void collectUnfreshPeers() {
@@ -234,6 +284,7 @@ public class TrackedTorrent extends Torrent {
 		} else if (RequestEvent.COMPLETED.equals(event)) {
 			peer = this.getPeer(hexPeerId);
 			state = TrackedPeer.PeerState.COMPLETED;
+			this.completed.incrementAndGet();
 		} else if (RequestEvent.NONE.equals(event)) {
 			peer = this.getPeer(hexPeerId);
 			state = TrackedPeer.PeerState.STARTED;
@@ -263,24 +314,22 @@ public class TrackedTorrent extends Torrent {
 
 		int count = 0;
 		for (TrackedPeer candidate : candidates) {
-			// Collect unfresh peers, and obviously don't serve them as well.
-			if (!candidate.isFresh() ||
-				(candidate.looksLike(peer) && !candidate.equals(peer))) {
-				logger.debug("Collecting stale peer {}...", candidate);
-				this.peers.remove(candidate.getHexPeerId());
+			// Don't serve unfresh peers. They are collected by the tracker's
+			// peer expiry wheel, off the request path.
+			if (!candidate.isFresh()) {
 				continue;
 			}
 
-			// Don't include the requesting peer in the answer.
-			if (peer.looksLike(candidate)) {
+			// Collect peers replaced by the requesting peer, which announced
+			// from the same address with a new peer ID.
+			if (candidate.looksLike(peer) && !candidate.equals(peer)) {
+				logger.debug("Collecting stale peer {}...", candidate);
+				this.peers.remove(candidate.getHexPeerId(), candidate);
 				continue;
 			}
 
-			// Collect unfresh peers, and obviously don't serve them as well.
-			if (!candidate.isFresh()) {
-				logger.debug("Collecting stale peer {}...",
-					candidate.getHexPeerId());
-				this.peers.remove(candidate.getHexPeerId());
+			// Don't include the requesting peer in the answer.
+			if (peer.looksLike(candidate)) {
 				continue;
 			}
 
@@ -61,6 +61,12 @@ public class Tracker {
 	/** Request path handled by the tracker announce request handler. */
 	public static final String ANNOUNCE_URL = "/announce";
 
+	/** Request path handled by the tracker scrape request handler. */
+	public static final String SCRAPE_URL = "/scrape";
+
+	/** Request path handled by the tracker batched announce handler. */
+	public static final String BATCH_ANNOUNCE_URL = "/batch_announce";
+
 	/** Default tracker listening port (BitTorrent's default is 6969). */
 	public static final int DEFAULT_TRACKER_PORT = 6969;
 
@@ -69,13 +75,21 @@ public class Tracker {
 		"BitTorrent Tracker (ttorrent)";
 
 	private final Connection connection;
+	private final UDPTrackerService udpService;
 	private final InetSocketAddress address;
 
 	/** The in-memory repository of torrents tracked. */
 	private final ConcurrentMap<String, TrackedTorrent> torrents;
 
+	/** The statistics snapshot scrape requests are served from. */
+	private final ScrapeCache scrapeCache;
+
+	/** The wheel announcing peers are scheduled for expiration in. */
+	private final PeerExpiryWheel expiry;
+
 	private Thread tracker;
 	private Thread collector;
+	private Thread scraper;
 	private boolean stop;
 
 	/**
@@ -115,8 +129,12 @@ public class Tracker {
 		this.address = address;
 
 		this.torrents = new ConcurrentHashMap<String, TrackedTorrent>();
+		this.scrapeCache = new ScrapeCache();
+		this.expiry = new PeerExpiryWheel();
 		this.connection = new SocketConnection(
-				new TrackerService(version, this.torrents));
+				new TrackerService(version, this.torrents, this.scrapeCache,
+					this.expiry));
+		this.udpService = new UDPTrackerService(address, this.scrapeCache);
 	}
 
 	/**
@@ -154,14 +172,28 @@ public class Tracker {
 			this.collector.setName("peer-collector:" + this.address.getPort());
 			this.collector.start();
 		}
+
+		if (this.scraper == null || !this.scraper.isAlive()) {
+			this.scraper = new ScrapeCacheThread();
+			this.scraper.setName("scrape-cache:" + this.address.getPort());
+			this.scraper.start();
+		}
+
+		try {
+			this.udpService.start();
+		} catch (IOException ioe) {
+			logger.warn("Could not start the UDP tracker service: {}!",
+				ioe.getMessage());
+		}
 	}
 
 	/**
 	 * Stop the tracker.
 	 *
 	 * <p>
-	 * This effectively closes the listening HTTP connection to terminate
-	 * the service, and interrupts the peer collector thread as well.
+	 * This effectively closes the listening HTTP connection and UDP socket to
+	 * terminate the service, and interrupts the peer collector and scrape
+	 * cache threads as well.
 	 * </p>
 	 */
 	public void stop() {
@@ -174,10 +206,17 @@ public class Tracker {
 			logger.error("Could not stop the tracker: {}!", ioe.getMessage());
 		}
 
+		this.udpService.stop();
+
 		if (this.collector != null && this.collector.isAlive()) {
 			this.collector.interrupt();
 			logger.info("Peer collection terminated.");
 		}
+
+		if (this.scraper != null && this.scraper.isAlive()) {
+			this.scraper.interrupt();
+			logger.info("Scrape cache refresh terminated.");
+		}
 	}
 
 	/**
@@ -291,27 +330,57 @@ public class Tracker {
 	 * The unfresh peer collector thread.
 	 *
 	 * <p>
-	 * Every PEER_COLLECTION_FREQUENCY_SECONDS, this thread will collect
-	 * unfresh peers from all announced torrents.
+	 * Every tick of the peer expiry wheel, this thread advances the wheel,
+	 * collecting the peers of all announced torrents that became unfresh
+	 * since the previous tick.
 	 * </p>
 	 */
 	private class PeerCollectorThread extends Thread {
 
-		private static final int PEER_COLLECTION_FREQUENCY_SECONDS = 15;
-
 		@Override
 		public void run() {
 			logger.info("Starting tracker peer collection for tracker at {}...",
 				getAnnounceUrl());
 
 			while (!stop) {
-				for (TrackedTorrent torrent : torrents.values()) {
-					torrent.collectUnfreshPeers();
+				int collected = expiry.expire(System.currentTimeMillis());
+				if (collected > 0) {
+					logger.debug("Collected {} unfresh peer(s).", collected);
 				}
 
 				try {
-					Thread.sleep(PeerCollectorThread
-							.PEER_COLLECTION_FREQUENCY_SECONDS * 1000);
+					Thread.sleep(PeerExpiryWheel.DEFAULT_TICK_MS);
+				} catch (InterruptedException ie) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * The scrape cache refresh thread.
+	 *
+	 * <p>
+	 * Every SCRAPE_CACHE_REFRESH_FREQUENCY_SECONDS, this thread rebuilds the
+	 * statistics snapshot scrape requests are served from, keeping the cost
+	 * of counting peers off the request path.
+	 * </p>
+	 */
+	private class ScrapeCacheThread extends Thread {
+
+		private static final int SCRAPE_CACHE_REFRESH_FREQUENCY_SECONDS = 5;
+
+		@Override
+		public void run() {
+			logger.info("Starting scrape cache refresh for tracker at {}...",
+				getAnnounceUrl());
+
+			while (!stop) {
+				scrapeCache.refresh(torrents.values());
+
+				try {
+					Thread.sleep(ScrapeCacheThread
+							.SCRAPE_CACHE_REFRESH_FREQUENCY_SECONDS * 1000);
 				} catch (InterruptedException ie) {
 					// Ignore
 				}
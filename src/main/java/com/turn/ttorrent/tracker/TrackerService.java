@@ -21,13 +21,17 @@ import com.turn.ttorrent.common.protocol.TrackerMessage.*;
 import com.turn.ttorrent.common.protocol.http.*;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 
@@ -41,11 +45,13 @@ import org.simpleframework.http.core.Container;
 
 
 /**
- * Tracker service to serve the tracker's announce requests.
+ * Tracker service to serve the tracker's announce and scrape requests.
  *
  * <p>
- * It only serves announce requests on /announce, and only serves torrents the
- * {@link Tracker} it serves knows about.
+ * It only serves announce requests on /announce, batched announce requests
+ * on /batch_announce and scrape requests on /scrape, and only serves torrents
+ * the {@link Tracker} it serves knows about. Scrape requests are answered from
+ * the tracker's {@link ScrapeCache}.
  * </p>
  *
  * <p>
@@ -73,8 +79,13 @@ public class TrackerService implements Container {
 			"compact", "no_peer_id", "numwant"
 		};
 
+	/** Maximum size of a batched announce request body, in bytes. */
+	private static final int MAX_BATCH_REQUEST_SIZE = 1024 * 1024;
+
 	private final String version;
 	private final ConcurrentMap<String, TrackedTorrent> torrents;
+	private final ScrapeCache scrapeCache;
+	private final PeerExpiryWheel expiry;
 
 
 	/**
@@ -82,28 +93,40 @@ public class TrackerService implements Container {
 	 *
 	 * @param torrents The torrents this TrackerService should serve requests
 	 * for.
+	 * @param scrapeCache The statistics snapshot scrape requests are served
+	 * from.
+	 * @param expiry The wheel announcing peers are scheduled for expiration
+	 * in.
 	 */
 	TrackerService(String version,
-			ConcurrentMap<String, TrackedTorrent> torrents) {
+			ConcurrentMap<String, TrackedTorrent> torrents,
+			ScrapeCache scrapeCache, PeerExpiryWheel expiry) {
 		this.version = version;
 		this.torrents = torrents;
+		this.scrapeCache = scrapeCache;
+		this.expiry = expiry;
 	}
 
 	/**
 	 * Handle the incoming request on the tracker service.
 	 *
 	 * <p>
-	 * This makes sure the request is made to the tracker's announce URL, and
-	 * delegates handling of the request to the <em>process()</em> method after
-	 * preparing the response object.
+	 * This makes sure the request is made to the tracker's announce, batched
+	 * announce or scrape URL, and delegates handling of the request to the
+	 * <em>process()</em>, <em>processBatch()</em> or <em>processScrape()</em>
+	 * method after preparing the response object.
 	 * </p>
 	 *
 	 * @param request The incoming HTTP request.
 	 * @param response The response object.
 	 */
 	public void handle(Request request, Response response) {
-		// Reject non-announce requests
-		if (!Tracker.ANNOUNCE_URL.equals(request.getPath().toString())) {
+		String path = request.getPath().toString();
+		boolean scrape = Tracker.SCRAPE_URL.equals(path);
+		boolean batch = Tracker.BATCH_ANNOUNCE_URL.equals(path);
+
+		// Reject non-announce, non-scrape requests
+		if (!scrape && !batch && !Tracker.ANNOUNCE_URL.equals(path)) {
 			response.setCode(404);
 			response.setText("Not Found");
 			return;
@@ -112,7 +135,13 @@ public class TrackerService implements Container {
 		OutputStream body = null;
 		try {
 			body = response.getOutputStream();
-			this.process(request, response, body);
+			if (scrape) {
+				this.processScrape(request, response, body);
+			} else if (batch) {
+				this.processBatch(request, response, body);
+			} else {
+				this.process(request, response, body);
+			}
 			body.flush();
 		} catch (IOException ioe) {
 			logger.warn("Error while writing response: {}!", ioe.getMessage());
@@ -174,6 +203,170 @@ public class TrackerService implements Container {
 			return;
 		}
 
+		TrackedPeer peer = null;
+		try {
+			peer = this.update(torrent, announceRequest);
+		} catch (MessageValidationException mve) {
+			this.serveError(response, body, Status.BAD_REQUEST,
+				mve.getMessage());
+			return;
+		}
+
+		// Craft and output the answer
+		HTTPAnnounceResponseMessage announceResponse = null;
+		try {
+			announceResponse = HTTPAnnounceResponseMessage.craft(
+				torrent.getAnnounceInterval(),
+				TrackedTorrent.MIN_ANNOUNCE_INTERVAL_SECONDS,
+				this.version,
+				torrent.seeders(),
+				torrent.leechers(),
+				torrent.getSomePeers(peer),
+				torrent.getHexInfoHash());
+			WritableByteChannel channel = Channels.newChannel(body);
+			channel.write(announceResponse.getData());
+		} catch (Exception e) {
+			this.serveError(response, body, Status.INTERNAL_SERVER_ERROR,
+				e.getMessage());
+		}
+	}
+
+	/**
+	 * Process a batched announce request.
+	 *
+	 * <p>
+	 * The announces of the batch are processed one after the other, exactly
+	 * like individual announce requests, and their responses gathered in a
+	 * single batched response. Announces on unknown torrents or with an
+	 * invalid event are reported as failures of their own entry and don't fail
+	 * the rest of the batch.
+	 * </p>
+	 *
+	 * @param request The incoming batched announce request.
+	 * @param response The response object.
+	 * @param body The validated response body output stream.
+	 * @see HTTPBatchAnnounceRequestMessage
+	 */
+	private void processBatch(Request request, Response response,
+			OutputStream body) throws IOException {
+		response.set("Content-Type", "text/plain");
+		response.set("Server", this.version);
+		response.setDate("Date", System.currentTimeMillis());
+
+		HTTPBatchAnnounceRequestMessage batchRequest = null;
+		try {
+			batchRequest = HTTPBatchAnnounceRequestMessage.parse(
+				this.readBody(request),
+				request.getClientAddress().getAddress().getHostAddress());
+		} catch (MessageValidationException mve) {
+			this.serveError(response, body, Status.BAD_REQUEST,
+				mve.getMessage());
+			return;
+		}
+
+		List<HTTPAnnounceResponseMessage> responses =
+			new ArrayList<HTTPAnnounceResponseMessage>();
+		Map<String, String> failures = new HashMap<String, String>();
+		int interval = 0;
+
+		try {
+			for (HTTPAnnounceRequestMessage announceRequest :
+					batchRequest.getAnnounces()) {
+				TrackedTorrent torrent = this.torrents.get(
+					announceRequest.getHexInfoHash());
+				if (torrent == null) {
+					failures.put(announceRequest.getHexInfoHash(),
+						ErrorMessage.FailureReason.UNKNOWN_TORRENT
+							.getMessage());
+					continue;
+				}
+
+				TrackedPeer peer;
+				try {
+					peer = this.update(torrent, announceRequest);
+				} catch (MessageValidationException mve) {
+					failures.put(announceRequest.getHexInfoHash(),
+						mve.getMessage());
+					continue;
+				}
+
+				responses.add(HTTPAnnounceResponseMessage.craft(
+					torrent.getAnnounceInterval(),
+					TrackedTorrent.MIN_ANNOUNCE_INTERVAL_SECONDS,
+					this.version,
+					torrent.seeders(),
+					torrent.leechers(),
+					torrent.getSomePeers(peer),
+					torrent.getHexInfoHash()));
+
+				if (interval == 0 || torrent.getAnnounceInterval() < interval) {
+					interval = torrent.getAnnounceInterval();
+				}
+			}
+
+			if (!failures.isEmpty()) {
+				logger.debug("{} announce(s) of a batch of {} failed.",
+					failures.size(), batchRequest.getAnnounces().size());
+			}
+
+			HTTPBatchAnnounceResponseMessage batchResponse =
+				HTTPBatchAnnounceResponseMessage.craft(
+					interval > 0
+						? interval
+						: TrackedTorrent.MIN_ANNOUNCE_INTERVAL_SECONDS,
+					responses, failures);
+			WritableByteChannel channel = Channels.newChannel(body);
+			channel.write(batchResponse.getData());
+		} catch (Exception e) {
+			this.serveError(response, body, Status.INTERNAL_SERVER_ERROR,
+				e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the body of a request, up to {@link #MAX_BATCH_REQUEST_SIZE} bytes.
+	 *
+	 * @param request The incoming request.
+	 * @throws MessageValidationException If the request body is too large.
+	 */
+	private ByteBuffer readBody(Request request)
+		throws IOException, MessageValidationException {
+		InputStream is = request.getInputStream();
+		byte[] data = new byte[4096];
+		int length = 0;
+
+		try {
+			int read;
+			while ((read = is.read(data, length, data.length - length)) != -1) {
+				length += read;
+				if (length == data.length) {
+					if (length >= MAX_BATCH_REQUEST_SIZE) {
+						throw new MessageValidationException(
+							"Batched announce request too large!");
+					}
+					data = Arrays.copyOf(data,
+						Math.min(data.length * 2, MAX_BATCH_REQUEST_SIZE));
+				}
+			}
+		} finally {
+			is.close();
+		}
+
+		return ByteBuffer.wrap(Arrays.copyOf(data, length));
+	}
+
+	/**
+	 * Update a torrent according to an announce request.
+	 *
+	 * @param torrent The torrent announced.
+	 * @param announceRequest The announce request.
+	 * @return The announcing peer.
+	 * @throws MessageValidationException If the announce event is not valid
+	 * for this peer.
+	 */
+	private TrackedPeer update(TrackedTorrent torrent,
+		AnnounceRequestMessage announceRequest)
+		throws IOException, MessageValidationException {
 		AnnounceRequestMessage.RequestEvent event = announceRequest.getEvent();
 		String peerId = announceRequest.getHexPeerId();
 
@@ -194,13 +387,12 @@ public class TrackerService implements Container {
 		// request refers to.
 		if (event != null && torrent.getPeer(peerId) == null &&
 			!AnnounceRequestMessage.RequestEvent.STARTED.equals(event)) {
-			this.serveError(response, body, Status.BAD_REQUEST,
-				ErrorMessage.FailureReason.INVALID_EVENT);
-			return;
+			throw new MessageValidationException(
+				ErrorMessage.FailureReason.INVALID_EVENT.getMessage());
 		}
 
 		// Update the torrent according to the announce event
-		TrackedPeer peer = null;
+		TrackedPeer peer;
 		try {
 			peer = torrent.update(event,
 				ByteBuffer.wrap(announceRequest.getPeerId()),
@@ -211,30 +403,102 @@ public class TrackerService implements Container {
 				announceRequest.getDownloaded(),
 				announceRequest.getLeft());
 		} catch (IllegalArgumentException iae) {
+			throw new MessageValidationException(
+				ErrorMessage.FailureReason.INVALID_EVENT.getMessage());
+		}
+
+		// Push back the peer's expiration, unless it just left the swarm.
+		if (!AnnounceRequestMessage.RequestEvent.STOPPED.equals(event)) {
+			this.expiry.schedule(torrent, peer);
+		}
+
+		return peer;
+	}
+
+	/**
+	 * Process the scrape request.
+	 *
+	 * <p>
+	 * The statistics of the requested torrents are read from the latest
+	 * {@link ScrapeCache} snapshot, so serving a scrape request never walks
+	 * the torrents' peers. Unknown torrents are simply left out of the
+	 * response, and a request without any info hash gets the statistics of
+	 * all the torrents of this tracker.
+	 * </p>
+	 *
+	 * @param request The incoming scrape request.
+	 * @param response The response object.
+	 * @param body The validated response body output stream.
+	 */
+	private void processScrape(Request request, Response response,
+			OutputStream body) throws IOException {
+		response.set("Content-Type", "text/plain");
+		response.set("Server", this.version);
+		response.setDate("Date", System.currentTimeMillis());
+
+		HTTPScrapeRequestMessage scrapeRequest = null;
+		try {
+			scrapeRequest = this.parseScrapeQuery(request);
+		} catch (MessageValidationException mve) {
 			this.serveError(response, body, Status.BAD_REQUEST,
-				ErrorMessage.FailureReason.INVALID_EVENT);
+				mve.getMessage());
 			return;
 		}
 
-		// Craft and output the answer
-		HTTPAnnounceResponseMessage announceResponse = null;
 		try {
-			announceResponse = HTTPAnnounceResponseMessage.craft(
-				torrent.getAnnounceInterval(),
-				TrackedTorrent.MIN_ANNOUNCE_INTERVAL_SECONDS,
-				this.version,
-				torrent.seeders(),
-				torrent.leechers(),
-				torrent.getSomePeers(peer),
-				torrent.getHexInfoHash());
+			HTTPScrapeResponseMessage scrapeResponse =
+				HTTPScrapeResponseMessage.craft(this.scrapeCache.get(
+					scrapeRequest.getHexInfoHashes()));
 			WritableByteChannel channel = Channels.newChannel(body);
-			channel.write(announceResponse.getData());
+			channel.write(scrapeResponse.getData());
 		} catch (Exception e) {
 			this.serveError(response, body, Status.INTERNAL_SERVER_ERROR,
 				e.getMessage());
 		}
 	}
 
+	/**
+	 * Parse the scrape query parameters using our defined BYTE_ENCODING.
+	 *
+	 * <p>
+	 * Contrary to announce requests, scrape requests repeat the
+	 * <em>info_hash</em> parameter once per requested torrent. All other
+	 * parameters are ignored.
+	 * </p>
+	 *
+	 * @param request The incoming scrape request.
+	 * @return The {@link HTTPScrapeRequestMessage} representing the client's
+	 * scrape request.
+	 */
+	private HTTPScrapeRequestMessage parseScrapeQuery(Request request)
+		throws IOException, MessageValidationException {
+		List<BEValue> infoHashes = new ArrayList<BEValue>();
+
+		String uri = request.getAddress().toString();
+		int query = uri.indexOf('?');
+		if (query != -1) {
+			for (String pair : uri.substring(query + 1).split("&")) {
+				String[] keyval = pair.split("[=]", 2);
+				if (keyval.length != 2 || !"info_hash".equals(keyval[0])) {
+					continue;
+				}
+
+				try {
+					infoHashes.add(new BEValue(
+						URLDecoder.decode(keyval[1],
+							TrackedTorrent.BYTE_ENCODING),
+						TrackedTorrent.BYTE_ENCODING));
+				} catch (UnsupportedEncodingException uee) {
+					// Ignore, act like parameter was not there
+				}
+			}
+		}
+
+		Map<String, BEValue> params = new HashMap<String, BEValue>();
+		params.put("info_hash", new BEValue(infoHashes));
+		return HTTPScrapeRequestMessage.parse(BEncoder.bencode(params));
+	}
+
 	/**
 	 * Parse the query parameters using our defined BYTE_ENCODING.
 	 *
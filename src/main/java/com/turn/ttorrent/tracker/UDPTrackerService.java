@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2011-2012 Turn, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.tracker;
+
+import com.turn.ttorrent.common.protocol.TrackerMessage.*;
+import com.turn.ttorrent.common.protocol.udp.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * UDP tracker service.
+ *
+ * <p>
+ * Serves connect and scrape requests of the UDP tracker protocol (BEP 15) on
+ * the tracker's port, so monitoring systems can retrieve swarm statistics
+ * without announcing. Scrape requests are answered from the tracker's
+ * {@link ScrapeCache}. Announces over UDP are not supported by this tracker
+ * and are answered with a tracker error.
+ * </p>
+ *
+ * @see <a href="http://www.bittorrent.org/beps/bep_0015.html">BitTorrent UDP-tracker protocol specification</a>
+ */
+public class UDPTrackerService implements Runnable {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(UDPTrackerService.class);
+
+	/**
+	 * Maximum UDP request packet size we expect: a scrape request for the
+	 * maximum number of info hashes, the biggest request of the protocol.
+	 */
+	private static final int UDP_PACKET_LENGTH =
+		UDPScrapeRequestMessage.MAX_MESSAGE_SIZE;
+
+	/** Lifetime of connection IDs handed out to clients, in milliseconds. */
+	private static final long CONNECTION_ID_EXPIRATION_MS = 2 * 60 * 1000;
+
+	private final InetSocketAddress address;
+	private final ScrapeCache scrapeCache;
+	private final Random random;
+
+	/** Connection IDs handed out to clients, with their expiration time. */
+	private final ConcurrentMap<Long, Long> connectionIds;
+	private long nextConnectionIdCollection;
+
+	private DatagramChannel channel;
+	private Thread thread;
+	private volatile boolean stop;
+
+	/**
+	 * Create a new UDP tracker service.
+	 *
+	 * @param address The address to listen on.
+	 * @param scrapeCache The statistics snapshot scrape requests are served
+	 * from.
+	 */
+	UDPTrackerService(InetSocketAddress address, ScrapeCache scrapeCache) {
+		this.address = address;
+		this.scrapeCache = scrapeCache;
+		this.random = new Random();
+		this.connectionIds = new ConcurrentHashMap<Long, Long>();
+		this.nextConnectionIdCollection = 0;
+	}
+
+	/**
+	 * Bind the service's socket and start serving requests.
+	 */
+	public void start() throws IOException {
+		if (this.thread != null && this.thread.isAlive()) {
+			return;
+		}
+
+		this.stop = false;
+		this.channel = DatagramChannel.open();
+		this.channel.socket().bind(this.address);
+
+		this.thread = new Thread(this);
+		this.thread.setName("udp-tracker:" + this.address.getPort());
+		this.thread.start();
+	}
+
+	/**
+	 * Stop the service.
+	 *
+	 * <p>
+	 * Closing the channel unblocks the service thread, which then exits.
+	 * </p>
+	 */
+	public void stop() {
+		this.stop = true;
+
+		if (this.channel != null) {
+			try {
+				this.channel.close();
+			} catch (IOException ioe) {
+				logger.warn("Error while closing UDP tracker socket: {}",
+					ioe.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		logger.info("Starting UDP tracker service on {}...", this.address);
+
+		ByteBuffer packet = ByteBuffer.allocate(UDP_PACKET_LENGTH);
+		while (!this.stop) {
+			try {
+				packet.clear();
+				SocketAddress client = this.channel.receive(packet);
+				packet.flip();
+				this.handle(packet, client);
+			} catch (ClosedChannelException cce) {
+				break;
+			} catch (IOException ioe) {
+				logger.warn("Error while serving UDP tracker request: {}",
+					ioe.getMessage());
+			}
+		}
+
+		logger.info("UDP tracker service on {} stopped.", this.address);
+	}
+
+	/**
+	 * Handle a request packet and send back the response, if any.
+	 *
+	 * @param packet The request packet data.
+	 * @param client The address of the client that sent the request.
+	 */
+	private void handle(ByteBuffer packet, SocketAddress client)
+		throws IOException {
+		UDPTrackerMessage.UDPTrackerRequestMessage request;
+		try {
+			request = UDPTrackerMessage.UDPTrackerRequestMessage.parse(packet);
+		} catch (MessageValidationException mve) {
+			logger.debug("Ignoring invalid UDP tracker request from {}: {}",
+				client, mve.getMessage());
+			return;
+		}
+
+		UDPTrackerMessage response;
+		if (request instanceof UDPConnectRequestMessage) {
+			response = UDPConnectResponseMessage.craft(
+				request.getTransactionId(), this.newConnectionId());
+		} else if (request instanceof UDPScrapeRequestMessage) {
+			UDPScrapeRequestMessage scrape = (UDPScrapeRequestMessage)request;
+			if (!this.isValidConnectionId(scrape.getConnectionId())) {
+				logger.debug("Ignoring scrape request with unknown " +
+					"connection ID from {}.", client);
+				return;
+			}
+			response = UDPScrapeResponseMessage.craft(
+				scrape.getTransactionId(),
+				this.getStatistics(scrape.getHexInfoHashes()));
+		} else {
+			response = UDPTrackerErrorMessage.craft(
+				request.getTransactionId(),
+				ErrorMessage.FailureReason.NOT_IMPLEMENTED.getMessage());
+		}
+
+		this.channel.send(response.getData(), client);
+	}
+
+	/**
+	 * Returns the statistics of the given torrents, in order.
+	 *
+	 * <p>
+	 * UDP scrape responses are positional, so unknown torrents are reported
+	 * with zeroed statistics instead of being skipped.
+	 * </p>
+	 */
+	private List<ScrapeStatistics> getStatistics(List<String> hexInfoHashes) {
+		List<ScrapeStatistics> statistics =
+			new ArrayList<ScrapeStatistics>(hexInfoHashes.size());
+		for (String hexInfoHash : hexInfoHashes) {
+			ScrapeStatistics stats = this.scrapeCache.get(hexInfoHash);
+			statistics.add(stats != null
+				? stats
+				: new ScrapeStatistics(hexInfoHash, 0, 0, 0));
+		}
+		return statistics;
+	}
+
+	/**
+	 * Hand out a new connection ID.
+	 *
+	 * <p>
+	 * Expired connection IDs are collected at most once per expiration
+	 * period, on the way.
+	 * </p>
+	 */
+	private long newConnectionId() {
+		long now = System.currentTimeMillis();
+
+		if (now >= this.nextConnectionIdCollection) {
+			Iterator<Map.Entry<Long, Long>> it =
+				this.connectionIds.entrySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().getValue() < now) {
+					it.remove();
+				}
+			}
+			this.nextConnectionIdCollection = now + CONNECTION_ID_EXPIRATION_MS;
+		}
+
+		long connectionId = this.random.nextLong();
+		this.connectionIds.put(connectionId,
+			now + CONNECTION_ID_EXPIRATION_MS);
+		return connectionId;
+	}
+
+	private boolean isValidConnectionId(long connectionId) {
+		Long expiration = this.connectionIds.get(connectionId);
+		return expiration != null &&
+			expiration >= System.currentTimeMillis();
+	}
+}